@@ -0,0 +1,242 @@
+import benchmarks.Workload;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The operations the benchmarks measure, in the default package so they can use the engine directly.
+// Every table is t (id INT PRIMARY KEY, bucket INT, name VARCHAR, score INT) unless said otherwise.
+public class EngineWorkloads {
+    // Deleted versions and updated ones pile up until a vacuum, which reset runs this often.
+    static final int VACUUM_EVERY = 64;
+
+    static Table createTable(Database db, int rows, int buckets, StorageType storage) throws Exception {
+        db.createTable("t", Arrays.asList(
+                new Column("id", DataType.INT, true, false),
+                new Column("bucket", DataType.INT, false, false),
+                new Column("name", DataType.VARCHAR, false, false),
+                new Column("score", DataType.INT, false, false)), storage);
+        Table table = db.getTable("t");
+        table.insertBatch(rows(0, rows, buckets));
+        table.analyze();
+        return table;
+    }
+
+    static List<Object[]> rows(int from, int to, int buckets) {
+        List<Object[]> rows = new ArrayList<>(to - from);
+        for (int id = from; id < to; id++) {
+            rows.add(new Object[]{id, id % buckets, "name" + id, id});
+        }
+        return rows;
+    }
+
+    // One Table.insert per operation, with ids counting up past the initial rows.
+    public static class Insert implements Workload {
+        private Database db;
+        private Table table;
+        private int nextId;
+
+        public void setUp(int rows, String... options) throws Exception {
+            db = new Database();
+            table = createTable(db, rows, 10, StorageType.valueOf(options[0]));
+            nextId = rows;
+        }
+
+        public Object run() throws Exception {
+            Map<String, Object> values = new HashMap<>();
+            int id = nextId++;
+            values.put("id", id);
+            values.put("bucket", id % 10);
+            values.put("name", "name");
+            values.put("score", id);
+            table.insert(values);
+            return id;
+        }
+
+        public void tearDown() throws Exception {
+            db.close();
+        }
+    }
+
+    // Table.select of one row, by the indexed id or by the unindexed score column.
+    public static class Select implements Workload {
+        private Database db;
+        private Table table;
+        private String column;
+        private int rows;
+        private int key;
+
+        public void setUp(int rows, String... options) throws Exception {
+            db = new Database();
+            table = createTable(db, rows, 10, StorageType.HEAP);
+            column = options[0].equals("INDEXED") ? "id" : "score";
+            this.rows = rows;
+        }
+
+        public Object run() {
+            key = (key + 7919) % rows;
+            return table.select(Collections.singletonMap(column, key));
+        }
+
+        public void tearDown() throws Exception {
+            db.close();
+        }
+    }
+
+    // Table.update or Table.delete of the rows in bucket 0, which holds the given share of the table.
+    public static class Write implements Workload {
+        private Database db;
+        private Table table;
+        private boolean delete;
+        private Map<String, Object> bucket = Collections.singletonMap("bucket", 0);
+        private List<Object[]> deletedRows = new ArrayList<>();
+        private boolean deleted;
+        private int score;
+        private int resets;
+
+        public void setUp(int rows, String... options) throws Exception {
+            delete = options[0].equals("DELETE");
+            int buckets = (int) Math.round(1 / Double.parseDouble(options[1]));
+            db = new Database();
+            table = createTable(db, rows, buckets, StorageType.HEAP);
+            for (Object[] row : rows(0, rows, buckets)) {
+                if ((Integer) row[1] == 0) {
+                    deletedRows.add(row);
+                }
+            }
+        }
+
+        public Object run() throws Exception {
+            if (delete) {
+                deleted = true;
+                return table.delete(bucket);
+            }
+            return table.update(bucket, Collections.singletonMap("score", score++));
+        }
+
+        public void reset() throws Exception {
+            if (deleted) {
+                table.insertBatch(deletedRows);
+                deleted = false;
+            }
+            if (++resets % VACUUM_EVERY == 0) {
+                table.vacuum();
+            }
+        }
+
+        public void tearDown() throws Exception {
+            db.close();
+        }
+    }
+
+    // Database.join of orders (id, customer_id) to customers (id, name), ten orders per customer.
+    public static class Join implements Workload {
+        private Database db;
+
+        public void setUp(int rows, String... options) throws Exception {
+            db = new Database();
+            db.createTable("customers", Arrays.asList(
+                    new Column("id", DataType.INT, true, false),
+                    new Column("name", DataType.VARCHAR, false, false)));
+            db.createTable("orders", Arrays.asList(
+                    new Column("id", DataType.INT, true, false),
+                    new Column("customer_id", DataType.INT, false, false)));
+            List<Object[]> customers = new ArrayList<>();
+            for (int id = 0; id < Math.max(1, rows / 10); id++) {
+                customers.add(new Object[]{id, "customer" + id});
+            }
+            List<Object[]> orders = new ArrayList<>();
+            for (int id = 0; id < rows; id++) {
+                orders.add(new Object[]{id, id % customers.size()});
+            }
+            db.getTable("customers").insertBatch(customers);
+            db.getTable("orders").insertBatch(orders);
+            db.analyze();
+        }
+
+        public Object run() throws Exception {
+            return db.join("orders", "customers", "customer_id", "id").size();
+        }
+
+        public void tearDown() throws Exception {
+            db.close();
+        }
+    }
+
+    // A point SELECT parsed only, parsed and run, or run as a prepared statement.
+    public static class Parse implements Workload {
+        static final String SQL = "SELECT id, name, score FROM t WHERE id = 42";
+
+        private Database db;
+        private SQLParser parser;
+        private PreparedStatement prepared;
+        private String mode;
+
+        public void setUp(int rows, String... options) throws Exception {
+            db = new Database();
+            createTable(db, rows, 10, StorageType.HEAP);
+            parser = new SQLParser(db);
+            prepared = parser.prepare("SELECT id, name, score FROM t WHERE id = ?");
+            mode = options[0];
+        }
+
+        public Object run() throws Exception {
+            switch (mode) {
+                case "PARSE": return SQLParser.parse(SQL);
+                case "EXECUTE": return parser.execute(SQL);
+                default: return prepared.execute(42);
+            }
+        }
+
+        public void tearDown() throws Exception {
+            db.close();
+        }
+    }
+
+    // POST /api/sql to a WebServer on a free port. Safe to run from several threads at once.
+    public static class Web implements Workload {
+        private Database db;
+        private WebServer server;
+        private URL url;
+        private int rows;
+        private boolean range;
+        private String accept;
+
+        public void setUp(int rows, String... options) throws Exception {
+            db = new Database();
+            createTable(db, rows, 10, StorageType.HEAP);
+            this.rows = rows;
+            range = options[0].equals("RANGE");
+            accept = options[1];
+            server = new WebServer(db, 0, ExecutorMode.POOL, 16, new AdmissionControl(16, 64, 1000));
+            server.start();
+            url = new URL("http://localhost:" + server.getPort() + "/api/sql");
+        }
+
+        public Object run() throws Exception {
+            int key = ThreadLocalRandom.current().nextInt(Math.max(1, rows - 100));
+            String sql = range
+                    ? "SELECT * FROM t WHERE id >= " + key + " AND id < " + (key + 100)
+                    : "SELECT * FROM t WHERE id = " + key;
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Accept", accept);
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(sql.getBytes(StandardCharsets.UTF_8));
+            }
+            if (connection.getResponseCode() != 200) {
+                throw new Exception("HTTP " + connection.getResponseCode());
+            }
+            return connection.getInputStream().readAllBytes().length;
+        }
+
+        public void tearDown() throws Exception {
+            server.stop();
+            db.close();
+        }
+    }
+}
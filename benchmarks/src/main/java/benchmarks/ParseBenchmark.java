@@ -0,0 +1,39 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// What parsing costs SQLParser.execute: a point SELECT parsed only (PARSE), parsed and run (EXECUTE), and run
+// as a prepared statement (PREPARED), against a table of rows rows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"1000", "100000"})
+    int rows;
+
+    @Param({"PARSE", "EXECUTE", "PREPARED"})
+    String mode;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workload.load("Parse");
+        workload.setUp(rows, mode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return workload.run();
+    }
+}
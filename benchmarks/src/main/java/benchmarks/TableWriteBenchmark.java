@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Table.update and Table.delete of the share selectivity of rows rows. Deleted rows are put back between
+// operations, outside the measured time.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TableWriteBenchmark {
+    @Param({"1000", "100000"})
+    int rows;
+
+    @Param({"UPDATE", "DELETE"})
+    String operation;
+
+    @Param({"0.001", "0.01", "0.1"})
+    String selectivity;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workload.load("Write");
+        workload.setUp(rows, operation, selectivity);
+    }
+
+    @TearDown(Level.Invocation)
+    public void reset() throws Exception {
+        workload.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public Object write() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// POST /api/sql requests per second from four client threads: a point SELECT by key, or a SELECT of 100
+// rows, against a table of rows rows, answered in the given format.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class WebServerBenchmark {
+    @Param({"1000", "100000"})
+    int rows;
+
+    @Param({"POINT", "RANGE"})
+    String query;
+
+    @Param({"text/plain", "application/json"})
+    String accept;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workload.load("Web");
+        workload.setUp(rows, query, accept);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public Object request() throws Exception {
+        return workload.run();
+    }
+}
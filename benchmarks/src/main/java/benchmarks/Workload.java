@@ -0,0 +1,23 @@
+package benchmarks;
+
+// One measured engine operation. JMH will not run benchmarks in the default package, and code in a named
+// package cannot name the engine's classes, so the workloads live in the default package (EngineWorkloads)
+// and the benchmarks here load them by name and call them through this interface.
+public interface Workload {
+    // Builds a fresh database of about rows rows; options are the benchmark's other parameters.
+    void setUp(int rows, String... options) throws Exception;
+
+    // One operation. Its result is returned so the JIT cannot drop the work.
+    Object run() throws Exception;
+
+    // Restores what run changed, outside the measured time, for workloads that cannot repeat otherwise.
+    default void reset() throws Exception {
+    }
+
+    default void tearDown() throws Exception {
+    }
+
+    static Workload load(String name) throws ReflectiveOperationException {
+        return (Workload) Class.forName("EngineWorkloads$" + name).getDeclaredConstructor().newInstance();
+    }
+}
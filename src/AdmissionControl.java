@@ -0,0 +1,56 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Caps how many requests run at once. A request over the cap waits up to queueTimeoutMs for a slot, and is
+// turned away at once when maxQueued others are already waiting, so overload shows up as quick rejections
+// rather than ever longer latency for everyone.
+public class AdmissionControl {
+    private final Semaphore slots;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long queueTimeoutMs;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionControl(int maxInFlight, int maxQueued, long queueTimeoutMs) {
+        if (maxInFlight < 1 || maxQueued < 0 || queueTimeoutMs < 0) {
+            throw new IllegalArgumentException("Need at least one slot and no negative queue size or timeout");
+        }
+        this.slots = new Semaphore(maxInFlight, true);
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMs = queueTimeoutMs;
+    }
+
+    // Returns whether the caller got a slot, which it must then give back with exit().
+    public boolean tryEnter() throws InterruptedException {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            if (slots.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            rejected.incrementAndGet();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    public void exit() {
+        slots.release();
+    }
+
+    public int getMaxInFlight() { return maxInFlight; }
+    public int getInFlight() { return maxInFlight - slots.availablePermits(); }
+    public int getQueued() { return Math.max(0, queued.get()); }
+    public long getRejected() { return rejected.get(); }
+}
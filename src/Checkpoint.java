@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Binary snapshot of every table at one commit stamp, plus the log segment where replay must resume.
+// The file is a header followed by blocks of [int length][type byte][payload]; row blocks are kept small
+// so loading can memory-map the file in windows of whole blocks, however large it is.
+public class Checkpoint {
+    private static final int MAGIC = 0x52444243;
+    private static final int VERSION = 1;
+    private static final byte TABLE_BLOCK = 1;
+    private static final byte ROWS_BLOCK = 2;
+    private static final byte END_BLOCK = 3;
+    private static final int BLOCK_BYTES = 1 << 20;
+    private static final long WINDOW_BYTES = 256L << 20;
+
+    private final long logSegment;
+    private final List<Table> tables;
+
+    private Checkpoint(long logSegment, List<Table> tables) {
+        this.logSegment = logSegment;
+        this.tables = tables;
+    }
+
+    public long getLogSegment() { return logSegment; }
+    public List<Table> getTables() { return tables; }
+
+    // Writes the rows of each table visible at snapshot, with the secondary indexes to rebuild on load.
+    public static void write(Path file, long logSegment, Map<Table, List<Index>> tables, VersionClock.Snapshot snapshot) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(MAGIC).putInt(VERSION).putLong(logSegment).flip();
+            channel.write(header);
+
+            RowCodec block = new RowCodec(BLOCK_BYTES + 4096);
+            for (Map.Entry<Table, List<Index>> entry : tables.entrySet()) {
+                Table table = entry.getKey();
+                startBlock(block, TABLE_BLOCK);
+                block.putString(table.getName());
+                block.putByte(table.getStorageType().ordinal());
+                RowCodec.putColumns(block, table.getColumns());
+                block.putShort(entry.getValue().size());
+                for (Index index : entry.getValue()) {
+                    block.putString(index.getName());
+                    block.putString(index.getColumnName());
+                    block.putByte(index.getType().ordinal());
+                }
+                writeBlock(channel, block);
+
+                startBlock(block, ROWS_BLOCK);
+                IOException[] failure = new IOException[1];
+                table.forEachRow(snapshot, row -> {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    block.putRow(row);
+                    if (block.size() >= BLOCK_BYTES) {
+                        try {
+                            writeBlock(channel, block);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                        startBlock(block, ROWS_BLOCK);
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                if (block.size() > 5) {
+                    writeBlock(channel, block);
+                }
+            }
+            startBlock(block, END_BLOCK);
+            writeBlock(channel, block);
+            channel.force(true);
+        }
+        // Renaming into place means a crash never leaves a half-written checkpoint behind.
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void startBlock(RowCodec block, byte type) {
+        block.clear();
+        block.putInt(0);
+        block.putByte(type);
+    }
+
+    private static void writeBlock(FileChannel channel, RowCodec block) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(block.array(), 0, block.size());
+        bytes.putInt(0, block.size() - 4);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    public static Checkpoint load(Path file, VersionClock clock) throws Exception {
+        List<Table> tables = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, WINDOW_BYTES));
+            if (size < 16 || window.getInt() != MAGIC || window.getInt() != VERSION) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            long logSegment = window.getLong();
+            long windowStart = 0;
+            long position = 16;
+            Table table = null;
+            Object[][] batch = new Object[4096][];
+
+            while (true) {
+                if (position + 4 > size) {
+                    throw new IOException("Truncated checkpoint file: " + file);
+                }
+                if (position + 4 > windowStart + window.limit()) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, WINDOW_BYTES));
+                }
+                int length = window.getInt((int) (position - windowStart));
+                if (position + 4 + length > size) {
+                    throw new IOException("Truncated checkpoint file: " + file);
+                }
+                if (position + 4 + length > windowStart + window.limit()) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, Math.max(WINDOW_BYTES, 4L + length)));
+                }
+                ByteBuffer block = window.slice((int) (position - windowStart) + 4, length);
+                position += 4 + length;
+
+                byte type = block.get();
+                if (type == END_BLOCK) {
+                    return new Checkpoint(logSegment, tables);
+                } else if (type == TABLE_BLOCK) {
+                    String name = RowCodec.readString(block);
+                    StorageType storageType = StorageType.values()[block.get()];
+                    table = new Table(name, RowCodec.readColumns(block), storageType, clock);
+                    int indexCount = block.getShort();
+                    for (int i = 0; i < indexCount; i++) {
+                        table.createIndex(RowCodec.readString(block), RowCodec.readString(block), IndexType.values()[block.get()]);
+                    }
+                    tables.add(table);
+                } else if (type == ROWS_BLOCK && table != null) {
+                    int count = 0;
+                    while (block.hasRemaining()) {
+                        batch[count++] = RowCodec.readRow(block);
+                        if (count == batch.length) {
+                            table.restore(batch, count);
+                            count = 0;
+                        }
+                    }
+                    table.restore(batch, count);
+                } else {
+                    throw new IOException("Corrupt checkpoint file: " + file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+
+// What the planner knows about the values of one column: how many are NULL, about how many are distinct,
+// their range and, once ANALYZE has run, an equi-depth histogram. Committed inserts and updates keep the
+// counts, distinct estimate and range current; values that deletes and updates remove stay counted until
+// the next ANALYZE rebuilds everything from the live rows.
+public class ColumnStatistics {
+    static final int HISTOGRAM_BUCKETS = 100;
+    // Fraction assumed for each bound of a range the statistics cannot place.
+    private static final double UNKNOWN_BOUND_FRACTION = 1.0 / 3;
+
+    private final HyperLogLog distinct = new HyperLogLog();
+    private volatile long values;
+    private volatile long nulls;
+    private volatile Object min;
+    private volatile Object max;
+    // Bucket boundaries; each bucket holds the same number of sampled values. Null until ANALYZE.
+    private volatile Object[] histogram;
+
+    // Called by the table's single writer.
+    @SuppressWarnings("unchecked")
+    void add(Object value) {
+        if (value == null) {
+            nulls++;
+            return;
+        }
+        values++;
+        distinct.add(value);
+        if (min == null || ((Comparable<Object>) value).compareTo(min) < 0) {
+            min = value;
+        }
+        if (max == null || ((Comparable<Object>) value).compareTo(max) > 0) {
+            max = value;
+        }
+    }
+
+    // Sorts the sample of non-null values in place and keeps every (count / HISTOGRAM_BUCKETS)th as a boundary.
+    void setHistogram(Object[] sample, int count) {
+        if (count == 0) {
+            histogram = null;
+            return;
+        }
+        Arrays.sort(sample, 0, count);
+        int buckets = Math.min(HISTOGRAM_BUCKETS, count);
+        Object[] bounds = new Object[buckets + 1];
+        for (int i = 0; i <= buckets; i++) {
+            bounds[i] = sample[(int) Math.min(count - 1, (long) i * count / buckets)];
+        }
+        histogram = bounds;
+    }
+
+    public long getDistinct() { return distinct.estimate(); }
+    public Object getMin() { return min; }
+    public Object getMax() { return max; }
+    public boolean hasHistogram() { return histogram != null; }
+
+    public double getNullFraction() {
+        long total = values + nulls;
+        return total == 0 ? 0 : (double) nulls / total;
+    }
+
+    // Estimated fraction of the non-null values equal to value. uniform is the share of a typical value; a value
+    // that fills whole histogram buckets on its own is common, and gets the share of the sample it fills.
+    double equalFraction(Object value, double uniform) {
+        Object[] bounds = histogram;
+        if (bounds == null) {
+            return uniform;
+        }
+        int full = 0;
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i - 1].equals(value) && bounds[i].equals(value)) {
+                full++;
+            }
+        }
+        return Math.max(uniform, (double) full / (bounds.length - 1));
+    }
+
+    // Estimated fraction of the non-null values v with from < v < to (<= for an inclusive bound); a null
+    // bound is open. equalFraction is the share of a single value, added or removed at inclusive bounds.
+    double rangeFraction(Object from, boolean fromInclusive, Object to, boolean toInclusive, double equalFraction) {
+        double low = from == null ? 0 : below(from) + (fromInclusive ? 0 : equalFraction);
+        double high = to == null ? 1 : below(to) + (toInclusive ? equalFraction : 0);
+        if (Double.isNaN(low) || Double.isNaN(high)) {
+            return (from == null ? 1 : UNKNOWN_BOUND_FRACTION) * (to == null ? 1 : UNKNOWN_BOUND_FRACTION);
+        }
+        return Math.max(0, Math.min(1, high) - Math.max(0, low));
+    }
+
+    // Estimated fraction of the non-null values below value, or NaN when there is nothing to go on.
+    @SuppressWarnings("unchecked")
+    private double below(Object value) {
+        Object[] bounds = histogram;
+        if (bounds != null) {
+            if (((Comparable<Object>) value).compareTo(bounds[0]) <= 0) {
+                return 0;
+            }
+            int buckets = bounds.length - 1;
+            if (((Comparable<Object>) value).compareTo(bounds[buckets]) > 0) {
+                return 1;
+            }
+            // The bucket whose upper bound is the first one at or above value.
+            int low = 1;
+            int high = buckets;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (((Comparable<Object>) bounds[middle]).compareTo(value) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return (low - 1 + within(value, bounds[low - 1], bounds[low])) / buckets;
+        }
+        Object lowest = min;
+        Object highest = max;
+        if (lowest == null || ((Comparable<Object>) value).compareTo(lowest) <= 0) {
+            return 0;
+        }
+        if (((Comparable<Object>) value).compareTo(highest) > 0) {
+            return 1;
+        }
+        return value instanceof Integer ? within(value, lowest, highest) : Double.NaN;
+    }
+
+    // Where value falls between two bounds: interpolated for integers, the middle for anything else.
+    private static double within(Object value, Object low, Object high) {
+        if (!(value instanceof Integer)) {
+            return 0.5;
+        }
+        double span = (double) (Integer) high - (Integer) low;
+        return span <= 0 ? 1 : ((Integer) value - (double) (Integer) low) / span;
+    }
+}
@@ -0,0 +1,446 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ColumnarStorage implements Storage {
+    private final String[] columnNames;
+    private final ColumnVector[] vectors;
+    private int[] freeSlots;
+    private int freeCount;
+    private int highWater;
+
+    public ColumnarStorage(List<Column> columns) {
+        this.columnNames = columns.stream().map(Column::getName).toArray(String[]::new);
+        this.vectors = new ColumnVector[columns.size()];
+        for (int i = 0; i < vectors.length; i++) {
+            switch (columns.get(i).getType()) {
+                case INT: vectors[i] = new IntVector(); break;
+                case BOOLEAN: vectors[i] = new BooleanVector(); break;
+                default: vectors[i] = new StringVector(); break;
+            }
+        }
+        this.freeSlots = new int[16];
+    }
+
+    @Override
+    public int insert(Object[] values) {
+        int rowId = freeCount > 0 ? freeSlots[--freeCount] : highWater;
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i].set(rowId, values[i]);
+        }
+        if (rowId == highWater) {
+            highWater++;
+        }
+        return rowId;
+    }
+
+    @Override
+    public void remove(int rowId) {
+        for (ColumnVector vector : vectors) {
+            vector.release(rowId);
+        }
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = rowId;
+    }
+
+    @Override
+    public Object get(int rowId, int column) {
+        return vectors[column].get(rowId);
+    }
+
+    @Override
+    public Row row(int rowId, VersionClock.Snapshot snapshot) {
+        return new RowView(rowId);
+    }
+
+    @Override
+    public int capacity() {
+        return highWater;
+    }
+
+    @Override
+    public long estimateBytes() {
+        long bytes = 4L * freeSlots.length;
+        for (ColumnVector vector : vectors) {
+            bytes += vector.estimateBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int filterEquals(int column, Object value, int[] rowIds, int count) {
+        return vectors[column].filterEquals(value, rowIds, count);
+    }
+
+    @Override
+    public int filterCompare(int column, Predicate.Comparison op, Object value, int[] rowIds, int count) {
+        return vectors[column].filterCompare(op, value, rowIds, count);
+    }
+
+    @Override
+    public void readInts(int column, int[] rowIds, int count, int[] values, boolean[] nulls) {
+        ColumnVector vector = vectors[column];
+        if (vector instanceof IntVector) {
+            ((IntVector) vector).read(rowIds, count, values, nulls);
+        } else {
+            Storage.super.readInts(column, rowIds, count, values, nulls);
+        }
+    }
+
+    @Override
+    public int filterNull(int column, boolean isNull, int[] rowIds, int count) {
+        ColumnVector vector = vectors[column];
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (vector.isNull(rowIds[i]) == isNull) {
+                rowIds[matched++] = rowIds[i];
+            }
+        }
+        return matched;
+    }
+
+    // Reads through to the column vectors, so it is only valid while the snapshot it was read at is open:
+    // after that vacuum may reuse the slot.
+    private class RowView extends Row {
+        private final int rowId;
+
+        RowView(int rowId) {
+            this.rowId = rowId;
+        }
+
+        @Override
+        public Object get(String columnName) {
+            for (int i = 0; i < columnNames.length; i++) {
+                if (columnNames[i].equals(columnName)) {
+                    return vectors[i].get(rowId);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Map<String, Object> getData() {
+            Map<String, Object> data = new HashMap<>();
+            for (int i = 0; i < columnNames.length; i++) {
+                Object value = vectors[i].get(rowId);
+                if (value != null) {
+                    data.put(columnNames[i], value);
+                }
+            }
+            return data;
+        }
+    }
+
+    // Growable bitmap. Only the table's writer sets bits; readers only test bits of versions visible to them.
+    private static class Bitmap {
+        private long[] words = new long[1];
+
+        boolean get(int index) {
+            long[] current = words;
+            int word = index >>> 6;
+            return word < current.length && (current[word] & (1L << index)) != 0;
+        }
+
+        void set(int index, boolean value) {
+            int word = index >>> 6;
+            if (word >= words.length) {
+                if (!value) {
+                    return;
+                }
+                words = Arrays.copyOf(words, Math.max(words.length * 2, word + 1));
+            }
+            if (value) {
+                words[word] |= 1L << index;
+            } else {
+                words[word] &= ~(1L << index);
+            }
+        }
+
+        long estimateBytes() {
+            return 16 + 8L * words.length;
+        }
+    }
+
+    private abstract static class ColumnVector {
+        protected final Bitmap nulls = new Bitmap();
+
+        abstract Object get(int rowId);
+
+        abstract void set(int rowId, Object value);
+
+        // Called when rowId's slot is freed; no snapshot can read it any more.
+        void release(int rowId) {
+        }
+
+        int filterEquals(Object value, int[] rowIds, int count) {
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                if (Objects.equals(get(rowIds[i]), value)) {
+                    rowIds[matched++] = rowIds[i];
+                }
+            }
+            return matched;
+        }
+
+        @SuppressWarnings("unchecked")
+        int filterCompare(Predicate.Comparison op, Object value, int[] rowIds, int count) {
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                Object current = get(rowIds[i]);
+                if (current != null && op.test(((Comparable<Object>) current).compareTo(value))) {
+                    rowIds[matched++] = rowIds[i];
+                }
+            }
+            return matched;
+        }
+
+        boolean isNull(int rowId) {
+            return nulls.get(rowId);
+        }
+
+        abstract long estimateBytes();
+    }
+
+    private static class IntVector extends ColumnVector {
+        private int[] values = new int[16];
+
+        @Override
+        Object get(int rowId) {
+            return nulls.get(rowId) ? null : values[rowId];
+        }
+
+        @Override
+        void set(int rowId, Object value) {
+            if (rowId >= values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, rowId + 1));
+            }
+            nulls.set(rowId, value == null);
+            values[rowId] = value == null ? 0 : (Integer) value;
+        }
+
+        @Override
+        long estimateBytes() {
+            return 16 + 4L * values.length + nulls.estimateBytes();
+        }
+
+        @Override
+        int filterEquals(Object value, int[] rowIds, int count) {
+            if (!(value instanceof Integer)) {
+                return super.filterEquals(value, rowIds, count);
+            }
+            int[] current = values;
+            int target = (Integer) value;
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                int rowId = rowIds[i];
+                if (current[rowId] == target && !nulls.get(rowId)) {
+                    rowIds[matched++] = rowId;
+                }
+            }
+            return matched;
+        }
+
+        void read(int[] rowIds, int count, int[] out, boolean[] outNulls) {
+            int[] current = values;
+            for (int i = 0; i < count; i++) {
+                int rowId = rowIds[i];
+                out[i] = current[rowId];
+                outNulls[i] = nulls.get(rowId);
+            }
+        }
+
+        // One loop per operator keeps the branch on op out of the per-row loop.
+        @Override
+        int filterCompare(Predicate.Comparison op, Object value, int[] rowIds, int count) {
+            if (op == Predicate.Comparison.EQ) {
+                return filterEquals(value, rowIds, count);
+            }
+            int[] current = values;
+            int target = (Integer) value;
+            int matched = 0;
+            switch (op) {
+                case NE:
+                    for (int i = 0; i < count; i++) {
+                        int rowId = rowIds[i];
+                        if (current[rowId] != target && !nulls.get(rowId)) {
+                            rowIds[matched++] = rowId;
+                        }
+                    }
+                    break;
+                case LT:
+                    for (int i = 0; i < count; i++) {
+                        int rowId = rowIds[i];
+                        if (current[rowId] < target && !nulls.get(rowId)) {
+                            rowIds[matched++] = rowId;
+                        }
+                    }
+                    break;
+                case LE:
+                    for (int i = 0; i < count; i++) {
+                        int rowId = rowIds[i];
+                        if (current[rowId] <= target && !nulls.get(rowId)) {
+                            rowIds[matched++] = rowId;
+                        }
+                    }
+                    break;
+                case GT:
+                    for (int i = 0; i < count; i++) {
+                        int rowId = rowIds[i];
+                        if (current[rowId] > target && !nulls.get(rowId)) {
+                            rowIds[matched++] = rowId;
+                        }
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < count; i++) {
+                        int rowId = rowIds[i];
+                        if (current[rowId] >= target && !nulls.get(rowId)) {
+                            rowIds[matched++] = rowId;
+                        }
+                    }
+                    break;
+            }
+            return matched;
+        }
+    }
+
+    private static class BooleanVector extends ColumnVector {
+        private final Bitmap values = new Bitmap();
+
+        @Override
+        Object get(int rowId) {
+            return nulls.get(rowId) ? null : values.get(rowId);
+        }
+
+        @Override
+        void set(int rowId, Object value) {
+            nulls.set(rowId, value == null);
+            values.set(rowId, Boolean.TRUE.equals(value));
+        }
+
+        @Override
+        long estimateBytes() {
+            return values.estimateBytes() + nulls.estimateBytes();
+        }
+    }
+
+    // Dictionary-encoded strings: each row stores an int code into a shared array of distinct values, -1 for null.
+    // Codes are reference counted by the slots holding them, so a value's entry is dropped when its last slot is
+    // freed and the code is reused. Only rows no snapshot can see are freed, so readers never see a code change.
+    private static class StringVector extends ColumnVector {
+        private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+        private String[] dictionary = new String[16];
+        private int[] references = new int[16];
+        private int[] freeCodes = new int[16];
+        private int freeCodeCount;
+        private int nextCode;
+        private int[] values = new int[16];
+
+        @Override
+        Object get(int rowId) {
+            int code = values[rowId];
+            return code < 0 ? null : dictionary[code];
+        }
+
+        @Override
+        void set(int rowId, Object value) {
+            if (rowId >= values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, rowId + 1));
+            }
+            values[rowId] = value == null ? -1 : encode((String) value);
+        }
+
+        @Override
+        void release(int rowId) {
+            int code = rowId < values.length ? values[rowId] : -1;
+            if (code < 0) {
+                return;
+            }
+            values[rowId] = -1;
+            if (--references[code] == 0) {
+                codes.remove(dictionary[code]);
+                dictionary[code] = null;
+                if (freeCodeCount == freeCodes.length) {
+                    freeCodes = Arrays.copyOf(freeCodes, freeCodes.length * 2);
+                }
+                freeCodes[freeCodeCount++] = code;
+            }
+        }
+
+        // Each distinct value is held once, by the dictionary, with a map entry and boxed code to find it.
+        @Override
+        long estimateBytes() {
+            String[] current = dictionary;
+            long bytes = 16 + 4L * values.length + 8L * current.length + 4L * freeCodes.length + nulls.estimateBytes();
+            for (String value : current) {
+                if (value != null) {
+                    bytes += Storage.valueBytes(value) + 48;
+                }
+            }
+            return bytes;
+        }
+
+        private int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                if (freeCodeCount > 0) {
+                    code = freeCodes[--freeCodeCount];
+                } else {
+                    code = nextCode++;
+                    if (code == dictionary.length) {
+                        references = Arrays.copyOf(references, references.length * 2);
+                        dictionary = Arrays.copyOf(dictionary, dictionary.length * 2);
+                    }
+                }
+                dictionary[code] = value;
+                codes.put(value, code);
+            }
+            references[code]++;
+            return code;
+        }
+
+        @Override
+        int filterEquals(Object value, int[] rowIds, int count) {
+            Integer code = value instanceof String ? codes.get(value) : null;
+            if (code == null) {
+                return value == null ? super.filterEquals(null, rowIds, count) : 0;
+            }
+            int[] current = values;
+            int target = code;
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                if (current[rowIds[i]] == target) {
+                    rowIds[matched++] = rowIds[i];
+                }
+            }
+            return matched;
+        }
+
+        @Override
+        int filterCompare(Predicate.Comparison op, Object value, int[] rowIds, int count) {
+            if (op == Predicate.Comparison.EQ) {
+                return filterEquals(value, rowIds, count);
+            }
+            if (op != Predicate.Comparison.NE) {
+                return super.filterCompare(op, value, rowIds, count);
+            }
+            Integer code = codes.get(value);
+            int[] current = values;
+            int target = code == null ? -1 : code;
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                int rowCode = current[rowIds[i]];
+                if (rowCode >= 0 && rowCode != target) {
+                    rowIds[matched++] = rowIds[i];
+                }
+            }
+            return matched;
+        }
+
+        @Override
+        boolean isNull(int rowId) {
+            return values[rowId] < 0;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// Loads CSV files into a table. Each line is a row of comma-separated values, in table column order or in
+// the order of a column list; columns left out are NULL. A value may be quoted with double quotes ("" is a
+// quote inside them), and an empty unquoted value is NULL. The file is read through a FileChannel in
+// chunks that end at a line break. Chunks are parsed into rows on a pool while the rows of earlier chunks
+// are inserted, each chunk as one batch. A bad line stops the load; the chunks before it stay loaded.
+public class CsvLoader {
+    static final int CHUNK_BYTES = 1 << 20;
+
+    private final Table table;
+    // Table column of each CSV field, and its type.
+    private final int[] positions;
+    private final DataType[] types;
+    private final boolean header;
+
+    public CsvLoader(Table table, List<String> columnNames, boolean header) throws Exception {
+        this.table = table;
+        this.header = header;
+        List<Column> columns = table.getColumns();
+        if (columnNames == null) {
+            columnNames = new ArrayList<>();
+            for (Column column : columns) {
+                columnNames.add(column.getName());
+            }
+        }
+        this.positions = new int[columnNames.size()];
+        this.types = new DataType[columnNames.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = -1;
+            for (int c = 0; c < columns.size(); c++) {
+                if (columns.get(c).getName().equals(columnNames.get(i))) {
+                    positions[i] = c;
+                    types[i] = columns.get(c).getType();
+                }
+            }
+            if (positions[i] < 0) {
+                throw new Exception("Column does not exist: " + columnNames.get(i));
+            }
+        }
+    }
+
+    // Returns the number of rows loaded. With no pool, each chunk is parsed on the calling thread.
+    public long load(Path file, ExecutorService pool, int parallelism) throws Exception {
+        Deque<Future<List<Object[]>>> parsing = new ArrayDeque<>();
+        long loaded = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+            long line = 1;
+            boolean eof = false;
+            while (!eof) {
+                while (buffer.hasRemaining() && !eof) {
+                    eof = channel.read(buffer) < 0;
+                }
+                buffer.flip();
+                // Cut after the last line break outside quotes; the rest starts the next chunk. At the end of
+                // the file everything left is the last chunk, whether or not it ends with a line break.
+                int end = eof ? buffer.limit() : 0;
+                long lines = 0;
+                boolean quoted = false;
+                for (int i = 0; i < buffer.limit(); i++) {
+                    byte b = buffer.get(i);
+                    if (b == '"') {
+                        quoted = !quoted;
+                    } else if (b == '\n' && !quoted) {
+                        if (!eof) {
+                            end = i + 1;
+                        }
+                        lines++;
+                    }
+                }
+                if (end == 0 && !eof) {
+                    // One line longer than the buffer: grow it and read on.
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+                    continue;
+                }
+                byte[] chunk = new byte[end];
+                buffer.get(chunk);
+                buffer.compact();
+                long firstLine = line;
+                boolean skipHeader = header && firstLine == 1;
+                FutureTask<List<Object[]>> task = new FutureTask<>(() -> parse(chunk, firstLine, skipHeader));
+                if (pool != null) {
+                    pool.execute(task);
+                } else {
+                    task.run();
+                }
+                parsing.add(task);
+                line += lines;
+                if (parsing.size() > parallelism) {
+                    loaded += insert(parsing.removeFirst());
+                }
+            }
+            while (!parsing.isEmpty()) {
+                loaded += insert(parsing.removeFirst());
+            }
+            return loaded;
+        } finally {
+            parsing.forEach(pending -> pending.cancel(true));
+        }
+    }
+
+    private int insert(Future<List<Object[]>> chunk) throws Exception {
+        List<Object[]> rows;
+        try {
+            rows = chunk.get();
+        } catch (ExecutionException e) {
+            // The pool wraps the parser's exception, possibly more than once; report the parser's own.
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        table.insertBatch(rows);
+        return rows.size();
+    }
+
+    private List<Object[]> parse(byte[] chunk, long line, boolean skipHeader) throws Exception {
+        List<Object[]> rows = new ArrayList<>();
+        int columnCount = table.getColumns().size();
+        int i = 0;
+        if (skipHeader) {
+            boolean quoted = false;
+            for (; i < chunk.length && (quoted || chunk[i] != '\n'); i++) {
+                quoted ^= chunk[i] == '"';
+            }
+            i++;
+            line++;
+        }
+        for (; i < chunk.length; line++) {
+            if (chunk[i] == '\n' || (chunk[i] == '\r' && i + 1 < chunk.length && chunk[i + 1] == '\n')) {
+                // Blank line.
+                i += chunk[i] == '\r' ? 2 : 1;
+                continue;
+            }
+            Object[] row = new Object[columnCount];
+            int field = 0;
+            while (true) {
+                if (field == positions.length) {
+                    throw new Exception("Line " + line + ": more than " + positions.length + " values");
+                }
+                int start;
+                int end;
+                boolean quotes = i < chunk.length && chunk[i] == '"';
+                if (quotes) {
+                    start = ++i;
+                    while (i < chunk.length && (chunk[i] != '"' || (i + 1 < chunk.length && chunk[i + 1] == '"'))) {
+                        i += chunk[i] == '"' ? 2 : 1;
+                    }
+                    if (i == chunk.length) {
+                        throw new Exception("Line " + line + ": unterminated quoted value");
+                    }
+                    end = i++;
+                } else {
+                    start = i;
+                    while (i < chunk.length && chunk[i] != ',' && chunk[i] != '\n' && chunk[i] != '\r') {
+                        i++;
+                    }
+                    end = i;
+                }
+                row[positions[field]] = value(chunk, start, end, quotes, field, line);
+                field++;
+                if (i < chunk.length && chunk[i] == ',') {
+                    i++;
+                    continue;
+                }
+                if (i < chunk.length && chunk[i] == '\r') {
+                    i++;
+                }
+                if (i < chunk.length && chunk[i] != '\n') {
+                    throw new Exception("Line " + line + ": unexpected character after a value");
+                }
+                i++;
+                break;
+            }
+            if (field != positions.length) {
+                throw new Exception("Line " + line + ": expected " + positions.length + " values but found " + field);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private Object value(byte[] chunk, int start, int end, boolean quoted, int field, long line) throws Exception {
+        if (start == end && !quoted) {
+            return null;
+        }
+        switch (types[field]) {
+            case INT:
+                return parseInt(chunk, start, end, field, line);
+            case BOOLEAN:
+                String text = new String(chunk, start, end - start, StandardCharsets.UTF_8);
+                if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false")) {
+                    return Boolean.valueOf(text);
+                }
+                throw invalid(text, field, line);
+            default:
+                String value = new String(chunk, start, end - start, StandardCharsets.UTF_8);
+                return quoted && value.indexOf('"') >= 0 ? value.replace("\"\"", "\"") : value;
+        }
+    }
+
+    // Parses digits straight from the bytes; most of a numeric file is INT values, so no String per value.
+    private Integer parseInt(byte[] chunk, int start, int end, int field, long line) throws Exception {
+        int i = start;
+        boolean negative = chunk[i] == '-';
+        if (negative || chunk[i] == '+') {
+            i++;
+        }
+        if (i == end || end - i > 10) {
+            throw invalid(new String(chunk, start, end - start, StandardCharsets.UTF_8), field, line);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = chunk[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalid(new String(chunk, start, end - start, StandardCharsets.UTF_8), field, line);
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw invalid(new String(chunk, start, end - start, StandardCharsets.UTF_8), field, line);
+        }
+        return (int) value;
+    }
+
+    private Exception invalid(String text, int field, long line) {
+        String column = table.getColumns().get(positions[field]).getName();
+        return new Exception("Line " + line + ": invalid " + types[field] + " for column " + column + ": " + text);
+    }
+}
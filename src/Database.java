@@ -1,24 +1,108 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Database implements AutoCloseable {
+    private static final long VACUUM_INTERVAL_MS = 1000;
+    private static final long CHECKPOINT_CHECK_MS = 10_000;
+    // Log bytes since the last checkpoint that trigger a new one, bounding how much a restart replays.
+    private static final long CHECKPOINT_LOG_BYTES = 64L << 20;
+    private static final String CHECKPOINT_FILE = "checkpoint.db";
 
-public class Database {
     private final Map<String, Table> tables;
+    private final VersionClock clock;
+    private final ScheduledExecutorService vacuumer;
+    private final WriteAheadLog log;
+    private final Path dataDir;
+    private final ScheduledExecutorService checkpointer;
+    private final Object checkpointLock = new Object();
+    private volatile ForkJoinPool scanPool = ForkJoinPool.commonPool();
+    private final Metrics metrics = new Metrics();
 
     public Database() {
-        this.tables = new HashMap<>();
+        this.tables = new ConcurrentHashMap<>();
+        this.clock = new VersionClock();
+        this.log = null;
+        this.dataDir = null;
+        this.checkpointer = null;
+        this.vacuumer = startDaemon("vacuum", this::vacuum, VACUUM_INTERVAL_MS);
+    }
+
+    // Durable database: loads the latest checkpoint in dataDir, replays the log written after it, then logs
+    // every change made from here on.
+    public Database(Path dataDir, SyncMode syncMode) throws Exception {
+        this.tables = new ConcurrentHashMap<>();
+        this.clock = new VersionClock();
+        this.dataDir = dataDir;
+        Files.createDirectories(dataDir);
+        long firstSegment = 0;
+        Path checkpointFile = dataDir.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpointFile)) {
+            Checkpoint checkpoint = Checkpoint.load(checkpointFile, clock);
+            for (Table table : checkpoint.getTables()) {
+                tables.put(table.getName(), table);
+            }
+            firstSegment = checkpoint.getLogSegment();
+        }
+        this.log = new WriteAheadLog(dataDir, syncMode);
+        log.replay(firstSegment, new Recovery());
+        for (Table table : tables.values()) {
+            table.attachLog(log);
+        }
+        this.vacuumer = startDaemon("vacuum", this::vacuum, VACUUM_INTERVAL_MS);
+        this.checkpointer = startDaemon("checkpoint", this::checkpointIfNeeded, CHECKPOINT_CHECK_MS);
+    }
+
+    private ScheduledExecutorService startDaemon(String threadName, Runnable task, long intervalMs) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(task, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        return executor;
     }
 
     public void createTable(String name, List<Column> columns) throws Exception {
+        createTable(name, columns, StorageType.HEAP);
+    }
+
+    // Table DDL is logged before the table becomes visible, so its record precedes any change to the table.
+    public synchronized void createTable(String name, List<Column> columns, StorageType storageType) throws Exception {
         if (tables.containsKey(name)) {
             throw new Exception("Table already exists: " + name);
         }
-        tables.put(name, new Table(name, columns));
+        Table table = new Table(name, columns, storageType, clock);
+        table.setScanPool(scanPool);
+        if (log != null) {
+            log.awaitDurable(log.append(WriteAheadLog.createTable(name, columns, storageType)));
+            table.attachLog(log);
+        }
+        tables.put(name, table);
     }
 
-    public void dropTable(String name) throws Exception {
+    public synchronized void dropTable(String name) throws Exception {
         if (!tables.containsKey(name)) {
             throw new Exception("Table does not exist: " + name);
         }
-        tables.remove(name);
+        if (log != null) {
+            log.awaitDurable(log.append(WriteAheadLog.dropTable(name)));
+        }
+        tables.remove(name).attachLog(null);
+    }
+
+    // Pool that large table scans are split across (the common pool by default); null scans serially.
+    public synchronized void setScanPool(ForkJoinPool scanPool) {
+        this.scanPool = scanPool;
+        for (Table table : tables.values()) {
+            table.setScanPool(scanPool);
+        }
     }
 
     public Table getTable(String name) throws Exception {
@@ -29,28 +113,203 @@ public class Database {
         return table;
     }
 
+    // Index names are unique across tables, so index DDL is serialized on the database.
+    public synchronized void createIndex(String indexName, String tableName, String columnName, IndexType type) throws Exception {
+        if (findIndexTable(indexName) != null) {
+            throw new Exception("Index already exists: " + indexName);
+        }
+        getTable(tableName).createIndex(indexName, columnName, type);
+        if (log != null) {
+            log.awaitDurable(log.append(WriteAheadLog.createIndex(indexName, tableName, columnName, type)));
+        }
+    }
+
+    public synchronized void dropIndex(String indexName) throws Exception {
+        Table table = findIndexTable(indexName);
+        if (table == null) {
+            throw new Exception("Index does not exist: " + indexName);
+        }
+        table.dropIndex(indexName);
+        if (log != null) {
+            log.awaitDurable(log.append(WriteAheadLog.dropIndex(indexName)));
+        }
+    }
+
+    private Table findIndexTable(String indexName) {
+        for (Table table : tables.values()) {
+            for (Index index : table.getIndexes()) {
+                if (index.getName().equals(indexName)) {
+                    return table;
+                }
+            }
+        }
+        return null;
+    }
+
     public List<Row> join(String table1Name, String table2Name, String joinColumn) throws Exception {
-        Table table1 = getTable(table1Name);
-        Table table2 = getTable(table2Name);
-        
+        return join(table1Name, table2Name, joinColumn, joinColumn);
+    }
+
+    public List<Row> join(String table1Name, String table2Name, String leftColumn, String rightColumn) throws Exception {
         List<Row> result = new ArrayList<>();
-        for (Row row1 : table1.getRows()) {
-            Object joinValue = row1.get(joinColumn);
-            Map<String, Object> condition = new HashMap<>();
-            condition.put(joinColumn, joinValue);
-            
-            List<Row> matchingRows = table2.select(condition);
-            for (Row row2 : matchingRows) {
-                Map<String, Object> joinedData = new HashMap<>();
-                row1.getData().forEach((k, v) -> joinedData.put(table1Name + "." + k, v));
-                row2.getData().forEach((k, v) -> joinedData.put(table2Name + "." + k, v));
-                result.add(new Row(joinedData));
-            }
+        try (JoinPipeline.Cursor rows = planJoin(table1Name, table2Name, leftColumn, rightColumn).open(false)) {
+            rows.forEachRemaining(row -> result.add(Row.copyOf(row)));
         }
         return result;
     }
 
+    public String explainJoin(String table1Name, String table2Name, String leftColumn, String rightColumn) throws Exception {
+        return planJoin(table1Name, table2Name, leftColumn, rightColumn).getPlan().getOperation();
+    }
+
+    public double estimateJoinRows(String table1Name, String table2Name, String leftColumn, String rightColumn) throws Exception {
+        return planJoin(table1Name, table2Name, leftColumn, rightColumn).getPlan().getEstimatedRows();
+    }
+
+    private JoinPipeline planJoin(String table1Name, String table2Name, String leftColumn, String rightColumn) throws Exception {
+        return planJoin(Arrays.asList(table1Name, table2Name), Arrays.asList(Predicate.TRUE, Predicate.TRUE),
+                Collections.singletonList(new JoinPipeline.Condition(0, leftColumn, 1, rightColumn)));
+    }
+
+    // Plans an inner join of the named tables, each read through its own filter. Conditions refer to
+    // tables by their position in tableNames.
+    public JoinPipeline planJoin(List<String> tableNames, List<Predicate> filters, List<JoinPipeline.Condition> conditions) throws Exception {
+        List<Table> joined = new ArrayList<>();
+        for (String tableName : tableNames) {
+            joined.add(getTable(tableName));
+        }
+        return new JoinPipeline(joined, filters, conditions, clock);
+    }
+
+    // Loads a CSV file into a table; see CsvLoader. Returns the number of rows loaded.
+    public long copyFrom(String tableName, Path file, List<String> columns, boolean header) throws Exception {
+        ForkJoinPool pool = scanPool;
+        return new CsvLoader(getTable(tableName), columns, header).load(file, pool, pool == null ? 1 : pool.getParallelism());
+    }
+
+    // Starts a transaction on the calling thread; the table changes made on it commit or roll back together.
+    public Transaction begin() throws Exception {
+        return Transaction.begin(clock, log);
+    }
+
+    public void analyze() {
+        for (Table table : tables.values()) {
+            table.analyze();
+        }
+    }
+
+    public void vacuum() {
+        for (Table table : tables.values()) {
+            table.vacuum();
+        }
+    }
+
+    // Writes every table as of one snapshot to the checkpoint file without blocking writers, then deletes
+    // the log segments it covers. Only the cut (snapshot, new log segment, schema) is taken under locks.
+    public void checkpoint() throws Exception {
+        if (log == null) {
+            throw new Exception("Database has no data directory to checkpoint to");
+        }
+        synchronized (checkpointLock) {
+            Map<Table, List<Index>> schema = new LinkedHashMap<>();
+            VersionClock.Snapshot snapshot;
+            long segment;
+            synchronized (this) {
+                synchronized (clock) {
+                    snapshot = clock.openSnapshot();
+                    segment = log.rotate();
+                }
+                for (Table table : tables.values()) {
+                    List<Index> secondary = new ArrayList<>();
+                    for (Index index : table.getIndexes()) {
+                        if (!index.isUnique()) {
+                            secondary.add(index);
+                        }
+                    }
+                    schema.put(table, secondary);
+                }
+            }
+            try {
+                Checkpoint.write(dataDir.resolve(CHECKPOINT_FILE), segment, schema, snapshot);
+            } finally {
+                snapshot.close();
+            }
+            log.deleteSegmentsBefore(segment);
+        }
+    }
+
+    private void checkpointIfNeeded() {
+        try {
+            if (log.getSegmentBytes() >= CHECKPOINT_LOG_BYTES) {
+                checkpoint();
+            }
+        } catch (Exception e) {
+            System.err.println("Checkpoint failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        vacuumer.shutdown();
+        if (log != null) {
+            checkpointer.shutdown();
+            synchronized (checkpointLock) {
+                log.close();
+            }
+        }
+    }
+
+    // Applies replayed log records. Changes to a table dropped later in the log are skipped.
+    private class Recovery implements WriteAheadLog.Handler {
+        public void createTable(String name, List<Column> columns, StorageType storageType) {
+            Table table = new Table(name, columns, storageType, clock);
+            table.setScanPool(scanPool);
+            tables.put(name, table);
+        }
+
+        public void dropTable(String name) {
+            tables.remove(name);
+        }
+
+        public void createIndex(String indexName, String tableName, String columnName, IndexType type) throws Exception {
+            getTable(tableName).createIndex(indexName, columnName, type);
+        }
+
+        public void dropIndex(String indexName) throws Exception {
+            Table table = findIndexTable(indexName);
+            if (table != null) {
+                table.dropIndex(indexName);
+            }
+        }
+
+        public void insert(String table, Object[] row) throws Exception {
+            if (tables.containsKey(table)) {
+                tables.get(table).insertRow(row);
+            }
+        }
+
+        public void update(String table, Object[] oldRow, Object[] newRow) throws Exception {
+            if (tables.containsKey(table)) {
+                tables.get(table).replayUpdate(oldRow, newRow);
+            }
+        }
+
+        public void delete(String table, Object[] oldRow) throws Exception {
+            if (tables.containsKey(table)) {
+                tables.get(table).replayDelete(oldRow);
+            }
+        }
+    }
+
+    public VersionClock getClock() {
+        return clock;
+    }
+
     public Set<String> getTableNames() {
         return tables.keySet();
     }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
 }
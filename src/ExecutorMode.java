@@ -0,0 +1,41 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public enum ExecutorMode {
+    // a new virtual thread per task; needs Java 21, and falls back to POOL on older runtimes.
+    VIRTUAL,
+    // a fixed pool of platform threads.
+    POOL;
+
+    // The mode tasks will actually run in on this runtime.
+    public ExecutorMode available() {
+        return this == VIRTUAL && virtualThreadFactory() == null ? POOL : this;
+    }
+
+    // threads sizes a POOL; daemon threads are named threadName-N.
+    public ExecutorService newExecutor(int threads, String threadName) {
+        if (available() == VIRTUAL) {
+            try {
+                return (ExecutorService) virtualThreadFactory().invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threadName + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Virtual threads arrived in Java 21, so they are looked up reflectively to keep building on Java 17.
+    private static java.lang.reflect.Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.List;
+import java.util.StringJoiner;
+
+// Expression nodes of the SQL syntax tree.
+public abstract class Expression {
+    public enum Operator {
+        EQUALS("="), NOT_EQUALS("!="), LESS("<"), LESS_EQUAL("<="), GREATER(">"), GREATER_EQUAL(">="),
+        LIKE("LIKE"), AND("AND"), OR("OR");
+
+        private final String symbol;
+
+        Operator(String symbol) { this.symbol = symbol; }
+
+        public String getSymbol() { return symbol; }
+    }
+
+    public static class Literal extends Expression {
+        private final Object value;
+
+        public Literal(Object value) { this.value = value; }
+
+        public Object getValue() { return value; }
+
+        @Override
+        public String toString() {
+            return value instanceof String ? "'" + ((String) value).replace("'", "''") + "'" : String.valueOf(value).toUpperCase();
+        }
+    }
+
+    // A ? placeholder in a prepared statement, bound by position (0-based) at execution.
+    public static class Parameter extends Expression {
+        private final int index;
+
+        public Parameter(int index) { this.index = index; }
+
+        public int getIndex() { return index; }
+
+        @Override
+        public String toString() {
+            return "?";
+        }
+    }
+
+    // A column, optionally qualified with its table name (table is null when unqualified).
+    public static class ColumnRef extends Expression {
+        private final String table;
+        private final String column;
+
+        public ColumnRef(String table, String column) {
+            this.table = table;
+            this.column = column;
+        }
+
+        public String getTable() { return table; }
+        public String getColumn() { return column; }
+
+        @Override
+        public String toString() {
+            return table == null ? column : table + "." + column;
+        }
+    }
+
+    public static class Binary extends Expression {
+        private final Operator operator;
+        private final Expression left;
+        private final Expression right;
+
+        public Binary(Operator operator, Expression left, Expression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        public Operator getOperator() { return operator; }
+        public Expression getLeft() { return left; }
+        public Expression getRight() { return right; }
+
+        @Override
+        public String toString() {
+            String text = left + " " + operator.getSymbol() + " " + right;
+            return operator == Operator.OR ? "(" + text + ")" : text;
+        }
+    }
+
+    public static class Not extends Expression {
+        private final Expression operand;
+
+        public Not(Expression operand) { this.operand = operand; }
+
+        public Expression getOperand() { return operand; }
+
+        @Override
+        public String toString() {
+            return "NOT (" + operand + ")";
+        }
+    }
+
+    // operand IS [NOT] NULL
+    public static class IsNull extends Expression {
+        private final Expression operand;
+        private final boolean negated;
+
+        public IsNull(Expression operand, boolean negated) {
+            this.operand = operand;
+            this.negated = negated;
+        }
+
+        public Expression getOperand() { return operand; }
+        public boolean isNegated() { return negated; }
+
+        @Override
+        public String toString() {
+            return operand + (negated ? " IS NOT NULL" : " IS NULL");
+        }
+    }
+
+    // operand [NOT] BETWEEN low AND high, bounds inclusive
+    public static class Between extends Expression {
+        private final Expression operand;
+        private final Expression low;
+        private final Expression high;
+        private final boolean negated;
+
+        public Between(Expression operand, Expression low, Expression high, boolean negated) {
+            this.operand = operand;
+            this.low = low;
+            this.high = high;
+            this.negated = negated;
+        }
+
+        public Expression getOperand() { return operand; }
+        public Expression getLow() { return low; }
+        public Expression getHigh() { return high; }
+        public boolean isNegated() { return negated; }
+
+        @Override
+        public String toString() {
+            return operand + (negated ? " NOT BETWEEN " : " BETWEEN ") + low + " AND " + high;
+        }
+    }
+
+    // operand [NOT] IN (value, ...)
+    public static class InList extends Expression {
+        private final Expression operand;
+        private final List<Expression> values;
+        private final boolean negated;
+
+        public InList(Expression operand, List<Expression> values, boolean negated) {
+            this.operand = operand;
+            this.values = values;
+            this.negated = negated;
+        }
+
+        public Expression getOperand() { return operand; }
+        public List<Expression> getValues() { return values; }
+        public boolean isNegated() { return negated; }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(", ", "(", ")");
+            values.forEach(value -> joiner.add(value.toString()));
+            return operand + (negated ? " NOT IN " : " IN ") + joiner;
+        }
+    }
+
+    // An aggregate call in a SELECT list: COUNT, SUM, MIN, MAX or AVG. argument is null for COUNT(*).
+    public static class Aggregate extends Expression {
+        private final String function;
+        private final ColumnRef argument;
+
+        public Aggregate(String function, ColumnRef argument) {
+            this.function = function;
+            this.argument = argument;
+        }
+
+        public String getFunction() { return function; }
+        public ColumnRef getArgument() { return argument; }
+
+        @Override
+        public String toString() {
+            return function + "(" + (argument == null ? "*" : argument.toString()) + ")";
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Sorts rows of column values in bounded memory. Rows are buffered up to runRows at a time; when the buffer
+// fills, it is sorted and written to a temporary file as a run. sorted() then merges the runs with a heap,
+// reading each one sequentially, so only one row per run is in memory. Input that fits one run never
+// touches disk. Equal rows keep their input order.
+public class ExternalSort implements AutoCloseable {
+    public static final int DEFAULT_RUN_ROWS = 100_000;
+
+    private final Comparator<Object[]> order;
+    private final int runRows;
+    private Object[][] buffer;
+    private int count;
+    private final List<Path> runFiles = new ArrayList<>();
+    private final List<RunReader> readers = new ArrayList<>();
+
+    public ExternalSort(Comparator<Object[]> order, int runRows) {
+        this.order = order;
+        this.runRows = runRows;
+        this.buffer = new Object[Math.min(runRows, 1024)][];
+    }
+
+    public void add(Object[] row) throws IOException {
+        if (count == runRows) {
+            spill();
+        }
+        if (count == buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.min(runRows, buffer.length * 2));
+        }
+        buffer[count++] = row;
+    }
+
+    public int getRunCount() { return runFiles.size(); }
+
+    private void spill() throws IOException {
+        Arrays.sort(buffer, 0, count, order);
+        Path file = Files.createTempFile("sort-run-", ".tmp");
+        runFiles.add(file);
+        RowCodec codec = new RowCodec(256);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            for (int i = 0; i < count; i++) {
+                codec.clear();
+                codec.putRow(buffer[i]);
+                out.writeInt(codec.size());
+                out.write(codec.array(), 0, codec.size());
+                buffer[i] = null;
+            }
+        }
+        count = 0;
+    }
+
+    // The rows added so far, in order. Call once, after the last add.
+    public Iterator<Object[]> sorted() throws IOException {
+        Arrays.sort(buffer, 0, count, order);
+        Iterator<Object[]> inMemory = Arrays.asList(buffer).subList(0, count).iterator();
+        if (runFiles.isEmpty()) {
+            return inMemory;
+        }
+        // Runs were cut in input order, so breaking ties by run number keeps the sort stable.
+        List<Iterator<Object[]>> runs = new ArrayList<>();
+        for (Path file : runFiles) {
+            RunReader reader = new RunReader(file);
+            readers.add(reader);
+            runs.add(reader);
+        }
+        runs.add(inMemory);
+        return new Merge(runs);
+    }
+
+    @Override
+    public void close() {
+        for (RunReader reader : readers) {
+            reader.close();
+        }
+        for (Path file : runFiles) {
+            file.toFile().delete();
+        }
+        buffer = null;
+    }
+
+    private final class Merge implements Iterator<Object[]> {
+        private final List<Iterator<Object[]>> runs;
+        private final Object[][] heads;
+        private final PriorityQueue<Integer> heap;
+
+        Merge(List<Iterator<Object[]>> runs) {
+            this.runs = runs;
+            this.heads = new Object[runs.size()][];
+            this.heap = new PriorityQueue<>((a, b) -> {
+                int cmp = order.compare(heads[a], heads[b]);
+                return cmp != 0 ? cmp : Integer.compare(a, b);
+            });
+            for (int run = 0; run < runs.size(); run++) {
+                advance(run);
+            }
+        }
+
+        private void advance(int run) {
+            if (runs.get(run).hasNext()) {
+                heads[run] = runs.get(run).next();
+                heap.add(run);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public Object[] next() {
+            if (heap.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            int run = heap.poll();
+            Object[] row = heads[run];
+            advance(run);
+            return row;
+        }
+    }
+
+    private static final class RunReader implements Iterator<Object[]> {
+        private final DataInputStream in;
+        private byte[] bytes = new byte[256];
+        private Object[] next;
+
+        RunReader(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            read();
+        }
+
+        private void read() {
+            try {
+                int length = in.readInt();
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                in.readFully(bytes, 0, length);
+                next = RowCodec.readRow(ByteBuffer.wrap(bytes, 0, length));
+            } catch (EOFException e) {
+                next = null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Object[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Object[] row = next;
+            read();
+            return row;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to read; the file is deleted next.
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import java.util.*;
+
+// Streaming GROUP BY over a table scan. Each batch of rows is first mapped to group numbers, then every
+// aggregate updates its accumulators, which are arrays indexed by group number. INT keys and INT
+// arguments are read as primitives, so grouping and summing an INT column boxes nothing per row.
+public class HashAggregation implements Table.BatchConsumer {
+    public enum Function { COUNT, SUM, MIN, MAX, AVG }
+
+    private final List<Column> columns;
+    private final int[] keyColumns;
+    private final Function[] functions;
+    // Column position of each aggregate's argument, -1 for COUNT(*).
+    private final int[] arguments;
+
+    // A single INT key is hashed as a primitive; any other key is a List of its values.
+    private final boolean intKey;
+    private IntGroupMap intGroups;
+    private int nullGroup = -1;
+    private Map<List<Object>, Integer> objectGroups;
+    private Object[][] groupKeys;
+    private int groupCount;
+    private long inputRows;
+
+    // Per aggregate, per group: non-null inputs seen, and the running sum, or min/max.
+    private final long[][] counts;
+    private final long[][] sums;
+    private final int[][] intExtremes;
+    private final Object[][] objectExtremes;
+
+    private final int[] groupOf = new int[Predicate.BATCH_SIZE];
+    private final int[] ints = new int[Predicate.BATCH_SIZE];
+    private final boolean[] nulls = new boolean[Predicate.BATCH_SIZE];
+
+    // SUM and AVG arguments must be INT columns.
+    public HashAggregation(List<Column> columns, int[] keyColumns, Function[] functions, int[] arguments) {
+        this.columns = columns;
+        this.keyColumns = keyColumns;
+        this.functions = functions;
+        this.arguments = arguments;
+        this.intKey = keyColumns.length == 1 && columns.get(keyColumns[0]).getType() == DataType.INT;
+        if (intKey) {
+            intGroups = new IntGroupMap();
+        } else {
+            objectGroups = new HashMap<>();
+        }
+        this.groupKeys = new Object[16][];
+        this.counts = new long[functions.length][16];
+        this.sums = new long[functions.length][];
+        this.intExtremes = new int[functions.length][];
+        this.objectExtremes = new Object[functions.length][];
+        for (int i = 0; i < functions.length; i++) {
+            boolean intArgument = arguments[i] >= 0 && columns.get(arguments[i]).getType() == DataType.INT;
+            if (functions[i] == Function.SUM || functions[i] == Function.AVG) {
+                sums[i] = new long[16];
+            } else if ((functions[i] == Function.MIN || functions[i] == Function.MAX) && intArgument) {
+                intExtremes[i] = new int[16];
+            } else if (functions[i] == Function.MIN || functions[i] == Function.MAX) {
+                objectExtremes[i] = new Object[16];
+            }
+        }
+        // Without GROUP BY there is exactly one group, even over no rows.
+        if (keyColumns.length == 0) {
+            addGroup(new Object[0]);
+        }
+    }
+
+    @Override
+    public void accept(Storage storage, int[] rowIds, int count) {
+        inputRows += count;
+        assignGroups(storage, rowIds, count);
+        for (int a = 0; a < functions.length; a++) {
+            if (arguments[a] < 0) {
+                long[] groupCounts = counts[a];
+                for (int i = 0; i < count; i++) {
+                    groupCounts[groupOf[i]]++;
+                }
+            } else if (columns.get(arguments[a]).getType() == DataType.INT) {
+                storage.readInts(arguments[a], rowIds, count, ints, nulls);
+                accumulateInts(a, count);
+            } else {
+                accumulateObjects(a, storage, rowIds, count);
+            }
+        }
+    }
+
+    private void assignGroups(Storage storage, int[] rowIds, int count) {
+        if (keyColumns.length == 0) {
+            Arrays.fill(groupOf, 0, count, 0);
+        } else if (intKey) {
+            storage.readInts(keyColumns[0], rowIds, count, ints, nulls);
+            for (int i = 0; i < count; i++) {
+                if (nulls[i]) {
+                    if (nullGroup < 0) {
+                        nullGroup = addGroup(new Object[] { null });
+                    }
+                    groupOf[i] = nullGroup;
+                } else {
+                    int group = intGroups.get(ints[i]);
+                    if (group < 0) {
+                        group = addGroup(new Object[] { ints[i] });
+                        intGroups.put(ints[i], group);
+                    }
+                    groupOf[i] = group;
+                }
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                Object[] key = new Object[keyColumns.length];
+                for (int k = 0; k < key.length; k++) {
+                    key[k] = storage.get(rowIds[i], keyColumns[k]);
+                }
+                groupOf[i] = group(key);
+            }
+        }
+    }
+
+    // The group number for key, adding the group if it is new.
+    private int group(Object[] key) {
+        if (keyColumns.length == 0) {
+            return 0;
+        }
+        if (intKey) {
+            if (key[0] == null) {
+                if (nullGroup < 0) {
+                    nullGroup = addGroup(key);
+                }
+                return nullGroup;
+            }
+            int group = intGroups.get((Integer) key[0]);
+            if (group < 0) {
+                group = addGroup(key);
+                intGroups.put((Integer) key[0], group);
+            }
+            return group;
+        }
+        Integer group = objectGroups.get(Arrays.asList(key));
+        if (group == null) {
+            group = addGroup(key);
+            objectGroups.put(Arrays.asList(key), group);
+        }
+        return group;
+    }
+
+    // An empty aggregation with the same keys and aggregates, for one morsel of a parallel scan.
+    public HashAggregation newPartial() {
+        return new HashAggregation(columns, keyColumns, functions, arguments);
+    }
+
+    // Folds the groups of a partial from a later morsel into this one and returns this.
+    @SuppressWarnings("unchecked")
+    public HashAggregation merge(HashAggregation later) {
+        inputRows += later.inputRows;
+        for (int from = 0; from < later.groupCount; from++) {
+            int group = group(later.groupKeys[from]);
+            for (int a = 0; a < functions.length; a++) {
+                long count = counts[a][group];
+                long laterCount = later.counts[a][from];
+                if (laterCount == 0) {
+                    continue;
+                }
+                if (sums[a] != null) {
+                    sums[a][group] += later.sums[a][from];
+                } else if (intExtremes[a] != null) {
+                    int value = later.intExtremes[a][from];
+                    if (count == 0 || (functions[a] == Function.MIN ? value < intExtremes[a][group] : value > intExtremes[a][group])) {
+                        intExtremes[a][group] = value;
+                    }
+                } else if (objectExtremes[a] != null) {
+                    Object value = later.objectExtremes[a][from];
+                    int cmp = count == 0 ? 0 : ((Comparable<Object>) value).compareTo(objectExtremes[a][group]);
+                    if (count == 0 || (functions[a] == Function.MIN ? cmp < 0 : cmp > 0)) {
+                        objectExtremes[a][group] = value;
+                    }
+                }
+                counts[a][group] = count + laterCount;
+            }
+        }
+        return this;
+    }
+
+    private void accumulateInts(int a, int count) {
+        long[] groupCounts = counts[a];
+        switch (functions[a]) {
+            case COUNT:
+                for (int i = 0; i < count; i++) {
+                    if (!nulls[i]) {
+                        groupCounts[groupOf[i]]++;
+                    }
+                }
+                break;
+            case SUM:
+            case AVG:
+                long[] groupSums = sums[a];
+                for (int i = 0; i < count; i++) {
+                    if (!nulls[i]) {
+                        groupCounts[groupOf[i]]++;
+                        groupSums[groupOf[i]] += ints[i];
+                    }
+                }
+                break;
+            case MIN:
+                int[] mins = intExtremes[a];
+                for (int i = 0; i < count; i++) {
+                    if (!nulls[i]) {
+                        int group = groupOf[i];
+                        if (groupCounts[group]++ == 0 || ints[i] < mins[group]) {
+                            mins[group] = ints[i];
+                        }
+                    }
+                }
+                break;
+            default:
+                int[] maxes = intExtremes[a];
+                for (int i = 0; i < count; i++) {
+                    if (!nulls[i]) {
+                        int group = groupOf[i];
+                        if (groupCounts[group]++ == 0 || ints[i] > maxes[group]) {
+                            maxes[group] = ints[i];
+                        }
+                    }
+                }
+                break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void accumulateObjects(int a, Storage storage, int[] rowIds, int count) {
+        long[] groupCounts = counts[a];
+        Object[] extremes = objectExtremes[a];
+        for (int i = 0; i < count; i++) {
+            Object value = storage.get(rowIds[i], arguments[a]);
+            if (value == null) {
+                continue;
+            }
+            int group = groupOf[i];
+            if (extremes != null && groupCounts[group] > 0) {
+                int cmp = ((Comparable<Object>) value).compareTo(extremes[group]);
+                if (functions[a] == Function.MIN ? cmp < 0 : cmp > 0) {
+                    extremes[group] = value;
+                }
+            } else if (extremes != null) {
+                extremes[group] = value;
+            }
+            groupCounts[group]++;
+        }
+    }
+
+    private int addGroup(Object[] key) {
+        if (groupCount == groupKeys.length) {
+            int capacity = groupKeys.length * 2;
+            groupKeys = Arrays.copyOf(groupKeys, capacity);
+            for (int a = 0; a < functions.length; a++) {
+                counts[a] = Arrays.copyOf(counts[a], capacity);
+                if (sums[a] != null) {
+                    sums[a] = Arrays.copyOf(sums[a], capacity);
+                }
+                if (intExtremes[a] != null) {
+                    intExtremes[a] = Arrays.copyOf(intExtremes[a], capacity);
+                }
+                if (objectExtremes[a] != null) {
+                    objectExtremes[a] = Arrays.copyOf(objectExtremes[a], capacity);
+                }
+            }
+        }
+        groupKeys[groupCount] = key;
+        return groupCount++;
+    }
+
+    public int getGroupCount() { return groupCount; }
+    public long getInputRows() { return inputRows; }
+
+    // One row per group, in the order groups were first seen: the key values, then each aggregate.
+    // COUNT and SUM are Long, AVG is Double; aggregates over no non-null input are NULL, except COUNT.
+    public List<Object[]> getResults() {
+        List<Object[]> results = new ArrayList<>(groupCount);
+        for (int group = 0; group < groupCount; group++) {
+            Object[] row = Arrays.copyOf(groupKeys[group], keyColumns.length + functions.length);
+            for (int a = 0; a < functions.length; a++) {
+                row[keyColumns.length + a] = result(a, group);
+            }
+            results.add(row);
+        }
+        return results;
+    }
+
+    private Object result(int a, int group) {
+        long count = counts[a][group];
+        if (functions[a] == Function.COUNT) {
+            return count;
+        }
+        if (count == 0) {
+            return null;
+        }
+        switch (functions[a]) {
+            case SUM: return sums[a][group];
+            case AVG: return (double) sums[a][group] / count;
+            default: return intExtremes[a] != null ? (Object) intExtremes[a][group] : objectExtremes[a][group];
+        }
+    }
+
+    // Open-addressing map from int keys to group numbers, with no boxing on lookup.
+    private static final class IntGroupMap {
+        private int[] keys = new int[64];
+        private int[] groups = new int[64];
+        private boolean[] used = new boolean[64];
+        private int size;
+
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return groups[slot];
+                }
+            }
+            return -1;
+        }
+
+        void put(int key, int group) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            keys[slot] = key;
+            groups[slot] = group;
+            size++;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldGroups = groups;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            groups = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldGroups[i]);
+                }
+            }
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.*;
+
+public class HeapStorage implements Storage {
+    private static final int SAMPLE_ROWS = 64;
+
+    private final String[] columnNames;
+    private Row[] slots;
+    private int[] freeSlots;
+    private int freeCount;
+    private int highWater;
+
+    public HeapStorage(List<Column> columns) {
+        this.columnNames = columns.stream().map(Column::getName).toArray(String[]::new);
+        this.slots = new Row[16];
+        this.freeSlots = new int[16];
+    }
+
+    @Override
+    public int insert(Object[] values) {
+        int rowId;
+        if (freeCount > 0) {
+            rowId = freeSlots[--freeCount];
+        } else {
+            if (highWater == slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+            }
+            rowId = highWater++;
+        }
+        slots[rowId] = toRow(values);
+        return rowId;
+    }
+
+    @Override
+    public void remove(int rowId) {
+        if (slots[rowId] == null) {
+            return;
+        }
+        slots[rowId] = null;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = rowId;
+    }
+
+    @Override
+    public Object get(int rowId, int column) {
+        return slots[rowId].get(columnNames[column]);
+    }
+
+    @Override
+    public Row row(int rowId, VersionClock.Snapshot snapshot) {
+        return slots[rowId];
+    }
+
+    @Override
+    public int capacity() {
+        return highWater;
+    }
+
+    // Rows are HashMaps: their size is sampled from up to SAMPLE_ROWS slots spread over the table.
+    @Override
+    public long estimateBytes() {
+        Row[] current = slots;
+        int end = Math.min(highWater, current.length);
+        long sampled = 0;
+        int samples = 0;
+        int step = Math.max(1, end / SAMPLE_ROWS);
+        for (int rowId = 0; rowId < end; rowId += step) {
+            Row row = current[rowId];
+            if (row != null) {
+                // Row, HashMap and its table, then an entry and the value per column.
+                sampled += 16 + 48 + 16 + 4L * Integer.highestOneBit(columnNames.length * 2);
+                for (String column : columnNames) {
+                    Object value = row.get(column);
+                    if (value != null) {
+                        sampled += 32 + Storage.valueBytes(value);
+                    }
+                }
+                samples++;
+            }
+        }
+        long rows = Math.max(0, end - freeCount);
+        long perRow = samples == 0 ? 0 : sampled / samples;
+        return 16 + 4L * current.length + 4L * freeSlots.length + rows * perRow;
+    }
+
+    private Row toRow(Object[] values) {
+        HashMap<String, Object> data = new HashMap<>();
+        for (int i = 0; i < columnNames.length; i++) {
+            if (values[i] != null) {
+                data.put(columnNames[i], values[i]);
+            }
+        }
+        return Row.wrap(data);
+    }
+}
@@ -0,0 +1,47 @@
+// Estimates how many distinct values have been added, in 2^PRECISION bytes however many there are. The
+// standard error is about 1.04 / sqrt(2^PRECISION), 3% here. The sum behind the estimate is kept up to date
+// as registers change, so estimate() is constant time and cheap enough to call while planning every query.
+public class HyperLogLog {
+    private static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers = new byte[REGISTERS];
+    // Sum of 2^-register over all registers, and how many registers are still zero.
+    private volatile double inverseSum = REGISTERS;
+    private volatile int zeros = REGISTERS;
+
+    // Not thread-safe: one writer at a time. Readers may call estimate() concurrently.
+    public void add(Object value) {
+        long hash = mix(value.hashCode());
+        int register = (int) (hash >>> (64 - PRECISION));
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        int current = registers[register];
+        if (rank > current) {
+            registers[register] = (byte) rank;
+            inverseSum += Math.scalb(1.0, -rank) - Math.scalb(1.0, -current);
+            if (current == 0) {
+                zeros--;
+            }
+        }
+    }
+
+    public long estimate() {
+        int empty = zeros;
+        double estimate = ALPHA * REGISTERS * REGISTERS / inverseSum;
+        // Few values leave many registers empty, where counting the empty ones (linear counting) is more accurate.
+        if (estimate <= 2.5 * REGISTERS && empty > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / empty);
+        }
+        return Math.round(estimate);
+    }
+
+    // Spreads a 32-bit hash code over 64 bits (the MurmurHash3 finalizer), so nearby integers land far apart.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,221 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class Index {
+    // Concurrent maps reject null keys, so NULL values are stored under this sentinel, which sorts first.
+    private static final Object NULL_KEY = new Object();
+    private static final Comparator<Object> KEY_ORDER = Index::compareKeys;
+    private static final int[] NO_ROWS = new int[0];
+
+    private final String name;
+    private final String columnName;
+    private final IndexType type;
+    private final boolean unique;
+    // Each key maps to a single Integer row id, or to a Set<Integer> once it has several rows.
+    // Writers are serialized by the table; readers probe concurrently without locks.
+    private final ConcurrentMap<Object, Object> entries;
+
+    public Index(String name, String columnName, IndexType type, boolean unique) {
+        this.name = name;
+        this.columnName = columnName;
+        this.type = type;
+        this.unique = unique;
+        this.entries = type == IndexType.BTREE ? new ConcurrentSkipListMap<>(KEY_ORDER) : new ConcurrentHashMap<>();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void add(Object key, int rowId) {
+        key = toKey(key);
+        Object bucket = entries.get(key);
+        if (bucket == null) {
+            entries.put(key, rowId);
+        } else if (bucket instanceof Integer) {
+            Set<Integer> rowIds = new ConcurrentSkipListSet<>();
+            rowIds.add((Integer) bucket);
+            rowIds.add(rowId);
+            entries.put(key, rowIds);
+        } else {
+            ((Set<Integer>) bucket).add(rowId);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void remove(Object key, int rowId) {
+        key = toKey(key);
+        Object bucket = entries.get(key);
+        if (bucket instanceof Integer) {
+            if ((Integer) bucket == rowId) {
+                entries.remove(key);
+            }
+        } else if (bucket != null) {
+            Set<Integer> rowIds = (Set<Integer>) bucket;
+            rowIds.remove(rowId);
+            if (rowIds.isEmpty()) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        try {
+            return entries.containsKey(toKey(key));
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    public int[] lookup(Object key) {
+        Object bucket;
+        try {
+            bucket = entries.get(toKey(key));
+        } catch (ClassCastException e) {
+            // A key of another type can never equal a stored value.
+            bucket = null;
+        }
+        return bucket == null ? NO_ROWS : toRowIds(Collections.singletonList(bucket));
+    }
+
+    // Row ids whose key falls between the bounds; a null bound leaves that side open.
+    public int[] range(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return toRowIds(slice(from, fromInclusive, to, toInclusive).values());
+    }
+
+    // Like range, but in key order and read from the index as the caller iterates.
+    public PrimitiveIterator.OfInt rangeIterator(Object from, boolean fromInclusive, Object to, boolean toInclusive, boolean ascending) {
+        ConcurrentNavigableMap<Object, Object> slice = slice(from, fromInclusive, to, toInclusive);
+        return iterate((ascending ? slice : slice.descendingMap()).values());
+    }
+
+    // Every row id in key order, NULL keys first when ascending, read lazily.
+    public PrimitiveIterator.OfInt iterator(boolean ascending) {
+        ConcurrentNavigableMap<Object, Object> sorted = sortedEntries();
+        return iterate((ascending ? sorted : sorted.descendingMap()).values());
+    }
+
+    private ConcurrentNavigableMap<Object, Object> slice(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        ConcurrentNavigableMap<Object, Object> sorted = sortedEntries();
+        ConcurrentNavigableMap<Object, Object> slice;
+        if (from != null && to != null) {
+            // Contradictory bounds such as x > 10 AND x < 5 match nothing; subMap would reject them.
+            int cmp = compareKeys(from, to);
+            if (cmp > 0 || (cmp == 0 && !(fromInclusive && toInclusive))) {
+                return sorted.headMap(NULL_KEY, false);
+            }
+            slice = sorted.subMap(from, fromInclusive, to, toInclusive);
+        } else if (from != null) {
+            slice = sorted.tailMap(from, fromInclusive);
+        } else if (to != null) {
+            slice = sorted.headMap(to, toInclusive);
+        } else {
+            slice = sorted;
+        }
+        if (from == null) {
+            slice = slice.tailMap(NULL_KEY, false);
+        }
+        return slice;
+    }
+
+    public int[] ordered(boolean ascending) {
+        ConcurrentNavigableMap<Object, Object> sorted = sortedEntries();
+        return toRowIds((ascending ? sorted : sorted.descendingMap()).values());
+    }
+
+    // Walks buckets as the caller asks for ids; the concurrent maps' iterators tolerate concurrent writers.
+    @SuppressWarnings("unchecked")
+    private static PrimitiveIterator.OfInt iterate(Collection<Object> buckets) {
+        Iterator<Object> bucketIterator = buckets.iterator();
+        return new PrimitiveIterator.OfInt() {
+            private Iterator<Integer> bucketRows = Collections.emptyIterator();
+            private Integer single;
+
+            @Override
+            public boolean hasNext() {
+                while (single == null && !bucketRows.hasNext()) {
+                    if (!bucketIterator.hasNext()) {
+                        return false;
+                    }
+                    Object bucket = bucketIterator.next();
+                    if (bucket instanceof Integer) {
+                        single = (Integer) bucket;
+                    } else {
+                        bucketRows = ((Set<Integer>) bucket).iterator();
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (single != null) {
+                    int rowId = single;
+                    single = null;
+                    return rowId;
+                }
+                return bucketRows.next();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int[] toRowIds(Collection<Object> buckets) {
+        int[] rowIds = new int[16];
+        int count = 0;
+        for (Object bucket : buckets) {
+            if (bucket instanceof Integer) {
+                if (count == rowIds.length) {
+                    rowIds = Arrays.copyOf(rowIds, count * 2);
+                }
+                rowIds[count++] = (Integer) bucket;
+            } else {
+                for (int rowId : (Set<Integer>) bucket) {
+                    if (count == rowIds.length) {
+                        rowIds = Arrays.copyOf(rowIds, count * 2);
+                    }
+                    rowIds[count++] = rowId;
+                }
+            }
+        }
+        return Arrays.copyOf(rowIds, count);
+    }
+
+    private ConcurrentNavigableMap<Object, Object> sortedEntries() {
+        if (type != IndexType.BTREE) {
+            throw new UnsupportedOperationException("Index " + name + " is not ordered");
+        }
+        return (ConcurrentNavigableMap<Object, Object>) entries;
+    }
+
+    private static Object toKey(Object value) {
+        return value == null ? NULL_KEY : value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareKeys(Object a, Object b) {
+        if (a == b) {
+            return 0;
+        }
+        if (a == NULL_KEY || b == NULL_KEY) {
+            return a == NULL_KEY ? -1 : 1;
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    // Rough heap per distinct key: the map node or skip list entry, the boxed key and its row id. Keys shared
+    // by several row ids hold a set as well, which this leaves out rather than walk every bucket.
+    public long estimateBytes() {
+        return 64L * entries.size();
+    }
+
+    public String getName() { return name; }
+    public String getColumnName() { return columnName; }
+    public IndexType getType() { return type; }
+    public boolean isUnique() { return unique; }
+    public boolean isOrdered() { return type == IndexType.BTREE; }
+}
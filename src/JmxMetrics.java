@@ -0,0 +1,74 @@
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+// Publishes a database's metrics to JMX as one read-only MBean, with an attribute per value of
+// Metrics.getValues, such as "statement.SELECT.p99Micros". Statement types and tables seen after
+// registration appear as new attributes, since every call takes a fresh snapshot.
+public class JmxMetrics implements DynamicMBean {
+    private final Database database;
+
+    public JmxMetrics(Database database) {
+        this.database = database;
+    }
+
+    // Registers under rdbms:type=Metrics, or rdbms:type=Metrics,name=<name> to tell several databases apart.
+    public static ObjectName register(Database database, String name) throws Exception {
+        ObjectName objectName = new ObjectName("rdbms:type=Metrics" + (name == null ? "" : ",name=" + ObjectName.quote(name)));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxMetrics(database), objectName);
+        return objectName;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> values = values();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : values.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Statement and table metrics", attributes, null, null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    private Map<String, Number> values() {
+        return database.getMetrics().getValues(database);
+    }
+}
@@ -0,0 +1,318 @@
+import java.util.*;
+
+// An inner equi-join of any number of tables, run as a left-deep pipeline: rows of the first table stream
+// through one join operator per further table, each of which adds that table's matching row either by
+// probing its index or from a hash table of its rows. Each table's filter is applied as it is read, below
+// the joins. The table order and each operator's method are picked by estimated cost, over every order
+// that joins a table only once it is tied by a condition to the tables before it.
+public class JoinPipeline {
+    // Cost of adding one row to a join's hash table, on the scale of Table.INDEX_PROBE_COST.
+    static final double HASH_BUILD_COST = 2;
+    // Planning considers every subset of the tables, so it grows as 2^n.
+    static final int MAX_TABLES = 16;
+
+    private final List<Table> tables;
+    private final Predicate[] filters;
+    private final VersionClock clock;
+    private final JoinedRow.Layout layout;
+    // The table read first, then the steps that join the others, in pipeline order.
+    private final int first;
+    private final PlanNode scan;
+    private final List<Step> steps = new ArrayList<>();
+
+    // tables in FROM order, each with its own filter; conditions refer to tables by position in that list.
+    JoinPipeline(List<Table> tables, List<Predicate> filters, List<Condition> conditions, VersionClock clock) throws Exception {
+        int n = tables.size();
+        if (n < 2 || n > MAX_TABLES) {
+            throw new Exception("A join needs between 2 and " + MAX_TABLES + " tables");
+        }
+        this.tables = tables;
+        this.filters = filters.toArray(new Predicate[0]);
+        this.clock = clock;
+        this.layout = new JoinedRow.Layout(tables);
+        double[] estimates = new double[n];
+        for (int t = 0; t < n; t++) {
+            estimates[t] = tables.get(t).estimateRows(this.filters[t]);
+        }
+
+        // Cheapest left-deep plan for each subset of tables (bit t for table t), built up one table at a time.
+        int subsets = 1 << n;
+        double[] cost = new double[subsets];
+        double[] rows = new double[subsets];
+        Step[] last = new Step[subsets];
+        Arrays.fill(cost, Double.POSITIVE_INFINITY);
+        for (int t = 0; t < n; t++) {
+            cost[1 << t] = tables.get(t).size();
+            rows[1 << t] = estimates[t];
+        }
+        for (int joined = 1; joined < subsets; joined++) {
+            if (cost[joined] == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+            for (int t = 0; t < n; t++) {
+                if ((joined & (1 << t)) != 0) {
+                    continue;
+                }
+                List<Condition> keys = new ArrayList<>();
+                for (Condition condition : conditions) {
+                    Condition toward = condition.toward(t);
+                    if (toward != null && (joined & (1 << toward.left)) != 0) {
+                        keys.add(toward);
+                    }
+                }
+                if (keys.isEmpty()) {
+                    continue;
+                }
+                Step step = cheapestStep(rows[joined], t, estimates[t], keys);
+                int next = joined | (1 << t);
+                if (cost[joined] + step.cost < cost[next]) {
+                    cost[next] = cost[joined] + step.cost;
+                    rows[next] = step.rows;
+                    last[next] = step;
+                }
+            }
+        }
+        int all = subsets - 1;
+        if (last[all] == null) {
+            throw new Exception("Every joined table needs a join condition with the others");
+        }
+        int joined = all;
+        while (last[joined] != null) {
+            steps.add(0, last[joined]);
+            joined &= ~(1 << last[joined].table);
+        }
+        this.first = Integer.numberOfTrailingZeros(joined);
+        this.scan = new PlanNode(tables.get(first).explainWhere(this.filters[first]), estimates[first]);
+        PlanNode outer = scan;
+        StringJoiner outerNames = new StringJoiner("+");
+        outerNames.add(tables.get(first).getName());
+        for (Step step : steps) {
+            Table table = tables.get(step.table);
+            if (step.index) {
+                step.plan = new PlanNode("INDEX NESTED LOOP JOIN outer=" + outerNames + " inner=" + table.getName()
+                        + "." + step.keys.get(0).rightColumn, step.rows, outer);
+            } else {
+                step.build = new PlanNode(table.explainWhere(this.filters[step.table]), estimates[step.table]);
+                step.plan = new PlanNode("HASH JOIN build=" + table.getName() + " probe=" + outerNames, step.rows, outer, step.build);
+            }
+            outer = step.plan;
+            outerNames.add(table.getName());
+        }
+    }
+
+    // Joining table t to outerRows rows of the tables before it: an index nested loop probes t's index on a key
+    // column once per row; a hash join reads all of t once and probes a hash table instead.
+    private Step cheapestStep(double outerRows, int t, double estimate, List<Condition> keys) {
+        Table table = tables.get(t);
+        double selectivity = 1;
+        for (Condition key : keys) {
+            selectivity *= key.selectivity(tables);
+        }
+        double output = outerRows * estimate * selectivity;
+        Step best = new Step(t, keys, false, output,
+                table.size() + estimate * HASH_BUILD_COST + outerRows * Table.INDEX_PROBE_COST + output);
+        for (Condition key : keys) {
+            if (table.getIndex(key.rightColumn) != null) {
+                // Every row the index returns is fetched, before the table's filter and the other keys narrow them.
+                double fetched = outerRows * table.size() * key.selectivity(tables);
+                double cost = outerRows * Table.INDEX_PROBE_COST + fetched * Table.INDEX_ROW_COST;
+                if (cost < best.cost) {
+                    List<Condition> ordered = new ArrayList<>(keys);
+                    ordered.remove(key);
+                    ordered.add(0, key);
+                    best = new Step(t, ordered, true, output, cost);
+                }
+            }
+        }
+        return best;
+    }
+
+    public PlanNode getPlan() {
+        return steps.get(steps.size() - 1).plan;
+    }
+
+    // Every column of the joined tables, "table.column", in FROM order.
+    public List<String> getColumns() {
+        return layout.getNames();
+    }
+
+    // Opens the join at a new snapshot that all its tables share. Hash tables are built when the first row
+    // is read. With analyze, every operator counts and times the rows it produces.
+    public Cursor open(boolean analyze) {
+        return new Cursor(clock.openSnapshot(), analyze);
+    }
+
+    public final class Cursor implements Iterator<Row>, AutoCloseable {
+        private final VersionClock.Snapshot snapshot;
+        private final Table.RowCursor rows;
+        private final Iterator<Row[]> tuples;
+        private boolean closed;
+
+        private Cursor(VersionClock.Snapshot snapshot, boolean analyze) {
+            this.snapshot = snapshot;
+            this.rows = tables.get(first).openCursor(filters[first], snapshot);
+            Iterator<Row> input = analyze ? scan.track(rows) : rows;
+            Iterator<Row[]> current = new Iterator<Row[]>() {
+                public boolean hasNext() { return input.hasNext(); }
+                public Row[] next() {
+                    Row[] tuple = new Row[tables.size()];
+                    tuple[first] = input.next();
+                    return tuple;
+                }
+            };
+            for (Step step : steps) {
+                current = step.join(current, snapshot);
+                if (analyze) {
+                    current = step.plan.track(current);
+                }
+            }
+            this.tuples = current;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && tuples.hasNext();
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return new JoinedRow(layout, tuples.next());
+        }
+
+        // Rows of column tables read through to storage, so a caller keeping rows past close copies them first.
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            rows.close();
+            snapshot.close();
+        }
+    }
+
+    // left.leftColumn = right.rightColumn, with tables given by position in the join's FROM order.
+    public static final class Condition {
+        final int left;
+        final String leftColumn;
+        final int right;
+        final String rightColumn;
+
+        public Condition(int left, String leftColumn, int right, String rightColumn) {
+            this.left = left;
+            this.leftColumn = leftColumn;
+            this.right = right;
+            this.rightColumn = rightColumn;
+        }
+
+        // The same condition with table on the right, or null if it does not involve table.
+        Condition toward(int table) {
+            return right == table ? this : left == table ? new Condition(right, rightColumn, left, leftColumn) : null;
+        }
+
+        // Estimated share of all pairs of rows that match: each non-null value on the side with fewer distinct
+        // values is assumed to find its matches on the other side.
+        double selectivity(List<Table> tables) {
+            Table a = tables.get(left);
+            Table b = tables.get(right);
+            double pairs = (double) a.size() * b.size();
+            double matches = Math.min(a.estimateNonNull(leftColumn) * b.estimateRowsPerValue(rightColumn),
+                    b.estimateNonNull(rightColumn) * a.estimateRowsPerValue(leftColumn));
+            return pairs == 0 ? 0 : Math.min(1, matches / pairs);
+        }
+    }
+
+    // Joins one more table to each row so far. keys tie it to the tables already joined; the first is looked
+    // up, the rest are checked on the matches.
+    private final class Step {
+        final int table;
+        final List<Condition> keys;
+        final boolean index;
+        final double rows;
+        final double cost;
+        PlanNode plan;
+        // The hash table's input, for a hash join.
+        PlanNode build;
+
+        Step(int table, List<Condition> keys, boolean index, double rows, double cost) {
+            this.table = table;
+            this.keys = keys;
+            this.index = index;
+            this.rows = rows;
+            this.cost = cost;
+        }
+
+        Iterator<Row[]> join(Iterator<Row[]> input, VersionClock.Snapshot snapshot) {
+            Condition key = keys.get(0);
+            Table inner = tables.get(table);
+            Predicate filter = filters[table];
+            return new Iterator<Row[]>() {
+                private Map<Object, List<Row>> hashTable;
+                private Row[] outer;
+                private Iterator<Row> matches = Collections.emptyIterator();
+                private Row[] next;
+
+                public boolean hasNext() {
+                    while (next == null) {
+                        if (matches.hasNext()) {
+                            Row match = matches.next();
+                            if (matchesOtherKeys(outer, match)) {
+                                next = outer.clone();
+                                next[table] = match;
+                            }
+                        } else if (input.hasNext()) {
+                            outer = input.next();
+                            Object value = outer[key.left].get(key.leftColumn);
+                            matches = value == null ? Collections.emptyIterator() : matches(value).iterator();
+                        } else {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                public Row[] next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Row[] tuple = next;
+                    next = null;
+                    return tuple;
+                }
+
+                private List<Row> matches(Object value) {
+                    if (index) {
+                        return inner.lookup(key.rightColumn, value, filter, snapshot);
+                    }
+                    if (hashTable == null) {
+                        long start = System.nanoTime();
+                        hashTable = new HashMap<>();
+                        List<Row> rows = inner.selectWhere(filter, snapshot);
+                        for (Row row : rows) {
+                            Object rowKey = row.get(key.rightColumn);
+                            if (rowKey != null) {
+                                hashTable.computeIfAbsent(rowKey, k -> new ArrayList<>(1)).add(row);
+                            }
+                        }
+                        build.record(rows.size(), System.nanoTime() - start);
+                    }
+                    return hashTable.getOrDefault(value, Collections.emptyList());
+                }
+            };
+        }
+
+        private boolean matchesOtherKeys(Row[] outer, Row match) {
+            for (int i = 1; i < keys.size(); i++) {
+                Condition key = keys.get(i);
+                Object value = outer[key.left].get(key.leftColumn);
+                if (value == null || !value.equals(match.get(key.rightColumn))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.*;
+
+// A row of a join: one base row per joined table, side by side, read by "table.column" name. Nothing is
+// copied out of the base rows; they may themselves be views over column storage.
+public class JoinedRow extends Row {
+    private final Layout layout;
+    private final Row[] parts;
+
+    JoinedRow(Layout layout, Row[] parts) {
+        this.layout = layout;
+        this.parts = parts;
+    }
+
+    @Override
+    public Object get(String columnName) {
+        Integer position = layout.positions.get(columnName);
+        return position == null ? null : parts[layout.parts[position]].get(layout.columns[position]);
+    }
+
+    // Qualified names to values, NULLs left out, as for a base row.
+    @Override
+    public Map<String, Object> getData() {
+        Map<String, Object> data = new HashMap<>();
+        for (int i = 0; i < layout.names.size(); i++) {
+            Object value = parts[layout.parts[i]].get(layout.columns[i]);
+            if (value != null) {
+                data.put(layout.names.get(i), value);
+            }
+        }
+        return data;
+    }
+
+    // Where each qualified column of the joined tables lives, shared by every row of one join.
+    static final class Layout {
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> positions = new HashMap<>();
+        private final int[] parts;
+        private final String[] columns;
+
+        Layout(List<Table> tables) {
+            List<Integer> partList = new ArrayList<>();
+            List<String> columnList = new ArrayList<>();
+            for (int part = 0; part < tables.size(); part++) {
+                Table table = tables.get(part);
+                for (Column column : table.getColumns()) {
+                    positions.put(table.getName() + "." + column.getName(), names.size());
+                    names.add(table.getName() + "." + column.getName());
+                    partList.add(part);
+                    columnList.add(column.getName());
+                }
+            }
+            this.parts = partList.stream().mapToInt(Integer::intValue).toArray();
+            this.columns = columnList.toArray(new String[0]);
+        }
+
+        // Every column of every table, "table.column", in FROM order.
+        List<String> getNames() {
+            return names;
+        }
+    }
+}
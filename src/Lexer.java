@@ -0,0 +1,140 @@
+import java.util.Arrays;
+
+// Single-pass SQL tokenizer. Tokens are kept as parallel arrays of kinds and source offsets, so lexing
+// allocates no per-token objects; text is only copied out when the parser needs an identifier or literal.
+public class Lexer {
+    public static final int IDENTIFIER = 1;
+    public static final int NUMBER = 2;
+    public static final int STRING = 3;
+    public static final int SYMBOL = 4;
+    public static final int PARAMETER = 5;
+    public static final int END = 6;
+
+    private final String sql;
+    private int[] kinds;
+    private int[] starts;
+    private int[] ends;
+    private int count;
+
+    public Lexer(String sql) throws Exception {
+        this.sql = sql;
+        this.kinds = new int[16];
+        this.starts = new int[16];
+        this.ends = new int[16];
+        tokenize();
+    }
+
+    private void tokenize() throws Exception {
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_')) {
+                    i++;
+                }
+                add(IDENTIFIER, start, i);
+            } else if (isDigit(c) || (c == '-' && i + 1 < length && isDigit(sql.charAt(i + 1)))) {
+                int start = i++;
+                while (i < length && isDigit(sql.charAt(i))) {
+                    i++;
+                }
+                add(NUMBER, start, i);
+            } else if (c == '\'') {
+                // '' inside a string is an escaped quote; the token spans both quotes.
+                int start = i++;
+                while (true) {
+                    if (i >= length) {
+                        throw new Exception("Unterminated string literal at position " + start);
+                    }
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                add(STRING, start, ++i);
+            } else if ((c == '<' || c == '>' || c == '!') && i + 1 < length
+                    && (sql.charAt(i + 1) == '=' || (c == '<' && sql.charAt(i + 1) == '>'))) {
+                add(SYMBOL, i, i + 2);
+                i += 2;
+            } else if (c == '?') {
+                add(PARAMETER, i, ++i);
+            } else if ("(),=*.;<>".indexOf(c) >= 0) {
+                add(SYMBOL, i, ++i);
+            } else {
+                throw new Exception("Unexpected character '" + c + "' at position " + i);
+            }
+        }
+        add(END, length, length);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void add(int kind, int start, int end) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        kinds[count] = kind;
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    public int kind(int token) {
+        return kinds[token];
+    }
+
+    public int position(int token) {
+        return starts[token];
+    }
+
+    // Case-insensitive keyword test, done in place on the source string.
+    public boolean isKeyword(int token, String keyword) {
+        return kinds[token] == IDENTIFIER && ends[token] - starts[token] == keyword.length()
+                && sql.regionMatches(true, starts[token], keyword, 0, keyword.length());
+    }
+
+    public boolean isSymbol(int token, String symbol) {
+        return kinds[token] == SYMBOL && ends[token] - starts[token] == symbol.length()
+                && sql.startsWith(symbol, starts[token]);
+    }
+
+    public String text(int token) {
+        return sql.substring(starts[token], ends[token]);
+    }
+
+    public String stringValue(int token) {
+        String body = sql.substring(starts[token] + 1, ends[token] - 1);
+        return body.indexOf('\'') < 0 ? body : body.replace("''", "'");
+    }
+
+    public int intValue(int token) throws Exception {
+        int value = 0;
+        boolean negative = sql.charAt(starts[token]) == '-';
+        for (int i = starts[token] + (negative ? 1 : 0); i < ends[token]; i++) {
+            int next = value * 10 - (sql.charAt(i) - '0');
+            if (next > value || value < Integer.MIN_VALUE / 10) {
+                throw new Exception("Integer out of range: " + text(token));
+            }
+            value = next;
+        }
+        if (!negative) {
+            if (value == Integer.MIN_VALUE) {
+                throw new Exception("Integer out of range: " + text(token));
+            }
+            value = -value;
+        }
+        return value;
+    }
+}
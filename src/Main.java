@@ -1,22 +1,67 @@
+import java.io.FileWriter;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
     public static void main(String[] args) throws Exception {
-        Database db = new Database();
+        // Data survives restarts through the write-ahead log in -Ddata.dir (default "data").
+        // -Dsync.mode picks COMMIT (fsync per commit), INTERVAL (fsync every few ms) or OS (no fsync).
+        SyncMode syncMode = SyncMode.valueOf(System.getProperty("sync.mode", "COMMIT").toUpperCase());
+        Database db = new Database(Paths.get(System.getProperty("data.dir", "data")), syncMode);
+        // -Dscan.threads sets how many threads large scans are split across (default: one per core, 1 = serial).
+        String scanThreads = System.getProperty("scan.threads");
+        if (scanThreads != null) {
+            int threads = Integer.parseInt(scanThreads);
+            db.setScanPool(threads > 1 ? new ForkJoinPool(threads) : null);
+        }
+        // Statements taking at least -Dslow.query.ms are logged with their plan to -Dslow.query.log (default
+        // stderr). Metrics are also published to JMX as rdbms:type=Metrics.
+        String slowQueryMs = System.getProperty("slow.query.ms");
+        if (slowQueryMs != null) {
+            String file = System.getProperty("slow.query.log");
+            db.getMetrics().setSlowQueryLog(new SlowQueryLog(Long.parseLong(slowQueryMs),
+                file == null ? System.err : new FileWriter(file, true)));
+        }
+        JmxMetrics.register(db, null);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                db.close();
+            } catch (Exception e) {
+                System.err.println("Error closing database: " + e.getMessage());
+            }
+        }));
         
         // Initialize demo table
-        List<Column> columns = Arrays.asList(
-            new Column("id", DataType.INT, true, false),
-            new Column("name", DataType.VARCHAR, false, false),
-            new Column("email", DataType.VARCHAR, false, true)
-        );
-        db.createTable("users", columns);
+        if (!db.getTableNames().contains("users")) {
+            List<Column> columns = Arrays.asList(
+                new Column("id", DataType.INT, true, false),
+                new Column("name", DataType.VARCHAR, false, false),
+                new Column("email", DataType.VARCHAR, false, true)
+            );
+            db.createTable("users", columns);
+        }
         
         if (args.length > 0 && args[0].equals("web")) {
-            // Start web server
-            WebServer server = new WebServer(db, 8080);
+            // Start web server. -Dweb.executor is VIRTUAL (a thread per request; Java 21+) or POOL, of
+            // -Dweb.threads threads. At most -Dweb.max.inflight requests run at once; up to -Dweb.max.queued
+            // more wait -Dweb.queue.ms for a turn, and the rest get 503.
+            int cores = Runtime.getRuntime().availableProcessors();
+            int maxInFlight = Integer.getInteger("web.max.inflight", 4 * cores);
+            int maxQueued = Integer.getInteger("web.max.queued", 64);
+            WebServer server = new WebServer(db, 8080,
+                ExecutorMode.valueOf(System.getProperty("web.executor", "VIRTUAL").toUpperCase()),
+                Integer.getInteger("web.threads", maxInFlight + maxQueued),
+                new AdmissionControl(maxInFlight, maxQueued, Long.getLong("web.queue.ms", 1000)));
             server.start();
             System.out.println("Visit http://localhost:8080");
+        } else if (args.length > 0 && args[0].equals("wire")) {
+            // Start the binary protocol server on -Dwire.port. Statements run on -Dwire.executor threads, as for
+            // web; a session waiting on another's transaction holds its thread, so a POOL needs room for that.
+            ExecutorMode mode = ExecutorMode.valueOf(System.getProperty("wire.executor", "VIRTUAL").toUpperCase());
+            WireServer server = new WireServer(db, Integer.getInteger("wire.port", 5480),
+                mode.newExecutor(Integer.getInteger("wire.threads", 64), "wire"));
+            server.start();
         } else {
             // Start REPL
             REPL repl = new REPL(db);
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Statement counters and latencies for a database, by statement type, plus the slow query log. Recording
+// is lock-free: a statement costs two clock reads, a few LongAdder increments and a histogram bucket.
+// Per-table read counters live on Table; getValues and writePrometheus report both.
+public class Metrics {
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<Class<?>, StatementStats> statements = new ConcurrentHashMap<>();
+    private volatile SlowQueryLog slowQueryLog;
+
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    // rows is what a SELECT returned, or -1; plan is a SELECT's plan, or null.
+    void record(Statement statement, String sql, long nanos, long rows, PlanNode plan, boolean failed) {
+        StatementStats stats = statements.computeIfAbsent(statement.getClass(), type -> new StatementStats(typeName(type)));
+        stats.latency.record(nanos);
+        if (failed) {
+            stats.errors.increment();
+        }
+        if (rows > 0) {
+            stats.rows.add(rows);
+        }
+        SlowQueryLog log = slowQueryLog;
+        if (log != null && log.isSlow(nanos)) {
+            log.log(stats.type, sql, nanos, rows, plan, failed);
+        }
+    }
+
+    // "CreateTable" -> "CREATE TABLE".
+    private static String typeName(Class<?> type) {
+        return type.getSimpleName().replaceAll("(?<=[a-z])(?=[A-Z])", " ").toUpperCase(Locale.ROOT);
+    }
+
+    // Statement types seen so far, by name.
+    public SortedMap<String, StatementStats> getStatements() {
+        SortedMap<String, StatementStats> byName = new TreeMap<>();
+        for (StatementStats stats : statements.values()) {
+            byName.put(stats.type, stats);
+        }
+        return byName;
+    }
+
+    // Every metric as a flat name -> value map, such as "statement.SELECT.p99Micros" or "table.users.rowsScanned".
+    public Map<String, Number> getValues(Database database) {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (StatementStats stats : getStatements().values()) {
+            String prefix = "statement." + stats.type + ".";
+            values.put(prefix + "count", stats.getCount());
+            values.put(prefix + "errors", stats.getErrors());
+            values.put(prefix + "rowsReturned", stats.getRowsReturned());
+            values.put(prefix + "meanMicros", stats.getCount() == 0 ? 0 : stats.latency.getSumNanos() / 1000 / stats.getCount());
+            values.put(prefix + "p50Micros", stats.latency.percentile(0.5) / 1000);
+            values.put(prefix + "p99Micros", stats.latency.percentile(0.99) / 1000);
+            values.put(prefix + "maxMicros", stats.latency.getMaxNanos() / 1000);
+        }
+        for (Table table : tables(database)) {
+            String prefix = "table." + table.getName() + ".";
+            values.put(prefix + "rows", table.size());
+            values.put(prefix + "rowsScanned", table.getRowsScanned());
+            values.put(prefix + "rowsReturned", table.getRowsReturned());
+            values.put(prefix + "indexScans", table.getIndexScans());
+            values.put(prefix + "fullScans", table.getFullScans());
+            values.put(prefix + "indexHitRatio", table.getIndexHitRatio());
+            values.put(prefix + "heapBytes", table.estimateBytes());
+        }
+        return values;
+    }
+
+    // Prometheus text exposition format, version 0.0.4.
+    public void writePrometheus(Appendable out, Database database) throws IOException {
+        Collection<StatementStats> all = getStatements().values();
+        header(out, "rdbms_statements_total", "counter", "Statements executed, by type.");
+        for (StatementStats stats : all) {
+            sample(out, "rdbms_statements_total", "type", stats.type, null, stats.getCount());
+        }
+        header(out, "rdbms_statement_errors_total", "counter", "Statements that failed, by type.");
+        for (StatementStats stats : all) {
+            sample(out, "rdbms_statement_errors_total", "type", stats.type, null, stats.getErrors());
+        }
+        header(out, "rdbms_statement_rows_returned_total", "counter", "Rows returned by SELECT statements.");
+        for (StatementStats stats : all) {
+            sample(out, "rdbms_statement_rows_returned_total", "type", stats.type, null, stats.getRowsReturned());
+        }
+        header(out, "rdbms_statement_duration_seconds", "summary", "Statement latency; a SELECT runs until its cursor is closed.");
+        for (StatementStats stats : all) {
+            for (double q : QUANTILES) {
+                sample(out, "rdbms_statement_duration_seconds", "type", stats.type, "quantile=\"" + q + "\"",
+                        stats.latency.percentile(q) / 1e9);
+            }
+            sample(out, "rdbms_statement_duration_seconds_sum", "type", stats.type, null, stats.latency.getSumNanos() / 1e9);
+            sample(out, "rdbms_statement_duration_seconds_count", "type", stats.type, null, stats.latency.getCount());
+        }
+        List<Table> tables = tables(database);
+        header(out, "rdbms_table_rows", "gauge", "Live rows per table.");
+        for (Table table : tables) {
+            sample(out, "rdbms_table_rows", "table", table.getName(), null, table.size());
+        }
+        header(out, "rdbms_table_rows_scanned_total", "counter", "Visible rows checked against the condition of a read or write.");
+        for (Table table : tables) {
+            sample(out, "rdbms_table_rows_scanned_total", "table", table.getName(), null, table.getRowsScanned());
+        }
+        header(out, "rdbms_table_rows_returned_total", "counter", "Rows that matched the condition of a read or write.");
+        for (Table table : tables) {
+            sample(out, "rdbms_table_rows_returned_total", "table", table.getName(), null, table.getRowsReturned());
+        }
+        header(out, "rdbms_table_scans_total", "counter", "Scans by how candidate rows were found.");
+        for (Table table : tables) {
+            sample(out, "rdbms_table_scans_total", "table", table.getName(), "access=\"index\"", table.getIndexScans());
+            sample(out, "rdbms_table_scans_total", "table", table.getName(), "access=\"full\"", table.getFullScans());
+        }
+        header(out, "rdbms_table_index_hit_ratio", "gauge", "Share of scans answered through an index.");
+        for (Table table : tables) {
+            sample(out, "rdbms_table_index_hit_ratio", "table", table.getName(), null, table.getIndexHitRatio());
+        }
+        header(out, "rdbms_table_heap_bytes", "gauge", "Estimated heap held by each table's rows, versions and indexes.");
+        for (Table table : tables) {
+            sample(out, "rdbms_table_heap_bytes", "table", table.getName(), null, table.estimateBytes());
+        }
+    }
+
+    static void header(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // One line: name{label="value",extra} number. extra is further labels, already formatted, or null.
+    static void sample(Appendable out, String name, String label, String value, String extra, double number) throws IOException {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    out.append('\\').append(c);
+                } else if (c == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+            if (extra != null) {
+                out.append(',').append(extra);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            out.append(Long.toString((long) number));
+        } else {
+            out.append(Double.toString(number));
+        }
+        out.append('\n');
+    }
+
+    private static List<Table> tables(Database database) {
+        List<Table> tables = new ArrayList<>();
+        for (String name : new TreeSet<>(database.getTableNames())) {
+            try {
+                tables.add(database.getTable(name));
+            } catch (Exception e) {
+                // Dropped meanwhile.
+            }
+        }
+        return tables;
+    }
+
+    public static final class StatementStats {
+        private final String type;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+
+        StatementStats(String type) {
+            this.type = type;
+        }
+
+        public String getType() { return type; }
+        public long getCount() { return latency.getCount(); }
+        public long getErrors() { return errors.sum(); }
+        public long getRowsReturned() { return rows.sum(); }
+        public LatencyHistogram getLatency() { return latency; }
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.*;
+
+// One operator of a query plan: what it does, how many rows the planner expects from it and, once the plan
+// has run under EXPLAIN ANALYZE, how many it produced and how long that took. Times are inclusive, since
+// operators pull rows from the ones below them as they go.
+public class PlanNode {
+    private String operation;
+    private final double estimatedRows;
+    private final List<PlanNode> children;
+    private long actualRows = -1;
+    private long nanos;
+
+    public PlanNode(String operation, double estimatedRows, PlanNode... children) {
+        this.operation = operation;
+        this.estimatedRows = estimatedRows;
+        this.children = Arrays.asList(children);
+    }
+
+    // Wraps rows so that pulling them through counts and times this operator.
+    public <T> Iterator<T> track(Iterator<T> rows) {
+        actualRows = 0;
+        return new Iterator<T>() {
+            public boolean hasNext() {
+                long start = System.nanoTime();
+                try {
+                    return rows.hasNext();
+                } finally {
+                    nanos += System.nanoTime() - start;
+                }
+            }
+
+            public T next() {
+                long start = System.nanoTime();
+                try {
+                    T row = rows.next();
+                    actualRows++;
+                    return row;
+                } finally {
+                    nanos += System.nanoTime() - start;
+                }
+            }
+        };
+    }
+
+    // For an operator that does all its work in one step rather than row by row.
+    public void record(long rows, long elapsedNanos) {
+        actualRows = rows;
+        nanos = elapsedNanos;
+    }
+
+    // Adds something only known once the operator has run, such as how many runs a sort spilled.
+    public void annotate(String detail) {
+        operation = operation + " (" + detail + ")";
+    }
+
+    public String getOperation() { return operation; }
+    public double getEstimatedRows() { return estimatedRows; }
+    public long getActualRows() { return actualRows; }
+    public long getNanos() { return nanos; }
+    public List<PlanNode> getChildren() { return children; }
+
+    // One line per operator, each input indented under the operator that reads it. With analyze, lines show
+    // actual rows and time next to the estimate; an operator that never ran shows only the estimate.
+    public String render(boolean analyze) {
+        StringBuilder sb = new StringBuilder();
+        render(sb, 0, analyze);
+        return sb.toString();
+    }
+
+    private void render(StringBuilder sb, int depth, boolean analyze) {
+        if (depth > 0) {
+            sb.append("  ".repeat(depth - 1)).append("-> ");
+        }
+        sb.append(operation).append("  (rows=").append(Math.round(estimatedRows));
+        if (analyze && actualRows >= 0) {
+            sb.append(" actual=").append(actualRows)
+              .append(String.format(Locale.ROOT, " time=%.3f ms", nanos / 1e6));
+        }
+        sb.append(")\n");
+        for (PlanNode child : children) {
+            child.render(sb, depth + 1, analyze);
+        }
+    }
+}
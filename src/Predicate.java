@@ -0,0 +1,534 @@
+import java.util.*;
+
+// A compiled WHERE clause. Leaves test one column against constants over a batch of row ids at a time,
+// narrowing the batch in place. NOT is pushed down to the leaves when compiling (NOT a < 5 becomes a >= 5),
+// so every leaf is simply false for NULL and the tree never needs three-valued logic at run time.
+public abstract class Predicate {
+    public static final int BATCH_SIZE = 1024;
+
+    public static final Predicate TRUE = new Constant(true);
+    public static final Predicate FALSE = new Constant(false);
+
+    public enum Comparison {
+        EQ, NE, LT, LE, GT, GE;
+
+        boolean test(int cmp) {
+            switch (this) {
+                case EQ: return cmp == 0;
+                case NE: return cmp != 0;
+                case LT: return cmp < 0;
+                case LE: return cmp <= 0;
+                case GT: return cmp > 0;
+                default: return cmp >= 0;
+            }
+        }
+
+        Comparison negate() {
+            switch (this) {
+                case EQ: return NE;
+                case NE: return EQ;
+                case LT: return GE;
+                case LE: return GT;
+                case GT: return LE;
+                default: return LT;
+            }
+        }
+
+        // The same test with the operands swapped: 5 < x is x > 5.
+        Comparison flip() {
+            switch (this) {
+                case LT: return GT;
+                case LE: return GE;
+                case GT: return LT;
+                case GE: return LE;
+                default: return this;
+            }
+        }
+
+        String symbol() {
+            switch (this) {
+                case EQ: return "=";
+                case NE: return "!=";
+                case LT: return "<";
+                case LE: return "<=";
+                case GT: return ">";
+                default: return ">=";
+            }
+        }
+    }
+
+    // Keeps in rowIds[0..count) only the rows this predicate is true for, in their original order,
+    // and returns how many remain.
+    public abstract int filter(Storage storage, int[] rowIds, int count);
+
+    // Equality on every entry, as the Map-based table API has always meant it: a null value matches NULL.
+    public static Predicate matching(Map<String, Object> conditions, List<Column> columns) {
+        if (conditions == null || conditions.isEmpty()) {
+            return TRUE;
+        }
+        List<Predicate> terms = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : conditions.entrySet()) {
+            int position = position(columns, entry.getKey());
+            Object value = entry.getValue();
+            if (position < 0) {
+                if (value != null) {
+                    return FALSE;
+                }
+            } else if (value == null) {
+                terms.add(new IsNull(position, true));
+            } else if (!isValidType(value, columns.get(position).getType())) {
+                return FALSE;
+            } else {
+                terms.add(new Compare(position, Comparison.EQ, value));
+            }
+        }
+        return and(terms);
+    }
+
+    public static Predicate compile(Expression where, String tableName, List<Column> columns, Object[] parameters) throws Exception {
+        if (where == null) {
+            return TRUE;
+        }
+        return new Compiler(tableName, columns, parameters).compile(where, false);
+    }
+
+    static Predicate and(List<Predicate> terms) {
+        List<Predicate> flat = new ArrayList<>();
+        for (Predicate term : terms) {
+            if (term == FALSE) {
+                return FALSE;
+            }
+            if (term instanceof And) {
+                flat.addAll(((And) term).terms);
+            } else if (term != TRUE) {
+                flat.add(term);
+            }
+        }
+        return flat.isEmpty() ? TRUE : flat.size() == 1 ? flat.get(0) : new And(flat);
+    }
+
+    static Predicate or(List<Predicate> terms) {
+        List<Predicate> flat = new ArrayList<>();
+        for (Predicate term : terms) {
+            if (term == TRUE) {
+                return TRUE;
+            }
+            if (term instanceof Or) {
+                flat.addAll(((Or) term).terms);
+            } else if (term != FALSE) {
+                flat.add(term);
+            }
+        }
+        return flat.isEmpty() ? FALSE : flat.size() == 1 ? flat.get(0) : new Or(flat);
+    }
+
+    // The top-level AND terms, which an index can answer one at a time.
+    public List<Predicate> conjuncts() {
+        return Collections.singletonList(this);
+    }
+
+    private static int position(List<Column> columns, String name) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isValidType(Object value, DataType type) {
+        switch (type) {
+            case INT: return value instanceof Integer;
+            case VARCHAR: return value instanceof String;
+            default: return value instanceof Boolean;
+        }
+    }
+
+    static final class Constant extends Predicate {
+        private final boolean value;
+
+        private Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public int filter(Storage storage, int[] rowIds, int count) {
+            return value ? count : 0;
+        }
+
+        @Override
+        public String toString() {
+            return value ? "TRUE" : "FALSE";
+        }
+    }
+
+    static final class And extends Predicate {
+        final List<Predicate> terms;
+
+        And(List<Predicate> terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public int filter(Storage storage, int[] rowIds, int count) {
+            for (Predicate term : terms) {
+                if (count == 0) {
+                    break;
+                }
+                count = term.filter(storage, rowIds, count);
+            }
+            return count;
+        }
+
+        @Override
+        public List<Predicate> conjuncts() {
+            return terms;
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(" AND ", "(", ")");
+            terms.forEach(term -> joiner.add(term.toString()));
+            return joiner.toString();
+        }
+    }
+
+    // Each term only sees the rows no earlier term has already accepted.
+    static final class Or extends Predicate {
+        final List<Predicate> terms;
+
+        Or(List<Predicate> terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public int filter(Storage storage, int[] rowIds, int count) {
+            boolean[] selected = new boolean[count];
+            int[] remaining = new int[count];
+            for (Predicate term : terms) {
+                int pending = 0;
+                for (int i = 0; i < count; i++) {
+                    if (!selected[i]) {
+                        remaining[pending++] = rowIds[i];
+                    }
+                }
+                if (pending == 0) {
+                    break;
+                }
+                int kept = term.filter(storage, remaining, pending);
+                for (int i = 0, j = 0; i < count && j < kept; i++) {
+                    if (!selected[i] && rowIds[i] == remaining[j]) {
+                        selected[i] = true;
+                        j++;
+                    }
+                }
+            }
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                if (selected[i]) {
+                    rowIds[matched++] = rowIds[i];
+                }
+            }
+            return matched;
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(" OR ", "(", ")");
+            terms.forEach(term -> joiner.add(term.toString()));
+            return joiner.toString();
+        }
+    }
+
+    // column <op> value, with value non-null and of the column's type.
+    static final class Compare extends Predicate {
+        final int column;
+        final Comparison op;
+        final Object value;
+
+        Compare(int column, Comparison op, Object value) {
+            this.column = column;
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        public int filter(Storage storage, int[] rowIds, int count) {
+            return storage.filterCompare(column, op, value, rowIds, count);
+        }
+
+        @Override
+        public String toString() {
+            return "#" + column + " " + op.symbol() + " " + value;
+        }
+    }
+
+    static final class In extends Predicate {
+        final int column;
+        final Set<Object> values;
+        final boolean negated;
+
+        In(int column, Set<Object> values, boolean negated) {
+            this.column = column;
+            this.values = values;
+            this.negated = negated;
+        }
+
+        @Override
+        public int filter(Storage storage, int[] rowIds, int count) {
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                Object value = storage.get(rowIds[i], column);
+                if (value != null && values.contains(value) != negated) {
+                    rowIds[matched++] = rowIds[i];
+                }
+            }
+            return matched;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + column + (negated ? " NOT IN " : " IN ") + values;
+        }
+    }
+
+    static final class IsNull extends Predicate {
+        final int column;
+        final boolean isNull;
+
+        IsNull(int column, boolean isNull) {
+            this.column = column;
+            this.isNull = isNull;
+        }
+
+        @Override
+        public int filter(Storage storage, int[] rowIds, int count) {
+            return storage.filterNull(column, isNull, rowIds, count);
+        }
+
+        @Override
+        public String toString() {
+            return "#" + column + (isNull ? " IS NULL" : " IS NOT NULL");
+        }
+    }
+
+    // SQL LIKE: % matches any run of characters, _ matches exactly one.
+    static final class Like extends Predicate {
+        final int column;
+        final String pattern;
+        final boolean negated;
+
+        Like(int column, String pattern, boolean negated) {
+            this.column = column;
+            this.pattern = pattern;
+            this.negated = negated;
+        }
+
+        // The literal text every match starts with, usable as an index range when the pattern is prefix%.
+        String prefix() {
+            int end = 0;
+            while (end < pattern.length() && pattern.charAt(end) != '%' && pattern.charAt(end) != '_') {
+                end++;
+            }
+            return pattern.substring(0, end);
+        }
+
+        @Override
+        public int filter(Storage storage, int[] rowIds, int count) {
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                Object value = storage.get(rowIds[i], column);
+                if (value != null && matches((String) value, pattern) != negated) {
+                    rowIds[matched++] = rowIds[i];
+                }
+            }
+            return matched;
+        }
+
+        static boolean matches(String text, String pattern) {
+            int t = 0;
+            int p = 0;
+            int starPattern = -1;
+            int starText = 0;
+            while (t < text.length()) {
+                if (p < pattern.length() && pattern.charAt(p) == '%') {
+                    starPattern = p++;
+                    starText = t;
+                } else if (p < pattern.length() && (pattern.charAt(p) == '_' || pattern.charAt(p) == text.charAt(t))) {
+                    p++;
+                    t++;
+                } else if (starPattern >= 0) {
+                    p = starPattern + 1;
+                    t = ++starText;
+                } else {
+                    return false;
+                }
+            }
+            while (p < pattern.length() && pattern.charAt(p) == '%') {
+                p++;
+            }
+            return p == pattern.length();
+        }
+
+        @Override
+        public String toString() {
+            return "#" + column + (negated ? " NOT LIKE '" : " LIKE '") + pattern + "'";
+        }
+    }
+
+    private static final class Compiler {
+        private final String tableName;
+        private final List<Column> columns;
+        private final Object[] parameters;
+
+        Compiler(String tableName, List<Column> columns, Object[] parameters) {
+            this.tableName = tableName;
+            this.columns = columns;
+            this.parameters = parameters;
+        }
+
+        Predicate compile(Expression expression, boolean negated) throws Exception {
+            if (expression instanceof Expression.Not) {
+                return compile(((Expression.Not) expression).getOperand(), !negated);
+            }
+            if (expression instanceof Expression.IsNull) {
+                Expression.IsNull isNull = (Expression.IsNull) expression;
+                return new IsNull(column(isNull.getOperand()), isNull.isNegated() == negated);
+            }
+            if (expression instanceof Expression.Between) {
+                Expression.Between between = (Expression.Between) expression;
+                boolean notBetween = negated != between.isNegated();
+                // x BETWEEN a AND b is x >= a AND x <= b; negated, each bound flips and AND becomes OR.
+                List<Predicate> bounds = Arrays.asList(
+                        comparison(between.getOperand(), Comparison.GE, between.getLow(), notBetween),
+                        comparison(between.getOperand(), Comparison.LE, between.getHigh(), notBetween));
+                return notBetween ? or(bounds) : and(bounds);
+            }
+            if (expression instanceof Expression.InList) {
+                return in((Expression.InList) expression, negated);
+            }
+            Expression.Binary binary = (Expression.Binary) expression;
+            switch (binary.getOperator()) {
+                case AND:
+                case OR: {
+                    List<Predicate> terms = Arrays.asList(compile(binary.getLeft(), negated), compile(binary.getRight(), negated));
+                    // De Morgan: NOT (a AND b) is NOT a OR NOT b.
+                    return (binary.getOperator() == Expression.Operator.AND) != negated ? and(terms) : or(terms);
+                }
+                case LIKE: {
+                    Object pattern = value(binary.getRight());
+                    if (pattern == null) {
+                        return FALSE;
+                    }
+                    int position = column(binary.getLeft());
+                    if (columns.get(position).getType() != DataType.VARCHAR || !(pattern instanceof String)) {
+                        throw new Exception("LIKE needs a VARCHAR column and a string pattern: " + binary);
+                    }
+                    return new Like(position, (String) pattern, negated);
+                }
+                default:
+                    return comparison(binary.getLeft(), comparison(binary.getOperator()), binary.getRight(), negated);
+            }
+        }
+
+        private Predicate comparison(Expression left, Comparison op, Expression right, boolean negated) throws Exception {
+            if (negated) {
+                op = op.negate();
+            }
+            boolean leftColumn = left instanceof Expression.ColumnRef;
+            boolean rightColumn = right instanceof Expression.ColumnRef;
+            if (leftColumn && rightColumn) {
+                throw new Exception("Comparing two columns is not supported: " + left + " " + op.symbol() + " " + right);
+            }
+            if (!leftColumn && !rightColumn) {
+                Object a = value(left);
+                Object b = value(right);
+                if (a == null || b == null) {
+                    return FALSE;
+                }
+                return op.test(compareValues(a, b)) ? TRUE : FALSE;
+            }
+            if (!leftColumn) {
+                return comparison(right, op.flip(), left, false);
+            }
+            int position = column(left);
+            Object value = value(right);
+            // Comparing with NULL is unknown, which never selects a row, negated or not.
+            if (value == null) {
+                return FALSE;
+            }
+            if (!isValidType(value, columns.get(position).getType())) {
+                throw new Exception("Cannot compare " + columns.get(position).getName() + " with " + right);
+            }
+            return new Compare(position, op, value);
+        }
+
+        private Predicate in(Expression.InList in, boolean negated) throws Exception {
+            int position = column(in.getOperand());
+            boolean notIn = negated != in.isNegated();
+            Set<Object> values = new HashSet<>();
+            for (Expression expression : in.getValues()) {
+                Object value = value(expression);
+                if (value == null) {
+                    // x NOT IN (..., NULL) is never true; a NULL member of IN can never be the match.
+                    if (notIn) {
+                        return FALSE;
+                    }
+                    continue;
+                }
+                if (!isValidType(value, columns.get(position).getType())) {
+                    throw new Exception("Cannot compare " + columns.get(position).getName() + " with " + expression);
+                }
+                values.add(value);
+            }
+            if (values.isEmpty()) {
+                return notIn ? new IsNull(position, false) : FALSE;
+            }
+            return new In(position, values, notIn);
+        }
+
+        private int column(Expression expression) throws Exception {
+            if (!(expression instanceof Expression.ColumnRef)) {
+                throw new Exception("Expected a column but found " + expression);
+            }
+            Expression.ColumnRef ref = (Expression.ColumnRef) expression;
+            if (ref.getTable() != null && !ref.getTable().equalsIgnoreCase(tableName)) {
+                throw new Exception("Unknown table in column reference: " + ref);
+            }
+            int position = position(columns, ref.getColumn());
+            if (position < 0) {
+                throw new Exception("Column does not exist: " + ref.getColumn());
+            }
+            return position;
+        }
+
+        private Object value(Expression expression) throws Exception {
+            if (expression instanceof Expression.Parameter) {
+                return parameters[((Expression.Parameter) expression).getIndex()];
+            }
+            if (expression instanceof Expression.Literal) {
+                return ((Expression.Literal) expression).getValue();
+            }
+            throw new Exception("Expected a value but found " + expression);
+        }
+
+        private Comparison comparison(Expression.Operator operator) {
+            switch (operator) {
+                case EQUALS: return Comparison.EQ;
+                case NOT_EQUALS: return Comparison.NE;
+                case LESS: return Comparison.LT;
+                case LESS_EQUAL: return Comparison.LE;
+                case GREATER: return Comparison.GT;
+                default: return Comparison.GE;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object a, Object b) throws Exception {
+        if (a.getClass() != b.getClass()) {
+            throw new Exception("Cannot compare " + a + " with " + b);
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+}
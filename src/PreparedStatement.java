@@ -0,0 +1,47 @@
+// A parsed statement with ? placeholders, executed any number of times with different values.
+// Values are bound into the syntax tree at execution, never spliced into SQL text.
+public class PreparedStatement {
+    private final SQLParser parser;
+    private final String sql;
+    private final Statement statement;
+    private final int parameterCount;
+
+    PreparedStatement(SQLParser parser, String sql, Statement statement, int parameterCount) {
+        this.parser = parser;
+        this.sql = sql;
+        this.statement = statement;
+        this.parameterCount = parameterCount;
+    }
+
+    public String execute(Object... parameters) throws Exception {
+        checkParameters(parameters);
+        return parser.execute(sql, statement, parameters);
+    }
+
+    // Streams the result to out as SQLParser.execute(String, Appendable) does, but throws errors instead of writing them.
+    public void execute(Appendable out, Object... parameters) throws Exception {
+        execute(sql, out, parameters);
+    }
+
+    // As execute(out, parameters), with text to show for it in the slow query log, such as an EXECUTE statement.
+    void execute(String text, Appendable out, Object[] parameters) throws Exception {
+        checkParameters(parameters);
+        parser.execute(sql != null ? sql : text, statement, parameters, out);
+    }
+
+    // Runs a SELECT and returns its rows rather than text; close the cursor when done.
+    public ResultCursor query(Object... parameters) throws Exception {
+        checkParameters(parameters);
+        return parser.query(sql, statement, parameters);
+    }
+
+    private void checkParameters(Object[] parameters) throws Exception {
+        if (parameters.length != parameterCount) {
+            throw new Exception("Expected " + parameterCount + " parameters but got " + parameters.length);
+        }
+    }
+
+    public String getSql() { return sql; }
+    public Statement getStatement() { return statement; }
+    public int getParameterCount() { return parameterCount; }
+}
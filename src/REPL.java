@@ -1,3 +1,7 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Scanner;
 
 public class REPL {
@@ -7,8 +11,10 @@ public class REPL {
         this.parser = new SQLParser(database);
     }
 
-    public void start() {
+    public void start() throws IOException {
         Scanner scanner = new Scanner(System.in);
+        // Results stream through a buffer instead of being built as one string; flushed after each statement.
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
         System.out.println("Simple RDBMS - Interactive Mode");
         System.out.println("Type 'exit' to quit\n");
 
@@ -25,9 +31,9 @@ public class REPL {
                 continue;
             }
 
-            String result = parser.execute(input);
-            System.out.println(result);
-            System.out.println();
+            parser.execute(input, out);
+            out.write("\n\n");
+            out.flush();
         }
 
         scanner.close();
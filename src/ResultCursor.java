@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.function.Consumer;
+
+// The rows of a query, produced as the caller iterates. Close it to release the snapshot and any
+// sort files behind it.
+public class ResultCursor implements Iterator<Row>, AutoCloseable {
+    private final List<String> columns;
+    private final Iterator<Row> rows;
+    private final List<AutoCloseable> resources;
+    private final PlanNode plan;
+    private long rowCount;
+    private boolean failed;
+    private boolean closed;
+    private Consumer<ResultCursor> onClose;
+
+    ResultCursor(List<String> columns, Iterator<Row> rows, List<AutoCloseable> resources, PlanNode plan) {
+        this.columns = columns;
+        this.rows = rows;
+        this.resources = resources;
+        this.plan = plan;
+    }
+
+    public List<String> getColumns() { return columns; }
+    public PlanNode getPlan() { return plan; }
+    // Rows read so far.
+    public long getRowCount() { return rowCount; }
+    boolean isFailed() { return failed; }
+
+    // Marks the query as failed, for a reader that gave up on an error.
+    void fail() {
+        failed = true;
+    }
+
+    // Runs listener once, when the cursor is closed, after its resources are released.
+    void onClose(Consumer<ResultCursor> listener) {
+        this.onClose = listener;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return rows.hasNext();
+    }
+
+    @Override
+    public Row next() {
+        Row row = rows.next();
+        rowCount++;
+        return row;
+    }
+
+    // Closes every resource even if one fails, then throws the first failure, unchecked.
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        RuntimeException failure = null;
+        try {
+            for (AutoCloseable resource : resources) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    RuntimeException wrapped = e instanceof RuntimeException ? (RuntimeException) e
+                            : e instanceof IOException ? new UncheckedIOException((IOException) e)
+                            : new IllegalStateException("Could not close query resource", e);
+                    if (failure == null) {
+                        failure = wrapped;
+                    } else {
+                        failure.addSuppressed(wrapped);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            if (onClose != null) {
+                onClose.accept(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,494 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// Writes statement results as JSON or binary column batches. Values go from the rows straight into one
+// reused byte buffer: numbers are written as digits and strings are escaped and UTF-8 encoded character by
+// character, so no String is built per row or value.
+//
+// COLUMNAR is the magic "RDBC", then tagged messages, big-endian, with strings as [int length][UTF-8]:
+//   'C' [short n][n strings]     the result's columns
+//   'B' [int rows][n columns]    a batch of up to COLUMN_BATCH_ROWS rows; each column is [byte type], then
+//                                unless the type is NULL a validity bitmap (bit set = not null) and values:
+//                                INT 4 bytes, LONG and DOUBLE 8 per row (0 where null), BOOLEAN a bitmap,
+//                                STRING [int offsets, rows + 1][UTF-8 bytes]
+//   'E' [long rows]              the end of the result
+//   'M' [string]                 the message of a statement that returns no rows
+//   'X' [string]                 an error, which may follow batches of the result's rows
+// A column's type is chosen per batch from its values; a batch mixing kinds of values sends them as STRING.
+final class ResultEncoder {
+    static final int BUFFER_BYTES = 16 * 1024;
+    static final int COLUMN_BATCH_ROWS = 4096;
+
+    private static final byte NULL_TYPE = 0;
+    private static final byte INT_TYPE = 1;
+    private static final byte LONG_TYPE = 2;
+    private static final byte DOUBLE_TYPE = 3;
+    private static final byte BOOLEAN_TYPE = 4;
+    private static final byte STRING_TYPE = 5;
+    private static final byte[] MAGIC = {'R', 'D', 'B', 'C'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final ResultFormat format;
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private int position;
+    // Digits of a number, written backwards.
+    private final byte[] digits = new byte[20];
+    // Whether a result's rows have begun, so an error must close the JSON around them.
+    private boolean inResult;
+
+    ResultEncoder(OutputStream out, ResultFormat format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    // Runs sql and writes its rows, message or error. Only failures of the output stream throw.
+    void execute(SQLParser parser, String sql) throws IOException {
+        if (format == ResultFormat.COLUMNAR) {
+            putBytes(MAGIC);
+        }
+        try {
+            PreparedStatement statement = parser.prepare(sql);
+            if (statement.getParameterCount() > 0) {
+                throw new Exception("Statement has ? parameters; use PREPARE or SQLParser.prepare");
+            }
+            if (statement.getStatement() instanceof Statement.Select) {
+                try (ResultCursor rows = statement.query()) {
+                    writeResult(rows);
+                }
+            } else {
+                writeMessage(statement.execute());
+            }
+        } catch (Exception e) {
+            writeError(String.valueOf(e.getMessage()));
+        }
+        flush();
+    }
+
+    // A bare JSON array of one object per row. If reading the rows fails part way, the array ends with an
+    // {"error":...} element, since the response status has already been sent.
+    void writeObjects(ResultCursor rows) throws IOException {
+        byte[][] keys = keys(rows.getColumns());
+        putByte('[');
+        boolean first = true;
+        try {
+            for (; rows.hasNext(); first = false) {
+                Row row = rows.next();
+                if (!first) {
+                    putByte(',');
+                }
+                putObject(keys, rows.getColumns(), row);
+            }
+        } catch (RuntimeException e) {
+            rows.fail();
+            putAscii(first ? "{\"error\":" : ",{\"error\":");
+            putJsonString(String.valueOf(e.getMessage()));
+            putByte('}');
+        }
+        putByte(']');
+        flush();
+    }
+
+    private void writeResult(ResultCursor rows) throws IOException {
+        List<String> columns = rows.getColumns();
+        inResult = true;
+        if (format == ResultFormat.JSON_ROWS) {
+            putAscii("{\"columns\":");
+            putNames(columns);
+            putAscii(",\"rows\":[");
+            byte[][] keys = keys(columns);
+            long count = 0;
+            for (; rows.hasNext(); count++) {
+                if (count > 0) {
+                    putByte(',');
+                }
+                putObject(keys, columns, rows.next());
+            }
+            putAscii("],\"count\":");
+            putLong(count);
+            putByte('}');
+            inResult = false;
+            return;
+        }
+        if (format == ResultFormat.JSON_COLUMNS) {
+            putAscii("{\"columns\":");
+            putNames(columns);
+            putAscii(",\"batches\":[");
+        } else {
+            putByte('C');
+            putShort(columns.size());
+            for (String column : columns) {
+                putString(column);
+            }
+        }
+        Object[][] batch = new Object[columns.size()][COLUMN_BATCH_ROWS];
+        long count = 0;
+        int size = 0;
+        try {
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                for (int c = 0; c < batch.length; c++) {
+                    batch[c][size] = row.get(columns.get(c));
+                }
+                if (++size == COLUMN_BATCH_ROWS) {
+                    putBatch(batch, size, count == 0);
+                    count += size;
+                    size = 0;
+                }
+            }
+        } finally {
+            // Rows read before an error are still sent, ahead of it.
+            if (size > 0) {
+                putBatch(batch, size, count == 0);
+                count += size;
+            }
+        }
+        if (format == ResultFormat.JSON_COLUMNS) {
+            putAscii("],\"count\":");
+            putLong(count);
+            putByte('}');
+        } else {
+            putByte('E');
+            putLongBytes(count);
+        }
+        inResult = false;
+    }
+
+    private void writeMessage(String message) throws IOException {
+        if (format == ResultFormat.COLUMNAR) {
+            putByte('M');
+            putString(message);
+        } else {
+            putAscii("{\"message\":");
+            putJsonString(message);
+            putByte('}');
+        }
+    }
+
+    private void writeError(String message) throws IOException {
+        if (format == ResultFormat.COLUMNAR) {
+            putByte('X');
+            putString(message);
+            return;
+        }
+        putAscii(inResult ? "],\"error\":" : "{\"error\":");
+        putJsonString(message);
+        putByte('}');
+        inResult = false;
+    }
+
+    private void putBatch(Object[][] batch, int size, boolean first) throws IOException {
+        if (format == ResultFormat.JSON_COLUMNS) {
+            putAscii(first ? "[" : ",[");
+            for (int c = 0; c < batch.length; c++) {
+                if (c > 0) {
+                    putByte(',');
+                }
+                putByte('[');
+                for (int r = 0; r < size; r++) {
+                    if (r > 0) {
+                        putByte(',');
+                    }
+                    putJson(batch[c][r]);
+                }
+                putByte(']');
+            }
+            putByte(']');
+        } else {
+            putByte('B');
+            putInt(size);
+            for (Object[] column : batch) {
+                putColumn(column, size);
+            }
+        }
+        for (Object[] column : batch) {
+            Arrays.fill(column, 0, size, null);
+        }
+    }
+
+    private void putColumn(Object[] values, int size) throws IOException {
+        byte type = NULL_TYPE;
+        for (int r = 0; r < size; r++) {
+            byte valueType = typeOf(values[r]);
+            if (valueType != NULL_TYPE && valueType != type) {
+                type = type == NULL_TYPE ? valueType : STRING_TYPE;
+            }
+        }
+        putByte(type);
+        if (type == NULL_TYPE) {
+            return;
+        }
+        putBitmap(values, size, null);
+        switch (type) {
+            case INT_TYPE:
+                for (int r = 0; r < size; r++) {
+                    putInt(values[r] == null ? 0 : (Integer) values[r]);
+                }
+                break;
+            case LONG_TYPE:
+                for (int r = 0; r < size; r++) {
+                    putLongBytes(values[r] == null ? 0 : (Long) values[r]);
+                }
+                break;
+            case DOUBLE_TYPE:
+                for (int r = 0; r < size; r++) {
+                    putLongBytes(values[r] == null ? 0 : Double.doubleToRawLongBits((Double) values[r]));
+                }
+                break;
+            case BOOLEAN_TYPE:
+                putBitmap(values, size, Boolean.TRUE);
+                break;
+            default:
+                int offset = 0;
+                putInt(0);
+                for (int r = 0; r < size; r++) {
+                    offset += values[r] == null ? 0 : utf8Length(values[r].toString());
+                    putInt(offset);
+                }
+                for (int r = 0; r < size; r++) {
+                    if (values[r] != null) {
+                        putUtf8(values[r].toString(), false);
+                    }
+                }
+        }
+    }
+
+    // One bit per row, lowest bit first: set when the value is not null, or with match when it equals match.
+    private void putBitmap(Object[] values, int size, Object match) throws IOException {
+        for (int r = 0; r < size; r += 8) {
+            int bits = 0;
+            for (int b = 0; b < 8 && r + b < size; b++) {
+                Object value = values[r + b];
+                if (match == null ? value != null : match.equals(value)) {
+                    bits |= 1 << b;
+                }
+            }
+            putByte(bits);
+        }
+    }
+
+    private static byte typeOf(Object value) {
+        if (value == null) {
+            return NULL_TYPE;
+        } else if (value instanceof Integer) {
+            return INT_TYPE;
+        } else if (value instanceof Long) {
+            return LONG_TYPE;
+        } else if (value instanceof Double) {
+            return DOUBLE_TYPE;
+        } else if (value instanceof Boolean) {
+            return BOOLEAN_TYPE;
+        }
+        return STRING_TYPE;
+    }
+
+    // Each column's "name": prefix, encoded once per result.
+    private byte[][] keys(List<String> columns) throws IOException {
+        byte[][] keys = new byte[columns.size()][];
+        flush();
+        for (int c = 0; c < keys.length; c++) {
+            putJsonString(columns.get(c));
+            putByte(':');
+            keys[c] = Arrays.copyOf(buffer, position);
+            position = 0;
+        }
+        return keys;
+    }
+
+    private void putObject(byte[][] keys, List<String> columns, Row row) throws IOException {
+        putByte('{');
+        for (int c = 0; c < keys.length; c++) {
+            if (c > 0) {
+                putByte(',');
+            }
+            putBytes(keys[c]);
+            putJson(row.get(columns.get(c)));
+        }
+        putByte('}');
+    }
+
+    private void putNames(List<String> columns) throws IOException {
+        putByte('[');
+        for (int c = 0; c < columns.size(); c++) {
+            if (c > 0) {
+                putByte(',');
+            }
+            putJsonString(columns.get(c));
+        }
+        putByte(']');
+    }
+
+    private void putJson(Object value) throws IOException {
+        if (value == null) {
+            putAscii("null");
+        } else if (value instanceof Integer || value instanceof Long) {
+            putLong(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            putAscii((Boolean) value ? "true" : "false");
+        } else if (value instanceof Double) {
+            double number = (Double) value;
+            putAscii(Double.isFinite(number) ? Double.toString(number) : "null");
+        } else {
+            putJsonString(value.toString());
+        }
+    }
+
+    private void putJsonString(String value) throws IOException {
+        putByte('"');
+        putUtf8(value, true);
+        putByte('"');
+    }
+
+    // Encodes value as UTF-8, with JSON escapes when escape is set. An unpaired surrogate becomes '?'.
+    private void putUtf8(String value, boolean escape) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (position + 6 > buffer.length) {
+                flush();
+            }
+            if (c < 0x80) {
+                if (escape && (c == '"' || c == '\\' || c < 0x20)) {
+                    putEscape(c);
+                } else {
+                    buffer[position++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | code >> 18);
+                buffer[position++] = (byte) (0x80 | code >> 12 & 0x3F);
+                buffer[position++] = (byte) (0x80 | code >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | code & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    // The bytes putUtf8 writes for value without escapes.
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void putEscape(char c) {
+        buffer[position++] = '\\';
+        switch (c) {
+            case '"': buffer[position++] = '"'; break;
+            case '\\': buffer[position++] = '\\'; break;
+            case '\n': buffer[position++] = 'n'; break;
+            case '\r': buffer[position++] = 'r'; break;
+            case '\t': buffer[position++] = 't'; break;
+            default:
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = HEX[c >> 4];
+                buffer[position++] = HEX[c & 0xF];
+        }
+    }
+
+    // Decimal digits of value.
+    private void putLong(long value) throws IOException {
+        if (position + 20 > buffer.length) {
+            flush();
+        }
+        if (value == Long.MIN_VALUE) {
+            putAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (length > 0) {
+            buffer[position++] = digits[--length];
+        }
+    }
+
+    private void putString(String value) throws IOException {
+        putInt(utf8Length(value));
+        putUtf8(value, false);
+    }
+
+    private void putAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            putByte(text.charAt(i));
+        }
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        if (position + bytes.length > buffer.length) {
+            flush();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void putByte(int value) throws IOException {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void putShort(int value) throws IOException {
+        putByte(value >> 8);
+        putByte(value);
+    }
+
+    private void putInt(int value) throws IOException {
+        if (position + 4 > buffer.length) {
+            flush();
+        }
+        buffer[position++] = (byte) (value >> 24);
+        buffer[position++] = (byte) (value >> 16);
+        buffer[position++] = (byte) (value >> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void putLongBytes(long value) throws IOException {
+        putInt((int) (value >> 32));
+        putInt((int) value);
+    }
+
+    private void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
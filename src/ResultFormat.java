@@ -0,0 +1,71 @@
+import java.util.*;
+
+// The encodings /api/sql can answer in, picked from the request's Accept header.
+public enum ResultFormat {
+    // the REPL's table text; errors are appended as "Error: ...".
+    TEXT("text/plain"),
+    // {"columns":[...],"rows":[{column: value, ...}, ...],"count":n}, streamed row by row.
+    JSON_ROWS("application/json"),
+    // {"columns":[...],"batches":[[[values of column 1], [values of column 2], ...], ...],"count":n}.
+    JSON_COLUMNS("application/vnd.rdbms.columns+json"),
+    // typed column batches; see ResultEncoder.
+    COLUMNAR("application/vnd.rdbms.columnar");
+
+    private final String contentType;
+
+    ResultFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    // The acceptable format with the highest q value, earliest listed on ties. No header, or one that accepts
+    // anything, gets TEXT; null means none of the listed types can be produced.
+    public static ResultFormat negotiate(List<String> acceptHeaders) {
+        if (acceptHeaders == null || acceptHeaders.isEmpty()) {
+            return TEXT;
+        }
+        ResultFormat best = null;
+        double bestQuality = 0;
+        for (String header : acceptHeaders) {
+            for (String range : header.split(",")) {
+                String[] parts = range.split(";");
+                String type = parts[0].trim().toLowerCase();
+                double quality = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                ResultFormat format = forType(type);
+                if (format != null && quality > bestQuality) {
+                    best = format;
+                    bestQuality = quality;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static ResultFormat forType(String type) {
+        if (type.equals("*/*") || type.equals("text/*")) {
+            return TEXT;
+        }
+        if (type.equals("application/*")) {
+            return JSON_ROWS;
+        }
+        for (ResultFormat format : values()) {
+            if (format.contentType.equals(type)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
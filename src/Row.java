@@ -4,7 +4,26 @@ public class Row {
     private final Map<String, Object> data;
 
     public Row(Map<String, Object> data) {
-        this.data = new HashMap<>(data);
+        this(new HashMap<>(data));
+    }
+
+    // Takes over a map nobody else holds, without copying it.
+    static Row wrap(HashMap<String, Object> data) {
+        return new Row(data);
+    }
+
+    private Row(HashMap<String, Object> data) {
+        this.data = data;
+    }
+
+    // A row holding its own values, for views such as column rows and join rows that must outlive their snapshot.
+    static Row copyOf(Row row) {
+        return row.data != null ? row : new Row(row.getData());
+    }
+
+    // For subclasses that read their values from elsewhere instead of holding a map.
+    protected Row() {
+        this.data = null;
     }
 
     public Object get(String columnName) {
@@ -17,6 +36,6 @@ public class Row {
 
     @Override
     public String toString() {
-        return data.toString();
+        return data != null ? data.toString() : getData().toString();
     }
 }
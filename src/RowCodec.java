@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Growable binary buffer for the value encoding shared by write-ahead log records and checkpoint files.
+class RowCodec {
+    private static final byte NULL_VALUE = 0;
+    private static final byte INT_VALUE = 1;
+    private static final byte STRING_VALUE = 2;
+    private static final byte TRUE_VALUE = 3;
+    private static final byte FALSE_VALUE = 4;
+
+    private ByteBuffer buffer;
+
+    RowCodec(int capacity) {
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    void putByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    void putShort(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    void putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    // Every tag goes through putByte: an INT or string before it only reserves its own bytes.
+    void putRow(Object[] row) {
+        putShort(row.length);
+        for (Object value : row) {
+            if (value instanceof Integer) {
+                putByte(INT_VALUE);
+                putInt((Integer) value);
+            } else if (value instanceof String) {
+                putByte(STRING_VALUE);
+                putString((String) value);
+            } else if (value instanceof Boolean) {
+                putByte((Boolean) value ? TRUE_VALUE : FALSE_VALUE);
+            } else {
+                putByte(NULL_VALUE);
+            }
+        }
+    }
+
+    int size() {
+        return buffer.position();
+    }
+
+    byte[] array() {
+        return buffer.array();
+    }
+
+    void clear() {
+        buffer.clear();
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static Object[] readRow(ByteBuffer in) {
+        Object[] row = new Object[in.getShort()];
+        for (int i = 0; i < row.length; i++) {
+            switch (in.get()) {
+                case INT_VALUE: row[i] = in.getInt(); break;
+                case STRING_VALUE: row[i] = readString(in); break;
+                case TRUE_VALUE: row[i] = Boolean.TRUE; break;
+                case FALSE_VALUE: row[i] = Boolean.FALSE; break;
+                default: row[i] = null; break;
+            }
+        }
+        return row;
+    }
+
+    static void putColumns(RowCodec out, List<Column> columns) {
+        out.putShort(columns.size());
+        for (Column col : columns) {
+            out.putString(col.getName());
+            out.putByte(col.getType().ordinal());
+            out.putByte((col.isPrimaryKey() ? 1 : 0) | (col.isUnique() ? 2 : 0));
+        }
+    }
+
+    static List<Column> readColumns(ByteBuffer in) {
+        int count = in.getShort();
+        List<Column> columns = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            DataType type = DataType.values()[in.get()];
+            byte flags = in.get();
+            columns.add(new Column(name, type, (flags & 1) != 0, (flags & 2) != 0));
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Begin/end commit stamps for every row id of a table, readable without locks.
+public class RowVersions {
+    public static final long INFINITY = Long.MAX_VALUE;
+    // End stamp of a version a running statement has replaced or deleted but not yet committed.
+    public static final long PENDING = Long.MAX_VALUE - 1;
+    // Stamp that sees only the latest version of each row; used by writers holding the table's write lock.
+    public static final long LATEST = PENDING;
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile AtomicLongArray[] begins;
+    private volatile AtomicLongArray[] ends;
+
+    public RowVersions() {
+        this.begins = new AtomicLongArray[0];
+        this.ends = new AtomicLongArray[0];
+    }
+
+    // Readers check end before begin: a slot is freed by clearing begin and reused by setting end before begin,
+    // so a reader can never pair a new end with an old begin.
+    public boolean isVisible(int rowId, long stamp) {
+        int chunk = rowId >>> CHUNK_BITS;
+        AtomicLongArray[] endChunks = ends;
+        AtomicLongArray[] beginChunks = begins;
+        if (chunk >= endChunks.length || chunk >= beginChunks.length) {
+            return false;
+        }
+        long end = endChunks[chunk].get(rowId & CHUNK_MASK);
+        long begin = beginChunks[chunk].get(rowId & CHUNK_MASK);
+        return begin != 0 && begin <= stamp && end > stamp;
+    }
+
+    // Prepares a slot for a new, not yet committed version.
+    public void prepare(int rowId) {
+        int chunk = rowId >>> CHUNK_BITS;
+        if (chunk >= begins.length) {
+            int length = Math.max(chunk + 1, begins.length * 2);
+            AtomicLongArray[] newBegins = Arrays.copyOf(begins, length);
+            AtomicLongArray[] newEnds = Arrays.copyOf(ends, length);
+            for (int i = begins.length; i < length; i++) {
+                newBegins[i] = new AtomicLongArray(CHUNK_SIZE);
+                newEnds[i] = new AtomicLongArray(CHUNK_SIZE);
+            }
+            ends = newEnds;
+            begins = newBegins;
+        }
+        setBegin(rowId, 0);
+        setEnd(rowId, INFINITY);
+    }
+
+    // Two stamps per slot, allocated a chunk at a time.
+    public long estimateBytes() {
+        return 2L * begins.length * (16 + 8L * CHUNK_SIZE);
+    }
+
+    public long getBegin(int rowId) {
+        return begins[rowId >>> CHUNK_BITS].get(rowId & CHUNK_MASK);
+    }
+
+    public long getEnd(int rowId) {
+        return ends[rowId >>> CHUNK_BITS].get(rowId & CHUNK_MASK);
+    }
+
+    public void setBegin(int rowId, long stamp) {
+        begins[rowId >>> CHUNK_BITS].set(rowId & CHUNK_MASK, stamp);
+    }
+
+    public void setEnd(int rowId, long stamp) {
+        ends[rowId >>> CHUNK_BITS].set(rowId & CHUNK_MASK, stamp);
+    }
+
+    // A version is allocated from the moment it is prepared until vacuum frees it.
+    public boolean isAllocated(int rowId) {
+        int chunk = rowId >>> CHUNK_BITS;
+        return chunk < begins.length && (getBegin(rowId) != 0 || getEnd(rowId) == INFINITY);
+    }
+
+    public void free(int rowId) {
+        setBegin(rowId, 0);
+        setEnd(rowId, 0);
+    }
+}
@@ -1,212 +1,954 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.Callable;
 
 public class SQLParser {
+    private static final int STATEMENT_CACHE_SIZE = 256;
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
     private final Database database;
+    // Parsed statements keyed by normalized SQL text, least recently used evicted first.
+    private final Map<String, PreparedStatement> statementCache;
+    // Statements named by PREPARE, shared by everyone using this parser.
+    private final Map<String, PreparedStatement> namedStatements;
+    // Rows an ORDER BY without LIMIT sorts in memory before spilling a sorted run to disk.
+    private volatile int sortRunRows = ExternalSort.DEFAULT_RUN_ROWS;
+    // COPY reads files on the server; off for parsers that run SQL sent by remote clients.
+    private volatile boolean fileAccess = true;
+    // BEGIN binds a transaction to the calling thread; off where one thread serves many clients in turn.
+    private volatile boolean transactionControl = true;
+    // PREPARE names statements for everyone using this parser; off where clients must not share them.
+    private volatile boolean namedStatementsAllowed = true;
 
     public SQLParser(Database database) {
         this.database = database;
+        this.statementCache = new LinkedHashMap<String, PreparedStatement>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                return size() > STATEMENT_CACHE_SIZE;
+            }
+        };
+        this.namedStatements = new java.util.concurrent.ConcurrentHashMap<>();
     }
 
     public String execute(String sql) {
+        StringBuilder out = new StringBuilder();
         try {
-            sql = sql.trim();
-            if (sql.toUpperCase().startsWith("CREATE TABLE")) {
-                return executeCreateTable(sql);
-            } else if (sql.toUpperCase().startsWith("DROP TABLE")) {
-                return executeDropTable(sql);
-            } else if (sql.toUpperCase().startsWith("INSERT INTO")) {
-                return executeInsert(sql);
-            } else if (sql.toUpperCase().startsWith("SELECT")) {
-                return executeSelect(sql);
-            } else if (sql.toUpperCase().startsWith("UPDATE")) {
-                return executeUpdate(sql);
-            } else if (sql.toUpperCase().startsWith("DELETE FROM")) {
-                return executeDelete(sql);
-            } else if (sql.toUpperCase().startsWith("SHOW TABLES")) {
-                return executeShowTables();
-            } else {
-                return "Unknown command";
+            execute(sql, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    // Writes the result to out as it is produced, so a large SELECT is never held in memory whole.
+    // Errors are written as "Error: ...", after any rows already written; only failures of out itself throw.
+    public void execute(String sql, Appendable out) throws IOException {
+        try {
+            Parser parser = new Parser(new Lexer(sql));
+            Statement statement = parser.statement();
+            if (parser.parameterCount > 0 && !(statement instanceof Statement.Prepare)) {
+                throw new Exception("Statement has ? parameters; use PREPARE or SQLParser.prepare");
             }
+            execute(sql, statement, NO_PARAMETERS, out);
         } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            out.append("Error: ").append(e.getMessage());
         }
     }
 
-    private String executeCreateTable(String sql) throws Exception {
-        Pattern pattern = Pattern.compile("CREATE TABLE (\\w+) \\((.+)\\)", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(sql);
-        if (!matcher.find()) {
-            throw new Exception("Invalid CREATE TABLE syntax");
+    void setSortRunRows(int sortRunRows) {
+        this.sortRunRows = sortRunRows;
+    }
+
+    public void setFileAccess(boolean fileAccess) {
+        this.fileAccess = fileAccess;
+    }
+
+    public void setTransactionControl(boolean transactionControl) {
+        this.transactionControl = transactionControl;
+    }
+
+    public void setNamedStatements(boolean allowed) {
+        this.namedStatementsAllowed = allowed;
+    }
+
+    private void checkNamedStatements() throws Exception {
+        if (!namedStatementsAllowed) {
+            throw new Exception("PREPARE, EXECUTE and DEALLOCATE are not allowed here; prepare statements through the client");
         }
+    }
+
+    public static Statement parse(String sql) throws Exception {
+        return new Parser(new Lexer(sql)).statement();
+    }
 
-        String tableName = matcher.group(1);
-        String columnDefs = matcher.group(2);
-        
-        List<Column> columns = new ArrayList<>();
-        for (String colDef : columnDefs.split(",")) {
-            colDef = colDef.trim();
-            String[] parts = colDef.split("\\s+");
-            String colName = parts[0];
-            DataType type = DataType.valueOf(parts[1].toUpperCase());
-            boolean isPrimary = colDef.toUpperCase().contains("PRIMARY KEY");
-            boolean isUnique = colDef.toUpperCase().contains("UNIQUE");
-            columns.add(new Column(colName, type, isPrimary, isUnique));
+    // Returns a reusable statement for sql, parsing it only if the statement cache does not already hold it.
+    public PreparedStatement prepare(String sql) throws Exception {
+        String key = normalize(sql);
+        synchronized (statementCache) {
+            PreparedStatement cached = statementCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Parser parser = new Parser(new Lexer(sql));
+        PreparedStatement prepared = new PreparedStatement(this, key, parser.statement(), parser.parameterCount);
+        synchronized (statementCache) {
+            statementCache.put(key, prepared);
         }
+        return prepared;
+    }
 
-        database.createTable(tableName, columns);
-        return "Table created: " + tableName;
+    // Collapses whitespace outside string literals and drops a trailing semicolon, so formatting
+    // differences do not defeat the statement cache.
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean inString = false;
+        boolean pendingSpace = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (!inString && Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+            if (c == '\'') {
+                inString = !inString;
+            }
+            sb.append(c);
+        }
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ';') {
+            sb.setLength(sb.length() - 1);
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ') {
+                sb.setLength(sb.length() - 1);
+            }
+        }
+        return sb.toString();
+    }
+
+    public String execute(Statement statement) throws Exception {
+        return execute(statement, NO_PARAMETERS);
+    }
+
+    String execute(Statement statement, Object[] parameters) throws Exception {
+        return execute(null, statement, parameters);
+    }
+
+    String execute(String sql, Statement statement, Object[] parameters) throws Exception {
+        StringBuilder out = new StringBuilder();
+        execute(sql, statement, parameters, out);
+        return out.toString();
     }
 
-    private String executeDropTable(String sql) throws Exception {
-        Pattern pattern = Pattern.compile("DROP TABLE (\\w+)", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(sql);
-        if (!matcher.find()) {
-            throw new Exception("Invalid DROP TABLE syntax");
+    void execute(Statement statement, Object[] parameters, Appendable out) throws Exception {
+        execute(null, statement, parameters, out);
+    }
+
+    // Records the statement in the database's metrics under its type: a SELECT from planning until its rows
+    // are written, anything else for the whole call. EXECUTE is recorded as the statement it runs. sql is
+    // the text for the slow query log, or null.
+    void execute(String sql, Statement statement, Object[] parameters, Appendable out) throws Exception {
+        if (statement instanceof Statement.Select) {
+            executeSelect(sql, (Statement.Select) statement, parameters, out);
+            return;
+        }
+        if (statement instanceof Statement.Execute) {
+            executeNamed(sql, (Statement.Execute) statement, parameters, out);
+            return;
         }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            if (statement instanceof Statement.Explain) {
+                executeExplain((Statement.Explain) statement, parameters, out);
+            } else {
+                out.append(executeCommand(statement, parameters));
+            }
+            failed = false;
+        } finally {
+            database.getMetrics().record(statement, sql, System.nanoTime() - start, -1, null, failed);
+        }
+    }
 
-        String tableName = matcher.group(1);
-        database.dropTable(tableName);
-        return "Table dropped: " + tableName;
+    private void executeNamed(String sql, Statement.Execute execute, Object[] parameters, Appendable out) throws Exception {
+        checkNamedStatements();
+        PreparedStatement prepared = namedStatements.get(execute.getName());
+        if (prepared == null) {
+            throw new Exception("Prepared statement does not exist: " + execute.getName());
+        }
+        Object[] values = new Object[execute.getValues().size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = value(execute.getValues().get(i), parameters);
+        }
+        prepared.execute(sql, out, values);
     }
 
-    private String executeInsert(String sql) throws Exception {
-        Pattern pattern = Pattern.compile("INSERT INTO (\\w+) \\(([^)]+)\\) VALUES \\(([^)]+)\\)", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(sql);
-        if (!matcher.find()) {
-            throw new Exception("Invalid INSERT syntax");
+    private String executeCommand(Statement statement, Object[] parameters) throws Exception {
+        if (statement instanceof Statement.Insert) {
+            return executeInsert((Statement.Insert) statement, parameters);
+        } else if (statement instanceof Statement.Copy) {
+            return executeCopy((Statement.Copy) statement);
+        } else if (statement instanceof Statement.Update) {
+            return executeUpdate((Statement.Update) statement, parameters);
+        } else if (statement instanceof Statement.Delete) {
+            return executeDelete((Statement.Delete) statement, parameters);
+        } else if (statement instanceof Statement.CreateTable) {
+            Statement.CreateTable create = (Statement.CreateTable) statement;
+            database.createTable(create.getTable(), create.getColumns(), create.getStorageType());
+            return "Table created: " + create.getTable();
+        } else if (statement instanceof Statement.DropTable) {
+            database.dropTable(((Statement.DropTable) statement).getTable());
+            return "Table dropped: " + ((Statement.DropTable) statement).getTable();
+        } else if (statement instanceof Statement.CreateIndex) {
+            Statement.CreateIndex create = (Statement.CreateIndex) statement;
+            database.createIndex(create.getIndex(), create.getTable(), create.getColumn(), create.getType());
+            return "Index created: " + create.getIndex();
+        } else if (statement instanceof Statement.DropIndex) {
+            database.dropIndex(((Statement.DropIndex) statement).getIndex());
+            return "Index dropped: " + ((Statement.DropIndex) statement).getIndex();
+        } else if (statement instanceof Statement.Prepare) {
+            checkNamedStatements();
+            Statement.Prepare prepare = (Statement.Prepare) statement;
+            namedStatements.put(prepare.getName(),
+                    new PreparedStatement(this, null, prepare.getStatement(), prepare.getParameterCount()));
+            return "Statement prepared: " + prepare.getName();
+        } else if (statement instanceof Statement.Deallocate) {
+            checkNamedStatements();
+            String name = ((Statement.Deallocate) statement).getName();
+            if (namedStatements.remove(name) == null) {
+                throw new Exception("Prepared statement does not exist: " + name);
+            }
+            return "Statement deallocated: " + name;
+        } else if (statement instanceof Statement.Begin) {
+            if (!transactionControl) {
+                throw new Exception("Transactions are not allowed here; each statement commits on its own");
+            }
+            database.begin();
+            return "Transaction started";
+        } else if (statement instanceof Statement.Commit) {
+            currentTransaction().commit();
+            return "Transaction committed";
+        } else if (statement instanceof Statement.Rollback) {
+            currentTransaction().rollback();
+            return "Transaction rolled back";
+        } else if (statement instanceof Statement.Analyze) {
+            String table = ((Statement.Analyze) statement).getTable();
+            if (table == null) {
+                database.analyze();
+                return "Tables analyzed: " + database.getTableNames().size();
+            }
+            database.getTable(table).analyze();
+            return "Table analyzed: " + table;
+        } else {
+            return executeShowTables();
         }
+    }
 
-        String tableName = matcher.group(1);
-        String[] columns = matcher.group(2).split(",");
-        String[] values = matcher.group(3).split(",");
+    private static Transaction currentTransaction() throws Exception {
+        Transaction transaction = Transaction.current();
+        if (transaction == null) {
+            throw new Exception("No transaction in progress");
+        }
+        return transaction;
+    }
 
-        Table table = database.getTable(tableName);
-        Map<String, Object> data = new HashMap<>();
-        
-        for (int i = 0; i < columns.length; i++) {
-            String colName = columns[i].trim();
-            String value = values[i].trim();
-            data.put(colName, parseValue(value));
+    // All rows of a multi-row INSERT go in as one batch: every row is inserted, or none is.
+    private String executeInsert(Statement.Insert insert, Object[] parameters) throws Exception {
+        Table table = database.getTable(insert.getTable());
+        int[] positions = new int[insert.getColumns().size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = position(table, new Expression.ColumnRef(null, insert.getColumns().get(i)));
+        }
+        List<Object[]> rows = new ArrayList<>(insert.getRows().size());
+        for (List<Expression> values : insert.getRows()) {
+            Object[] row = new Object[table.getColumns().size()];
+            for (int i = 0; i < positions.length; i++) {
+                row[positions[i]] = value(values.get(i), parameters);
+            }
+            rows.add(row);
         }
 
-        table.insert(data);
-        return "1 row inserted";
+        table.insertBatch(rows);
+        return rows.size() == 1 ? "1 row inserted" : rows.size() + " rows inserted";
     }
 
-    private Object parseValue(String value) {
-        value = value.trim();
-        if (value.startsWith("'") && value.endsWith("'")) {
-            return value.substring(1, value.length() - 1);
+    private String executeCopy(Statement.Copy copy) throws Exception {
+        if (!fileAccess) {
+            throw new Exception("COPY is not allowed here");
+        }
+        long count = database.copyFrom(copy.getTable(), Paths.get(copy.getFile()), copy.getColumns(), copy.hasHeader());
+        return count + " row(s) copied";
+    }
+
+    private void executeSelect(String sql, Statement.Select select, Object[] parameters, Appendable out) throws Exception {
+        try (ResultCursor rows = openRecorded(sql, select, parameters)) {
+            try {
+                if (select.getJoins().isEmpty() && isAggregate(select)) {
+                    writeAggregates(rows, out);
+                } else {
+                    writeRows(rows, rows.getColumns(), out);
+                }
+            } catch (Exception e) {
+                rows.fail();
+                throw e;
+            }
+        }
+    }
+
+    // Prints the plan of a SELECT with the planner's row estimates. EXPLAIN ANALYZE runs it first, reading
+    // and discarding every row, and adds the rows each operator actually produced and the time it took.
+    private void executeExplain(Statement.Explain explain, Object[] parameters, Appendable out) throws Exception {
+        long start = System.nanoTime();
+        String plan;
+        try (ResultCursor rows = open(explain.getSelect(), parameters, explain.isAnalyze())) {
+            if (explain.isAnalyze()) {
+                while (rows.hasNext()) {
+                    rows.next();
+                }
+            }
+            plan = rows.getPlan().render(explain.isAnalyze());
         }
-        if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
-            return Boolean.parseBoolean(value);
+        if (explain.isAnalyze()) {
+            out.append(plan).append(String.format(Locale.ROOT, "Execution time: %.3f ms", (System.nanoTime() - start) / 1e6));
+        } else {
+            out.append(plan, 0, plan.length() - 1);
         }
+    }
+
+    // Runs a SELECT and returns its rows instead of text. Aggregate rows are keyed by their SELECT item, e.g. "COUNT(*)".
+    ResultCursor query(Statement statement, Object[] parameters) throws Exception {
+        return query(null, statement, parameters);
+    }
+
+    ResultCursor query(String sql, Statement statement, Object[] parameters) throws Exception {
+        if (!(statement instanceof Statement.Select)) {
+            throw new Exception("Only a SELECT can be queried for rows");
+        }
+        return openRecorded(sql, (Statement.Select) statement, parameters);
+    }
+
+    // Opens a SELECT that is recorded in the metrics when its cursor is closed, with the rows read from it.
+    private ResultCursor openRecorded(String sql, Statement.Select select, Object[] parameters) throws Exception {
+        Metrics metrics = database.getMetrics();
+        long start = System.nanoTime();
+        ResultCursor rows;
         try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            return value;
+            rows = open(select, parameters, false);
+        } catch (Exception e) {
+            metrics.record(select, sql, System.nanoTime() - start, -1, null, true);
+            throw e;
         }
+        rows.onClose(cursor -> metrics.record(select, sql, System.nanoTime() - start, cursor.getRowCount(),
+                cursor.getPlan(), cursor.isFailed()));
+        return rows;
     }
 
-    private Map<String, Object> parseWhereClause(String whereClause) {
-        Map<String, Object> conditions = new HashMap<>();
-        if (whereClause == null || whereClause.trim().isEmpty()) {
-            return conditions;
+    // Plans a SELECT and opens its rows; nothing is read until the cursor is. With analyze, every operator
+    // of the plan counts and times the rows it produces.
+    private ResultCursor open(Statement.Select select, Object[] parameters, boolean analyze) throws Exception {
+        if (!select.getJoins().isEmpty()) {
+            return openJoin(select, parameters, analyze);
         }
+        Table table = database.getTable(select.getTable());
+        if (isAggregate(select)) {
+            return openAggregate(select, table, parameters, analyze);
+        }
+        return openSelect(select, table, parameters, analyze);
+    }
 
-        for (String condition : whereClause.split(" AND ")) {
-            String[] parts = condition.trim().split("=");
-            if (parts.length == 2) {
-                conditions.put(parts[0].trim(), parseValue(parts[1].trim()));
+    private boolean isAggregate(Statement.Select select) {
+        if (!select.getGroupBy().isEmpty()) {
+            return true;
+        }
+        if (select.getItems() != null) {
+            for (Expression item : select.getItems()) {
+                if (item instanceof Expression.Aggregate) {
+                    return true;
+                }
             }
         }
-        return conditions;
+        return false;
     }
 
-    private Map<String, Object> parseSetClause(String setClause) {
-        Map<String, Object> updates = new HashMap<>();
-        for (String assignment : setClause.split(",")) {
-            String[] parts = assignment.trim().split("=");
-            if (parts.length == 2) {
-                updates.put(parts[0].trim(), parseValue(parts[1].trim()));
+    // Picks how rows reach the client in order: straight from a scan when unordered, walking a BTREE index
+    // when one is on the ORDER BY column, a top-K heap when there is a LIMIT, and otherwise an external sort.
+    // LIMIT stops pulling from the scan once enough rows are out.
+    private ResultCursor openSelect(Statement.Select select, Table table, Object[] parameters, boolean analyze) throws Exception {
+        List<Column> columns = table.getColumns();
+        List<String> names = new ArrayList<>();
+        if (select.getItems() == null) {
+            columns.forEach(column -> names.add(column.getName()));
+        } else {
+            for (Expression item : select.getItems()) {
+                names.add(columns.get(position(table, (Expression.ColumnRef) item)).getName());
             }
         }
-        return updates;
+        Predicate predicate = where(select.getWhere(), table, parameters);
+        long limit = select.getLimit() == null ? -1 : count(select.getLimit(), parameters, "LIMIT");
+        long offset = select.getOffset() == null ? 0 : count(select.getOffset(), parameters, "OFFSET");
+        List<Statement.OrderItem> orderBy = select.getOrderBy();
+        int[] keys = new int[orderBy.size()];
+        boolean[] descending = new boolean[orderBy.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Expression key = orderBy.get(i).getExpression();
+            if (!(key instanceof Expression.ColumnRef)) {
+                throw new Exception("ORDER BY " + key + " needs GROUP BY or an aggregate SELECT list");
+            }
+            keys[i] = position(table, (Expression.ColumnRef) key);
+            descending[i] = orderBy.get(i).isDescending();
+        }
+        double estimate = table.estimateRows(predicate);
+
+        List<AutoCloseable> resources = new ArrayList<>();
+        Operator result;
+        Table.RowCursor cursor = keys.length == 0 ? table.openCursor(predicate)
+                : keys.length == 1 ? table.openOrderedCursor(predicate, columns.get(keys[0]).getName(), !descending[0]) : null;
+        if (cursor != null) {
+            resources.add(cursor);
+            PlanNode plan = new PlanNode(cursor.explain(), estimate);
+            result = new Operator(plan, track(plan, cursor, analyze));
+        } else {
+            Table.RowCursor scan = table.openCursor(predicate);
+            resources.add(scan);
+            PlanNode scanPlan = new PlanNode(scan.explain(), estimate);
+            List<String> allNames = new ArrayList<>();
+            columns.forEach(column -> allNames.add(column.getName()));
+            result = sort(new Operator(scanPlan, track(scanPlan, scan, analyze)), scan, allNames, keys, descending,
+                    orderBy, limit, offset, resources, analyze);
+        }
+        result = page(result, limit, offset, analyze);
+        Iterator<Row> rows = select.getItems() != null ? project(result.rows, names) : result.rows;
+        return new ResultCursor(names, rows, resources, result.plan);
     }
 
-    private String executeSelect(String sql) throws Exception {
-        if (sql.toUpperCase().contains(" JOIN ")) {
-            return executeJoin(sql);
+    // A plan node and the rows it produces, as the operators of a query are stacked one on another.
+    private static final class Operator {
+        final PlanNode plan;
+        final Iterator<Row> rows;
+
+        Operator(PlanNode plan, Iterator<Row> rows) {
+            this.plan = plan;
+            this.rows = rows;
         }
+    }
+
+    // Sorts input, whose rows have names as columns, by the columns at keys: with a top-K heap when OFFSET
+    // plus LIMIT is small, otherwise with an external sort. source is closed once its last row is read.
+    private Operator sort(Operator input, AutoCloseable source, List<String> names, int[] keys, boolean[] descending,
+                          List<Statement.OrderItem> orderBy, long limit, long offset, List<AutoCloseable> resources,
+                          boolean analyze) {
+        Comparator<Object[]> order = rowOrder(keys, descending);
+        double estimate = input.plan.getEstimatedRows();
+        PlanNode plan;
+        Iterator<Object[]> sorted;
+        if (limit >= 0 && offset + limit <= ExternalSort.DEFAULT_RUN_ROWS) {
+            int k = (int) (offset + limit);
+            plan = new PlanNode("TOP-K SORT by " + orderText(orderBy) + " keeping " + k, Math.min(estimate, k), input.plan);
+            sorted = lazily(() -> {
+                Iterator<Object[]> best = topK(input.rows, names, k, order);
+                source.close();
+                return best;
+            });
+        } else {
+            PlanNode sortPlan = new PlanNode("SORT by " + orderText(orderBy), estimate, input.plan);
+            ExternalSort sort = new ExternalSort(order, sortRunRows);
+            resources.add(sort);
+            sorted = lazily(() -> {
+                while (input.rows.hasNext()) {
+                    sort.add(values(input.rows.next(), names));
+                }
+                source.close();
+                if (sort.getRunCount() > 0) {
+                    sortPlan.annotate("spilled " + sort.getRunCount() + " runs");
+                }
+                return sort.sorted();
+            });
+            plan = sortPlan;
+        }
+        return new Operator(plan, track(plan, new Iterator<Row>() {
+            public boolean hasNext() { return sorted.hasNext(); }
+            public Row next() { return toRow(sorted.next(), names); }
+        }, analyze));
+    }
 
-        Pattern pattern = Pattern.compile("SELECT \\* FROM (\\w+)(?: WHERE (.+))?", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(sql);
-        if (!matcher.find()) {
-            throw new Exception("Invalid SELECT syntax");
+    private static Operator page(Operator input, long limit, long offset, boolean analyze) {
+        if (limit < 0 && offset == 0) {
+            return input;
+        }
+        double remaining = Math.max(0, input.plan.getEstimatedRows() - offset);
+        PlanNode plan = new PlanNode(limitText(limit, offset), limit < 0 ? remaining : Math.min(remaining, limit), input.plan);
+        return new Operator(plan, track(plan, page(input.rows, offset, limit), analyze));
+    }
+
+    // The k first rows under order, found with a heap of the best k seen so far instead of sorting every row.
+    // Ties keep scan order, as the full sort does.
+    private static Iterator<Object[]> topK(Iterator<Row> rows, List<String> names, int k, Comparator<Object[]> order) {
+        Comparator<Object[]> ranked = (a, b) -> {
+            int cmp = order.compare(a, b);
+            return cmp != 0 ? cmp : Long.compare((Long) a[a.length - 1], (Long) b[b.length - 1]);
+        };
+        PriorityQueue<Object[]> best = new PriorityQueue<>(k, ranked.reversed());
+        long sequence = 0;
+        while (rows.hasNext()) {
+            Object[] values = values(rows.next(), names);
+            values = Arrays.copyOf(values, values.length + 1);
+            values[values.length - 1] = sequence++;
+            if (best.size() < k) {
+                best.add(values);
+            } else if (ranked.compare(values, best.peek()) < 0) {
+                best.poll();
+                best.add(values);
+            }
         }
+        List<Object[]> result = new ArrayList<>(best);
+        result.sort(ranked);
+        return result.iterator();
+    }
+
+    // Orders rows by the values at positions; NULL sorts first, as it does in an ordered index.
+    @SuppressWarnings("unchecked")
+    private static Comparator<Object[]> rowOrder(int[] positions, boolean[] descending) {
+        return (a, b) -> {
+            for (int i = 0; i < positions.length; i++) {
+                Object x = a[positions[i]];
+                Object y = b[positions[i]];
+                int cmp = x == null ? (y == null ? 0 : -1) : y == null ? 1 : ((Comparable<Object>) x).compareTo(y);
+                if (cmp != 0) {
+                    return descending[i] ? -cmp : cmp;
+                }
+            }
+            return 0;
+        };
+    }
+
+    // Skips offset rows when first read, then passes on at most limit (all when negative), so LIMIT 0
+    // reads nothing at all.
+    private static Iterator<Row> page(Iterator<Row> rows, long offset, long limit) {
+        return new Iterator<Row>() {
+            private long remaining = limit < 0 ? Long.MAX_VALUE : limit;
+            private boolean skipped;
+
+            public boolean hasNext() {
+                if (remaining == 0) {
+                    return false;
+                }
+                if (!skipped) {
+                    skipped = true;
+                    for (long i = 0; i < offset && rows.hasNext(); i++) {
+                        rows.next();
+                    }
+                }
+                return rows.hasNext();
+            }
+
+            public Row next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                remaining--;
+                return rows.next();
+            }
+        };
+    }
+
+    private static <T> Iterator<T> track(PlanNode plan, Iterator<T> rows, boolean analyze) {
+        return analyze ? plan.track(rows) : rows;
+    }
+
+    // Rows that source produces when they are first asked for, so an operator that must see all its input
+    // first (a sort, an aggregation) does no work until the result is read.
+    private static <T> Iterator<T> lazily(Callable<Iterator<T>> source) {
+        return new Iterator<T>() {
+            private Iterator<T> rows;
+
+            public boolean hasNext() {
+                return rows().hasNext();
+            }
+
+            public T next() {
+                return rows().next();
+            }
 
-        String tableName = matcher.group(1);
-        String whereClause = matcher.group(2);
+            private Iterator<T> rows() {
+                if (rows == null) {
+                    try {
+                        rows = source.call();
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                }
+                return rows;
+            }
+        };
+    }
 
-        Table table = database.getTable(tableName);
-        Map<String, Object> conditions = parseWhereClause(whereClause);
-        List<Row> rows = table.select(conditions);
+    private static String orderText(List<Statement.OrderItem> orderBy) {
+        StringJoiner keys = new StringJoiner(", ");
+        orderBy.forEach(item -> keys.add(item.getExpression() + (item.isDescending() ? " DESC" : "")));
+        return keys.toString();
+    }
 
-        return formatRows(rows, table.getColumns());
+    private static String limitText(long limit, long offset) {
+        if (limit < 0) {
+            return "OFFSET " + offset;
+        }
+        return "LIMIT " + limit + (offset > 0 ? " OFFSET " + offset : "");
     }
 
-    private String executeJoin(String sql) throws Exception {
-        Pattern pattern = Pattern.compile("SELECT \\* FROM (\\w+) JOIN (\\w+) ON (\\w+)\\.(\\w+) = (\\w+)\\.(\\w+)", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(sql);
-        if (!matcher.find()) {
-            throw new Exception("Invalid JOIN syntax");
+    private static Iterator<Row> project(Iterator<Row> rows, List<String> names) {
+        return new Iterator<Row>() {
+            public boolean hasNext() { return rows.hasNext(); }
+            public Row next() { return toRow(values(rows.next(), names), names); }
+        };
+    }
+
+    private static Object[] values(Row row, List<String> names) {
+        Object[] values = new Object[names.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = row.get(names.get(i));
         }
+        return values;
+    }
 
-        String table1 = matcher.group(1);
-        String table2 = matcher.group(2);
-        String joinCol = matcher.group(4);
+    private static Row toRow(Object[] values, List<String> names) {
+        Map<String, Object> data = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (values[i] != null) {
+                data.put(names.get(i), values[i]);
+            }
+        }
+        return new Row(data);
+    }
 
-        List<Row> rows = database.join(table1, table2, joinCol);
-        return formatRows(rows, null);
+    private long count(Expression expression, Object[] parameters, String clause) throws Exception {
+        Object value = value(expression, parameters);
+        if (!(value instanceof Integer) || (Integer) value < 0) {
+            throw new Exception(clause + " must be a non-negative integer");
+        }
+        return (Integer) value;
     }
 
-    private String executeUpdate(String sql) throws Exception {
-        Pattern pattern = Pattern.compile("UPDATE (\\w+) SET (.+?) WHERE (.+)", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(sql);
-        if (!matcher.find()) {
-            throw new Exception("Invalid UPDATE syntax");
+    // Result rows of an aggregate SELECT, keyed by SELECT item, ordered and paged. The aggregation runs when
+    // the first row is read.
+    private ResultCursor openAggregate(Statement.Select select, Table table, Object[] parameters, boolean analyze) throws Exception {
+        List<Expression> items = select.getItems();
+        if (items == null) {
+            throw new Exception("SELECT * cannot be used with GROUP BY");
+        }
+        int[] keyColumns = new int[select.getGroupBy().size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = position(table, select.getGroupBy().get(i));
+        }
+        List<HashAggregation.Function> functions = new ArrayList<>();
+        List<Integer> arguments = new ArrayList<>();
+        // Where each SELECT item is found in an aggregation result row: keys first, then aggregates.
+        int[] outputs = new int[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            Expression item = items.get(i);
+            if (item instanceof Expression.Aggregate) {
+                Expression.Aggregate aggregate = (Expression.Aggregate) item;
+                HashAggregation.Function function = HashAggregation.Function.valueOf(aggregate.getFunction());
+                int argument = aggregate.getArgument() == null ? -1 : position(table, aggregate.getArgument());
+                if ((function == HashAggregation.Function.SUM || function == HashAggregation.Function.AVG)
+                        && table.getColumns().get(argument).getType() != DataType.INT) {
+                    throw new Exception(function + " requires an INT column: " + aggregate.getArgument());
+                }
+                functions.add(function);
+                arguments.add(argument);
+                outputs[i] = keyColumns.length + functions.size() - 1;
+            } else {
+                int column = position(table, (Expression.ColumnRef) item);
+                outputs[i] = -1;
+                for (int k = 0; k < keyColumns.length; k++) {
+                    if (keyColumns[k] == column) {
+                        outputs[i] = k;
+                    }
+                }
+                if (outputs[i] < 0) {
+                    throw new Exception("Column " + item + " must appear in GROUP BY or in an aggregate");
+                }
+            }
+        }
+
+        List<Statement.OrderItem> orderBy = select.getOrderBy();
+        int[] keys = new int[orderBy.size()];
+        boolean[] descending = new boolean[orderBy.size()];
+        for (int i = 0; i < keys.length; i++) {
+            String key = orderBy.get(i).getExpression().toString();
+            keys[i] = -1;
+            for (int j = 0; j < items.size() && keys[i] < 0; j++) {
+                if (items.get(j).toString().equals(key)) {
+                    keys[i] = j;
+                }
+            }
+            if (keys[i] < 0) {
+                throw new Exception("ORDER BY " + key + " must be in the SELECT list");
+            }
+            descending[i] = orderBy.get(i).isDescending();
         }
+        long offset = select.getOffset() == null ? 0 : count(select.getOffset(), parameters, "OFFSET");
+        long limit = select.getLimit() == null ? -1 : count(select.getLimit(), parameters, "LIMIT");
 
-        String tableName = matcher.group(1);
-        String setClause = matcher.group(2);
-        String whereClause = matcher.group(3);
+        Predicate predicate = where(select.getWhere(), table, parameters);
+        // COUNT(*) of a whole table is usually answered from the table's row count, without a scan.
+        boolean rowCount = select.getWhere() == null && keyColumns.length == 0 && functions.size() == 1
+                && functions.get(0) == HashAggregation.Function.COUNT && arguments.get(0) < 0;
+        PlanNode input = rowCount ? new PlanNode("ROW COUNT of " + table.getName(), 1)
+                : new PlanNode(table.explainWhere(predicate), table.estimateRows(predicate));
+        StringJoiner groupBy = new StringJoiner(", ", "HASH AGGREGATE by ", "");
+        select.getGroupBy().forEach(column -> groupBy.add(column.toString()));
+        PlanNode aggregation = new PlanNode(keyColumns.length == 0 ? "AGGREGATE" : groupBy.toString(),
+                keyColumns.length == 0 ? 1 : Math.min(table.estimateDistinct(keyColumns), Math.max(1, input.getEstimatedRows())), input);
+        PlanNode sort = keys.length == 0 ? null : new PlanNode("SORT by " + orderText(orderBy), aggregation.getEstimatedRows(), aggregation);
+        PlanNode plan = sort == null ? aggregation : sort;
 
-        Table table = database.getTable(tableName);
-        Map<String, Object> updates = parseSetClause(setClause);
-        Map<String, Object> conditions = parseWhereClause(whereClause);
+        Iterator<Object[]> rows = lazily(() -> {
+            long start = System.nanoTime();
+            List<Object[]> results;
+            long inputRows = 1;
+            if (rowCount) {
+                results = Collections.singletonList(new Object[] { table.countRows() });
+            } else {
+                HashAggregation prototype = new HashAggregation(table.getColumns(), keyColumns,
+                        functions.toArray(new HashAggregation.Function[0]),
+                        arguments.stream().mapToInt(Integer::intValue).toArray());
+                HashAggregation result = table.scan(predicate, prototype::newPartial, HashAggregation::merge);
+                results = result.getResults();
+                inputRows = result.getInputRows();
+            }
+            long elapsed = System.nanoTime() - start;
+            input.record(inputRows, elapsed);
+            aggregation.record(results.size(), elapsed);
 
-        int count = table.update(conditions, updates);
-        return count + " row(s) updated";
+            List<Object[]> output = new ArrayList<>(results.size());
+            for (Object[] result : results) {
+                Object[] row = new Object[outputs.length];
+                for (int i = 0; i < outputs.length; i++) {
+                    row[i] = result[outputs[i]];
+                }
+                output.add(row);
+            }
+            if (sort != null) {
+                output.sort(rowOrder(keys, descending));
+                sort.record(output.size(), System.nanoTime() - start);
+            }
+            int from = (int) Math.min(offset, output.size());
+            int to = limit < 0 ? output.size() : (int) Math.min(output.size(), from + limit);
+            return output.subList(from, to).iterator();
+        });
+        List<String> labels = new ArrayList<>();
+        items.forEach(item -> labels.add(item.toString()));
+        Iterator<Row> result = new Iterator<Row>() {
+            public boolean hasNext() { return rows.hasNext(); }
+            public Row next() { return toRow(rows.next(), labels); }
+        };
+        if (limit >= 0 || offset > 0) {
+            double remaining = Math.max(0, plan.getEstimatedRows() - offset);
+            plan = new PlanNode(limitText(limit, offset), limit < 0 ? remaining : Math.min(remaining, limit), plan);
+            result = track(plan, result, analyze);
+        }
+        return new ResultCursor(labels, result, Collections.emptyList(), plan);
     }
 
-    private String executeDelete(String sql) throws Exception {
-        Pattern pattern = Pattern.compile("DELETE FROM (\\w+)(?: WHERE (.+))?", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(sql);
-        if (!matcher.find()) {
-            throw new Exception("Invalid DELETE syntax");
+    private void writeAggregates(ResultCursor rows, Appendable out) throws IOException {
+        List<String> labels = rows.getColumns();
+        out.append(String.join(" | ", labels)).append("\n").append("-".repeat(50)).append("\n");
+        long count = 0;
+        while (rows.hasNext()) {
+            StringJoiner line = new StringJoiner(" | ");
+            for (Object value : values(rows.next(), labels)) {
+                line.add(String.valueOf(value));
+            }
+            out.append(line.toString()).append("\n");
+            count++;
         }
+        out.append("\n").append(String.valueOf(count)).append(" row(s)");
+    }
 
-        String tableName = matcher.group(1);
-        String whereClause = matcher.group(2);
+    private int position(Table table, Expression.ColumnRef column) throws Exception {
+        if (column.getTable() != null && !column.getTable().equalsIgnoreCase(table.getName())) {
+            throw new Exception("Unknown table in column reference: " + column);
+        }
+        List<Column> columns = table.getColumns();
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).getName().equals(column.getColumn())) {
+                return i;
+            }
+        }
+        throw new Exception("Column does not exist: " + column.getColumn());
+    }
 
-        Table table = database.getTable(tableName);
-        Map<String, Object> conditions = parseWhereClause(whereClause);
+    // Joins the FROM table to each JOIN table. A WHERE term that names the columns of one table is pushed
+    // down to where that table is read; the join's planner picks the table order. Output columns are
+    // "table.column", sorted and paged as for a single table.
+    private ResultCursor openJoin(Statement.Select select, Object[] parameters, boolean analyze) throws Exception {
+        if (isAggregate(select)) {
+            throw new Exception("GROUP BY and aggregates are not supported with JOIN");
+        }
+        List<Table> tables = new ArrayList<>();
+        List<String> tableNames = new ArrayList<>();
+        tables.add(database.getTable(select.getTable()));
+        for (Statement.Join join : select.getJoins()) {
+            Table table = database.getTable(join.getTable());
+            if (tables.contains(table)) {
+                throw new Exception("A table can only be joined once: " + join.getTable());
+            }
+            tables.add(table);
+        }
+        tables.forEach(table -> tableNames.add(table.getName()));
+
+        List<JoinPipeline.Condition> conditions = new ArrayList<>();
+        for (int joined = 1; joined < tables.size(); joined++) {
+            Statement.Join join = select.getJoins().get(joined - 1);
+            Expression.ColumnRef left = join.getLeft();
+            Expression.ColumnRef right = join.getRight();
+            if (joinedTable(tables, left) == joined) {
+                left = join.getRight();
+                right = join.getLeft();
+            }
+            int leftTable = joinedTable(tables, left);
+            if (joinedTable(tables, right) != joined || leftTable >= joined) {
+                throw new Exception("JOIN " + join.getTable() + " ON must compare one of its columns with a column of an earlier table");
+            }
+            conditions.add(new JoinPipeline.Condition(leftTable, left.getColumn(), joined, right.getColumn()));
+        }
+
+        List<List<Predicate>> terms = new ArrayList<>();
+        tables.forEach(table -> terms.add(new ArrayList<>()));
+        for (Expression term : conjuncts(select.getWhere(), new ArrayList<>())) {
+            Set<Integer> referenced = new TreeSet<>();
+            referencedTables(term, tables, referenced);
+            if (referenced.size() > 1) {
+                throw new Exception("Each WHERE term of a join must name the columns of one table: " + term);
+            }
+            int table = referenced.isEmpty() ? 0 : referenced.iterator().next();
+            terms.get(table).add(where(term, tables.get(table), parameters));
+        }
+        List<Predicate> filters = new ArrayList<>();
+        terms.forEach(tableTerms -> filters.add(Predicate.and(tableTerms)));
+
+        JoinPipeline pipeline = database.planJoin(tableNames, filters, conditions);
+        List<String> allNames = pipeline.getColumns();
+        List<String> names = allNames;
+        if (select.getItems() != null) {
+            names = new ArrayList<>();
+            for (Expression item : select.getItems()) {
+                names.add(qualifiedName(tables, (Expression.ColumnRef) item));
+            }
+        }
+        List<Statement.OrderItem> orderBy = select.getOrderBy();
+        int[] keys = new int[orderBy.size()];
+        boolean[] descending = new boolean[orderBy.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Expression key = orderBy.get(i).getExpression();
+            if (!(key instanceof Expression.ColumnRef)) {
+                throw new Exception("ORDER BY " + key + " is not supported with JOIN");
+            }
+            keys[i] = allNames.indexOf(qualifiedName(tables, (Expression.ColumnRef) key));
+            descending[i] = orderBy.get(i).isDescending();
+        }
+        long limit = select.getLimit() == null ? -1 : count(select.getLimit(), parameters, "LIMIT");
+        long offset = select.getOffset() == null ? 0 : count(select.getOffset(), parameters, "OFFSET");
+
+        List<AutoCloseable> resources = new ArrayList<>();
+        JoinPipeline.Cursor cursor = pipeline.open(analyze);
+        resources.add(cursor);
+        Operator result = new Operator(pipeline.getPlan(), cursor);
+        if (keys.length > 0) {
+            result = sort(result, cursor, allNames, keys, descending, orderBy, limit, offset, resources, analyze);
+        }
+        result = page(result, limit, offset, analyze);
+        Iterator<Row> rows = select.getItems() != null ? project(result.rows, names) : result.rows;
+        return new ResultCursor(names, rows, resources, result.plan);
+    }
+
+    private static List<Expression> conjuncts(Expression where, List<Expression> terms) {
+        if (where instanceof Expression.Binary && ((Expression.Binary) where).getOperator() == Expression.Operator.AND) {
+            conjuncts(((Expression.Binary) where).getLeft(), terms);
+            conjuncts(((Expression.Binary) where).getRight(), terms);
+        } else if (where != null) {
+            terms.add(where);
+        }
+        return terms;
+    }
+
+    // Adds the position in tables of each table whose columns expression reads.
+    private void referencedTables(Expression expression, List<Table> tables, Set<Integer> referenced) throws Exception {
+        if (expression instanceof Expression.ColumnRef) {
+            referenced.add(joinedTable(tables, (Expression.ColumnRef) expression));
+        } else if (expression instanceof Expression.Binary) {
+            referencedTables(((Expression.Binary) expression).getLeft(), tables, referenced);
+            referencedTables(((Expression.Binary) expression).getRight(), tables, referenced);
+        } else if (expression instanceof Expression.Not) {
+            referencedTables(((Expression.Not) expression).getOperand(), tables, referenced);
+        } else if (expression instanceof Expression.IsNull) {
+            referencedTables(((Expression.IsNull) expression).getOperand(), tables, referenced);
+        } else if (expression instanceof Expression.Between) {
+            referencedTables(((Expression.Between) expression).getOperand(), tables, referenced);
+        } else if (expression instanceof Expression.InList) {
+            referencedTables(((Expression.InList) expression).getOperand(), tables, referenced);
+        }
+    }
+
+    // The position in tables of the table column belongs to: the one it names, or the only one that has it.
+    private int joinedTable(List<Table> tables, Expression.ColumnRef column) throws Exception {
+        int found = -1;
+        for (int t = 0; t < tables.size(); t++) {
+            Table table = tables.get(t);
+            if ((column.getTable() == null || column.getTable().equalsIgnoreCase(table.getName()))
+                    && table.getColumns().stream().anyMatch(c -> c.getName().equals(column.getColumn()))) {
+                if (found >= 0) {
+                    throw new Exception("Column reference is ambiguous: " + column);
+                }
+                found = t;
+            }
+        }
+        if (found < 0) {
+            throw new Exception("Column does not exist: " + column);
+        }
+        return found;
+    }
+
+    private String qualifiedName(List<Table> tables, Expression.ColumnRef column) throws Exception {
+        return tables.get(joinedTable(tables, column)).getName() + "." + column.getColumn();
+    }
+
+    private String executeUpdate(Statement.Update update, Object[] parameters) throws Exception {
+        Table table = database.getTable(update.getTable());
+        Map<String, Object> updates = new HashMap<>();
+        for (Map.Entry<String, Expression> assignment : update.getAssignments().entrySet()) {
+            updates.put(assignment.getKey(), value(assignment.getValue(), parameters));
+        }
+        int count = table.updateWhere(where(update.getWhere(), table, parameters), updates);
+        return count + " row(s) updated";
+    }
 
-        int count = table.delete(conditions);
+    private String executeDelete(Statement.Delete delete, Object[] parameters) throws Exception {
+        Table table = database.getTable(delete.getTable());
+        int count = table.deleteWhere(where(delete.getWhere(), table, parameters));
         return count + " row(s) deleted";
     }
 
+    private Predicate where(Expression where, Table table, Object[] parameters) throws Exception {
+        return Predicate.compile(where, table.getName(), table.getColumns(), parameters);
+    }
+
+    private Object value(Expression expression, Object[] parameters) {
+        if (expression instanceof Expression.Parameter) {
+            return parameters[((Expression.Parameter) expression).getIndex()];
+        }
+        return ((Expression.Literal) expression).getValue();
+    }
+
     private String executeShowTables() {
         Set<String> tables = database.getTableNames();
         if (tables.isEmpty()) {
@@ -215,21 +957,467 @@ public class SQLParser {
         return "Tables:\n" + String.join("\n", tables);
     }
 
-    private String formatRows(List<Row> rows, List<Column> columns) {
-        if (rows.isEmpty()) {
-            return "0 rows";
+    // The header is written with the first row, so an empty result is just "0 rows".
+    private void writeRows(Iterator<Row> rows, List<String> columns, Appendable out) throws IOException {
+        long count = 0;
+        while (rows.hasNext()) {
+            Row row = rows.next();
+            if (count++ == 0 && columns != null) {
+                out.append(String.join(" | ", columns)).append("\n");
+                out.append("-".repeat(50)).append("\n");
+            }
+            out.append(row.toString()).append("\n");
+        }
+        if (count == 0) {
+            out.append("0 rows");
+        } else {
+            out.append("\n").append(String.valueOf(count)).append(" row(s)");
         }
+    }
+
+    // Recursive-descent parser over the lexer's tokens, one method per grammar rule.
+    private static final class Parser {
+        private final Lexer lexer;
+        private int token;
+        private int parameterCount;
 
-        StringBuilder sb = new StringBuilder();
-        if (columns != null) {
-            sb.append(columns.stream().map(Column::getName).reduce((a, b) -> a + " | " + b).orElse("")).append("\n");
-            sb.append("-".repeat(50)).append("\n");
+        Parser(Lexer lexer) {
+            this.lexer = lexer;
         }
 
-        for (Row row : rows) {
-            sb.append(row.toString()).append("\n");
+        Statement statement() throws Exception {
+            Statement statement;
+            if (accept("PREPARE")) {
+                String name = identifier();
+                expect("AS");
+                Statement body = command();
+                statement = new Statement.Prepare(name, body, parameterCount);
+            } else {
+                statement = command();
+            }
+            acceptSymbol(";");
+            if (lexer.kind(token) != Lexer.END) {
+                throw error("end of statement");
+            }
+            return statement;
+        }
+
+        private Statement command() throws Exception {
+            Statement statement;
+            if (accept("SELECT")) {
+                statement = select();
+            } else if (accept("INSERT")) {
+                statement = insert();
+            } else if (accept("COPY")) {
+                statement = copy();
+            } else if (accept("UPDATE")) {
+                statement = update();
+            } else if (accept("DELETE")) {
+                statement = delete();
+            } else if (accept("CREATE")) {
+                statement = accept("INDEX") ? createIndex() : createTable();
+            } else if (accept("DROP")) {
+                if (accept("INDEX")) {
+                    statement = new Statement.DropIndex(identifier());
+                } else {
+                    expect("TABLE");
+                    statement = new Statement.DropTable(identifier());
+                }
+            } else if (accept("SHOW")) {
+                expect("TABLES");
+                statement = new Statement.ShowTables();
+            } else if (accept("EXECUTE")) {
+                String name = identifier();
+                List<Expression> values = new ArrayList<>();
+                if (acceptSymbol("(")) {
+                    do {
+                        values.add(value());
+                    } while (acceptSymbol(","));
+                    expectSymbol(")");
+                }
+                statement = new Statement.Execute(name, values);
+            } else if (accept("EXPLAIN")) {
+                boolean analyze = accept("ANALYZE");
+                expect("SELECT");
+                statement = new Statement.Explain(select(), analyze);
+            } else if (accept("ANALYZE")) {
+                statement = new Statement.Analyze(lexer.kind(token) == Lexer.IDENTIFIER ? identifier() : null);
+            } else if (accept("BEGIN")) {
+                acceptTransactionWord();
+                statement = new Statement.Begin();
+            } else if (accept("COMMIT")) {
+                acceptTransactionWord();
+                statement = new Statement.Commit();
+            } else if (accept("ROLLBACK")) {
+                acceptTransactionWord();
+                statement = new Statement.Rollback();
+            } else if (accept("DEALLOCATE")) {
+                accept("PREPARE");
+                statement = new Statement.Deallocate(identifier());
+            } else {
+                throw new Exception("Unknown command: " + describe(token));
+            }
+            return statement;
+        }
+
+        private void acceptTransactionWord() {
+            if (!accept("TRANSACTION")) {
+                accept("WORK");
+            }
+        }
+
+        private Statement.Select select() throws Exception {
+            List<Expression> items = null;
+            if (!acceptSymbol("*")) {
+                items = new ArrayList<>();
+                do {
+                    items.add(selectItem());
+                } while (acceptSymbol(","));
+            }
+            expect("FROM");
+            String table = identifier();
+            List<Statement.Join> joins = new ArrayList<>();
+            while (accept("INNER") ? expectJoin() : accept("JOIN")) {
+                String joinTable = identifier();
+                expect("ON");
+                Expression.ColumnRef left = columnRef();
+                expectSymbol("=");
+                joins.add(new Statement.Join(joinTable, left, columnRef()));
+            }
+            Expression where = where();
+            List<Expression.ColumnRef> groupBy = new ArrayList<>();
+            if (accept("GROUP")) {
+                expect("BY");
+                do {
+                    groupBy.add(columnRef());
+                } while (acceptSymbol(","));
+            }
+            List<Statement.OrderItem> orderBy = new ArrayList<>();
+            if (accept("ORDER")) {
+                expect("BY");
+                do {
+                    Expression key = selectItem();
+                    boolean descending = accept("DESC");
+                    if (!descending) {
+                        accept("ASC");
+                    }
+                    orderBy.add(new Statement.OrderItem(key, descending));
+                } while (acceptSymbol(","));
+            }
+            Expression limit = accept("LIMIT") ? value() : null;
+            Expression offset = accept("OFFSET") ? value() : null;
+            return new Statement.Select(table, joins, where, items, groupBy, orderBy, limit, offset);
+        }
+
+        private boolean expectJoin() throws Exception {
+            expect("JOIN");
+            return true;
+        }
+
+        private Expression selectItem() throws Exception {
+            for (String function : AGGREGATES) {
+                if (lexer.isKeyword(token, function) && lexer.isSymbol(token + 1, "(")) {
+                    token += 2;
+                    Expression.ColumnRef argument = null;
+                    if (!function.equals("COUNT") || !acceptSymbol("*")) {
+                        argument = columnRef();
+                    }
+                    expectSymbol(")");
+                    return new Expression.Aggregate(function, argument);
+                }
+            }
+            return columnRef();
+        }
+
+        private Statement insert() throws Exception {
+            expect("INTO");
+            String table = identifier();
+            List<String> columns = new ArrayList<>();
+            expectSymbol("(");
+            do {
+                columns.add(identifier());
+            } while (acceptSymbol(","));
+            expectSymbol(")");
+            expect("VALUES");
+            List<List<Expression>> rows = new ArrayList<>();
+            do {
+                List<Expression> values = new ArrayList<>(columns.size());
+                expectSymbol("(");
+                do {
+                    values.add(value());
+                } while (acceptSymbol(","));
+                expectSymbol(")");
+                if (values.size() != columns.size()) {
+                    throw new Exception("INSERT has " + columns.size() + " columns but " + values.size() + " values");
+                }
+                rows.add(values);
+            } while (acceptSymbol(","));
+            return new Statement.Insert(table, columns, rows);
+        }
+
+        private Statement copy() throws Exception {
+            String table = identifier();
+            List<String> columns = null;
+            if (acceptSymbol("(")) {
+                columns = new ArrayList<>();
+                do {
+                    columns.add(identifier());
+                } while (acceptSymbol(","));
+                expectSymbol(")");
+            }
+            expect("FROM");
+            if (lexer.kind(token) != Lexer.STRING) {
+                throw error("a file name in quotes");
+            }
+            String file = lexer.stringValue(token++);
+            return new Statement.Copy(table, columns, file, accept("HEADER"));
+        }
+
+        private Statement update() throws Exception {
+            String table = identifier();
+            expect("SET");
+            Map<String, Expression> assignments = new LinkedHashMap<>();
+            do {
+                String column = identifier();
+                expectSymbol("=");
+                assignments.put(column, value());
+            } while (acceptSymbol(","));
+            return new Statement.Update(table, assignments, where());
+        }
+
+        private Statement delete() throws Exception {
+            expect("FROM");
+            return new Statement.Delete(identifier(), where());
+        }
+
+        private Statement createTable() throws Exception {
+            expect("TABLE");
+            String table = identifier();
+            List<Column> columns = new ArrayList<>();
+            expectSymbol("(");
+            do {
+                String name = identifier();
+                int typeToken = token;
+                DataType type;
+                try {
+                    type = DataType.valueOf(identifier().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new Exception("Unknown data type: " + lexer.text(typeToken));
+                }
+                boolean isPrimary = false;
+                boolean isUnique = false;
+                while (true) {
+                    if (accept("PRIMARY")) {
+                        expect("KEY");
+                        isPrimary = true;
+                    } else if (accept("UNIQUE")) {
+                        isUnique = true;
+                    } else {
+                        break;
+                    }
+                }
+                columns.add(new Column(name, type, isPrimary, isUnique));
+            } while (acceptSymbol(","));
+            expectSymbol(")");
+            StorageType storageType = StorageType.HEAP;
+            if (accept("USING")) {
+                if (accept("COLUMNAR")) {
+                    storageType = StorageType.COLUMNAR;
+                } else {
+                    expect("HEAP");
+                }
+            }
+            return new Statement.CreateTable(table, columns, storageType);
+        }
+
+        private Statement createIndex() throws Exception {
+            String index = identifier();
+            expect("ON");
+            String table = identifier();
+            expectSymbol("(");
+            String column = identifier();
+            expectSymbol(")");
+            IndexType type = IndexType.HASH;
+            if (accept("USING")) {
+                if (accept("BTREE")) {
+                    type = IndexType.BTREE;
+                } else {
+                    expect("HASH");
+                }
+            }
+            return new Statement.CreateIndex(index, table, column, type);
+        }
+
+        private static final String[] AGGREGATES = { "COUNT", "SUM", "MIN", "MAX", "AVG" };
+
+        private Expression where() throws Exception {
+            return accept("WHERE") ? or() : null;
+        }
+
+        // Precedence, loosest first: OR, AND, NOT, then a single predicate or a parenthesized condition.
+        private Expression or() throws Exception {
+            Expression condition = and();
+            while (accept("OR")) {
+                condition = new Expression.Binary(Expression.Operator.OR, condition, and());
+            }
+            return condition;
+        }
+
+        private Expression and() throws Exception {
+            Expression condition = not();
+            while (accept("AND")) {
+                condition = new Expression.Binary(Expression.Operator.AND, condition, not());
+            }
+            return condition;
+        }
+
+        private Expression not() throws Exception {
+            if (accept("NOT")) {
+                return new Expression.Not(not());
+            }
+            if (acceptSymbol("(")) {
+                Expression condition = or();
+                expectSymbol(")");
+                return condition;
+            }
+            return predicate();
+        }
+
+        private Expression predicate() throws Exception {
+            Expression left = operand();
+            if (accept("IS")) {
+                boolean negated = accept("NOT");
+                expect("NULL");
+                return new Expression.IsNull(left, negated);
+            }
+            boolean negated = accept("NOT");
+            if (accept("BETWEEN")) {
+                Expression low = operand();
+                expect("AND");
+                return new Expression.Between(left, low, operand(), negated);
+            }
+            if (accept("IN")) {
+                List<Expression> values = new ArrayList<>();
+                expectSymbol("(");
+                do {
+                    values.add(value());
+                } while (acceptSymbol(","));
+                expectSymbol(")");
+                return new Expression.InList(left, values, negated);
+            }
+            if (accept("LIKE")) {
+                Expression like = new Expression.Binary(Expression.Operator.LIKE, left, operand());
+                return negated ? new Expression.Not(like) : like;
+            }
+            if (negated) {
+                throw error("BETWEEN, IN or LIKE");
+            }
+            Expression.Operator operator = comparisonOperator();
+            return new Expression.Binary(operator, left, operand());
+        }
+
+        private Expression.Operator comparisonOperator() throws Exception {
+            if (acceptSymbol("=")) {
+                return Expression.Operator.EQUALS;
+            } else if (acceptSymbol("!=") || acceptSymbol("<>")) {
+                return Expression.Operator.NOT_EQUALS;
+            } else if (acceptSymbol("<")) {
+                return Expression.Operator.LESS;
+            } else if (acceptSymbol("<=")) {
+                return Expression.Operator.LESS_EQUAL;
+            } else if (acceptSymbol(">")) {
+                return Expression.Operator.GREATER;
+            } else if (acceptSymbol(">=")) {
+                return Expression.Operator.GREATER_EQUAL;
+            }
+            throw error("a comparison operator");
+        }
+
+        private Expression operand() throws Exception {
+            return lexer.kind(token) == Lexer.IDENTIFIER && !isLiteralKeyword() ? columnRef() : value();
+        }
+
+        // A literal, or a ? placeholder numbered in order of appearance.
+        private Expression value() throws Exception {
+            if (lexer.kind(token) == Lexer.PARAMETER) {
+                token++;
+                return new Expression.Parameter(parameterCount++);
+            }
+            return literal();
+        }
+
+        private Expression.ColumnRef columnRef() throws Exception {
+            String name = identifier();
+            if (acceptSymbol(".")) {
+                return new Expression.ColumnRef(name, identifier());
+            }
+            return new Expression.ColumnRef(null, name);
+        }
+
+        private Expression.Literal literal() throws Exception {
+            switch (lexer.kind(token)) {
+                case Lexer.NUMBER:
+                    return new Expression.Literal(lexer.intValue(token++));
+                case Lexer.STRING:
+                    return new Expression.Literal(lexer.stringValue(token++));
+                default:
+                    if (accept("TRUE")) {
+                        return new Expression.Literal(Boolean.TRUE);
+                    } else if (accept("FALSE")) {
+                        return new Expression.Literal(Boolean.FALSE);
+                    } else if (accept("NULL")) {
+                        return new Expression.Literal(null);
+                    }
+                    throw error("a value");
+            }
+        }
+
+        private boolean isLiteralKeyword() {
+            return lexer.isKeyword(token, "TRUE") || lexer.isKeyword(token, "FALSE") || lexer.isKeyword(token, "NULL");
+        }
+
+        private String identifier() throws Exception {
+            if (lexer.kind(token) != Lexer.IDENTIFIER) {
+                throw error("a name");
+            }
+            return lexer.text(token++);
+        }
+
+        private boolean accept(String keyword) {
+            if (lexer.isKeyword(token, keyword)) {
+                token++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword) throws Exception {
+            if (!accept(keyword)) {
+                throw error(keyword);
+            }
+        }
+
+        private boolean acceptSymbol(String symbol) {
+            if (lexer.isSymbol(token, symbol)) {
+                token++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectSymbol(String symbol) throws Exception {
+            if (!acceptSymbol(symbol)) {
+                throw error("'" + symbol + "'");
+            }
+        }
+
+        private Exception error(String expected) {
+            return new Exception("Syntax error at position " + lexer.position(token) + ": expected " + expected
+                    + " but found " + describe(token));
+        }
+
+        private String describe(int token) {
+            return lexer.kind(token) == Lexer.END ? "end of input" : "'" + lexer.text(token) + "'";
         }
-        sb.append("\n").append(rows.size()).append(" row(s)");
-        return sb.toString();
     }
 }
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Locale;
+
+// Writes statements that took longer than a threshold to out, one entry each: when it finished, how long it
+// took, the rows a SELECT returned, the SQL text where known and, for a SELECT, its plan with the planner's
+// row estimates. A SELECT's time runs from planning until its cursor is closed, so it includes the time the
+// client took to read the rows.
+public class SlowQueryLog {
+    private final long thresholdNanos;
+    private final Appendable out;
+
+    public SlowQueryLog(long thresholdMillis, Appendable out) {
+        this.thresholdNanos = thresholdMillis * 1_000_000;
+        this.out = out;
+    }
+
+    public long getThresholdMillis() {
+        return thresholdNanos / 1_000_000;
+    }
+
+    boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    // rows is -1 for statements that return none; plan may be null.
+    void log(String type, String sql, long nanos, long rows, PlanNode plan, boolean failed) {
+        StringBuilder entry = new StringBuilder();
+        entry.append(Instant.now()).append(" slow ").append(type)
+             .append(String.format(Locale.ROOT, " %.3f ms", nanos / 1e6));
+        if (rows >= 0) {
+            entry.append(" rows=").append(rows);
+        }
+        if (failed) {
+            entry.append(" failed");
+        }
+        if (sql != null) {
+            entry.append(" sql=").append(sql.replace('\n', ' '));
+        }
+        entry.append('\n');
+        if (plan != null) {
+            for (String line : plan.render(false).split("\n")) {
+                entry.append("  ").append(line).append('\n');
+            }
+        }
+        synchronized (this) {
+            try {
+                out.append(entry);
+                if (out instanceof java.io.Flushable) {
+                    ((java.io.Flushable) out).flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Slow query log: " + e.getMessage());
+            }
+        }
+    }
+}
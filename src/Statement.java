@@ -0,0 +1,271 @@
+import java.util.*;
+
+// Statement nodes of the SQL syntax tree, produced by SQLParser.parse and run by SQLParser.execute.
+public abstract class Statement {
+    public static class CreateTable extends Statement {
+        private final String table;
+        private final List<Column> columns;
+        private final StorageType storageType;
+
+        public CreateTable(String table, List<Column> columns, StorageType storageType) {
+            this.table = table;
+            this.columns = columns;
+            this.storageType = storageType;
+        }
+
+        public String getTable() { return table; }
+        public List<Column> getColumns() { return columns; }
+        public StorageType getStorageType() { return storageType; }
+    }
+
+    public static class DropTable extends Statement {
+        private final String table;
+
+        public DropTable(String table) { this.table = table; }
+
+        public String getTable() { return table; }
+    }
+
+    public static class CreateIndex extends Statement {
+        private final String index;
+        private final String table;
+        private final String column;
+        private final IndexType type;
+
+        public CreateIndex(String index, String table, String column, IndexType type) {
+            this.index = index;
+            this.table = table;
+            this.column = column;
+            this.type = type;
+        }
+
+        public String getIndex() { return index; }
+        public String getTable() { return table; }
+        public String getColumn() { return column; }
+        public IndexType getType() { return type; }
+    }
+
+    public static class DropIndex extends Statement {
+        private final String index;
+
+        public DropIndex(String index) { this.index = index; }
+
+        public String getIndex() { return index; }
+    }
+
+    // INSERT INTO table (columns) VALUES (...), (...): one list of values per row, in column list order.
+    public static class Insert extends Statement {
+        private final String table;
+        private final List<String> columns;
+        private final List<List<Expression>> rows;
+
+        public Insert(String table, List<String> columns, List<List<Expression>> rows) {
+            this.table = table;
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        public String getTable() { return table; }
+        public List<String> getColumns() { return columns; }
+        public List<List<Expression>> getRows() { return rows; }
+    }
+
+    // COPY table [(columns)] FROM 'file' [HEADER]; columns is null for all of them, in table order.
+    public static class Copy extends Statement {
+        private final String table;
+        private final List<String> columns;
+        private final String file;
+        private final boolean header;
+
+        public Copy(String table, List<String> columns, String file, boolean header) {
+            this.table = table;
+            this.columns = columns;
+            this.file = file;
+            this.header = header;
+        }
+
+        public String getTable() { return table; }
+        public List<String> getColumns() { return columns; }
+        public String getFile() { return file; }
+        public boolean hasHeader() { return header; }
+    }
+
+    // SELECT items FROM table [JOIN ...] [WHERE where] [GROUP BY ...] [ORDER BY ...] [LIMIT n] [OFFSET m].
+    public static class Select extends Statement {
+        private final String table;
+        // INNER JOINs after the FROM table, in the order written.
+        private final List<Join> joins;
+        private final Expression where;
+        // null for SELECT *; otherwise columns and aggregates in output order.
+        private final List<Expression> items;
+        private final List<Expression.ColumnRef> groupBy;
+        private final List<OrderItem> orderBy;
+        // null when absent; otherwise a literal or ? parameter.
+        private final Expression limit;
+        private final Expression offset;
+
+        public Select(String table, List<Join> joins, Expression where) {
+            this(table, joins, where, null, Collections.emptyList(), Collections.emptyList(), null, null);
+        }
+
+        public Select(String table, List<Join> joins, Expression where,
+                      List<Expression> items, List<Expression.ColumnRef> groupBy,
+                      List<OrderItem> orderBy, Expression limit, Expression offset) {
+            this.table = table;
+            this.joins = joins;
+            this.where = where;
+            this.items = items;
+            this.groupBy = groupBy;
+            this.orderBy = orderBy;
+            this.limit = limit;
+            this.offset = offset;
+        }
+
+        public String getTable() { return table; }
+        public List<Join> getJoins() { return joins; }
+        public Expression getWhere() { return where; }
+        public List<Expression> getItems() { return items; }
+        public List<Expression.ColumnRef> getGroupBy() { return groupBy; }
+        public List<OrderItem> getOrderBy() { return orderBy; }
+        public Expression getLimit() { return limit; }
+        public Expression getOffset() { return offset; }
+    }
+
+    // JOIN table ON left = right, where the two columns belong to the joined table and one before it.
+    public static class Join {
+        private final String table;
+        private final Expression.ColumnRef left;
+        private final Expression.ColumnRef right;
+
+        public Join(String table, Expression.ColumnRef left, Expression.ColumnRef right) {
+            this.table = table;
+            this.left = left;
+            this.right = right;
+        }
+
+        public String getTable() { return table; }
+        public Expression.ColumnRef getLeft() { return left; }
+        public Expression.ColumnRef getRight() { return right; }
+    }
+
+    // One ORDER BY key: a column, or an aggregate of the SELECT list.
+    public static class OrderItem {
+        private final Expression expression;
+        private final boolean descending;
+
+        public OrderItem(Expression expression, boolean descending) {
+            this.expression = expression;
+            this.descending = descending;
+        }
+
+        public Expression getExpression() { return expression; }
+        public boolean isDescending() { return descending; }
+    }
+
+    public static class Update extends Statement {
+        private final String table;
+        private final Map<String, Expression> assignments;
+        private final Expression where;
+
+        public Update(String table, Map<String, Expression> assignments, Expression where) {
+            this.table = table;
+            this.assignments = assignments;
+            this.where = where;
+        }
+
+        public String getTable() { return table; }
+        public Map<String, Expression> getAssignments() { return assignments; }
+        public Expression getWhere() { return where; }
+    }
+
+    public static class Delete extends Statement {
+        private final String table;
+        private final Expression where;
+
+        public Delete(String table, Expression where) {
+            this.table = table;
+            this.where = where;
+        }
+
+        public String getTable() { return table; }
+        public Expression getWhere() { return where; }
+    }
+
+    public static class ShowTables extends Statement {
+    }
+
+    // BEGIN [TRANSACTION | WORK]
+    public static class Begin extends Statement {
+    }
+
+    // COMMIT [TRANSACTION | WORK]
+    public static class Commit extends Statement {
+    }
+
+    // ROLLBACK [TRANSACTION | WORK]
+    public static class Rollback extends Statement {
+    }
+
+    // EXPLAIN [ANALYZE] select
+    public static class Explain extends Statement {
+        private final Select select;
+        private final boolean analyze;
+
+        public Explain(Select select, boolean analyze) {
+            this.select = select;
+            this.analyze = analyze;
+        }
+
+        public Select getSelect() { return select; }
+        public boolean isAnalyze() { return analyze; }
+    }
+
+    // ANALYZE [table]; table is null for every table.
+    public static class Analyze extends Statement {
+        private final String table;
+
+        public Analyze(String table) { this.table = table; }
+
+        public String getTable() { return table; }
+    }
+
+    // PREPARE name AS statement
+    public static class Prepare extends Statement {
+        private final String name;
+        private final Statement statement;
+        private final int parameterCount;
+
+        public Prepare(String name, Statement statement, int parameterCount) {
+            this.name = name;
+            this.statement = statement;
+            this.parameterCount = parameterCount;
+        }
+
+        public String getName() { return name; }
+        public Statement getStatement() { return statement; }
+        public int getParameterCount() { return parameterCount; }
+    }
+
+    // EXECUTE name [(value, ...)]
+    public static class Execute extends Statement {
+        private final String name;
+        private final List<Expression> values;
+
+        public Execute(String name, List<Expression> values) {
+            this.name = name;
+            this.values = values;
+        }
+
+        public String getName() { return name; }
+        public List<Expression> getValues() { return values; }
+    }
+
+    // DEALLOCATE [PREPARE] name
+    public static class Deallocate extends Statement {
+        private final String name;
+
+        public Deallocate(String name) { this.name = name; }
+
+        public String getName() { return name; }
+    }
+}
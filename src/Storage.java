@@ -0,0 +1,72 @@
+// Row data addressed by row id. Each version of a row gets its own id; visibility is tracked by the table.
+// Writers are serialized by the table, readers may call get/row concurrently for versions visible to them.
+public interface Storage {
+    // Stores values (in column order) and returns the row id of the new row.
+    int insert(Object[] values);
+
+    void remove(int rowId);
+
+    Object get(int rowId, int column);
+
+    // Returns the row at rowId; rows that are views over storage are only valid while snapshot is open.
+    Row row(int rowId, VersionClock.Snapshot snapshot);
+
+    // Upper bound (exclusive) of row ids handed out so far; scans walk 0..capacity() and skip invisible ids.
+    int capacity();
+
+    // Rough heap held by the stored rows, for metrics. May be called while the table's writer is running.
+    long estimateBytes();
+
+    // Rough heap of one boxed value, assuming compressed references and compact Latin-1 strings.
+    static long valueBytes(Object value) {
+        if (value instanceof String) {
+            return 40 + ((String) value).length();
+        }
+        return value instanceof Integer ? 16 : 0;
+    }
+
+    // Keeps the first count row ids whose value in column equals value, compacting them to the front; returns how many matched.
+    default int filterEquals(int column, Object value, int[] rowIds, int count) {
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (java.util.Objects.equals(get(rowIds[i], column), value)) {
+                rowIds[matched++] = rowIds[i];
+            }
+        }
+        return matched;
+    }
+
+    // Keeps the row ids whose value in column compares to value as op requires; NULLs never match.
+    // value is non-null and of the column's type.
+    @SuppressWarnings("unchecked")
+    default int filterCompare(int column, Predicate.Comparison op, Object value, int[] rowIds, int count) {
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            Object current = get(rowIds[i], column);
+            if (current != null && op.test(((Comparable<Object>) current).compareTo(value))) {
+                rowIds[matched++] = rowIds[i];
+            }
+        }
+        return matched;
+    }
+
+    default int filterNull(int column, boolean isNull, int[] rowIds, int count) {
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if ((get(rowIds[i], column) == null) == isNull) {
+                rowIds[matched++] = rowIds[i];
+            }
+        }
+        return matched;
+    }
+
+    // Copies the INT column's values for rowIds[0..count) into values, flagging NULLs in nulls (their value is 0),
+    // so callers such as aggregation can work on primitives.
+    default void readInts(int column, int[] rowIds, int count, int[] values, boolean[] nulls) {
+        for (int i = 0; i < count; i++) {
+            Object value = get(rowIds[i], column);
+            nulls[i] = value == null;
+            values[i] = value == null ? 0 : (Integer) value;
+        }
+    }
+}
@@ -0,0 +1,3 @@
+public enum StorageType {
+    HEAP, COLUMNAR
+}
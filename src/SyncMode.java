@@ -0,0 +1,8 @@
+public enum SyncMode {
+    // fsync before every commit returns; concurrent commits share one fsync.
+    COMMIT,
+    // commits return once logged; a background thread fsyncs every few milliseconds.
+    INTERVAL,
+    // commits return once logged; data reaches the OS page cache but is never explicitly fsynced.
+    OS
+}
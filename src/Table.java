@@ -1,82 +1,1232 @@
+import java.io.IOException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 public class Table {
+    // Full scans over at least this many row slots run in parallel on the scan pool.
+    static final int PARALLEL_SCAN_ROWS = 64 * 1024;
+    // Row slots per parallel task: enough to amortize the task, few enough to balance across threads.
+    static final int MORSEL_ROWS = 16 * 1024;
+    // Rows ANALYZE samples per column to build a histogram.
+    static final int SAMPLE_ROWS = 30_000;
+    // Planner costs, in units of one row slot checked by a full scan. An index probe finds the candidates
+    // for one key; each candidate is then checked on its own rather than in a batch of adjacent slots.
+    static final double INDEX_PROBE_COST = 1;
+    static final double INDEX_ROW_COST = 2;
+    // Share of the non-null values a LIKE pattern without a literal prefix is assumed to match.
+    private static final double LIKE_SELECTIVITY = 0.1;
+    // How often a writer waiting for another transaction's table checks for a deadlock formed since.
+    private static final long DEADLOCK_CHECK_MS = 50;
+    private static final int[] NO_ROWS = new int[0];
+
     private final String name;
     private final List<Column> columns;
-    private final List<Row> rows;
-    private final Map<String, Map<Object, List<Row>>> indexes;
+    private final StorageType storageType;
+    private final Storage storage;
+    private final Map<String, Integer> positions;
+    // Replaced wholesale on index DDL so lock-free readers always iterate a stable map.
+    private volatile Map<String, Index> indexes;
+    private final VersionClock clock;
+    private final RowVersions versions;
+    // Versions ended by committed updates and deletes, in commit order, waiting for vacuum.
+    private int[] deadVersions;
+    private int deadHead;
+    private int deadTail;
+    private volatile int liveRows;
+    // Stamp of the last commit that changed this table, so countRows knows whether liveRows fits a snapshot.
+    private volatile long lastCommitStamp;
+    // Serializes writers. Readers never lock: they see the versions visible at their snapshot.
+    private final ReentrantLock writeLock;
+    // The transaction holding uncommitted changes to this table, if any. Changed under writeLock; other
+    // writers wait on ownerEnded until it commits or rolls back.
+    private volatile Transaction owner;
+    private final Condition ownerEnded;
+    // Set once recovery has replayed the log, so replayed changes are not logged again.
+    private volatile WriteAheadLog log;
+    private volatile ForkJoinPool scanPool = ForkJoinPool.commonPool();
+    // One per column, replaced as a whole by ANALYZE.
+    private volatile ColumnStatistics[] statistics;
+    // Read counters for metrics, added to once per batch or call. Rows scanned are the visible rows checked
+    // against a predicate; rows returned are those that matched it.
+    private final LongAdder rowsScanned = new LongAdder();
+    private final LongAdder rowsReturned = new LongAdder();
+    private final LongAdder indexScans = new LongAdder();
+    private final LongAdder fullScans = new LongAdder();
 
     public Table(String name, List<Column> columns) {
+        this(name, columns, StorageType.HEAP);
+    }
+
+    public Table(String name, List<Column> columns, StorageType storageType) {
+        this(name, columns, storageType, new VersionClock());
+    }
+
+    public Table(String name, List<Column> columns, StorageType storageType, VersionClock clock) {
         this.name = name;
         this.columns = columns;
-        this.rows = new ArrayList<>();
-        this.indexes = new HashMap<>();
-        
+        this.storageType = storageType;
+        this.storage = storageType == StorageType.COLUMNAR ? new ColumnarStorage(columns) : new HeapStorage(columns);
+        this.positions = new HashMap<>();
+        this.indexes = new LinkedHashMap<>();
+        this.clock = clock;
+        this.versions = new RowVersions();
+        this.deadVersions = new int[16];
+        this.writeLock = new ReentrantLock();
+        this.ownerEnded = writeLock.newCondition();
+        this.statistics = new ColumnStatistics[columns.size()];
+
+        for (int i = 0; i < columns.size(); i++) {
+            positions.put(columns.get(i).getName(), i);
+            statistics[i] = new ColumnStatistics();
+        }
+
         for (Column col : columns) {
-            if (col.isPrimaryKey() || col.isUnique()) {
-                indexes.put(col.getName(), new HashMap<>());
+            if (col.isPrimaryKey()) {
+                addIndex(new Index(name + "_pkey", col.getName(), IndexType.HASH, true));
+            } else if (col.isUnique()) {
+                addIndex(new Index(name + "_" + col.getName() + "_key", col.getName(), IndexType.HASH, true));
             }
         }
     }
 
     public void insert(Map<String, Object> values) throws Exception {
-        validateRow(values);
-        Row row = new Row(values);
-        
-        for (Column col : columns) {
-            if (col.isPrimaryKey() || col.isUnique()) {
-                Object value = values.get(col.getName());
-                if (indexes.get(col.getName()).containsKey(value)) {
-                    throw new Exception("Duplicate value for " + (col.isPrimaryKey() ? "primary" : "unique") + " key: " + col.getName());
+        Object[] row = new Object[columns.size()];
+        assign(row, values);
+        insertRow(row);
+    }
+
+    void insertRow(Object[] row) throws Exception {
+        insertBatch(Collections.singletonList(row));
+    }
+
+    // Inserts rows, each holding values in column order, as one commit: all of them, or none if any row is
+    // invalid or repeats a key. The lock, the key checks and the log record are shared by the whole batch.
+    public void insertBatch(List<Object[]> rows) throws Exception {
+        Transaction transaction = Transaction.current();
+        WriteAheadLog wal = log;
+        long lsn = 0;
+        lockFor(transaction);
+        try {
+            for (Object[] row : rows) {
+                validateRow(row);
+            }
+            checkUnique(rows);
+
+            int[] rowIds = new int[rows.size()];
+            WriteAheadLog.Record record = redoRecord(wal, transaction);
+            for (int i = 0; i < rowIds.length; i++) {
+                rowIds[i] = addVersion(rows.get(i));
+                if (record != null) {
+                    record.insert(name, rows.get(i));
                 }
             }
+            if (transaction != null) {
+                pending(transaction, rowIds, NO_ROWS, rowIds.length);
+                return;
+            }
+            try {
+                lsn = commit(wal, record, stamp -> {
+                    for (int rowId : rowIds) {
+                        versions.setBegin(rowId, stamp);
+                    }
+                });
+            } catch (IOException e) {
+                for (int rowId : rowIds) {
+                    removeVersion(rowId);
+                }
+                throw e;
+            }
+            liveRows += rowIds.length;
+        } finally {
+            writeLock.unlock();
+        }
+        // Wait outside the lock so other writers can join the same group commit.
+        if (wal != null) {
+            wal.awaitDurable(lsn);
         }
-        
-        rows.add(row);
-        updateIndexes(row);
     }
 
     public List<Row> select(Map<String, Object> conditions) {
-        if (conditions == null || conditions.isEmpty()) {
-            return new ArrayList<>(rows);
+        return selectWhere(Predicate.matching(conditions, columns));
+    }
+
+    public List<Row> select(Map<String, Object> conditions, VersionClock.Snapshot snapshot) {
+        return selectWhere(Predicate.matching(conditions, columns), snapshot);
+    }
+
+    public List<Row> selectWhere(Predicate predicate) {
+        try (VersionClock.Snapshot snapshot = clock.openSnapshot()) {
+            return detach(selectWhere(predicate, snapshot));
         }
-        
-        return rows.stream()
-            .filter(row -> matchesConditions(row, conditions))
-            .collect(Collectors.toList());
     }
 
+    // Rows of column storage read through to it, so they are only valid while snapshot is open.
+    public List<Row> selectWhere(Predicate predicate, VersionClock.Snapshot snapshot) {
+        return toRows(findRowIds(predicate, stamp(snapshot)), snapshot);
+    }
+
+    // Opens a pull-based cursor over the rows matching predicate at a new snapshot. Rows are found a batch
+    // at a time as the caller reads, so memory stays bounded however many rows match. Close it when done;
+    // rows of column storage read through to it, so a caller keeping rows past close copies them first.
+    public RowCursor openCursor(Predicate predicate) {
+        return openCursor(predicate, clock.openSnapshot(), true);
+    }
+
+    // A cursor at a snapshot the caller opened and will release, such as one shared by the tables of a join.
+    public RowCursor openCursor(Predicate predicate, VersionClock.Snapshot snapshot) {
+        return openCursor(predicate, snapshot, false);
+    }
+
+    private RowCursor openCursor(Predicate predicate, VersionClock.Snapshot snapshot, boolean ownsSnapshot) {
+        if (predicate == Predicate.FALSE) {
+            return new RowCursor(predicate, snapshot, ownsSnapshot, IntStream.empty().iterator(), "NO SCAN of " + name);
+        }
+        AccessPath path = chooseAccessPath(predicate);
+        (path == null ? fullScans : indexScans).increment();
+        return new RowCursor(predicate, snapshot, ownsSnapshot, path == null ? null : Arrays.stream(path.rowIds()).iterator(),
+                explain(path));
+    }
+
+    // Like openCursor, but rows come in the order of columnName (NULLs first when ascending), walking its
+    // BTREE index. Returns null when the column has no ordered index, or when another index would narrow
+    // the predicate down first; sorting that smaller result is the better plan.
+    public RowCursor openOrderedCursor(Predicate predicate, String columnName, boolean ascending) {
+        Index index = findOrderedIndex(columnName);
+        if (index == null) {
+            return null;
+        }
+        AccessPath path = predicate == Predicate.FALSE ? null : chooseAccessPath(predicate);
+        PrimitiveIterator.OfInt candidates;
+        String access;
+        if (path == null) {
+            candidates = index.iterator(ascending);
+            access = "INDEX ORDER SCAN on " + name + "." + columnName + " using " + index.getName();
+        } else if (path.keys == null && path.index == index) {
+            candidates = index.rangeIterator(path.from, path.fromInclusive, path.to, path.toInclusive, ascending);
+            access = explain(path);
+        } else {
+            return null;
+        }
+        indexScans.increment();
+        return new RowCursor(predicate, clock.openSnapshot(), true, candidates, ascending ? access : access + " DESC");
+    }
+
+    // Rows whose column equals value, answered from an index when the column has one.
+    public List<Row> lookup(String columnName, Object value) {
+        try (VersionClock.Snapshot snapshot = clock.openSnapshot()) {
+            return detach(lookup(columnName, value, snapshot));
+        }
+    }
+
+    public List<Row> lookup(String columnName, Object value, VersionClock.Snapshot snapshot) {
+        return lookup(columnName, value, Predicate.TRUE, snapshot);
+    }
+
+    // Rows whose column equals value that also match predicate, which is checked only on the index's rows.
+    public List<Row> lookup(String columnName, Object value, Predicate predicate, VersionClock.Snapshot snapshot) {
+        Index index = getIndex(columnName);
+        if (index == null) {
+            Predicate equal = Predicate.matching(Collections.singletonMap(columnName, value), columns);
+            return selectWhere(Predicate.and(Arrays.asList(equal, predicate)), snapshot);
+        }
+        int[] rowIds = visibleOnly(index.lookup(value), stamp(snapshot));
+        int matched = predicate.filter(storage, rowIds, rowIds.length);
+        indexScans.increment();
+        countRows(rowIds.length, matched);
+        return toRows(matched == rowIds.length ? rowIds : Arrays.copyOf(rowIds, matched), snapshot);
+    }
+
+    public int size() {
+        return liveRows;
+    }
+
+    // COUNT(*) at a new snapshot. liveRows only counts committed rows and is updated after the commit's
+    // stamps, so it answers only when no commit is part way through (the write lock is free and no transaction
+    // holds the table) and none is newer than the snapshot. Otherwise the visible versions are counted.
+    public long countRows() {
+        try (VersionClock.Snapshot snapshot = clock.openSnapshot()) {
+            long stamp = stamp(snapshot);
+            if (stamp != RowVersions.LATEST && writeLock.tryLock()) {
+                try {
+                    if (owner == null && lastCommitStamp <= stamp) {
+                        return liveRows;
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            long[] count = new long[1];
+            scan(Predicate.TRUE, stamp, (storage, rowIds, batchCount) -> count[0] += batchCount);
+            return count[0];
+        }
+    }
+
+    public List<Row> selectRange(String columnName, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        try (VersionClock.Snapshot snapshot = clock.openSnapshot()) {
+            int[] rowIds = visibleOnly(orderedIndex(columnName).range(from, fromInclusive, to, toInclusive), stamp(snapshot));
+            indexScans.increment();
+            countRows(rowIds.length, rowIds.length);
+            return detach(toRows(rowIds, snapshot));
+        }
+    }
+
+    public List<Row> selectOrdered(String columnName, boolean ascending) {
+        try (VersionClock.Snapshot snapshot = clock.openSnapshot()) {
+            int[] rowIds = visibleOnly(orderedIndex(columnName).ordered(ascending), stamp(snapshot));
+            indexScans.increment();
+            countRows(rowIds.length, rowIds.length);
+            return detach(toRows(rowIds, snapshot));
+        }
+    }
+
+    // Rows returned after their snapshot closes: views over column storage are copied out while it is open,
+    // so vacuum never waits on a caller's rows.
+    private List<Row> detach(List<Row> rows) {
+        if (storageType == StorageType.COLUMNAR) {
+            rows.replaceAll(Row::copyOf);
+        }
+        return rows;
+    }
+
+    private Index orderedIndex(String columnName) {
+        Index index = findOrderedIndex(columnName);
+        if (index == null) {
+            throw new IllegalArgumentException("No ordered index on " + name + "." + columnName);
+        }
+        return index;
+    }
+
+    private Index findOrderedIndex(String columnName) {
+        for (Index index : indexes.values()) {
+            if (index.isOrdered() && index.getColumnName().equals(columnName)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private int[] findRowIds(Map<String, Object> conditions, long stamp) {
+        return findRowIds(Predicate.matching(conditions, columns), stamp);
+    }
+
+    private int[] findRowIds(Predicate predicate, long stamp) {
+        return scan(predicate, stamp, RowIdCollector::new, RowIdCollector::append).toArray();
+    }
+
+    public void scan(Predicate predicate, BatchConsumer consumer) {
+        try (VersionClock.Snapshot snapshot = clock.openSnapshot()) {
+            scan(predicate, stamp(snapshot), consumer);
+        }
+    }
+
+    // Streams the rows visible at snapshot that match predicate to consumer, a batch at a time, on this thread.
+    public void scan(Predicate predicate, VersionClock.Snapshot snapshot, BatchConsumer consumer) {
+        scan(predicate, stamp(snapshot), consumer);
+    }
+
+    public <T extends BatchConsumer> T scan(Predicate predicate, Supplier<T> partials, BinaryOperator<T> merge) {
+        try (VersionClock.Snapshot snapshot = clock.openSnapshot()) {
+            return scan(predicate, stamp(snapshot), partials, merge);
+        }
+    }
+
+    // Like scan, but a large full scan is split into morsels of row slots that run on the scan pool. Each
+    // morsel feeds its own consumer from partials; merge(earlier, later) combines them, so a merge that
+    // appends keeps rows in slot order. Small tables and index lookups run serially into one consumer.
+    public <T extends BatchConsumer> T scan(Predicate predicate, VersionClock.Snapshot snapshot,
+                                            Supplier<T> partials, BinaryOperator<T> merge) {
+        return scan(predicate, stamp(snapshot), partials, merge);
+    }
+
+    private <T extends BatchConsumer> T scan(Predicate predicate, long stamp, Supplier<T> partials, BinaryOperator<T> merge) {
+        if (predicate == Predicate.FALSE) {
+            return partials.get();
+        }
+        ForkJoinPool pool = scanPool;
+        int capacity = storage.capacity();
+        AccessPath path = chooseAccessPath(predicate);
+        if (pool == null || pool.getParallelism() < 2 || capacity < PARALLEL_SCAN_ROWS || path != null) {
+            T consumer = partials.get();
+            scan(predicate, path, stamp, consumer);
+            return consumer;
+        }
+        fullScans.increment();
+        return pool.invoke(new MorselScan<>(predicate, stamp, partials, merge, 0, capacity));
+    }
+
+    // Candidate rows come from an index when one answers part of the predicate, otherwise from a scan;
+    // either way the predicate then filters them a batch at a time.
+    private void scan(Predicate predicate, long stamp, BatchConsumer consumer) {
+        if (predicate != Predicate.FALSE) {
+            scan(predicate, chooseAccessPath(predicate), stamp, consumer);
+        }
+    }
+
+    // path is what chooseAccessPath picked for predicate, null for a full scan.
+    private void scan(Predicate predicate, AccessPath path, long stamp, BatchConsumer consumer) {
+        if (path == null) {
+            fullScans.increment();
+            scanSlots(predicate, stamp, 0, storage.capacity(), consumer);
+            return;
+        }
+        indexScans.increment();
+        int[] batch = new int[Predicate.BATCH_SIZE];
+        int[] rowIds = visibleOnly(path.rowIds(), stamp);
+        for (int start = 0; start < rowIds.length; start += Predicate.BATCH_SIZE) {
+            int visible = Math.min(Predicate.BATCH_SIZE, rowIds.length - start);
+            System.arraycopy(rowIds, start, batch, 0, visible);
+            int count = predicate.filter(storage, batch, visible);
+            countRows(visible, count);
+            if (count > 0) {
+                consumer.accept(storage, batch, count);
+            }
+        }
+    }
+
+    private void scanSlots(Predicate predicate, long stamp, int from, int to, BatchConsumer consumer) {
+        int[] batch = new int[Predicate.BATCH_SIZE];
+        for (int start = from; start < to; start += Predicate.BATCH_SIZE) {
+            int end = Math.min(to, start + Predicate.BATCH_SIZE);
+            int visible = 0;
+            for (int rowId = start; rowId < end; rowId++) {
+                if (versions.isVisible(rowId, stamp)) {
+                    batch[visible++] = rowId;
+                }
+            }
+            int count = predicate.filter(storage, batch, visible);
+            countRows(visible, count);
+            if (count > 0) {
+                consumer.accept(storage, batch, count);
+            }
+        }
+    }
+
+    private void countRows(int scanned, int returned) {
+        if (scanned > 0) {
+            rowsScanned.add(scanned);
+            rowsReturned.add(returned);
+        }
+    }
+
+    // Sets where large scans run in parallel; null scans every table on the calling thread.
+    public void setScanPool(ForkJoinPool scanPool) {
+        this.scanPool = scanPool;
+    }
+
+    // Index entries cover every version that vacuum has not reclaimed yet; keep those visible at stamp.
+    private int[] visibleOnly(int[] rowIds, long stamp) {
+        int visible = 0;
+        for (int rowId : rowIds) {
+            if (versions.isVisible(rowId, stamp)) {
+                rowIds[visible++] = rowId;
+            }
+        }
+        return visible == rowIds.length ? rowIds : Arrays.copyOf(rowIds, visible);
+    }
+
+    private List<Row> toRows(int[] rowIds, VersionClock.Snapshot snapshot) {
+        List<Row> result = new ArrayList<>(rowIds.length);
+        for (int rowId : rowIds) {
+            result.add(storage.row(rowId, snapshot));
+        }
+        return result;
+    }
+
+    public String explain(Map<String, Object> conditions) {
+        return explainWhere(Predicate.matching(conditions, columns));
+    }
+
+    public String explainWhere(Predicate predicate) {
+        return explain(chooseAccessPath(predicate));
+    }
+
+    private String explain(AccessPath path) {
+        if (path == null) {
+            return "FULL SCAN on " + name;
+        }
+        return (path.keys != null ? "INDEX LOOKUP on " : "INDEX RANGE SCAN on ") + name + "."
+                + path.index.getColumnName() + " using " + path.index.getName();
+    }
+
+    // Picks the cheapest way to find candidate rows: an index lookup for an equality or IN term, a range of an
+    // ordered index for comparisons and LIKE prefixes on one column, or a full scan (null). Each index path
+    // is costed from the statistics' estimate of how many rows it returns.
+    private AccessPath chooseAccessPath(Predicate predicate) {
+        List<AccessPath> candidates = new ArrayList<>();
+        Map<Integer, AccessPath> ranges = new LinkedHashMap<>();
+        for (Predicate term : predicate.conjuncts()) {
+            if (term instanceof Predicate.Compare) {
+                Predicate.Compare compare = (Predicate.Compare) term;
+                String columnName = columns.get(compare.column).getName();
+                if (compare.op == Predicate.Comparison.EQ) {
+                    Index index = getIndex(columnName);
+                    if (index != null) {
+                        candidates.add(new AccessPath(index, new Object[] { compare.value }));
+                    }
+                } else if (compare.op != Predicate.Comparison.NE) {
+                    boolean lower = compare.op == Predicate.Comparison.GT || compare.op == Predicate.Comparison.GE;
+                    boolean inclusive = compare.op == Predicate.Comparison.GE || compare.op == Predicate.Comparison.LE;
+                    addBound(ranges, compare.column, lower, compare.value, inclusive);
+                }
+            } else if (term instanceof Predicate.In && !((Predicate.In) term).negated) {
+                Predicate.In in = (Predicate.In) term;
+                Index index = getIndex(columns.get(in.column).getName());
+                if (index != null) {
+                    candidates.add(new AccessPath(index, in.values.toArray()));
+                }
+            } else if (term instanceof Predicate.Like && !((Predicate.Like) term).negated) {
+                Predicate.Like like = (Predicate.Like) term;
+                String prefix = like.prefix();
+                if (!prefix.isEmpty()) {
+                    addBound(ranges, like.column, true, prefix, true);
+                    String end = prefixEnd(prefix);
+                    if (end != null) {
+                        addBound(ranges, like.column, false, end, false);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Integer, AccessPath> range : ranges.entrySet()) {
+            Index index = findOrderedIndex(columns.get(range.getKey()).getName());
+            if (index != null) {
+                AccessPath bounds = range.getValue();
+                candidates.add(new AccessPath(index, bounds.from, bounds.fromInclusive, bounds.to, bounds.toInclusive));
+            }
+        }
+        AccessPath best = null;
+        double bestCost = storage.capacity();
+        for (AccessPath candidate : candidates) {
+            double cost = cost(candidate);
+            if (cost < bestCost) {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private double cost(AccessPath path) {
+        int column = positions.get(path.index.getColumnName());
+        double rows;
+        int probes;
+        if (path.keys != null) {
+            probes = path.keys.length;
+            rows = 0;
+            for (Object key : path.keys) {
+                rows += path.index.isUnique() ? 1 : nonNullRows(column) * statistics[column].equalFraction(key, equalFraction(column));
+            }
+        } else {
+            probes = 1;
+            rows = nonNullRows(column) * statistics[column].rangeFraction(path.from, path.fromInclusive, path.to,
+                    path.toInclusive, equalFraction(column));
+        }
+        return probes * INDEX_PROBE_COST + Math.min(rows, liveRows) * INDEX_ROW_COST;
+    }
+
+    // The first string after every string that starts with prefix, or null if there is none.
+    private static String prefixEnd(String prefix) {
+        char last = prefix.charAt(prefix.length() - 1);
+        return last == Character.MAX_VALUE ? null : prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+    }
+
+    // Estimated number of rows visible now that match predicate. Terms are assumed independent.
+    public double estimateRows(Predicate predicate) {
+        return liveRows * selectivity(predicate);
+    }
+
+    private double selectivity(Predicate predicate) {
+        if (predicate == Predicate.TRUE || predicate == Predicate.FALSE) {
+            return predicate == Predicate.TRUE ? 1 : 0;
+        }
+        if (predicate instanceof Predicate.And) {
+            // Bounds on the same column make one range, not independent terms: x >= 1 AND x <= 2 is narrow.
+            double fraction = 1;
+            Map<Integer, AccessPath> ranges = new HashMap<>();
+            for (Predicate term : ((Predicate.And) predicate).terms) {
+                Predicate.Compare compare = term instanceof Predicate.Compare ? (Predicate.Compare) term : null;
+                if (compare != null && compare.op != Predicate.Comparison.EQ && compare.op != Predicate.Comparison.NE) {
+                    boolean lower = compare.op == Predicate.Comparison.GT || compare.op == Predicate.Comparison.GE;
+                    boolean inclusive = compare.op == Predicate.Comparison.GE || compare.op == Predicate.Comparison.LE;
+                    addBound(ranges, compare.column, lower, compare.value, inclusive);
+                } else {
+                    fraction *= selectivity(term);
+                }
+            }
+            for (Map.Entry<Integer, AccessPath> range : ranges.entrySet()) {
+                int column = range.getKey();
+                AccessPath bounds = range.getValue();
+                fraction *= (1 - statistics[column].getNullFraction()) * statistics[column].rangeFraction(
+                        bounds.from, bounds.fromInclusive, bounds.to, bounds.toInclusive, equalFraction(column));
+            }
+            return fraction;
+        }
+        if (predicate instanceof Predicate.Or) {
+            double none = 1;
+            for (Predicate term : ((Predicate.Or) predicate).terms) {
+                none *= 1 - selectivity(term);
+            }
+            return 1 - none;
+        }
+        if (predicate instanceof Predicate.IsNull) {
+            Predicate.IsNull isNull = (Predicate.IsNull) predicate;
+            double nullFraction = statistics[isNull.column].getNullFraction();
+            return isNull.isNull ? nullFraction : 1 - nullFraction;
+        }
+        int column;
+        double fraction;
+        if (predicate instanceof Predicate.Compare) {
+            Predicate.Compare compare = (Predicate.Compare) predicate;
+            column = compare.column;
+            double equal = equalFraction(column);
+            switch (compare.op) {
+                case EQ: fraction = statistics[column].equalFraction(compare.value, equal); break;
+                case NE: fraction = 1 - statistics[column].equalFraction(compare.value, equal); break;
+                case LT: fraction = statistics[column].rangeFraction(null, false, compare.value, false, equal); break;
+                case LE: fraction = statistics[column].rangeFraction(null, false, compare.value, true, equal); break;
+                case GT: fraction = statistics[column].rangeFraction(compare.value, false, null, false, equal); break;
+                default: fraction = statistics[column].rangeFraction(compare.value, true, null, false, equal); break;
+            }
+        } else if (predicate instanceof Predicate.In) {
+            Predicate.In in = (Predicate.In) predicate;
+            column = in.column;
+            fraction = 0;
+            for (Object value : in.values) {
+                fraction += statistics[column].equalFraction(value, equalFraction(column));
+            }
+            fraction = Math.min(1, fraction);
+            fraction = in.negated ? 1 - fraction : fraction;
+        } else {
+            Predicate.Like like = (Predicate.Like) predicate;
+            column = like.column;
+            String prefix = like.prefix();
+            if (prefix.equals(like.pattern)) {
+                fraction = equalFraction(column);
+            } else if (!prefix.isEmpty()) {
+                fraction = statistics[column].rangeFraction(prefix, true, prefixEnd(prefix), false, equalFraction(column));
+            } else {
+                fraction = LIKE_SELECTIVITY;
+            }
+            fraction = like.negated ? 1 - fraction : fraction;
+        }
+        return (1 - statistics[column].getNullFraction()) * fraction;
+    }
+
+    // Estimated share of the non-null values equal to any one value: one over the number of distinct values.
+    private double equalFraction(int column) {
+        double rows = Math.max(1, nonNullRows(column));
+        if (columns.get(column).isPrimaryKey() || columns.get(column).isUnique()) {
+            return 1 / rows;
+        }
+        return 1 / Math.max(1, Math.min(rows, statistics[column].getDistinct()));
+    }
+
+    private double nonNullRows(int column) {
+        return liveRows * (1 - statistics[column].getNullFraction());
+    }
+
+    // A column the table does not have is NULL in every row.
+    public double estimateNonNull(String columnName) {
+        Integer column = positions.get(columnName);
+        return column == null ? 0 : nonNullRows(column);
+    }
+
+    // Estimated number of rows that share any one non-null value of columnName.
+    public double estimateRowsPerValue(String columnName) {
+        Integer column = positions.get(columnName);
+        return column == null ? 0 : Math.max(1, nonNullRows(column) * equalFraction(column));
+    }
+
+    // Estimated number of distinct combinations of the values at positions, at most the live row count.
+    public double estimateDistinct(int[] positions) {
+        double distinct = 1;
+        for (int position : positions) {
+            double rows = nonNullRows(position);
+            distinct *= Math.max(1, Math.min(rows, statistics[position].getDistinct()))
+                    + (statistics[position].getNullFraction() > 0 ? 1 : 0);
+        }
+        return Math.min(distinct, Math.max(1, liveRows));
+    }
+
+    public ColumnStatistics getStatistics(String columnName) {
+        Integer position = positions.get(columnName);
+        return position == null ? null : statistics[position];
+    }
+
+    // Rebuilds the statistics from the rows visible now, dropping what deletes left behind: null counts,
+    // ranges and distinct estimates over every value, histograms over a uniform sample of SAMPLE_ROWS.
+    // Holds the write lock so no change slips in between the scan and the swap; readers carry on.
+    public void analyze() {
+        writeLock.lock();
+        try {
+            int columnCount = columns.size();
+            ColumnStatistics[] rebuilt = new ColumnStatistics[columnCount];
+            Object[][] samples = new Object[columnCount][Math.min(SAMPLE_ROWS, liveRows)];
+            int[] sampled = new int[columnCount];
+            long[] seen = new long[columnCount];
+            Random random = new Random();
+            for (int c = 0; c < columnCount; c++) {
+                rebuilt[c] = new ColumnStatistics();
+            }
+            int capacity = storage.capacity();
+            for (int rowId = 0; rowId < capacity; rowId++) {
+                if (!versions.isVisible(rowId, RowVersions.LATEST)) {
+                    continue;
+                }
+                for (int c = 0; c < columnCount; c++) {
+                    Object value = storage.get(rowId, c);
+                    rebuilt[c].add(value);
+                    if (value == null) {
+                        continue;
+                    }
+                    // Reservoir sampling: the n-th value replaces a random sampled one with probability size/n.
+                    long n = ++seen[c];
+                    if (sampled[c] < samples[c].length) {
+                        samples[c][sampled[c]++] = value;
+                    } else {
+                        long slot = (long) (random.nextDouble() * n);
+                        if (slot < samples[c].length) {
+                            samples[c][(int) slot] = value;
+                        }
+                    }
+                }
+            }
+            for (int c = 0; c < columnCount; c++) {
+                rebuilt[c].setHistogram(samples[c], sampled[c]);
+            }
+            statistics = rebuilt;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Narrows the range collected for column, keeping the tighter of two bounds on the same side.
+    @SuppressWarnings("unchecked")
+    private void addBound(Map<Integer, AccessPath> ranges, int column, boolean lower, Object value, boolean inclusive) {
+        AccessPath range = ranges.computeIfAbsent(column, c -> new AccessPath(null, null, false, null, false));
+        Object current = lower ? range.from : range.to;
+        int cmp = current == null ? 0 : ((Comparable<Object>) value).compareTo(current);
+        if (current == null || (lower ? cmp > 0 : cmp < 0) || (cmp == 0 && !inclusive)) {
+            if (lower) {
+                range.from = value;
+                range.fromInclusive = inclusive;
+            } else {
+                range.to = value;
+                range.toInclusive = inclusive;
+            }
+        }
+    }
+
+    private int rank(Index index) {
+        if (index.isUnique()) {
+            return findColumn(index.getColumnName()).isPrimaryKey() ? 0 : 1;
+        }
+        return index.getType() == IndexType.HASH ? 2 : 3;
+    }
+
+    public void createIndex(String indexName, String columnName, IndexType type) throws Exception {
+        writeLock.lock();
+        try {
+            if (indexes.containsKey(indexName)) {
+                throw new Exception("Index already exists: " + indexName);
+            }
+            if (findColumn(columnName) == null) {
+                throw new Exception("Column does not exist: " + columnName);
+            }
+            // Index every version vacuum has not reclaimed, so older snapshots can use the index too.
+            Index index = new Index(indexName, columnName, type, false);
+            int position = positions.get(columnName);
+            for (int rowId = 0; rowId < storage.capacity(); rowId++) {
+                if (versions.isAllocated(rowId)) {
+                    index.add(storage.get(rowId, position), rowId);
+                }
+            }
+            addIndex(index);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void dropIndex(String indexName) throws Exception {
+        writeLock.lock();
+        try {
+            Index index = indexes.get(indexName);
+            if (index == null) {
+                throw new Exception("Index does not exist: " + indexName);
+            }
+            if (index.isUnique()) {
+                throw new Exception("Cannot drop constraint index: " + indexName);
+            }
+            Map<String, Index> copy = new LinkedHashMap<>(indexes);
+            copy.remove(indexName);
+            indexes = copy;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void addIndex(Index index) {
+        Map<String, Index> copy = new LinkedHashMap<>(indexes);
+        copy.put(index.getName(), index);
+        indexes = copy;
+    }
+
+    // Returns the best index on a column (constraint indexes first), or null if it has none.
+    public Index getIndex(String columnName) {
+        Index best = null;
+        for (Index index : indexes.values()) {
+            if (index.getColumnName().equals(columnName) && (best == null || rank(index) < rank(best))) {
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    private Column findColumn(String columnName) {
+        for (Column col : columns) {
+            if (col.getName().equals(columnName)) {
+                return col;
+            }
+        }
+        return null;
+    }
+
+    // Writes a new version of each matched row and ends the old one; readers keep seeing the old versions
+    // until the statement, or the transaction it is part of, commits. A failing row undoes the whole statement.
     public int update(Map<String, Object> conditions, Map<String, Object> updates) throws Exception {
-        List<Row> toUpdate = select(conditions);
-        for (Row row : toUpdate) {
-            removeFromIndexes(row);
-        }
-        
-        rows.removeAll(toUpdate);
-        
-        int count = 0;
-        for (Row row : toUpdate) {
-            Map<String, Object> newData = new HashMap<>(row.getData());
-            newData.putAll(updates);
-            insert(newData);
-            count++;
+        return updateWhere(Predicate.matching(conditions, columns), updates);
+    }
+
+    public int updateWhere(Predicate predicate, Map<String, Object> updates) throws Exception {
+        Transaction transaction = Transaction.current();
+        WriteAheadLog wal = log;
+        long lsn;
+        int count;
+        lockFor(transaction);
+        try {
+            int[] oldIds = findRowIds(predicate, RowVersions.LATEST);
+            Object[][] newRows = new Object[oldIds.length][];
+            for (int i = 0; i < oldIds.length; i++) {
+                newRows[i] = readRow(oldIds[i]);
+                assign(newRows[i], updates);
+            }
+            lsn = replace(oldIds, newRows, wal, transaction);
+            count = oldIds.length;
+        } finally {
+            writeLock.unlock();
+        }
+        if (wal != null && transaction == null) {
+            wal.awaitDurable(lsn);
         }
         return count;
     }
 
-    public int delete(Map<String, Object> conditions) {
-        List<Row> toDelete = select(conditions);
-        for (Row row : toDelete) {
-            removeFromIndexes(row);
+    // Returns the log position to wait for, or 0 when the changes are left to transaction.
+    private long replace(int[] oldIds, Object[][] newRows, WriteAheadLog wal, Transaction transaction) throws Exception {
+        int[] newIds = new int[oldIds.length];
+        int written = 0;
+        long lsn = 0;
+        try {
+            for (; written < oldIds.length; written++) {
+                int rowId = oldIds[written];
+                validateRow(newRows[written]);
+                checkUnique(newRows[written], rowId);
+
+                versions.setEnd(rowId, RowVersions.PENDING);
+                newIds[written] = addVersion(newRows[written]);
+            }
+            WriteAheadLog.Record record = null;
+            if (oldIds.length > 0) {
+                record = redoRecord(wal, transaction);
+            }
+            if (record != null) {
+                for (int i = 0; i < oldIds.length; i++) {
+                    record.update(name, readRow(oldIds[i]), newRows[i]);
+                }
+            }
+            if (transaction != null) {
+                pending(transaction, newIds, oldIds, 0);
+                return 0;
+            }
+            lsn = commit(wal, record, stamp -> {
+                for (int i = 0; i < oldIds.length; i++) {
+                    versions.setBegin(newIds[i], stamp);
+                    versions.setEnd(oldIds[i], stamp);
+                }
+            });
+        } catch (Exception e) {
+            for (int i = 0; i < written; i++) {
+                removeVersion(newIds[i]);
+                versions.setEnd(oldIds[i], RowVersions.INFINITY);
+            }
+            throw e;
         }
-        rows.removeAll(toDelete);
-        return toDelete.size();
+        retire(oldIds);
+        return lsn;
     }
 
-    private void validateRow(Map<String, Object> values) throws Exception {
-        for (Column col : columns) {
-            Object value = values.get(col.getName());
+    public int delete(Map<String, Object> conditions) throws Exception {
+        return deleteWhere(Predicate.matching(conditions, columns));
+    }
+
+    public int deleteWhere(Predicate predicate) throws Exception {
+        Transaction transaction = Transaction.current();
+        WriteAheadLog wal = log;
+        long lsn;
+        int count;
+        lockFor(transaction);
+        try {
+            int[] toDelete = findRowIds(predicate, RowVersions.LATEST);
+            lsn = remove(toDelete, wal, transaction);
+            count = toDelete.length;
+        } finally {
+            writeLock.unlock();
+        }
+        if (wal != null && transaction == null) {
+            wal.awaitDurable(lsn);
+        }
+        return count;
+    }
+
+    private long remove(int[] toDelete, WriteAheadLog wal, Transaction transaction) throws IOException {
+        WriteAheadLog.Record record = null;
+        if (toDelete.length > 0) {
+            record = redoRecord(wal, transaction);
+        }
+        if (record != null) {
+            for (int rowId : toDelete) {
+                record.delete(name, readRow(rowId));
+            }
+        }
+        if (transaction != null) {
+            for (int rowId : toDelete) {
+                versions.setEnd(rowId, RowVersions.PENDING);
+            }
+            pending(transaction, NO_ROWS, toDelete, -toDelete.length);
+            return 0;
+        }
+        long lsn = commit(wal, record, stamp -> {
+            for (int rowId : toDelete) {
+                versions.setEnd(rowId, stamp);
+            }
+        });
+        retire(toDelete);
+        liveRows -= toDelete.length;
+        return lsn;
+    }
+
+    // Appending under the clock's commit lock keeps log order equal to commit order, so a checkpoint can pair
+    // a snapshot with an exact log position. A null record (nothing to log) just commits.
+    // The versions are visible once this returns, before the caller's awaitDurable: other sessions may read
+    // a change whose record is not yet fsynced. If that fsync fails, the writer gets the error but the change
+    // stays in memory and is missing after a restart. The log refuses every write from then on (see
+    // WriteAheadLog.checkFailure), so nothing committed later can depend on it durably. Publishing only after
+    // the fsync would mean holding the commit lock across it, which rules out group commit.
+    private long commit(WriteAheadLog wal, WriteAheadLog.Record record, LongConsumer stampVersions) throws IOException {
+        stampVersions = stampVersions.andThen(stamp -> lastCommitStamp = stamp);
+        if (record == null) {
+            clock.commit(stampVersions);
+            return 0;
+        }
+        synchronized (clock) {
+            long lsn = wal.append(record);
+            clock.commit(stampVersions);
+            return lsn;
+        }
+    }
+
+    // The record a change is logged to: the transaction's, or a new one for a change that commits on its own.
+    private static WriteAheadLog.Record redoRecord(WriteAheadLog wal, Transaction transaction) {
+        if (wal == null) {
+            return null;
+        }
+        return transaction != null ? transaction.getRecord() : WriteAheadLog.commit();
+    }
+
+    // Takes the write lock for a change by transaction (null for a statement that commits on its own), once
+    // no other transaction holds uncommitted changes to this table.
+    private void lockFor(Transaction transaction) throws Exception {
+        writeLock.lock();
+        try {
+            while (owner != null && owner != transaction) {
+                if (transaction != null) {
+                    if (transaction.wouldDeadlock(owner)) {
+                        throw new Exception("Deadlock: " + name + " is held by a transaction waiting for this one");
+                    }
+                    transaction.waitingFor = this;
+                }
+                ownerEnded.await(DEADLOCK_CHECK_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            writeLock.unlock();
+            throw e;
+        } finally {
+            if (transaction != null) {
+                transaction.waitingFor = null;
+            }
+        }
+    }
+
+    // Leaves a statement's changes for transaction to commit or roll back, reserving the table to it. Its new
+    // versions begin at PENDING: visible to LATEST, which the transaction reads this table at, but to no snapshot.
+    private void pending(Transaction transaction, int[] added, int[] ended, int liveRowChange) {
+        for (int rowId : added) {
+            versions.setBegin(rowId, RowVersions.PENDING);
+        }
+        owner = transaction;
+        transaction.changed(this, added, ended, liveRowChange);
+    }
+
+    Transaction getOwner() {
+        return owner;
+    }
+
+    // Reads see the versions visible at snapshot, except that the transaction holding this table also sees
+    // its own uncommitted changes.
+    private long stamp(VersionClock.Snapshot snapshot) {
+        Transaction transaction = owner;
+        return transaction != null && transaction == Transaction.current() ? RowVersions.LATEST : snapshot.getStamp();
+    }
+
+    // Called with the commit stamp of the transaction holding this table.
+    void stampTransaction(List<int[]> added, List<int[]> ended, long stamp) {
+        lastCommitStamp = stamp;
+        for (int[] rowIds : added) {
+            for (int rowId : rowIds) {
+                versions.setBegin(rowId, stamp);
+            }
+        }
+        for (int[] rowIds : ended) {
+            for (int rowId : rowIds) {
+                versions.setEnd(rowId, stamp);
+            }
+        }
+    }
+
+    // Releases the table once transaction has committed, or undoes its changes when it rolls back: ended
+    // versions become current again before added ones are dropped, as a version may be both.
+    void endTransaction(Transaction transaction, List<int[]> added, List<int[]> ended, int liveRowChange, boolean committed) {
+        writeLock.lock();
+        try {
+            if (committed) {
+                for (int[] rowIds : ended) {
+                    retire(rowIds);
+                }
+                liveRows += liveRowChange;
+            } else {
+                for (int[] rowIds : ended) {
+                    for (int rowId : rowIds) {
+                        versions.setEnd(rowId, RowVersions.INFINITY);
+                    }
+                }
+                for (int[] rowIds : added) {
+                    for (int rowId : rowIds) {
+                        removeVersion(rowId);
+                    }
+                }
+            }
+            if (owner == transaction) {
+                owner = null;
+                ownerEnded.signalAll();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Recovery applies logged changes before the log is attached, so none of them is logged again.
+    void replayUpdate(Object[] oldRow, Object[] newRow) throws Exception {
+        writeLock.lock();
+        try {
+            replace(new int[] { findLogged(oldRow) }, new Object[][] { newRow }, null, null);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void replayDelete(Object[] oldRow) throws Exception {
+        writeLock.lock();
+        try {
+            remove(new int[] { findLogged(oldRow) }, null, null);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Logged rows carry no row id (ids depend on vacuum timing), so match on every column value;
+    // identical rows are interchangeable.
+    private int findLogged(Object[] row) throws Exception {
+        Map<String, Object> conditions = new HashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            conditions.put(columns.get(i).getName(), row[i]);
+        }
+        int[] rowIds = findRowIds(conditions, RowVersions.LATEST);
+        if (rowIds.length == 0) {
+            throw new Exception("Log replay found no matching row in " + name);
+        }
+        return rowIds[0];
+    }
+
+    // Passes the values of every row visible at snapshot to action, without building Row objects.
+    void forEachRow(VersionClock.Snapshot snapshot, Consumer<Object[]> action) {
+        int capacity = storage.capacity();
+        for (int rowId = 0; rowId < capacity; rowId++) {
+            if (versions.isVisible(rowId, snapshot.getStamp())) {
+                action.accept(readRow(rowId));
+            }
+        }
+    }
+
+    // Loads rows read back from a checkpoint. They were consistent when written, so constraints are not
+    // rechecked, and the whole batch commits with a single stamp.
+    void restore(Object[][] rows, int count) {
+        writeLock.lock();
+        try {
+            int[] rowIds = new int[count];
+            for (int i = 0; i < count; i++) {
+                rowIds[i] = addVersion(rows[i]);
+            }
+            clock.commit(stamp -> {
+                for (int rowId : rowIds) {
+                    versions.setBegin(rowId, stamp);
+                }
+                lastCommitStamp = stamp;
+            });
+            liveRows += count;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void attachLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    // Reclaims versions that ended before every open snapshot: drops their index entries and frees their slots.
+    public int vacuum() {
+        writeLock.lock();
+        try {
+            if (deadHead == deadTail) {
+                return 0;
+            }
+            long horizon = clock.beginReclaim();
+            int reclaimed = 0;
+            while (deadHead < deadTail && versions.getEnd(deadVersions[deadHead]) <= horizon) {
+                removeVersion(deadVersions[deadHead++]);
+                reclaimed++;
+            }
+            if (deadHead == deadTail) {
+                deadHead = 0;
+                deadTail = 0;
+            }
+            return reclaimed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private int addVersion(Object[] row) {
+        ColumnStatistics[] current = statistics;
+        for (int i = 0; i < current.length; i++) {
+            current[i].add(row[i]);
+        }
+        int rowId = storage.insert(row);
+        versions.prepare(rowId);
+        updateIndexes(rowId, row);
+        return rowId;
+    }
+
+    private void removeVersion(int rowId) {
+        removeFromIndexes(rowId, readRow(rowId));
+        versions.free(rowId);
+        storage.remove(rowId);
+    }
+
+    private void retire(int[] rowIds) {
+        if (deadTail + rowIds.length > deadVersions.length) {
+            int pending = deadTail - deadHead;
+            int[] grown = new int[Math.max(deadVersions.length * 2, pending + rowIds.length)];
+            System.arraycopy(deadVersions, deadHead, grown, 0, pending);
+            deadVersions = grown;
+            deadHead = 0;
+            deadTail = pending;
+        }
+        System.arraycopy(rowIds, 0, deadVersions, deadTail, rowIds.length);
+        deadTail += rowIds.length;
+    }
+
+    // Rejects values that collide with the latest version of another row on a PRIMARY KEY or UNIQUE column;
+    // selfId is the row being replaced. Versions already ended (or being ended by this statement) do not count.
+    private void checkUnique(Object[] row, int selfId) throws Exception {
+        for (int i = 0; i < columns.size(); i++) {
+            Column col = columns.get(i);
+            if (col.isPrimaryKey() || col.isUnique()) {
+                for (int rowId : getIndex(col.getName()).lookup(row[i])) {
+                    if (rowId != selfId && versions.getEnd(rowId) == RowVersions.INFINITY) {
+                        throw new Exception("Duplicate value for " + (col.isPrimaryKey() ? "primary" : "unique") + " key: " + col.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    // checkUnique for rows about to be inserted together, which must also differ from one another. Most keys
+    // are new, so a miss in the index settles them without listing the versions behind a hit.
+    private void checkUnique(List<Object[]> rows) throws Exception {
+        for (int i = 0; i < columns.size(); i++) {
+            Column col = columns.get(i);
+            if (col.isPrimaryKey() || col.isUnique()) {
+                Index index = getIndex(col.getName());
+                Set<Object> batch = rows.size() > 1 ? new HashSet<>(rows.size() * 2) : null;
+                for (Object[] row : rows) {
+                    boolean duplicate = batch != null && !batch.add(row[i]);
+                    if (!duplicate && index.containsKey(row[i])) {
+                        for (int rowId : index.lookup(row[i])) {
+                            duplicate |= versions.getEnd(rowId) == RowVersions.INFINITY;
+                        }
+                    }
+                    if (duplicate) {
+                        throw new Exception("Duplicate value for " + (col.isPrimaryKey() ? "primary" : "unique") + " key: " + col.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    private void assign(Object[] row, Map<String, Object> values) throws Exception {
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Integer position = positions.get(entry.getKey());
+            if (position == null) {
+                throw new Exception("Column does not exist: " + entry.getKey());
+            }
+            row[position] = entry.getValue();
+        }
+    }
+
+    private Object[] readRow(int rowId) {
+        Object[] row = new Object[columns.size()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = storage.get(rowId, i);
+        }
+        return row;
+    }
+
+    private void validateRow(Object[] row) throws Exception {
+        if (row.length != columns.size()) {
+            throw new Exception("Expected " + columns.size() + " values for " + name + " but got " + row.length);
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            Column col = columns.get(i);
+            Object value = row[i];
             if (value == null && col.isPrimaryKey()) {
                 throw new Exception("Primary key cannot be null: " + col.getName());
             }
@@ -95,44 +1245,234 @@ public class Table {
         }
     }
 
-    private boolean matchesConditions(Row row, Map<String, Object> conditions) {
-        for (Map.Entry<String, Object> entry : conditions.entrySet()) {
-            Object rowValue = row.get(entry.getKey());
-            if (!Objects.equals(rowValue, entry.getValue())) {
-                return false;
-            }
+    private void updateIndexes(int rowId, Object[] row) {
+        for (Index index : indexes.values()) {
+            index.add(row[positions.get(index.getColumnName())], rowId);
         }
-        return true;
     }
 
-    private void updateIndexes(Row row) {
-        for (Column col : columns) {
-            if (col.isPrimaryKey() || col.isUnique()) {
-                Object value = row.get(col.getName());
-                indexes.get(col.getName()).computeIfAbsent(value, k -> new ArrayList<>()).add(row);
+    private void removeFromIndexes(int rowId, Object[] row) {
+        for (Index index : indexes.values()) {
+            index.remove(row[positions.get(index.getColumnName())], rowId);
+        }
+    }
+
+    public String getName() { return name; }
+    public List<Column> getColumns() { return columns; }
+    public StorageType getStorageType() { return storageType; }
+    public List<Row> getRows() { return select(null); }
+    public List<Row> getRows(VersionClock.Snapshot snapshot) { return select(null, snapshot); }
+    public Collection<Index> getIndexes() { return Collections.unmodifiableCollection(indexes.values()); }
+    public long getRowsScanned() { return rowsScanned.sum(); }
+    public long getRowsReturned() { return rowsReturned.sum(); }
+    public long getIndexScans() { return indexScans.sum(); }
+    public long getFullScans() { return fullScans.sum(); }
+
+    // Share of scans whose candidate rows came from an index, or 0 before the first scan.
+    public double getIndexHitRatio() {
+        long index = indexScans.sum();
+        long total = index + fullScans.sum();
+        return total == 0 ? 0 : (double) index / total;
+    }
+
+    // Rough heap held by the rows, their versions and the indexes, for metrics.
+    public long estimateBytes() {
+        long bytes = storage.estimateBytes() + versions.estimateBytes();
+        for (Index index : indexes.values()) {
+            bytes += index.estimateBytes();
+        }
+        return bytes;
+    }
+
+    // Where findRowIds gets candidate rows: point lookups of keys, or a range of an ordered index.
+    private static final class AccessPath {
+        final Index index;
+        final Object[] keys;
+        Object from;
+        boolean fromInclusive;
+        Object to;
+        boolean toInclusive;
+
+        AccessPath(Index index, Object[] keys) {
+            this.index = index;
+            this.keys = keys;
+        }
+
+        AccessPath(Index index, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+            this.index = index;
+            this.keys = null;
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+        }
+
+        int[] rowIds() {
+            if (keys == null) {
+                return index.range(from, fromInclusive, to, toInclusive);
+            }
+            if (keys.length == 1) {
+                return index.lookup(keys[0]);
+            }
+            int[] rowIds = new int[0];
+            for (Object key : keys) {
+                int[] matches = index.lookup(key);
+                int count = rowIds.length;
+                rowIds = Arrays.copyOf(rowIds, count + matches.length);
+                System.arraycopy(matches, 0, rowIds, count, matches.length);
             }
+            return rowIds;
         }
     }
 
-    private void removeFromIndexes(Row row) {
-        for (Column col : columns) {
-            if (col.isPrimaryKey() || col.isUnique()) {
-                Object value = row.get(col.getName());
-                Map<Object, List<Row>> index = indexes.get(col.getName());
-                if (index != null) {
-                    List<Row> indexedRows = index.get(value);
-                    if (indexedRows != null) {
-                        indexedRows.remove(row);
-                        if (indexedRows.isEmpty()) {
-                            index.remove(value);
-                        }
+    // Receives the row ids of a scan a batch at a time. The array is reused, so copy what must outlive the call.
+    public interface BatchConsumer {
+        void accept(Storage storage, int[] rowIds, int count);
+    }
+
+    public final class RowCursor implements Iterator<Row>, AutoCloseable {
+        private final Predicate predicate;
+        private final VersionClock.Snapshot snapshot;
+        private final boolean ownsSnapshot;
+        private final long stamp;
+        // Candidate row ids from an index, or null to walk every slot up to end.
+        private final PrimitiveIterator.OfInt candidates;
+        private final int end;
+        private final String access;
+        private int position;
+        private final int[] batch = new int[Predicate.BATCH_SIZE];
+        private int batchCount;
+        private int batchIndex;
+        private boolean closed;
+
+        private RowCursor(Predicate predicate, VersionClock.Snapshot snapshot, boolean ownsSnapshot,
+                          PrimitiveIterator.OfInt candidates, String access) {
+            this.predicate = predicate;
+            this.snapshot = snapshot;
+            this.ownsSnapshot = ownsSnapshot;
+            this.stamp = stamp(snapshot);
+            this.candidates = candidates;
+            this.access = access;
+            // Slots added after the snapshot only hold versions it cannot see.
+            this.end = candidates == null ? storage.capacity() : 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (batchIndex == batchCount) {
+                if (closed || (candidates != null ? !candidates.hasNext() : position >= end)) {
+                    return false;
+                }
+                fill();
+            }
+            return true;
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return storage.row(batch[batchIndex++], snapshot);
+        }
+
+        private void fill() {
+            int count = 0;
+            if (candidates != null) {
+                while (count < Predicate.BATCH_SIZE && candidates.hasNext()) {
+                    int rowId = candidates.nextInt();
+                    if (versions.isVisible(rowId, stamp)) {
+                        batch[count++] = rowId;
+                    }
+                }
+            } else {
+                int limit = Math.min(end, position + Predicate.BATCH_SIZE);
+                for (; position < limit; position++) {
+                    if (versions.isVisible(position, stamp)) {
+                        batch[count++] = position;
                     }
                 }
             }
+            batchCount = predicate.filter(storage, batch, count);
+            batchIndex = 0;
+            countRows(count, batchCount);
+        }
+
+        // How candidate rows are found, in the words of explainWhere.
+        public String explain() {
+            return access;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                batchCount = batchIndex = 0;
+                if (ownsSnapshot) {
+                    snapshot.close();
+                }
+            }
         }
     }
 
-    public String getName() { return name; }
-    public List<Column> getColumns() { return columns; }
-    public List<Row> getRows() { return new ArrayList<>(rows); }
+    // Splits its range of row slots in halves until a morsel is small enough to scan, then merges left to right.
+    private final class MorselScan<T extends BatchConsumer> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final Predicate predicate;
+        private final long stamp;
+        private final Supplier<T> partials;
+        private final BinaryOperator<T> merge;
+        private final int from;
+        private final int to;
+
+        MorselScan(Predicate predicate, long stamp, Supplier<T> partials, BinaryOperator<T> merge, int from, int to) {
+            this.predicate = predicate;
+            this.stamp = stamp;
+            this.partials = partials;
+            this.merge = merge;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= MORSEL_ROWS) {
+                T partial = partials.get();
+                scanSlots(predicate, stamp, from, to, partial);
+                return partial;
+            }
+            int middle = from + (to - from) / 2 / MORSEL_ROWS * MORSEL_ROWS;
+            if (middle == from) {
+                middle = from + MORSEL_ROWS;
+            }
+            MorselScan<T> left = new MorselScan<>(predicate, stamp, partials, merge, from, middle);
+            left.fork();
+            T right = new MorselScan<>(predicate, stamp, partials, merge, middle, to).compute();
+            return merge.apply(left.join(), right);
+        }
+    }
+
+    private static final class RowIdCollector implements BatchConsumer {
+        private int[] rowIds = new int[16];
+        private int count;
+
+        @Override
+        public void accept(Storage storage, int[] batch, int batchCount) {
+            if (count + batchCount > rowIds.length) {
+                rowIds = Arrays.copyOf(rowIds, Math.max(rowIds.length * 2, count + batchCount));
+            }
+            System.arraycopy(batch, 0, rowIds, count, batchCount);
+            count += batchCount;
+        }
+
+        RowIdCollector append(RowIdCollector later) {
+            accept(null, later.rowIds, later.count);
+            return this;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(rowIds, count);
+        }
+    }
 }
@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestSuite {
     private static int passed = 0;
@@ -13,10 +15,41 @@ public class TestSuite {
         testJoin();
         testUpdate();
         testDelete();
+        testIndexLookup();
+        testSecondaryIndex();
+        testBulkDeleteAndReuse();
+        testColumnarStorage();
+        testJoinStrategies();
+        testConcurrentAccess();
+        testSnapshotIsolation();
+        testWriteAheadLog();
+        testWriteAheadLogFailure();
+        testCommitAfterLogFailure();
+        testCheckpoint();
+        testSQLParsing();
+        testPreparedStatements();
+        testPredicates();
+        testAggregates();
+        testParallelScan();
+        testCursors();
+        testOrderByLimit();
+        testStatisticsAndExplain();
+        testMultiWayJoin();
+        testBulkLoad();
+        testTransactions();
+        testCountInTransaction();
+        testWebServerAdmission();
+        testWireProtocol();
+        testResultFormats();
+        testStreamingErrors();
+        testMetrics();
 
         System.out.println("\n" + "=".repeat(50));
         System.out.println("Test Results: " + passed + " passed, " + failed + " failed");
         System.out.println("=".repeat(50));
+        if (failed > 0) {
+            System.exit(1);
+        }
     }
 
     static void testBasicCRUD() throws Exception {
@@ -209,6 +242,1746 @@ public class TestSuite {
         System.out.println("  ✓ Passed\n");
     }
 
+    static void testIndexLookup() throws Exception {
+        System.out.println("Test: Index Lookup");
+        Database db = new Database();
+        
+        List<Column> columns = Arrays.asList(
+            new Column("id", DataType.INT, true, false),
+            new Column("name", DataType.VARCHAR, false, false),
+            new Column("email", DataType.VARCHAR, false, true)
+        );
+        db.createTable("test", columns);
+        
+        Table table = db.getTable("test");
+        for (int i = 1; i <= 5; i++) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("id", i);
+            data.put("name", "Item" + (i % 2));
+            data.put("email", "item" + i + "@example.com");
+            table.insert(data);
+        }
+        
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("email", "item3@example.com");
+        condition.put("name", "Item1");
+        assertTrue(table.explain(condition).startsWith("INDEX LOOKUP"), "Should use unique index");
+        assertTrue(table.select(condition).size() == 1, "Should find 1 row through index");
+        
+        condition.put("name", "Item0");
+        assertTrue(table.select(condition).isEmpty(), "Residual condition should filter index candidates");
+        
+        condition.clear();
+        condition.put("name", "Item1");
+        assertTrue(table.explain(condition).startsWith("FULL SCAN"), "Should scan without indexed condition");
+        assertTrue(table.select(condition).size() == 3, "Should find 3 rows by scan");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testSecondaryIndex() throws Exception {
+        System.out.println("Test: Secondary Indexes");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        
+        parser.execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR, price INT)");
+        for (int i = 1; i <= 6; i++) {
+            parser.execute("INSERT INTO items (id, name, price) VALUES (" + i + ", 'Item" + (i % 3) + "', " + (i * 10) + ")");
+        }
+        
+        assertTrue(parser.execute("CREATE INDEX idx_name ON items (name)").equals("Index created: idx_name"), "Should create hash index");
+        assertTrue(parser.execute("CREATE INDEX idx_price ON items (price) USING BTREE").equals("Index created: idx_price"), "Should create btree index");
+        assertTrue(parser.execute("CREATE INDEX idx_name ON items (price)").startsWith("Error"), "Should reject duplicate index name");
+        
+        Table table = db.getTable("items");
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("name", "Item1");
+        assertTrue(table.explain(condition).contains("idx_name"), "Should use secondary hash index");
+        assertTrue(table.select(condition).size() == 2, "Should find 2 rows through index");
+        
+        parser.execute("UPDATE items SET name='Item9' WHERE id=1");
+        parser.execute("DELETE FROM items WHERE id=4");
+        assertTrue(table.select(condition).isEmpty(), "Index should be maintained by update and delete");
+        condition.put("name", "Item9");
+        assertTrue(table.select(condition).size() == 1, "Updated row should be indexed");
+        
+        assertTrue(table.selectRange("price", 20, true, 50, false).size() == 2, "Range should return prices 20 and 30");
+        assertTrue(table.selectOrdered("price", false).get(0).get("price").equals(60), "Descending order should start at 60");
+        
+        assertTrue(parser.execute("DROP INDEX idx_name").equals("Index dropped: idx_name"), "Should drop index");
+        assertTrue(table.explain(condition).startsWith("FULL SCAN"), "Dropped index should no longer be used");
+        assertTrue(parser.execute("DROP INDEX items_pkey").startsWith("Error"), "Should not drop constraint index");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testBulkDeleteAndReuse() throws Exception {
+        System.out.println("Test: Bulk Delete and Slot Reuse");
+        Database db = new Database();
+        
+        List<Column> columns = Arrays.asList(
+            new Column("id", DataType.INT, true, false),
+            new Column("bucket", DataType.INT, false, false)
+        );
+        db.createTable("test", columns);
+        
+        Table table = db.getTable("test");
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("id", i);
+            data.put("bucket", i % 4);
+            table.insert(data);
+        }
+        
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("bucket", 1);
+        assertTrue(table.delete(condition) == 250, "Should delete 250 rows");
+        assertTrue(table.getRows().size() == 750, "Should have 750 rows remaining");
+        
+        for (int i = 1000; i < 1250; i++) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("id", i);
+            data.put("bucket", 9);
+            table.insert(data);
+        }
+        assertTrue(table.getRows().size() == 1000, "Freed slots should be reused");
+        
+        condition.clear();
+        condition.put("id", 1);
+        assertTrue(table.select(condition).isEmpty(), "Deleted key should be gone from the index");
+        condition.put("id", 1100);
+        assertTrue(table.select(condition).get(0).get("bucket").equals(9), "Reinserted key should be found through the index");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testColumnarStorage() throws Exception {
+        System.out.println("Test: Columnar Storage");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        
+        parser.execute("CREATE TABLE accounts (id INT PRIMARY KEY, owner VARCHAR, active BOOLEAN) USING COLUMNAR");
+        Table table = db.getTable("accounts");
+        assertTrue(table.getStorageType() == StorageType.COLUMNAR, "Should use columnar storage");
+        
+        for (int i = 1; i <= 10; i++) {
+            parser.execute("INSERT INTO accounts (id, owner, active) VALUES (" + i + ", 'Owner" + (i % 3) + "', " + (i % 2 == 0) + ")");
+        }
+        parser.execute("INSERT INTO accounts (id, active) VALUES (11, true)");
+        
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("owner", "Owner1");
+        condition.put("active", true);
+        List<Row> rows = table.select(condition);
+        assertTrue(rows.size() == 2, "Should filter on dictionary and boolean columns");
+        
+        condition.clear();
+        condition.put("id", 11);
+        Row row = table.select(condition).get(0);
+        assertTrue(row.get("owner") == null, "Missing VARCHAR should read back as null");
+        assertTrue(!row.getData().containsKey("owner"), "Null values should be left out of row data");
+        
+        parser.execute("UPDATE accounts SET owner='Owner7' WHERE id=11");
+        assertTrue(row.get("owner") == null, "Row view should keep reading the version it was selected at");
+        assertTrue("Owner7".equals(table.select(condition).get(0).get("owner")), "New select should see the update");
+        
+        condition.clear();
+        condition.put("active", false);
+        assertTrue(table.delete(condition) == 5, "Should delete odd ids");
+        assertTrue(table.getRows().size() == 6, "Should have 6 rows remaining");
+        assertTrue(parser.execute("INSERT INTO accounts (id, owner, active) VALUES (2, 'Dup', true)").contains("primary"), "Primary key should still be enforced");
+        
+        // Values whose last slot is freed leave the dictionary, so churning a VARCHAR column stays bounded.
+        ColumnarStorage storage = new ColumnarStorage(Arrays.asList(
+            new Column("id", DataType.INT, true, false),
+            new Column("owner", DataType.VARCHAR, false, false)
+        ));
+        int kept = storage.insert(new Object[] { 1, "Kept" });
+        int rowId = storage.insert(new Object[] { 2, "Churn" });
+        long before = storage.estimateBytes();
+        for (int i = 0; i < 2000; i++) {
+            storage.remove(rowId);
+            rowId = storage.insert(new Object[] { 2, "Churn" + i });
+        }
+        assertTrue(storage.estimateBytes() < before + 64, "Dictionary should drop freed values: " + before + " -> " + storage.estimateBytes());
+        assertTrue("Churn1999".equals(storage.get(rowId, 1)) && "Kept".equals(storage.get(kept, 1)), "Reused codes should read back the right values");
+        assertTrue(storage.filterEquals(1, "Churn1998", new int[] { kept, rowId }, 2) == 0, "Freed values should no longer match");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testJoinStrategies() throws Exception {
+        System.out.println("Test: JOIN Strategies");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        
+        parser.execute("CREATE TABLE users (id INT PRIMARY KEY, name VARCHAR, city VARCHAR)");
+        parser.execute("CREATE TABLE orders (id INT PRIMARY KEY, user_id INT, city VARCHAR)");
+        for (int i = 1; i <= 3; i++) {
+            parser.execute("INSERT INTO users (id, name, city) VALUES (" + i + ", 'User" + i + "', 'City" + i + "')");
+        }
+        for (int i = 1; i <= 5; i++) {
+            parser.execute("INSERT INTO orders (id, user_id, city) VALUES (" + (100 + i) + ", " + (i % 4) + ", 'City" + (i % 2) + "')");
+        }
+        
+        assertTrue(db.explainJoin("orders", "users", "user_id", "id").startsWith("INDEX NESTED LOOP JOIN outer=orders"), "Should probe the users primary key");
+        List<Row> joined = db.join("orders", "users", "user_id", "id");
+        assertTrue(joined.size() == 4, "Orders with user_id 1-3 should match");
+        assertTrue(joined.stream().allMatch(r -> r.get("users.id").equals(r.get("orders.user_id"))), "Joined rows should agree on the join columns");
+        
+        String result = parser.execute("SELECT * FROM orders JOIN users ON users.id = orders.user_id");
+        assertTrue(result.endsWith("4 row(s)"), "Parser should honor distinct left and right join columns");
+        
+        assertTrue(db.explainJoin("users", "orders", "city", "city").startsWith("HASH JOIN build=users"), "Should hash the smaller table");
+        assertTrue(db.join("users", "orders", "city", "city").size() == 3, "Only City1 should match, once per order");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testConcurrentAccess() throws Exception {
+        System.out.println("Test: Concurrent Access");
+        Database db = new Database();
+        
+        List<Column> columns = Arrays.asList(
+            new Column("id", DataType.INT, true, false),
+            new Column("email", DataType.VARCHAR, false, true)
+        );
+        db.createTable("test", columns);
+        Table table = db.getTable("test");
+        
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicInteger inserted = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    Map<String, Object> data = new HashMap<>();
+                    data.put("id", i);
+                    data.put("email", "user" + i + "@example.com");
+                    try {
+                        table.insert(data);
+                        inserted.incrementAndGet();
+                    } catch (Exception e) {
+                        if (!e.getMessage().contains("primary")) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    Map<String, Object> condition = new HashMap<>();
+                    condition.put("id", i);
+                    if (table.select(condition).size() != 1) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        
+        assertTrue(inserted.get() == 500, "Each key should be inserted exactly once");
+        assertTrue(errors.get() == 0, "Concurrent readers should always see committed rows");
+        assertTrue(table.getRows().size() == 500, "Table should hold 500 rows");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testSnapshotIsolation() throws Exception {
+        System.out.println("Test: MVCC Snapshots and Vacuum");
+        VersionClock clock = new VersionClock();
+        List<Column> columns = Arrays.asList(
+            new Column("id", DataType.INT, true, false),
+            new Column("value", DataType.INT, false, false)
+        );
+        Table table = new Table("test", columns, StorageType.HEAP, clock);
+        for (int i = 1; i <= 3; i++) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("id", i);
+            data.put("value", i * 10);
+            table.insert(data);
+        }
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("id", 1);
+        
+        VersionClock.Snapshot snapshot = clock.openSnapshot();
+        table.update(condition, Collections.singletonMap("value", 99));
+        table.delete(Collections.singletonMap("id", 2));
+        Map<String, Object> data = new HashMap<>();
+        data.put("id", 4);
+        data.put("value", 40);
+        table.insert(data);
+        
+        assertTrue(table.getRows(snapshot).size() == 3, "Snapshot should still see the original 3 rows");
+        assertTrue(table.select(condition, snapshot).get(0).get("value").equals(10), "Snapshot should see the old version");
+        assertTrue(table.select(condition).get(0).get("value").equals(99), "New readers should see the new version");
+        assertTrue(table.getRows().size() == 3, "Latest state should have ids 1, 3 and 4");
+        
+        assertTrue(table.vacuum() == 0, "Vacuum must keep versions an open snapshot can see");
+        snapshot.close();
+        assertTrue(table.vacuum() == 2, "Vacuum should reclaim the updated and deleted versions");
+        assertTrue(table.select(condition).get(0).get("value").equals(99), "Current version should survive vacuum");
+        
+        try {
+            table.update(condition, Collections.singletonMap("id", 3));
+            fail("Update should enforce the primary key");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("primary"), "Should mention primary key");
+        }
+        assertTrue(table.select(condition).size() == 1, "Failed update should leave the row in place");
+        
+        data.put("id", 2);
+        data.put("value", 20);
+        table.insert(data);
+        assertTrue(table.select(Collections.singletonMap("id", 2)).get(0).get("value").equals(20), "Deleted key should be reusable");
+        
+        // Column rows are copied out before their snapshot closes, so vacuum never waits for the garbage collector.
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE cols (id INT PRIMARY KEY, value INT) USING COLUMNAR");
+        parser.execute("INSERT INTO cols (id, value) VALUES (1, 10)");
+        parser.execute("CREATE INDEX idx_value ON cols (value) USING BTREE");
+        Table cols = db.getTable("cols");
+        int openSnapshots = db.getClock().getActiveSnapshotCount();
+        for (int i = 0; i < 1000; i++) {
+            parser.execute("SELECT * FROM cols WHERE value > 0");
+        }
+        List<Row> kept = cols.select(condition);
+        List<Row> ordered = cols.selectOrdered("value", true);
+        List<Row> joined = db.join("cols", "cols", "id");
+        assertTrue(db.getClock().getActiveSnapshotCount() == openSnapshots, "Closed queries should release their snapshots at once");
+        parser.execute("UPDATE cols SET value = 11 WHERE id = 1");
+        assertTrue(cols.vacuum() == 1, "Vacuum should not wait on rows the caller still holds");
+        parser.execute("INSERT INTO cols (id, value) VALUES (2, 20)");
+        assertTrue(kept.get(0).get("value").equals(10) && ordered.get(0).get("value").equals(10)
+                && joined.get(0).get("cols.value").equals(10), "Kept rows should keep the values they were read with");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testWriteAheadLog() throws Exception {
+        System.out.println("Test: Write-Ahead Log Recovery");
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("wal-test");
+        List<Column> columns = Arrays.asList(
+            new Column("id", DataType.INT, true, false),
+            new Column("name", DataType.VARCHAR, false, false),
+            new Column("active", DataType.BOOLEAN, false, false)
+        );
+        
+        Database db = new Database(dir, SyncMode.COMMIT);
+        db.createTable("users", columns, StorageType.COLUMNAR);
+        db.createTable("scratch", columns);
+        db.createIndex("idx_name", "users", "name", IndexType.BTREE);
+        for (int i = 1; i <= 5; i++) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("id", i);
+            data.put("name", "User" + i);
+            data.put("active", i % 2 == 0);
+            db.getTable("users").insert(data);
+        }
+        db.getTable("users").update(Collections.singletonMap("id", 1), Collections.singletonMap("name", "Renamed"));
+        db.getTable("users").delete(Collections.singletonMap("active", false));
+        db.dropTable("scratch");
+        db.close();
+        
+        // Simulate a crash part-way through appending a record.
+        java.nio.file.Files.write(dir.resolve("wal-000001.log"), new byte[] { 0, 0, 0, 9, 1, 2 }, java.nio.file.StandardOpenOption.APPEND);
+        
+        db = new Database(dir, SyncMode.COMMIT);
+        assertTrue(!db.getTableNames().contains("scratch"), "Dropped table should stay dropped");
+        Table users = db.getTable("users");
+        assertTrue(users.getStorageType() == StorageType.COLUMNAR, "Storage type should be recovered");
+        assertTrue(users.size() == 2, "Should recover ids 2 and 4 after deleting inactive users");
+        assertTrue(users.getIndex("name") != null, "Secondary index should be recovered");
+        assertTrue(users.lookup("name", "User4").size() == 1, "Recovered index should answer lookups");
+        
+        // The torn tail is discarded, so new records append cleanly after recovery.
+        Map<String, Object> data = new HashMap<>();
+        data.put("id", 6);
+        data.put("name", "User6");
+        users.insert(data);
+        db.close();
+        
+        // Every starting capacity puts some value's last byte exactly at the buffer's end.
+        Object[] mixed = { 1, true, "ab", null, 7, false, "" };
+        for (int capacity = 1; capacity <= 32; capacity++) {
+            RowCodec codec = new RowCodec(capacity);
+            codec.putRow(mixed);
+            Object[] decoded = RowCodec.readRow(java.nio.ByteBuffer.wrap(codec.array(), 0, codec.size()));
+            assertTrue(Arrays.equals(decoded, mixed), "Row should round-trip from a " + capacity + "-byte buffer");
+        }
+        
+        db = new Database(dir, SyncMode.OS);
+        assertTrue(db.getTable("users").size() == 3, "Rows logged after recovery should survive another restart");
+        String longName = String.join("", Collections.nCopies(105, "n"));
+        assertTrue(new SQLParser(db).execute("INSERT INTO users (id, name, active) VALUES (7, '" + longName + "', true)").contains("inserted"),
+                "A long value followed by a BOOLEAN should be logged");
+        try {
+            db.getTable("users").insert(data);
+            fail("Recovered primary key should still be enforced");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("primary"), "Should mention primary key");
+        }
+        db.close();
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testWriteAheadLogFailure() throws Exception {
+        System.out.println("Test: Write-Ahead Log Write Failure");
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("wal-failure-test");
+        WriteAheadLog log = new WriteAheadLog(dir, SyncMode.COMMIT);
+        List<Column> columns = Collections.singletonList(new Column("id", DataType.INT, true, false));
+        log.awaitDurable(log.append(WriteAheadLog.createTable("before", columns, StorageType.HEAP)));
+
+        // Closing the channel underneath the log makes its next write fail.
+        java.lang.reflect.Field channel = WriteAheadLog.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((java.nio.channels.FileChannel) channel.get(log)).close();
+
+        // Two commits waiting at once: whichever flushes fails, and the other must not see its records as durable.
+        java.util.concurrent.CyclicBarrier appended = new java.util.concurrent.CyclicBarrier(2);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread[] committers = new Thread[2];
+        for (int i = 0; i < committers.length; i++) {
+            String name = "t" + i;
+            committers[i] = new Thread(() -> {
+                try {
+                    long lsn = log.append(WriteAheadLog.createTable(name, columns, StorageType.HEAP));
+                    appended.await();
+                    log.awaitDurable(lsn);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            committers[i].start();
+        }
+        for (Thread committer : committers) {
+            committer.join();
+        }
+        boolean allIo = errors.size() == 2;
+        for (Throwable error : errors) {
+            allIo &= error instanceof java.io.IOException;
+        }
+        assertTrue(allIo, "Both waiting commits should fail: " + errors);
+        try {
+            log.append(WriteAheadLog.createTable("after", columns, StorageType.HEAP));
+            fail("A failed log should refuse new records");
+        } catch (java.io.IOException e) {
+            assertTrue(e.getMessage().startsWith("Write-ahead log failed"), "Should report the earlier failure: " + e.getMessage());
+        }
+        try {
+            log.close();
+        } catch (java.io.IOException e) {
+            // The failure again.
+        }
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testCommitAfterLogFailure() throws Exception {
+        System.out.println("Test: Commits After a Failed Log Flush");
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("commit-failure-test");
+        List<Column> columns = Collections.singletonList(new Column("id", DataType.INT, true, false));
+        Database db = new Database(dir, SyncMode.COMMIT);
+        db.createTable("t", columns);
+        Table table = db.getTable("t");
+        table.insertRow(new Object[]{1});
+
+        java.lang.reflect.Field logField = Database.class.getDeclaredField("log");
+        logField.setAccessible(true);
+        WriteAheadLog log = (WriteAheadLog) logField.get(db);
+        java.lang.reflect.Field channel = WriteAheadLog.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((java.nio.channels.FileChannel) channel.get(log)).close();
+
+        try {
+            table.insertRow(new Object[]{2});
+            fail("An insert whose fsync fails should report it");
+        } catch (java.io.IOException e) {
+            // Expected.
+        }
+        // Versions are published before the fsync, so the failed insert stays visible until restart.
+        assertTrue(table.size() == 2, "The failed insert is visible in memory: " + table.size());
+
+        // From then on the log refuses writes, and the rows they would add are taken back out.
+        Map<String, Object> values = new HashMap<>();
+        values.put("id", 3);
+        try {
+            table.insert(values);
+            fail("The log should refuse writes after a failed flush");
+        } catch (java.io.IOException e) {
+            assertTrue(e.getMessage().startsWith("Write-ahead log failed"), "Should report the earlier failure: " + e.getMessage());
+        }
+        try {
+            table.delete(Collections.singletonMap("id", 1));
+            fail("The log should refuse deletes after a failed flush");
+        } catch (java.io.IOException e) {
+            assertTrue(e.getMessage().startsWith("Write-ahead log failed"), "Should report the earlier failure: " + e.getMessage());
+        }
+        assertTrue(table.size() == 2, "Refused writes should change nothing: " + table.size());
+        try {
+            db.close();
+        } catch (java.io.IOException e) {
+            // The failure again.
+        }
+
+        // Only what reached the disk comes back.
+        db = new Database(dir, SyncMode.COMMIT);
+        List<Row> rows = db.getTable("t").select(null);
+        assertTrue(rows.size() == 1 && rows.get(0).get("id").equals(1), "Only the durable row should survive: " + rows);
+        db.close();
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testCheckpoint() throws Exception {
+        System.out.println("Test: Checkpoint and Log Tail Replay");
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("checkpoint-test");
+        List<Column> columns = Arrays.asList(
+            new Column("id", DataType.INT, true, false),
+            new Column("name", DataType.VARCHAR, false, false)
+        );
+        
+        Database db = new Database(dir, SyncMode.INTERVAL);
+        db.createTable("users", columns);
+        db.createTable("events", columns, StorageType.COLUMNAR);
+        db.createIndex("idx_name", "users", "name", IndexType.HASH);
+        Table users = db.getTable("users");
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("id", i);
+            data.put("name", i % 10 == 0 ? null : "User" + i);
+            users.insert(data);
+        }
+        
+        // Writers keep going while the checkpoint is taken.
+        Table events = db.getTable("events");
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 2000; i++) {
+                    Map<String, Object> data = new HashMap<>();
+                    data.put("id", i);
+                    data.put("name", "Event" + i);
+                    events.insert(data);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        db.checkpoint();
+        writer.join();
+        assertTrue(!java.nio.file.Files.exists(dir.resolve("wal-000001.log")), "Checkpointed log segments should be deleted");
+        
+        users.update(Collections.singletonMap("id", 1), Collections.singletonMap("name", "Renamed"));
+        users.delete(Collections.singletonMap("id", 2));
+        db.createIndex("idx_event_name", "events", "name", IndexType.BTREE);
+        db.dropIndex("idx_name");
+        db.close();
+        
+        db = new Database(dir, SyncMode.INTERVAL);
+        users = db.getTable("users");
+        assertTrue(users.size() == 999, "Checkpoint plus log tail should give 999 users");
+        assertTrue(db.getTable("events").size() == 2000, "Inserts racing the checkpoint should all survive");
+        assertTrue(users.select(Collections.singletonMap("id", 1)).get(0).get("name").equals("Renamed"), "Update after checkpoint should be replayed");
+        assertTrue(users.select(Collections.singletonMap("id", 10)).get(0).get("name") == null, "Nulls should survive a checkpoint");
+        assertTrue(users.getIndex("name") == null, "Dropped index should stay dropped");
+        assertTrue(db.getTable("events").getIndex("name") != null, "Index created after checkpoint should be replayed");
+        
+        db.checkpoint();
+        db.close();
+        db = new Database(dir, SyncMode.INTERVAL);
+        assertTrue(db.getTable("users").size() == 999, "Second checkpoint should load on its own");
+        assertTrue(db.getTable("events").getStorageType() == StorageType.COLUMNAR, "Storage type should survive a checkpoint");
+        db.close();
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testSQLParsing() throws Exception {
+        System.out.println("Test: SQL Lexer and Parser");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        
+        Statement statement = SQLParser.parse("select * from users where id = 7 and name = 'O''Brien, Pat';");
+        assertTrue(statement instanceof Statement.Select, "Should parse a SELECT statement");
+        Expression where = ((Statement.Select) statement).getWhere();
+        assertTrue(where.toString().equals("id = 7 AND name = 'O''Brien, Pat'"), "Should parse the WHERE clause into an expression tree");
+        
+        parser.execute("create table people (id int primary key, name varchar, score int, active boolean)");
+        assertTrue(parser.execute("INSERT INTO people (id, name, score, active) VALUES (1, 'Smith, Jo', -5, TRUE)").equals("1 row inserted"), "Should insert a value containing a comma");
+        assertTrue(parser.execute("INSERT INTO people (id, name, score) VALUES (2, 'It''s', NULL)").equals("1 row inserted"), "Should insert escaped quotes and NULL");
+        Table people = db.getTable("people");
+        assertTrue(people.select(Collections.singletonMap("id", 1)).get(0).get("name").equals("Smith, Jo"), "Comma should stay inside the string");
+        assertTrue(people.select(Collections.singletonMap("id", 1)).get(0).get("score").equals(-5), "Should parse negative numbers");
+        assertTrue(people.select(Collections.singletonMap("id", 2)).get(0).get("name").equals("It's"), "Should unescape doubled quotes");
+        assertTrue(parser.execute("SELECT * FROM people WHERE people.id = 2").contains("1 row(s)"), "Should accept a qualified column");
+        assertTrue(parser.execute("SELECT * FROM people WHERE id = 1 AND id = 2").equals("0 rows"), "Contradictory conditions match nothing");
+        assertTrue(parser.execute("UPDATE people SET name = 'A = B', score = 3 WHERE id = 2").equals("1 row(s) updated"), "Should update with '=' inside a string");
+        assertTrue(people.select(Collections.singletonMap("id", 2)).get(0).get("name").equals("A = B"), "Updated string should be intact");
+        
+        assertTrue(parser.execute("SELECT * FROM people WHERE").startsWith("Error: Syntax error"), "Should report a syntax error");
+        assertTrue(parser.execute("INSERT INTO people (id, name) VALUES (3)").startsWith("Error"), "Should reject mismatched value count");
+        assertTrue(parser.execute("SELECT * FROM people WHERE name = 'open").startsWith("Error: Unterminated"), "Should reject an unterminated string");
+        assertTrue(parser.execute("INSERT INTO people (id) VALUES (99999999999)").contains("out of range"), "Should reject integer overflow");
+        assertTrue(parser.execute("FROB people").startsWith("Error: Unknown command"), "Should reject unknown commands");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testPreparedStatements() throws Exception {
+        System.out.println("Test: Prepared Statements");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE users (id INT PRIMARY KEY, name VARCHAR, email VARCHAR UNIQUE)");
+        
+        PreparedStatement insert = parser.prepare("INSERT INTO users (id, name, email) VALUES (?, ?, ?)");
+        assertTrue(insert.getParameterCount() == 3, "Should count three parameters");
+        assertTrue(insert == parser.prepare("  INSERT INTO users (id, name, email)\n VALUES (?, ?, ?);"), "Reformatted SQL should hit the statement cache");
+        insert.execute(1, "Alice", "alice@example.com");
+        insert.execute(2, "Robert'); DROP TABLE users; --", "bob@example.com");
+        assertTrue(db.getTableNames().contains("users"), "Bound values must not be executed as SQL");
+        assertTrue(db.getTable("users").select(Collections.singletonMap("id", 2)).get(0).get("name").equals("Robert'); DROP TABLE users; --"), "Bound string should be stored verbatim");
+        
+        PreparedStatement select = parser.prepare("SELECT * FROM users WHERE id = ?");
+        assertTrue(select.execute(1).contains("Alice"), "Should bind a WHERE parameter");
+        assertTrue(parser.prepare("UPDATE users SET name = ? WHERE id = ?").execute("Alicia", 1).equals("1 row(s) updated"), "Should bind SET and WHERE parameters");
+        try {
+            select.execute();
+            fail("Should require every parameter");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("parameters"), "Should mention parameters");
+        }
+        try {
+            insert.execute(3, "Carol", "alice@example.com");
+            fail("Prepared insert should enforce the unique constraint");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("unique"), "Should mention unique key");
+        }
+        
+        assertTrue(parser.execute("PREPARE by_name AS SELECT * FROM users WHERE name = ?").equals("Statement prepared: by_name"), "Should prepare a named statement");
+        assertTrue(parser.execute("EXECUTE by_name ('Alicia')").contains("1 row(s)"), "Should execute a named statement");
+        assertTrue(parser.execute("DEALLOCATE by_name").equals("Statement deallocated: by_name"), "Should deallocate a named statement");
+        assertTrue(parser.execute("EXECUTE by_name ('Alicia')").startsWith("Error"), "Deallocated statement should be gone");
+        assertTrue(parser.execute("SELECT * FROM users WHERE id = ?").startsWith("Error"), "Plain execute should reject placeholders");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testPredicates() throws Exception {
+        System.out.println("Test: Predicates");
+        for (String storage : new String[] { "HEAP", "COLUMNAR" }) {
+            Database db = new Database();
+            SQLParser parser = new SQLParser(db);
+            parser.execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR, price INT) USING " + storage);
+            parser.execute("INSERT INTO items (id, name, price) VALUES (1, 'apple', 5)");
+            parser.execute("INSERT INTO items (id, name, price) VALUES (2, 'apricot', 12)");
+            parser.execute("INSERT INTO items (id, name, price) VALUES (3, 'banana', 20)");
+            parser.execute("INSERT INTO items (id, name) VALUES (4, 'cherry')");
+            parser.execute("INSERT INTO items (id, price) VALUES (5, 8)");
+            
+            assertTrue(count(parser, "SELECT * FROM items WHERE price > 8") == 2, storage + ": should compare with >");
+            assertTrue(count(parser, "SELECT * FROM items WHERE price <= 8") == 2, storage + ": should compare with <=");
+            assertTrue(count(parser, "SELECT * FROM items WHERE price != 5") == 3, storage + ": != should skip NULL");
+            assertTrue(count(parser, "SELECT * FROM items WHERE 10 < price") == 2, storage + ": should accept the literal on the left");
+            assertTrue(count(parser, "SELECT * FROM items WHERE price < 6 OR name = 'banana'") == 2, storage + ": should evaluate OR");
+            assertTrue(count(parser, "SELECT * FROM items WHERE (price < 6 OR price > 15) AND name LIKE 'b%'") == 1, storage + ": should respect parentheses");
+            assertTrue(count(parser, "SELECT * FROM items WHERE NOT price < 10") == 2, storage + ": NOT should not match NULL");
+            assertTrue(count(parser, "SELECT * FROM items WHERE price BETWEEN 5 AND 12") == 3, storage + ": BETWEEN should be inclusive");
+            assertTrue(count(parser, "SELECT * FROM items WHERE price NOT BETWEEN 5 AND 12") == 1, storage + ": NOT BETWEEN should skip NULL");
+            assertTrue(count(parser, "SELECT * FROM items WHERE id IN (1, 3, 9)") == 2, storage + ": should evaluate IN");
+            assertTrue(count(parser, "SELECT * FROM items WHERE id NOT IN (1, 3)") == 3, storage + ": should evaluate NOT IN");
+            assertTrue(count(parser, "SELECT * FROM items WHERE id NOT IN (1, NULL)") == 0, storage + ": NOT IN with NULL should match nothing");
+            assertTrue(count(parser, "SELECT * FROM items WHERE price IS NULL") == 1, storage + ": should evaluate IS NULL");
+            assertTrue(count(parser, "SELECT * FROM items WHERE name IS NOT NULL") == 4, storage + ": should evaluate IS NOT NULL");
+            assertTrue(count(parser, "SELECT * FROM items WHERE name = NULL") == 0, storage + ": = NULL should match nothing");
+            assertTrue(count(parser, "SELECT * FROM items WHERE name LIKE 'ap%'") == 2, storage + ": should match a LIKE prefix");
+            assertTrue(count(parser, "SELECT * FROM items WHERE name LIKE '_an%a'") == 1, storage + ": should match LIKE wildcards");
+            assertTrue(count(parser, "SELECT * FROM items WHERE name NOT LIKE '%r%'") == 2, storage + ": should evaluate NOT LIKE");
+            assertTrue(parser.execute("SELECT * FROM items WHERE price > 'x'").startsWith("Error"), storage + ": should reject mismatched types");
+            assertTrue(parser.execute("SELECT * FROM items WHERE price > id").startsWith("Error"), storage + ": should reject column comparisons");
+            
+            assertTrue(parser.execute("UPDATE items SET price = 0 WHERE price >= 12 OR price IS NULL").equals("3 row(s) updated"), storage + ": should update by range");
+            assertTrue(parser.execute("DELETE FROM items WHERE price < 6").equals("4 row(s) deleted"), storage + ": should delete by range");
+            assertTrue(count(parser, "SELECT * FROM items") == 1, storage + ": should keep the other rows");
+        }
+        
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE events (id INT PRIMARY KEY, name VARCHAR, day INT)");
+        for (int i = 1; i <= 3000; i++) {
+            parser.execute("INSERT INTO events (id, name, day) VALUES (" + i + ", 'event" + i + "', " + (i % 100) + ")");
+        }
+        parser.execute("CREATE INDEX idx_day ON events (day) USING BTREE");
+        parser.execute("CREATE INDEX idx_name ON events (name) USING BTREE");
+        Table events = db.getTable("events");
+        
+        Predicate range = compileWhere("SELECT * FROM events WHERE day >= 10 AND day < 12", events);
+        assertTrue(events.explainWhere(range).equals("INDEX RANGE SCAN on events.day using idx_day"), "Range should use the btree index");
+        assertTrue(events.selectWhere(range).size() == 60, "Range scan should find 60 rows");
+        Predicate prefix = compileWhere("SELECT * FROM events WHERE name LIKE 'event29%'", events);
+        assertTrue(events.explainWhere(prefix).equals("INDEX RANGE SCAN on events.name using idx_name"), "LIKE prefix should use the btree index");
+        assertTrue(events.selectWhere(prefix).size() == 111, "LIKE prefix should find 111 rows");
+        Predicate in = compileWhere("SELECT * FROM events WHERE id IN (1, 2, 3) AND day > 1", events);
+        assertTrue(events.explainWhere(in).equals("INDEX LOOKUP on events.id using events_pkey"), "IN should probe the primary key");
+        assertTrue(events.selectWhere(in).size() == 2, "IN lookup should filter the remaining terms");
+        assertTrue(count(parser, "SELECT * FROM events WHERE day > 10 AND day < 5") == 0, "A contradictory range should match nothing");
+        assertTrue(count(parser, "SELECT * FROM events WHERE day > 10 AND day <= 10") == 0, "An empty range on one key should match nothing");
+        assertTrue(count(parser, "SELECT * FROM events WHERE name LIKE 'b%' AND name < 'a'") == 0, "A LIKE prefix outside the range should match nothing");
+        assertTrue(parser.execute("EXPLAIN SELECT * FROM events WHERE day > 10 AND day < 5").startsWith("INDEX RANGE SCAN on events.day"),
+                "EXPLAIN should plan a contradictory range");
+        assertTrue(!parser.execute("EXPLAIN ANALYZE SELECT * FROM events WHERE name LIKE 'b%' AND name < 'a'").startsWith("Error"),
+                "EXPLAIN ANALYZE should run a contradictory range");
+        
+        PreparedStatement between = parser.prepare("SELECT * FROM events WHERE day BETWEEN ? AND ? AND id IN (?, ?)");
+        assertTrue(between.execute(5, 6, 5, 7).contains("1 row(s)"), "Should bind BETWEEN and IN parameters");
+        assertTrue(count(parser, "SELECT * FROM events WHERE day > 50 OR id < 0") == 1470, "OR should scan across batches");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testAggregates() throws Exception {
+        System.out.println("Test: Aggregates");
+        for (String storage : new String[] { "HEAP", "COLUMNAR" }) {
+            Database db = new Database();
+            SQLParser parser = new SQLParser(db);
+            parser.execute("CREATE TABLE orders (id INT PRIMARY KEY, customer VARCHAR, amount INT) USING " + storage);
+            parser.execute("INSERT INTO orders (id, customer, amount) VALUES (1, 'alice', 10)");
+            parser.execute("INSERT INTO orders (id, customer, amount) VALUES (2, 'bob', 5)");
+            parser.execute("INSERT INTO orders (id, customer, amount) VALUES (3, 'alice', 30)");
+            parser.execute("INSERT INTO orders (id, customer) VALUES (4, 'carol')");
+            
+            String result = parser.execute("SELECT COUNT(*), SUM(amount), MIN(amount), MAX(amount), AVG(amount) FROM orders");
+            assertTrue(result.contains("COUNT(*) | SUM(amount) | MIN(amount) | MAX(amount) | AVG(amount)"), storage + ": should label aggregates");
+            assertTrue(result.contains("4 | 45 | 5 | 30 | 15.0"), storage + ": aggregates should skip NULL");
+            assertTrue(parser.execute("SELECT COUNT(amount) FROM orders").contains("\n3\n"), storage + ": COUNT(column) should skip NULL");
+            assertTrue(parser.execute("SELECT COUNT(*) FROM orders WHERE amount > 7").contains("\n2\n"), storage + ": should aggregate filtered rows");
+            assertTrue(parser.execute("SELECT SUM(amount), COUNT(*) FROM orders WHERE id > 10").contains("null | 0"), storage + ": empty input gives one row");
+            
+            result = parser.execute("SELECT customer, COUNT(*), SUM(amount) FROM orders GROUP BY customer");
+            assertTrue(result.contains("alice | 2 | 40") && result.contains("bob | 1 | 5") && result.contains("carol | 1 | null"), storage + ": should group by a string column");
+            assertTrue(result.endsWith("3 row(s)"), storage + ": should return one row per group");
+            result = parser.execute("SELECT amount, COUNT(*) FROM orders GROUP BY amount");
+            assertTrue(result.contains("null | 1") && result.endsWith("4 row(s)"), storage + ": NULL keys should form one group");
+            assertTrue(parser.execute("SELECT MIN(customer), MAX(customer) FROM orders").contains("alice | carol"), storage + ": MIN/MAX should work on strings");
+            
+            assertTrue(parser.execute("SELECT customer, COUNT(*) FROM orders").startsWith("Error"), storage + ": ungrouped columns should be rejected");
+            assertTrue(parser.execute("SELECT SUM(customer) FROM orders").startsWith("Error"), storage + ": SUM should require INT");
+            assertTrue(parser.execute("SELECT * FROM orders GROUP BY customer").startsWith("Error"), storage + ": SELECT * should not group");
+        }
+        
+        Database db = new Database();
+        db.createTable("numbers", Arrays.asList(new Column("id", DataType.INT, true, false), new Column("bucket", DataType.INT, false, false)), StorageType.COLUMNAR);
+        Table table = db.getTable("numbers");
+        for (int i = 0; i < 5000; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", i);
+            row.put("bucket", i % 7);
+            table.insert(row);
+        }
+        HashAggregation aggregation = new HashAggregation(table.getColumns(), new int[] { 1 },
+                new HashAggregation.Function[] { HashAggregation.Function.COUNT, HashAggregation.Function.SUM }, new int[] { -1, 0 });
+        table.scan(Predicate.TRUE, aggregation);
+        assertTrue(aggregation.getGroupCount() == 7, "Should find 7 int groups across batches");
+        long total = 0;
+        for (Object[] group : aggregation.getResults()) {
+            total += (Long) group[2];
+        }
+        assertTrue(total == 4999L * 5000 / 2, "Group sums should add up to the table sum");
+        assertTrue(new SQLParser(db).execute("SELECT COUNT(*) FROM numbers").contains("\n5000\n"), "COUNT(*) should come from table metadata");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testParallelScan() throws Exception {
+        System.out.println("Test: Parallel Scan");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE facts (id INT PRIMARY KEY, bucket INT, tag VARCHAR) USING COLUMNAR");
+        Table table = db.getTable("facts");
+        int rows = Table.PARALLEL_SCAN_ROWS * 2 + 123;
+        for (int i = 0; i < rows; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", i);
+            row.put("bucket", i % 10 == 0 ? null : i % 13);
+            row.put("tag", "t" + (i % 5));
+            table.insert(row);
+        }
+        parser.execute("DELETE FROM facts WHERE id < 1000");
+        
+        String[] queries = {
+            "SELECT bucket, COUNT(*), SUM(id), MIN(id), MAX(tag) FROM facts GROUP BY bucket",
+            "SELECT tag, COUNT(bucket), AVG(bucket), MIN(tag) FROM facts WHERE id > 5000 OR bucket = 3 GROUP BY tag",
+            "SELECT COUNT(*), MAX(id) FROM facts WHERE bucket IS NULL"
+        };
+        ForkJoinPool pool = new ForkJoinPool(4);
+        db.setScanPool(null);
+        List<String> serial = new ArrayList<>();
+        for (String query : queries) {
+            serial.add(parser.execute(query));
+        }
+        List<Row> serialRows = table.select(Collections.singletonMap("tag", "t2"));
+        db.setScanPool(pool);
+        for (int i = 0; i < queries.length; i++) {
+            assertTrue(parser.execute(queries[i]).equals(serial.get(i)), "Parallel aggregate should match serial: " + queries[i]);
+        }
+        List<Row> parallelRows = table.select(Collections.singletonMap("tag", "t2"));
+        boolean sameOrder = serialRows.size() == parallelRows.size();
+        for (int i = 0; sameOrder && i < serialRows.size(); i++) {
+            sameOrder = serialRows.get(i).get("id").equals(parallelRows.get(i).get("id"));
+        }
+        assertTrue(sameOrder, "Parallel select should return rows in slot order");
+        assertTrue(parallelRows.size() == (rows - 1000) / 5, "Parallel select should find every match");
+        pool.shutdown();
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testCursors() throws Exception {
+        System.out.println("Test: Cursors");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE logs (id INT PRIMARY KEY, level VARCHAR)");
+        Table table = db.getTable("logs");
+        for (int i = 0; i < 3000; i++) {
+            parser.execute("INSERT INTO logs (id, level) VALUES (" + i + ", '" + (i % 3 == 0 ? "error" : "info") + "')");
+        }
+        int openSnapshots = db.getClock().getActiveSnapshotCount();
+        
+        Predicate errors = compileWhere("SELECT * FROM logs WHERE level = 'error'", table);
+        int count = 0;
+        boolean allErrors = true;
+        try (Table.RowCursor cursor = table.openCursor(errors)) {
+            parser.execute("INSERT INTO logs (id, level) VALUES (5000, 'error')");
+            while (cursor.hasNext()) {
+                allErrors &= cursor.next().get("level").equals("error");
+                count++;
+            }
+            assertTrue(allErrors, "Cursor should only return matching rows");
+            assertTrue(!cursor.hasNext(), "Exhausted cursor should stay exhausted");
+        }
+        assertTrue(count == 1000, "Cursor should read its snapshot, not later inserts");
+        try (Table.RowCursor cursor = table.openCursor(compileWhere("SELECT * FROM logs WHERE id IN (7, 5000)", table))) {
+            assertTrue(cursor.next().get("id").equals(7) && cursor.next().get("id").equals(5000) && !cursor.hasNext(), "Index cursor should return its lookups");
+        }
+        assertTrue(db.getClock().getActiveSnapshotCount() == openSnapshots, "Closing a cursor should release its snapshot");
+        
+        StringBuilder streamed = new StringBuilder();
+        parser.execute("SELECT * FROM logs WHERE id < 10", streamed);
+        assertTrue(streamed.toString().equals(parser.execute("SELECT * FROM logs WHERE id < 10")), "Streamed and string results should match");
+        assertTrue(streamed.toString().endsWith("10 row(s)"), "Streamed result should end with the row count");
+        StringBuilder empty = new StringBuilder();
+        parser.execute("SELECT * FROM logs WHERE id < 0", empty);
+        assertTrue(empty.toString().equals("0 rows"), "Empty result should have no header");
+        
+        // A client that disconnects mid-result: the write fails, and the cursor must still be closed.
+        Appendable disconnecting = new Appendable() {
+            int written;
+            public Appendable append(CharSequence text) throws java.io.IOException {
+                written += text.length();
+                if (written > 2000) {
+                    throw new java.io.IOException("Connection reset");
+                }
+                return this;
+            }
+            public Appendable append(CharSequence text, int start, int end) throws java.io.IOException {
+                return append(text.subSequence(start, end));
+            }
+            public Appendable append(char c) throws java.io.IOException {
+                return append(String.valueOf(c));
+            }
+        };
+        try {
+            parser.execute("SELECT * FROM logs", disconnecting);
+            fail("Should report the failed write");
+        } catch (java.io.IOException e) {
+            assertTrue(e.getMessage().equals("Connection reset"), "Should pass on the write failure");
+        }
+        assertTrue(db.getClock().getActiveSnapshotCount() == openSnapshots, "Failed stream should release its snapshot");
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testOrderByLimit() throws Exception {
+        System.out.println("Test: ORDER BY and LIMIT");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE scores (id INT PRIMARY KEY, player VARCHAR, points INT)");
+        parser.execute("INSERT INTO scores (id, player, points) VALUES (1, 'ann', 30)");
+        parser.execute("INSERT INTO scores (id, player, points) VALUES (2, 'ben', 10)");
+        parser.execute("INSERT INTO scores (id, player) VALUES (3, 'cat')");
+        parser.execute("INSERT INTO scores (id, player, points) VALUES (4, 'dan', 30)");
+        parser.execute("INSERT INTO scores (id, player, points) VALUES (5, 'eve', 20)");
+        
+        String result = parser.execute("SELECT player FROM scores WHERE id = 1");
+        assertTrue(result.startsWith("player\n") && result.contains("{player=ann}"), "Should project the selected column");
+        assertTrue(ids(parser, "SELECT * FROM scores ORDER BY points").equals("[3, 2, 5, 1, 4]"), "ASC should put NULL first and keep ties in order");
+        assertTrue(ids(parser, "SELECT * FROM scores ORDER BY points DESC, id DESC").equals("[4, 1, 5, 2, 3]"), "Should sort by several keys");
+        assertTrue(ids(parser, "SELECT * FROM scores ORDER BY points DESC LIMIT 2").equals("[1, 4]"), "Top-K should keep ties in scan order");
+        assertTrue(ids(parser, "SELECT * FROM scores ORDER BY player LIMIT 2 OFFSET 1").equals("[2, 3]"), "Should skip OFFSET rows");
+        assertTrue(ids(parser, "SELECT * FROM scores LIMIT 3").equals("[1, 2, 3]"), "LIMIT without ORDER BY should stop early");
+        assertTrue(ids(parser, "SELECT * FROM scores LIMIT 0").equals("[]"), "LIMIT 0 should return nothing");
+        assertTrue(ids(parser, "SELECT * FROM scores WHERE points > 10 ORDER BY id DESC OFFSET 1").equals("[4, 1]"), "OFFSET should work alone");
+        assertTrue(parser.prepare("SELECT * FROM scores ORDER BY id LIMIT ?").execute(1).endsWith("1 row(s)"), "LIMIT should take a parameter");
+        assertTrue(parser.execute("SELECT * FROM scores LIMIT -1").startsWith("Error"), "Negative LIMIT should be rejected");
+        assertTrue(parser.execute("SELECT * FROM scores ORDER BY COUNT(*)").startsWith("Error"), "Plain SELECT cannot order by an aggregate");
+        
+        result = parser.execute("SELECT points, COUNT(*) FROM scores GROUP BY points ORDER BY COUNT(*) DESC, points LIMIT 2");
+        assertTrue(result.contains("30 | 2\nnull | 1\n") && result.endsWith("2 row(s)"), "Should order and limit groups");
+        
+        try (ResultCursor rows = parser.prepare("SELECT player, points FROM scores WHERE points >= ? ORDER BY points DESC").query(20)) {
+            assertTrue(rows.getColumns().equals(Arrays.asList("player", "points")), "Cursor should list the selected columns");
+            assertTrue(rows.next().get("player").equals("ann") && rows.next().get("player").equals("dan"), "Query should return rows in order");
+        }
+        
+        parser.execute("CREATE INDEX idx_points ON scores (points) USING BTREE");
+        Table table = db.getTable("scores");
+        assertTrue(ids(parser, "SELECT * FROM scores ORDER BY points DESC LIMIT 3").equals("[1, 4, 5]"), "Index order should give the top rows");
+        assertTrue(ids(parser, "SELECT * FROM scores WHERE points >= 20 ORDER BY points").equals("[5, 1, 4]"), "Index range should come back in order");
+        try (Table.RowCursor cursor = table.openOrderedCursor(Predicate.TRUE, "points", true)) {
+            assertTrue(cursor != null && cursor.next().get("id").equals(3), "Ordered cursor should walk the index, NULL first");
+        }
+        assertTrue(table.openOrderedCursor(compileWhere("SELECT * FROM scores WHERE id = 2", table), "points", true) == null, "A primary key lookup should beat index order");
+        assertTrue(table.openOrderedCursor(Predicate.TRUE, "player", true) == null, "Unindexed columns have no ordered cursor");
+        
+        parser.execute("CREATE TABLE big (id INT PRIMARY KEY, v INT)");
+        for (int i = 0; i < 1000; i++) {
+            parser.execute("INSERT INTO big (id, v) VALUES (" + i + ", " + ((i * 7919) % 1000) + ")");
+        }
+        String inMemory = parser.execute("SELECT * FROM big ORDER BY v DESC");
+        parser.setSortRunRows(64);
+        assertTrue(parser.execute("SELECT * FROM big ORDER BY v DESC").equals(inMemory), "Spilled sort should match the in-memory sort");
+        
+        ExternalSort sort = new ExternalSort(Comparator.comparing(row -> (Integer) row[0]), 10);
+        for (int i = 0; i < 95; i++) {
+            sort.add(new Object[] { (i * 37) % 95, "row" + i });
+        }
+        assertTrue(sort.getRunCount() == 9, "Should spill full runs to disk");
+        Iterator<Object[]> sorted = sort.sorted();
+        boolean ordered = true;
+        for (int i = 0; i < 95; i++) {
+            ordered &= sorted.next()[0].equals(i);
+        }
+        assertTrue(ordered && !sorted.hasNext(), "Merged runs should be in order");
+        sort.close();
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testStatisticsAndExplain() throws Exception {
+        System.out.println("Test: Statistics and EXPLAIN");
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 200_000; i++) {
+            sketch.add(i % 50_000);
+        }
+        assertTrue(Math.abs(sketch.estimate() - 50_000) < 5_000, "HyperLogLog should estimate 50000 distinct values within 10%");
+        HyperLogLog small = new HyperLogLog();
+        for (int i = 0; i < 40; i++) {
+            small.add("v" + (i % 10));
+        }
+        assertTrue(Math.abs(small.estimate() - 10) <= 1, "Few distinct values should be counted almost exactly");
+        
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE readings (id INT PRIMARY KEY, sensor INT, flag BOOLEAN, note VARCHAR)");
+        Table readings = db.getTable("readings");
+        // Nine in ten readings come from sensor 1000; the rest are spread over 1800-1999.
+        for (int i = 0; i < 2000; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", i);
+            row.put("sensor", i < 1800 ? 1000 : i);
+            row.put("flag", i % 2 == 0);
+            if (i % 4 == 0) {
+                row.put("note", "n" + i);
+            }
+            readings.insert(row);
+        }
+        ColumnStatistics sensor = readings.getStatistics("sensor");
+        assertTrue(sensor.getMin().equals(1000) && sensor.getMax().equals(1999), "Inserts should maintain min and max");
+        assertTrue(Math.abs(sensor.getDistinct() - 201) < 10, "Inserts should maintain the distinct estimate");
+        assertTrue(Math.abs(readings.getStatistics("note").getNullFraction() - 0.75) < 1e-9, "Inserts should count NULLs");
+        
+        Predicate high = compileWhere("SELECT * FROM readings WHERE sensor >= 1800", readings);
+        assertTrue(readings.estimateRows(high) > 300, "Without a histogram the range is spread evenly between min and max");
+        assertTrue(parser.execute("ANALYZE readings").equals("Table analyzed: readings"), "Should analyze one table");
+        assertTrue(sensor != readings.getStatistics("sensor") && readings.getStatistics("sensor").hasHistogram(), "ANALYZE should build a histogram");
+        assertTrue(Math.abs(readings.estimateRows(high) - 200) < 50, "The histogram should see the skew");
+        assertTrue(Math.abs(readings.estimateRows(compileWhere("SELECT * FROM readings WHERE id BETWEEN 100 AND 299", readings)) - 200) < 50,
+                "Bounds on one column should be estimated as one range");
+        assertTrue(Math.abs(readings.estimateRows(compileWhere("SELECT * FROM readings WHERE note IS NULL OR flag = TRUE", readings)) - 1750) < 100,
+                "OR should combine its terms");
+        
+        parser.execute("CREATE INDEX idx_flag ON readings (flag)");
+        parser.execute("CREATE INDEX idx_sensor ON readings (sensor) USING BTREE");
+        assertTrue(readings.explainWhere(compileWhere("SELECT * FROM readings WHERE flag = TRUE", readings)).startsWith("FULL SCAN"),
+                "An index matching half the rows should lose to a scan");
+        assertTrue(readings.explainWhere(compileWhere("SELECT * FROM readings WHERE sensor = 1000", readings)).startsWith("FULL SCAN"),
+                "The histogram should mark a common value as unselective");
+        assertTrue(readings.explainWhere(compileWhere("SELECT * FROM readings WHERE sensor = 1900", readings)).startsWith("INDEX LOOKUP"),
+                "A rare value should use the index");
+        assertTrue(readings.explainWhere(compileWhere("SELECT * FROM readings WHERE flag = TRUE AND sensor > 1990", readings))
+                .equals("INDEX RANGE SCAN on readings.sensor using idx_sensor"), "The most selective index should win");
+        parser.execute("DELETE FROM readings WHERE sensor = 1000");
+        parser.execute("ANALYZE");
+        assertTrue(readings.explainWhere(compileWhere("SELECT * FROM readings WHERE sensor = 1000", readings)).startsWith("INDEX"),
+                "ANALYZE should notice the deleted values");
+        
+        assertTrue(parser.execute("EXPLAIN SELECT * FROM readings WHERE id = 1900").equals("INDEX LOOKUP on readings.id using readings_pkey  (rows=1)"),
+                "EXPLAIN should show the access path and estimate");
+        String[] plan = parser.execute("EXPLAIN ANALYZE SELECT * FROM readings WHERE sensor > 1900 ORDER BY note DESC LIMIT 3").split("\n");
+        assertTrue(plan.length == 4 && plan[0].startsWith("LIMIT 3  (rows=3 actual=3 time="), "EXPLAIN ANALYZE should show actual rows and time");
+        assertTrue(plan[1].startsWith("-> TOP-K SORT by note DESC keeping 3"), "A sort should be shown under the LIMIT");
+        assertTrue(plan[2].startsWith("  -> INDEX RANGE SCAN on readings.sensor using idx_sensor") && plan[2].contains("actual=99 "), "The scan should report every row it read");
+        assertTrue(plan[3].startsWith("Execution time: "), "EXPLAIN ANALYZE should report the total time");
+        plan = parser.execute("EXPLAIN ANALYZE SELECT flag, COUNT(*) FROM readings GROUP BY flag").split("\n");
+        assertTrue(plan[0].startsWith("HASH AGGREGATE by flag  (rows=2 actual=2") && plan[1].contains("actual=200 "), "Aggregates should report groups and input rows");
+        assertTrue(!parser.execute("EXPLAIN SELECT * FROM readings ORDER BY note").contains("actual"), "Plain EXPLAIN should not run the query");
+        assertTrue(parser.execute("EXPLAIN DELETE FROM readings").startsWith("Error"), "Only SELECT can be explained");
+        assertTrue(parser.execute("ANALYZE missing").startsWith("Error"), "Should reject unknown tables");
+        
+        // Every reading matches one of two kinds: fetching each match through the index costs more than
+        // hashing the two kinds once. A few stations matching a few readings each should probe the index.
+        parser.execute("DROP INDEX idx_flag");
+        parser.execute("CREATE TABLE kinds (flag BOOLEAN PRIMARY KEY, label VARCHAR)");
+        parser.execute("INSERT INTO kinds (flag, label) VALUES (TRUE, 'even')");
+        parser.execute("INSERT INTO kinds (flag, label) VALUES (FALSE, 'odd')");
+        assertTrue(db.explainJoin("readings", "kinds", "flag", "flag").startsWith("HASH JOIN build=kinds"), "Should hash the small table");
+        assertTrue(db.join("readings", "kinds", "flag", "flag").size() == 200, "Every reading should find its kind");
+        parser.execute("CREATE TABLE stations (id INT PRIMARY KEY, name VARCHAR)");
+        for (int i = 0; i < 10; i++) {
+            parser.execute("INSERT INTO stations (id, name) VALUES (" + (1800 + i) + ", 'S" + i + "')");
+        }
+        parser.execute("DROP INDEX idx_sensor");
+        for (int i = 0; i < 5000; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", 10_000 + i);
+            row.put("sensor", i);
+            readings.insert(row);
+        }
+        parser.execute("CREATE INDEX idx_sensor ON readings (sensor)");
+        assertTrue(db.explainJoin("stations", "readings", "id", "sensor").startsWith("INDEX NESTED LOOP JOIN outer=stations"), "Should probe the big table's index");
+        assertTrue(db.join("stations", "readings", "id", "sensor").size() == 20, "Both plans should join the same rows");
+        String join = parser.execute("EXPLAIN ANALYZE SELECT * FROM stations JOIN readings ON stations.id = readings.sensor");
+        assertTrue(join.startsWith("INDEX NESTED LOOP JOIN outer=stations inner=readings.sensor  (rows=") && join.contains("actual=20 "), "EXPLAIN should cover joins");
+        db.close();
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testMultiWayJoin() throws Exception {
+        System.out.println("Test: Multi-way JOIN");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE regions (id INT PRIMARY KEY, name VARCHAR)");
+        parser.execute("CREATE TABLE customers (id INT PRIMARY KEY, name VARCHAR, region INT)");
+        parser.execute("CREATE TABLE products (id INT PRIMARY KEY, title VARCHAR, price INT)");
+        parser.execute("CREATE TABLE sales (id INT PRIMARY KEY, customer INT, product INT, qty INT)");
+        for (int i = 0; i < 4; i++) {
+            parser.execute("INSERT INTO regions (id, name) VALUES (" + i + ", 'R" + i + "')");
+        }
+        for (int i = 0; i < 40; i++) {
+            parser.execute("INSERT INTO customers (id, name, region) VALUES (" + i + ", 'C" + i + "', " + (i % 4) + ")");
+        }
+        for (int i = 0; i < 20; i++) {
+            parser.execute("INSERT INTO products (id, title, price) VALUES (" + i + ", 'P" + i + "', " + (i * 5) + ")");
+        }
+        for (int i = 0; i < 2000; i++) {
+            parser.execute("INSERT INTO sales (id, customer, product, qty) VALUES (" + i + ", " + (i % 40) + ", " + (i % 20) + ", " + (i % 7) + ")");
+        }
+        parser.execute("CREATE INDEX idx_sales_customer ON sales (customer)");
+        parser.execute("ANALYZE");
+        
+        String from = " FROM sales JOIN customers ON sales.customer = customers.id JOIN products ON products.id = sales.product"
+                + " JOIN regions ON customers.region = regions.id WHERE regions.name = 'R1' AND price < 40 AND qty = 3";
+        int expected = 0;
+        for (int i = 0; i < 2000; i++) {
+            if ((i % 40) % 4 == 1 && (i % 20) * 5 < 40 && i % 7 == 3) {
+                expected++;
+            }
+        }
+        assertTrue(count(parser, "SELECT *" + from) == expected, "A 4-way join should match a nested loop over every row");
+        try (ResultCursor rows = parser.prepare("SELECT regions.name, title, qty" + from + " ORDER BY customers.name DESC, sales.id LIMIT 2").query()) {
+            Row row = rows.next();
+            assertTrue(rows.getColumns().equals(Arrays.asList("regions.name", "products.title", "sales.qty")), "Columns should be qualified");
+            assertTrue(row.get("regions.name").equals("R1") && row.get("sales.qty").equals(3), "Projected values should come from each table");
+            assertTrue(rows.hasNext() && !rows.next().equals(row) && !rows.hasNext(), "LIMIT should apply to the joined rows");
+        }
+        try (ResultCursor rows = parser.prepare("SELECT *" + from).query()) {
+            Row row = rows.next();
+            assertTrue(row instanceof JoinedRow && row.get("customers.region").equals(1) && row.get("products.price") != null,
+                    "Joined rows should read through to the base rows");
+            assertTrue(row.getData().size() == 12 && row.get("qty") == null, "Joined rows should only know qualified names");
+        }
+        
+        // The filtered regions table shrinks to one row, so it is joined early instead of last.
+        String[] plan = parser.execute("EXPLAIN ANALYZE SELECT *" + from).split("\n");
+        assertTrue(plan[0].contains("actual=" + expected + " "), "The top join should produce every row");
+        String text = String.join("\n", plan);
+        assertTrue(text.contains("FULL SCAN on regions  (rows=1 actual=1 "), "The regions filter should run below the join");
+        assertTrue(text.contains("FULL SCAN on products  (rows=8 actual=8 "), "The products filter should run below the join");
+        assertTrue(text.contains("INDEX NESTED LOOP JOIN outer=customers+regions inner=sales.customer"),
+                "The few matching customers should probe the sales index");
+        text = parser.execute("EXPLAIN SELECT * FROM sales JOIN customers ON sales.customer = customers.id WHERE customers.id = 7");
+        assertTrue(text.startsWith("INDEX NESTED LOOP JOIN outer=customers inner=sales.customer  (rows=")
+                && text.endsWith("\n-> INDEX LOOKUP on customers.id using customers_pkey  (rows=1)"),
+                "A filter on the smaller side should drive the join from its index");
+        
+        assertTrue(parser.execute("SELECT * FROM sales JOIN customers ON sales.customer = customers.id WHERE id = 1").startsWith("Error"),
+                "Should reject ambiguous columns");
+        assertTrue(parser.execute("SELECT * FROM sales JOIN customers ON sales.customer = customers.id WHERE qty = 1 OR region = 2").startsWith("Error"),
+                "A WHERE term across tables cannot be pushed down");
+        assertTrue(parser.execute("SELECT * FROM sales JOIN customers ON sales.customer = sales.product").startsWith("Error"),
+                "ON must name the joined table");
+        assertTrue(parser.execute("SELECT * FROM sales JOIN sales ON sales.id = sales.customer").startsWith("Error"),
+                "A table cannot be joined to itself");
+        db.close();
+        
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testBulkLoad() throws Exception {
+        System.out.println("Test: Bulk Load (multi-row INSERT, COPY, insertBatch)");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE people (id INT PRIMARY KEY, name VARCHAR UNIQUE, score INT, active BOOLEAN)");
+        Table people = db.getTable("people");
+
+        assertTrue(parser.execute("INSERT INTO people (id, name) VALUES (1, 'Ann'), (2, 'Bob'), (3, 'Cy')").equals("3 rows inserted"), "Should insert every row");
+        assertTrue(people.size() == 3, "Should hold 3 rows");
+        assertTrue(parser.execute("INSERT INTO people (id, name) VALUES (4, 'Di'), (4, 'Ed')").contains("primary"), "Should mention primary key");
+        assertTrue(parser.execute("INSERT INTO people (id, name) VALUES (5, 'Fay'), (6, 'Ann')").contains("unique"), "Should mention unique key");
+        assertTrue(parser.execute("INSERT INTO people (id, name) VALUES (7, 'Gus'), (8, 9)").startsWith("Error"), "Invalid value should fail the batch");
+        assertTrue(people.size() == 3, "A failed batch should insert nothing");
+        assertTrue(people.select(Collections.singletonMap("id", 4)).isEmpty(), "No row of a failed batch should be visible");
+
+        people.insertBatch(Arrays.asList(new Object[] { 10, "Jo", 1, true }, new Object[] { 11, "Kim", 2, false }));
+        assertTrue(people.lookup("name", "Kim").size() == 1, "Batch rows should be indexed");
+        try {
+            people.insertBatch(Collections.singletonList(new Object[] { 12, "Lu" }));
+            fail("Short row should fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("Expected 4 values"), "Should report the value count");
+        }
+
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("copy-test");
+        java.nio.file.Path csv = dir.resolve("people.csv");
+        java.nio.file.Files.write(csv, ("id,name,score,active\r\n"
+                + "20,\"Smith, Jo\",5,TRUE\r\n"
+                + "21,\"Say \"\"hi\"\"\",,false\r\n"
+                + "\r\n"
+                + "22,,-7,\n").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(parser.execute("COPY people FROM '" + csv + "' HEADER").equals("3 row(s) copied"), "Should copy 3 rows");
+        Row row = people.select(Collections.singletonMap("id", 20)).get(0);
+        assertTrue(row.get("name").equals("Smith, Jo") && row.get("score").equals(5) && row.get("active").equals(true), "Should parse quoted commas, ints and booleans");
+        row = people.select(Collections.singletonMap("id", 21)).get(0);
+        assertTrue(row.get("name").equals("Say \"hi\"") && row.get("score") == null, "Should unescape quotes and read empty values as NULL");
+        assertTrue(people.select(Collections.singletonMap("id", 22)).get(0).get("name") == null, "Empty value should be NULL");
+
+        // The last line counts without a line break after it, quoted line breaks included.
+        java.nio.file.Files.write(csv, "23,Al\n24,Bo".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(parser.execute("COPY people (id, name) FROM '" + csv + "'").equals("2 row(s) copied"), "Should copy the line without a line break");
+        assertTrue(people.select(Collections.singletonMap("id", 24)).get(0).get("name").equals("Bo"), "Should parse the last line");
+        java.nio.file.Files.write(csv, "25,Cal\n26,\"Di\nEl\"".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(parser.execute("COPY people (id, name) FROM '" + csv + "'").equals("2 row(s) copied"), "Should copy a last record with a quoted line break");
+        assertTrue(people.select(Collections.singletonMap("id", 26)).get(0).get("name").equals("Di\nEl"), "Should keep the quoted line break");
+
+        java.nio.file.Files.write(csv, "Mo,30\nNed,31\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        parser.execute("COPY people (name, id) FROM '" + csv + "'");
+        assertTrue(people.select(Collections.singletonMap("id", 31)).get(0).get("name").equals("Ned"), "Should map fields through a column list");
+
+        java.nio.file.Files.write(csv, "40,A\n41,B\n42,x,y,true,extra\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(parser.execute("COPY people (id, name) FROM '" + csv + "'").startsWith("Error: Line 3:"), "Should report the failing line");
+        java.nio.file.Files.write(csv, "id,score\n50,1\n51,lots\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(parser.execute("COPY people (id, score) FROM '" + csv + "' HEADER").trim().equals("Error: Line 3: invalid INT for column score: lots"), "Should name the line, column and value");
+        assertTrue(people.select(Collections.singletonMap("id", 50)).isEmpty(), "A chunk with a bad line should insert nothing");
+
+        // Enough rows for several chunks, cut between lines and inserted in file order.
+        parser.execute("CREATE TABLE events (id INT PRIMARY KEY, note VARCHAR, n INT) USING COLUMNAR");
+        StringBuilder events = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            events.append(i).append(",\"note ").append(i).append("\n(multi-line)\",").append(i % 7).append('\n');
+        }
+        java.nio.file.Files.write(csv, events.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(csv.toFile().length() > 2 * CsvLoader.CHUNK_BYTES, "File should span several chunks");
+        assertTrue(parser.execute("COPY events FROM '" + csv + "'").equals("100000 row(s) copied"), "Should copy every row");
+        assertTrue(db.getTable("events").select(Collections.singletonMap("id", 77777)).get(0).get("note").equals("note 77777\n(multi-line)"), "Should keep line breaks inside quotes");
+        assertTrue(parser.execute("SELECT COUNT(*) FROM events WHERE n = 3").contains("14286"), "Should load every value");
+
+        // Without a scan pool (-Dscan.threads=1) chunks are parsed on the calling thread.
+        db.setScanPool(null);
+        java.nio.file.Files.write(csv, "60,Gil\n61,Hal\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(parser.execute("COPY people (id, name) FROM '" + csv + "'").equals("2 row(s) copied"), "Should copy without a scan pool");
+        assertTrue(people.select(Collections.singletonMap("id", 61)).get(0).get("name").equals("Hal"), "Should load rows without a scan pool");
+
+        parser.setFileAccess(false);
+        assertTrue(parser.execute("COPY people FROM '" + csv + "'").contains("not allowed"), "Should say COPY is not allowed");
+        java.nio.file.Files.delete(csv);
+        java.nio.file.Files.delete(dir);
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testTransactions() throws Exception {
+        System.out.println("Test: Transactions (BEGIN, COMMIT, ROLLBACK)");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE accounts (id INT PRIMARY KEY, owner VARCHAR UNIQUE, balance INT)");
+        parser.execute("CREATE TABLE transfers (id INT PRIMARY KEY, amount INT)");
+        parser.execute("INSERT INTO accounts (id, owner, balance) VALUES (1, 'ann', 100), (2, 'bob', 50)");
+        Table accounts = db.getTable("accounts");
+        ExecutorService other = Executors.newSingleThreadExecutor();
+
+        assertTrue(parser.execute("BEGIN").equals("Transaction started"), "Should start a transaction");
+        parser.execute("UPDATE accounts SET balance = 70 WHERE id = 1");
+        parser.execute("UPDATE accounts SET balance = 80 WHERE id = 2");
+        parser.execute("INSERT INTO transfers (id, amount) VALUES (1, 30)");
+        assertTrue(parser.execute("SELECT balance FROM accounts WHERE id = 1").contains("70"), "Transaction should see its own update");
+        assertTrue(parser.execute("SELECT COUNT(*) FROM transfers").contains("1"), "Transaction should see its own insert");
+        assertTrue(other.submit(() -> parser.execute("SELECT balance FROM accounts WHERE id = 1")).get().contains("100"), "Others should see the committed balance");
+        assertTrue(other.submit(() -> db.getTable("transfers").size()).get() == 0, "Others should not see the insert");
+        assertTrue(parser.execute("COMMIT").equals("Transaction committed"), "Should commit");
+        assertTrue(other.submit(() -> parser.execute("SELECT balance FROM accounts WHERE id = 2")).get().contains("80"), "Commit should be visible to others");
+        assertTrue(db.getTable("transfers").size() == 1, "Committed insert should count");
+
+        // Rollback restores updated, deleted and inserted rows, including a row changed twice.
+        parser.execute("BEGIN TRANSACTION");
+        parser.execute("UPDATE accounts SET owner = 'cy' WHERE id = 1");
+        parser.execute("UPDATE accounts SET balance = 0 WHERE id = 1");
+        parser.execute("DELETE FROM accounts WHERE id = 2");
+        parser.execute("INSERT INTO accounts (id, owner, balance) VALUES (3, 'bob', 5)");
+        assertTrue(parser.execute("SELECT COUNT(*) FROM accounts").contains("2"), "Transaction should see its delete and insert");
+        assertTrue(parser.execute("ROLLBACK").equals("Transaction rolled back"), "Should roll back");
+        assertTrue(accounts.size() == 2, "Rollback should restore the row count");
+        Row ann = accounts.lookup("owner", "ann").get(0);
+        assertTrue(ann.get("balance").equals(70), "Rollback should restore the updated row");
+        assertTrue(accounts.lookup("owner", "cy").isEmpty(), "Rolled back value should leave the index");
+        assertTrue(accounts.select(Collections.singletonMap("id", 3)).isEmpty(), "Rolled back insert should be gone");
+        assertTrue(parser.execute("INSERT INTO accounts (id, owner, balance) VALUES (3, 'cy', 1)").equals("1 row inserted"), "Rolled back keys should be free");
+
+        // A failing statement is undone on its own; the transaction carries on.
+        parser.execute("BEGIN");
+        parser.execute("INSERT INTO transfers (id, amount) VALUES (2, 10)");
+        assertTrue(parser.execute("INSERT INTO transfers (id, amount) VALUES (3, 1), (1, 2)").startsWith("Error"), "Duplicate key should fail the statement");
+        parser.execute("INSERT INTO transfers (id, amount) VALUES (3, 20)");
+        parser.execute("COMMIT");
+        assertTrue(parser.execute("SELECT SUM(amount) FROM transfers").contains("60"), "Statements around the failure should commit");
+
+        // Other writers wait for the transaction holding a table.
+        parser.execute("BEGIN");
+        parser.execute("DELETE FROM transfers WHERE id = 3");
+        Future<String> blocked = other.submit(() -> parser.execute("INSERT INTO transfers (id, amount) VALUES (3, 99)"));
+        Thread.sleep(100);
+        assertTrue(!blocked.isDone(), "Writer should wait for the transaction");
+        parser.execute("COMMIT");
+        assertTrue(blocked.get(5, TimeUnit.SECONDS).equals("1 row inserted"), "Writer should go ahead after the commit");
+
+        // Two transactions each waiting for the other's table: one is told, and the other finishes.
+        parser.execute("BEGIN");
+        parser.execute("UPDATE accounts SET balance = 1 WHERE id = 1");
+        other.submit(() -> {
+            parser.execute("BEGIN");
+            parser.execute("UPDATE transfers SET amount = 1 WHERE id = 1");
+        }).get();
+        Future<String> second = other.submit(() -> parser.execute("UPDATE accounts SET balance = 2 WHERE id = 1"));
+        Thread.sleep(100);
+        String first = parser.execute("UPDATE transfers SET amount = 2 WHERE id = 1");
+        assertTrue(first.startsWith("Error: Deadlock"), "Closing the cycle should report a deadlock");
+        parser.execute("ROLLBACK");
+        assertTrue(second.get(5, TimeUnit.SECONDS).equals("1 row(s) updated"), "The other transaction should go ahead");
+        other.submit(() -> parser.execute("COMMIT")).get();
+        assertTrue(accounts.select(Collections.singletonMap("id", 1)).get(0).get("balance").equals(2), "Only the surviving transaction should commit");
+
+        assertTrue(parser.execute("COMMIT").equals("Error: No transaction in progress"), "COMMIT needs a transaction");
+        parser.execute("BEGIN");
+        assertTrue(parser.execute("BEGIN").startsWith("Error: A transaction is already in progress"), "Transactions do not nest");
+        parser.execute("ROLLBACK");
+        parser.setTransactionControl(false);
+        assertTrue(parser.execute("BEGIN").startsWith("Error: Transactions are not allowed"), "BEGIN should be refusable");
+        other.shutdown();
+        db.close();
+
+        // Only committed transactions survive a restart, each replayed whole.
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("transaction-test");
+        Database durable = new Database(dir, SyncMode.COMMIT);
+        SQLParser logged = new SQLParser(durable);
+        logged.execute("CREATE TABLE accounts (id INT PRIMARY KEY, balance INT)");
+        logged.execute("INSERT INTO accounts (id, balance) VALUES (1, 100), (2, 0)");
+        logged.execute("BEGIN");
+        logged.execute("UPDATE accounts SET balance = 60 WHERE id = 1");
+        logged.execute("UPDATE accounts SET balance = 40 WHERE id = 2");
+        logged.execute("INSERT INTO accounts (id, balance) VALUES (3, 7)");
+        logged.execute("DELETE FROM accounts WHERE id = 3");
+        logged.execute("COMMIT");
+        logged.execute("BEGIN");
+        logged.execute("DELETE FROM accounts");
+        logged.execute("ROLLBACK");
+        logged.execute("BEGIN");
+        logged.execute("UPDATE accounts SET balance = 0 WHERE id = 1");
+        Transaction.current().rollback();
+        durable.close();
+        durable = new Database(dir, SyncMode.COMMIT);
+        accounts = durable.getTable("accounts");
+        assertTrue(accounts.size() == 2, "Should recover the two accounts");
+        assertTrue(accounts.select(Collections.singletonMap("id", 1)).get(0).get("balance").equals(60)
+                && accounts.select(Collections.singletonMap("id", 2)).get(0).get("balance").equals(40), "Should recover the committed transfer");
+        durable.close();
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testCountInTransaction() throws Exception {
+        System.out.println("Test: COUNT(*) Inside a Transaction");
+        Database db = new Database();
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE c (id INT PRIMARY KEY)");
+        parser.execute("INSERT INTO c (id) VALUES (1), (2), (3), (4)");
+        assertTrue(countStar(parser).equals("4"), "Committed rows should be counted");
+
+        parser.execute("BEGIN");
+        parser.execute("INSERT INTO c (id) VALUES (5)");
+        String count = countStar(parser);
+        assertTrue(count.equals("5") && count(parser, "SELECT * FROM c") == 5, "COUNT(*) should include the transaction's own insert: " + count);
+        parser.execute("DELETE FROM c WHERE id = 1");
+        parser.execute("DELETE FROM c WHERE id = 2");
+        count = countStar(parser);
+        assertTrue(count.equals("3"), "COUNT(*) should leave out the transaction's own deletes: " + count);
+
+        // Another thread has no transaction and still sees the committed rows.
+        String[] outside = new String[1];
+        Thread reader = new Thread(() -> outside[0] = countStar(parser));
+        reader.start();
+        reader.join();
+        assertTrue(outside[0].equals("4"), "Other readers should count committed rows only: " + outside[0]);
+
+        parser.execute("COMMIT");
+        assertTrue(countStar(parser).equals("3"), "Count should reflect the commit");
+        db.close();
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    // The value SELECT COUNT(*) FROM c prints, below its header and rule.
+    private static String countStar(SQLParser parser) {
+        return parser.execute("SELECT COUNT(*) FROM c").split("\n")[2];
+    }
+
+    static void testWebServerAdmission() throws Exception {
+        System.out.println("Test: Web Server Threads and Admission Control");
+        AdmissionControl admission = new AdmissionControl(1, 1, 50);
+        assertTrue(admission.tryEnter(), "First request should get the slot");
+        ExecutorService waiter = Executors.newSingleThreadExecutor();
+        Future<Boolean> queued = waiter.submit(admission::tryEnter);
+        Thread.sleep(20);
+        assertTrue(!admission.tryEnter(), "Request beyond the queue should be turned away at once");
+        assertTrue(!queued.get(), "Queued request should give up after the timeout");
+        assertTrue(admission.getRejected() == 2, "Both rejections should be counted");
+        admission.exit();
+        assertTrue(admission.tryEnter() && admission.getInFlight() == 1, "Freed slot should be reusable");
+        admission.exit();
+        waiter.shutdown();
+
+        Database db = new Database();
+        WebServer server = new WebServer(db, 0, ExecutorMode.POOL, 4, new AdmissionControl(1, 0, 0));
+        server.start();
+        try {
+            assertTrue(server.getMode() == ExecutorMode.POOL, "Should run on the pool");
+            java.net.URL url = new java.net.URL("http://localhost:" + server.getPort() + "/api/sql");
+            server.getAdmission().tryEnter();
+            java.net.HttpURLConnection busy = post(url, "SHOW TABLES");
+            assertTrue(busy.getResponseCode() == 503, "Should answer 503 with no slot free");
+            assertTrue("1".equals(busy.getHeaderField("Retry-After")), "Should say when to retry");
+            server.getAdmission().exit();
+            java.net.HttpURLConnection ok = post(url, "CREATE TABLE t (id INT PRIMARY KEY)");
+            assertTrue(ok.getResponseCode() == 200, "Should run once a slot is free");
+            assertTrue(new String(ok.getInputStream().readAllBytes(), java.nio.charset.StandardCharsets.UTF_8).equals("Table created: t"), "Should return the result");
+            // The slot is given back just after the response is sent.
+            for (int i = 0; i < 100 && server.getAdmission().getInFlight() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(server.getAdmission().getInFlight() == 0, "Every request should give its slot back");
+            java.net.HttpURLConnection get = (java.net.HttpURLConnection) url.openConnection();
+            assertTrue(get.getResponseCode() == 405, "GET should be refused, not left hanging");
+        } finally {
+            server.stop();
+            db.close();
+        }
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testWireProtocol() throws Exception {
+        System.out.println("Test: Wire Protocol Server");
+        Database db = new Database();
+        WireServer server = new WireServer(db, 0, ExecutorMode.POOL.newExecutor(4, "wire"));
+        server.start();
+        try (WireClient client = new WireClient("localhost", server.getPort());
+             WireClient other = new WireClient("localhost", server.getPort())) {
+            WireClient.Result created = client.query("CREATE TABLE t (id INT PRIMARY KEY, name VARCHAR, active BOOLEAN)");
+            assertTrue(!created.isError() && created.getMessage().equals("Table created: t"), "Should run a statement");
+
+            WireClient.Prepared insert = client.prepare("INSERT INTO t (id, name, active) VALUES (?, ?, ?)");
+            assertTrue(insert.getParameterCount() == 3, "Should report the parameter count");
+            for (int i = 1; i <= 3; i++) {
+                assertTrue(!insert.execute(i, "n" + i, i % 2 == 1).isError(), "Prepared insert should run");
+            }
+            assertTrue(insert.execute(4).isError(), "Wrong parameter count should be an error");
+
+            WireClient.Result rows = client.query("SELECT id, name, active FROM t WHERE id >= 2 ORDER BY id");
+            assertTrue(rows.getColumns().equals(Arrays.asList("id", "name", "active")), "Should return the columns");
+            assertTrue(rows.getRows().size() == 2, "Should return the matching rows");
+            Object[] first = rows.getRows().get(0);
+            assertTrue(first[0].equals(2) && first[1].equals("n2") && first[2].equals(Boolean.FALSE), "Values should keep their types");
+            assertTrue(client.query("SELECT * FROM missing").isError(), "Errors should come back as errors");
+            assertTrue(client.query("SELECT * FROM t WHERE id = ?").isError(), "Parameters need PREPARE");
+
+            // Pipelined statements are answered in order, and an error does not stop the rest.
+            List<WireClient.Result> results = client.pipeline(
+                    "INSERT INTO t (id, name, active) VALUES (4, 'n4', true)", "INSERT INTO t (id, name, active) VALUES (4, 'dup', true)",
+                    "SELECT * FROM t WHERE id = 4", "DELETE FROM t WHERE id = 4");
+            assertTrue(!results.get(0).isError() && results.get(1).isError(), "Duplicate key should fail on its own");
+            assertTrue(results.get(2).getRows().size() == 1 && results.get(2).getRows().get(0)[1].equals("n4"), "Later statements should see earlier ones");
+            assertTrue(!results.get(3).isError(), "Pipeline should run to the end");
+
+            // A session's transaction spans its requests and is invisible to other sessions until commit.
+            client.query("BEGIN");
+            client.query("UPDATE t SET name = 'changed' WHERE id = 1");
+            assertTrue(client.query("SELECT name FROM t WHERE id = 1").getRows().get(0)[0].equals("changed"), "Session should see its own change");
+            assertTrue(other.query("SELECT name FROM t WHERE id = 1").getRows().get(0)[0].equals("n1"), "Other sessions should not");
+            client.query("ROLLBACK");
+            assertTrue(other.query("SELECT name FROM t WHERE id = 1").getRows().get(0)[0].equals("n1"), "Rollback should undo the change");
+
+            // Closing a connection rolls back its open transaction.
+            WireClient dropped = new WireClient("localhost", server.getPort());
+            dropped.query("BEGIN");
+            dropped.query("INSERT INTO t (id, name, active) VALUES (9, 'lost', true)");
+            dropped.close();
+            WireClient.Result after = null;
+            for (int i = 0; i < 100; i++) {
+                after = other.query("INSERT INTO t (id, name, active) VALUES (10, 'kept', true)");
+                if (!after.isError()) {
+                    break;
+                }
+                Thread.sleep(10);
+            }
+            assertTrue(!after.isError(), "Closed session should release its tables");
+            assertTrue(other.query("SELECT * FROM t WHERE id = 9").getRows().isEmpty(), "Closed session's changes should be rolled back");
+
+            // That rollback waits for the table's write lock on a worker, so the selector keeps serving others.
+            java.lang.reflect.Field writeLock = Table.class.getDeclaredField("writeLock");
+            writeLock.setAccessible(true);
+            java.util.concurrent.locks.ReentrantLock lock = (java.util.concurrent.locks.ReentrantLock) writeLock.get(db.getTable("t"));
+            WireClient stuck = new WireClient("localhost", server.getPort());
+            stuck.query("BEGIN");
+            stuck.query("INSERT INTO t (id, name, active) VALUES (11, 'lost', true)");
+            WireClient.Result[] read = new WireClient.Result[1];
+            lock.lock();
+            try {
+                stuck.close();
+                Thread.sleep(100);
+                Thread reader = new Thread(() -> {
+                    try {
+                        read[0] = other.query("SELECT name FROM t WHERE id = 1");
+                    } catch (Exception e) {
+                        // Left null.
+                    }
+                });
+                reader.start();
+                reader.join(5000);
+                assertTrue(read[0] != null && !read[0].isError(), "Other sessions should be served while a rollback waits");
+            } finally {
+                lock.unlock();
+            }
+            for (int i = 0; i < 100 && db.getTable("t").getOwner() != null; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(db.getTable("t").getOwner() == null && other.query("SELECT * FROM t WHERE id = 11").getRows().isEmpty(), "Rollback should finish once the lock is free");
+
+            // Named SQL statements would be shared by every connection; sessions use protocol handles instead.
+            assertTrue(client.query("PREPARE mine AS SELECT * FROM t").isError() && client.query("EXECUTE mine").isError(), "SQL PREPARE and EXECUTE should be refused");
+
+            // A large result is streamed in several batches, past the server's output limit.
+            WireClient.Prepared big = client.prepare("INSERT INTO t (id, name, active) VALUES (?, ?, ?)");
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                name.append("x");
+            }
+            client.query("BEGIN");
+            for (int i = 100; i < 20100; i++) {
+                big.execute(i, name.toString() + i, true);
+            }
+            client.query("COMMIT");
+            WireClient.Result all = other.query("SELECT * FROM t WHERE id >= 100");
+            assertTrue(!all.isError() && all.getRows().size() == 20000, "Should stream every row");
+            assertTrue(big.close().getMessage().equals("Statement closed"), "Should close a handle");
+            assertTrue(big.execute(1, "a", true).isError(), "Closed handle should be unknown");
+        } finally {
+            server.close();
+            db.close();
+        }
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testResultFormats() throws Exception {
+        System.out.println("Test: Result Formats for /api/sql");
+        assertTrue(ResultFormat.negotiate(null) == ResultFormat.TEXT, "No Accept header should get text");
+        assertTrue(ResultFormat.negotiate(Arrays.asList("text/html, application/json;q=0.9, */*;q=0.1")) == ResultFormat.JSON_ROWS, "Highest acceptable q should win");
+        assertTrue(ResultFormat.negotiate(Arrays.asList("application/vnd.rdbms.columnar")) == ResultFormat.COLUMNAR, "Should pick the binary format");
+        assertTrue(ResultFormat.negotiate(Arrays.asList("image/png")) == null, "Nothing acceptable should be null");
+
+        Database db = new Database();
+        SQLParser setup = new SQLParser(db);
+        setup.execute("CREATE TABLE users (id INT PRIMARY KEY, name VARCHAR, email VARCHAR)");
+        setup.execute("INSERT INTO users (id, name, email) VALUES (1, 'Ann \"A\" \\ Lee', 'a@x'), (2, 'Zoë', NULL)");
+        setup.execute("CREATE TABLE t (id INT PRIMARY KEY, name VARCHAR, active BOOLEAN)");
+        for (int i = 0; i < 5000; i += 100) {
+            StringBuilder values = new StringBuilder();
+            for (int j = i; j < i + 100; j++) {
+                values.append(j > i ? ", " : "").append("(").append(j).append(", ").append(j % 7 == 0 ? "NULL" : "'n" + j + "'").append(", ").append(j % 2 == 0).append(")");
+            }
+            setup.execute("INSERT INTO t (id, name, active) VALUES " + values);
+        }
+        WebServer server = new WebServer(db, 0, ExecutorMode.POOL, 4, new AdmissionControl(4, 4, 1000));
+        server.start();
+        try {
+            java.net.URL url = new java.net.URL("http://localhost:" + server.getPort() + "/api/sql");
+            String rows = new String(request(url, "SELECT id, name FROM users ORDER BY id", "application/json"), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(rows.equals("{\"columns\":[\"id\",\"name\"],\"rows\":[{\"id\":1,\"name\":\"Ann \\\"A\\\" \\\\ Lee\"},{\"id\":2,\"name\":\"Zoë\"}],\"count\":2}"), "Row JSON should escape values: " + rows);
+            String columns = new String(request(url, "SELECT id, email FROM users ORDER BY id", "application/vnd.rdbms.columns+json"), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(columns.equals("{\"columns\":[\"id\",\"email\"],\"batches\":[[[1,2],[\"a@x\",null]]],\"count\":2}"), "Column JSON should group values by column: " + columns);
+            String message = new String(request(url, "DELETE FROM t WHERE id = -1", "application/json"), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(message.startsWith("{\"message\":"), "Statements without rows should answer a message");
+            String error = new String(request(url, "SELECT * FROM missing", "application/json"), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(error.startsWith("{\"error\":"), "Errors should be JSON too");
+            // Every client shares the server's parser, so SQL statement names are refused.
+            String prepare = new String(request(url, "PREPARE q AS SELECT * FROM users", "application/json"), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(prepare.contains("not allowed"), "SQL PREPARE should be refused: " + prepare);
+            String execute = new String(request(url, "EXECUTE q", "application/json"), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(execute.contains("not allowed"), "SQL EXECUTE should be refused: " + execute);
+            assertTrue(request(url, "SHOW TABLES", "text/plain").length > 0, "Text should still be served");
+            java.net.HttpURLConnection refused = (java.net.HttpURLConnection) url.openConnection();
+            refused.setRequestMethod("POST");
+            refused.setRequestProperty("Accept", "image/png");
+            refused.setDoOutput(true);
+            refused.getOutputStream().write("SHOW TABLES".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            assertTrue(refused.getResponseCode() == 406, "Unsupported Accept should get 406");
+
+            // Binary batches decode to the same values, and are smaller than the text.
+            byte[] binary = request(url, "SELECT id, name, active FROM t ORDER BY id", "application/vnd.rdbms.columnar");
+            java.io.DataInputStream in = new java.io.DataInputStream(new java.io.ByteArrayInputStream(binary));
+            assertTrue(in.readInt() == 0x52444243 && in.readByte() == 'C' && in.readShort() == 3, "Should start with magic and columns");
+            for (int c = 0; c < 3; c++) {
+                in.skipBytes(in.readInt());
+            }
+            int row = 0;
+            boolean ordered = true;
+            boolean names = true;
+            boolean booleans = true;
+            for (byte tag = in.readByte(); tag == 'B'; tag = in.readByte()) {
+                int size = in.readInt();
+                byte[] valid = new byte[(size + 7) / 8];
+                assertTrue(in.readByte() == 1, "id should be INT");
+                in.readFully(valid);
+                for (int r = 0; r < size; r++) {
+                    ordered &= in.readInt() == row + r;
+                }
+                assertTrue(in.readByte() == 5, "name should be STRING");
+                in.readFully(valid);
+                int[] offsets = new int[size + 1];
+                for (int r = 0; r <= size; r++) {
+                    offsets[r] = in.readInt();
+                }
+                byte[] text = new byte[offsets[size]];
+                in.readFully(text);
+                for (int r = 0; r < size; r++) {
+                    boolean present = (valid[r / 8] & (1 << (r % 8))) != 0;
+                    String expected = (row + r) % 7 == 0 ? null : "n" + (row + r);
+                    String actual = present ? new String(text, offsets[r], offsets[r + 1] - offsets[r], java.nio.charset.StandardCharsets.UTF_8) : null;
+                    names &= Objects.equals(expected, actual);
+                }
+                assertTrue(in.readByte() == 4, "active should be BOOLEAN");
+                in.readFully(valid);
+                byte[] truth = new byte[(size + 7) / 8];
+                in.readFully(truth);
+                for (int r = 0; r < size; r++) {
+                    booleans &= ((truth[r / 8] & (1 << (r % 8))) != 0) == ((row + r) % 2 == 0);
+                }
+                row += size;
+            }
+            assertTrue(ordered, "ids should arrive in order");
+            assertTrue(names, "Names should decode with their nulls");
+            assertTrue(booleans, "Booleans should be a bitmap");
+            assertTrue(row == 5000 && in.readLong() == 5000, "Should end with the row count");
+            byte[] text = request(url, "SELECT id, name, active FROM t ORDER BY id", "text/plain");
+            assertTrue(binary.length * 2 < text.length, "Binary should be much smaller than text: " + binary.length + " vs " + text.length);
+
+            java.net.URL users = new java.net.URL("http://localhost:" + server.getPort() + "/api/users");
+            String json = new String(((java.net.HttpURLConnection) users.openConnection()).getInputStream().readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(json.contains("\"name\":\"Ann \\\"A\\\" \\\\ Lee\"") && json.contains("\"email\":null"), "Users JSON should escape quotes and keep nulls: " + json);
+            java.net.HttpURLConnection badPage = (java.net.HttpURLConnection)
+                    new java.net.URL("http://localhost:" + server.getPort() + "/api/users?limit=x").openConnection();
+            assertTrue(badPage.getResponseCode() == 400, "A bad limit should be refused before streaming");
+            for (String page : new String[] { "limit=-1", "limit=5&offset=-5", "offset=-5" }) {
+                java.net.HttpURLConnection negativePage = (java.net.HttpURLConnection)
+                        new java.net.URL("http://localhost:" + server.getPort() + "/api/users?" + page).openConnection();
+                assertTrue(negativePage.getResponseCode() == 400, "A negative limit or offset should be a client error: " + page);
+            }
+        } finally {
+            server.stop();
+            db.close();
+        }
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    static void testMetrics() throws Exception {
+        System.out.println("Test: Metrics, Slow Query Log and /metrics");
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long p50 = histogram.percentile(0.5);
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 * 17 / 16, "Median should be within a bucket of 500us: " + p50);
+        assertTrue(histogram.percentile(1) == 1_000_000 && histogram.getCount() == 1000, "Top percentile should be the max");
+        boolean monotonic = true;
+        for (int i = 1; i <= LatencyHistogram.index(Long.MAX_VALUE); i++) {
+            long bound = LatencyHistogram.lowerBound(i);
+            monotonic &= LatencyHistogram.index(bound) == i && LatencyHistogram.index(bound - 1) == i - 1;
+        }
+        assertTrue(monotonic, "Bucket bounds should map back to their buckets");
+
+        Database db = new Database();
+        StringBuilder slow = new StringBuilder();
+        db.getMetrics().setSlowQueryLog(new SlowQueryLog(0, slow));
+        SQLParser parser = new SQLParser(db);
+        parser.execute("CREATE TABLE m (id INT PRIMARY KEY, name VARCHAR, score INT)");
+        parser.execute("INSERT INTO m (id, name, score) VALUES (1, 'a', 10), (2, 'b', 20), (3, 'c', 30), (4, 'd', 40)");
+        parser.execute("SELECT * FROM m WHERE id = 2");
+        parser.execute("SELECT * FROM m WHERE score > 15");
+        parser.execute("SELECT * FROM missing");
+        parser.prepare("SELECT name FROM m WHERE id = ?").execute(3);
+        parser.execute("PREPARE byScore AS SELECT id FROM m WHERE score = ?");
+        parser.execute("EXECUTE byScore (40)");
+
+        SortedMap<String, Metrics.StatementStats> statements = db.getMetrics().getStatements();
+        Metrics.StatementStats selects = statements.get("SELECT");
+        assertTrue(selects.getCount() == 5 && selects.getErrors() == 1, "Every SELECT should be counted once: " + selects.getCount());
+        assertTrue(selects.getRowsReturned() == 6, "SELECT rows should be counted: " + selects.getRowsReturned());
+        assertTrue(statements.get("CREATE TABLE").getCount() == 1 && statements.get("INSERT").getCount() == 1, "Other statements should be counted by type: " + statements.keySet());
+        assertTrue(!statements.containsKey("EXECUTE"), "EXECUTE should count as the statement it runs");
+
+        Table table = db.getTable("m");
+        assertTrue(table.getIndexScans() == 2 && table.getFullScans() == 2, "Scans should be counted by access path: " + table.getIndexScans() + "/" + table.getFullScans());
+        assertTrue(table.getIndexHitRatio() == 0.5, "Half the scans used the index");
+        assertTrue(table.getRowsScanned() == 10 && table.getRowsReturned() == 6, "Rows scanned and matched: " + table.getRowsScanned() + "/" + table.getRowsReturned());
+        assertTrue(table.estimateBytes() > 4 * 64, "Heap estimate should cover the rows: " + table.estimateBytes());
+
+        assertTrue(slow.toString().contains("slow SELECT") && slow.toString().contains("sql=SELECT * FROM m WHERE score > 15"), "Slow log should name the statement: " + slow);
+        assertTrue(slow.toString().contains("SCAN") && slow.toString().contains("rows=2"), "Slow log should show the plan and rows");
+        assertTrue(slow.toString().contains("sql=EXECUTE byScore (40)") && slow.toString().contains("failed sql=SELECT * FROM missing"), "Slow log should show EXECUTE text and failures");
+
+        WebServer server = new WebServer(db, 0, ExecutorMode.POOL, 2, new AdmissionControl(1, 1, 1000));
+        server.start();
+        try {
+            java.net.HttpURLConnection connection = (java.net.HttpURLConnection)
+                    new java.net.URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+            String text = new String(connection.getInputStream().readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"), "Should use the Prometheus content type");
+            assertTrue(text.contains("rdbms_statements_total{type=\"SELECT\"} 5\n") && text.contains("rdbms_statement_errors_total{type=\"SELECT\"} 1\n"), "Should count statements: " + text);
+            assertTrue(text.contains("# TYPE rdbms_statement_duration_seconds summary") && text.contains("rdbms_statement_duration_seconds{type=\"INSERT\",quantile=\"0.99\"} "), "Should report latency quantiles");
+            assertTrue(text.contains("rdbms_table_scans_total{table=\"m\",access=\"index\"} 2\n") && text.contains("rdbms_table_index_hit_ratio{table=\"m\"} 0.5\n"), "Should report table reads");
+            assertTrue(text.contains("rdbms_web_requests_rejected_total 0\n"), "Should report admission");
+        } finally {
+            server.stop();
+        }
+
+        javax.management.ObjectName name = JmxMetrics.register(db, "test");
+        try {
+            javax.management.MBeanServer mbeans = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            assertTrue(mbeans.getAttribute(name, "statement.SELECT.count").equals(5L), "JMX should report statement counts");
+            assertTrue(mbeans.getAttribute(name, "table.m.indexScans").equals(2L), "JMX should report table counters");
+        } finally {
+            java.lang.management.ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            db.close();
+        }
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    // Once a 200 has been sent, a failure while reading rows can only be reported in the body.
+    static void testStreamingErrors() throws Exception {
+        System.out.println("Test: Errors While Streaming Rows");
+        Iterator<Row> failing = new Iterator<Row>() {
+            private int next;
+
+            public boolean hasNext() {
+                return true;
+            }
+
+            public Row next() {
+                if (next == 2) {
+                    throw new IllegalStateException("disk \"gone\"");
+                }
+                return new Row(Collections.singletonMap("id", next++));
+            }
+        };
+        ResultCursor rows = new ResultCursor(Collections.singletonList("id"), failing, Collections.emptyList(), null);
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        new ResultEncoder(out, ResultFormat.JSON_ROWS).writeObjects(rows);
+        String json = out.toString(java.nio.charset.StandardCharsets.UTF_8);
+        assertTrue(json.equals("[{\"id\":0},{\"id\":1},{\"error\":\"disk \\\"gone\\\"\"}]"), "Array should end with the error: " + json);
+        assertTrue(rows.isFailed(), "Cursor should be marked failed");
+
+        System.out.println("  ✓ Passed\n");
+    }
+
+    private static byte[] request(java.net.URL url, String sql, String accept) throws Exception {
+        java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Accept", accept);
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(sql.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(connection.getContentType().equals(ResultFormat.negotiate(Arrays.asList(accept)).getContentType()), "Should answer in the negotiated format");
+        return connection.getInputStream().readAllBytes();
+    }
+
+    private static java.net.HttpURLConnection post(java.net.URL url, String body) throws Exception {
+        java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(body.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        return connection;
+    }
+
+    // The ids of a SELECT's result rows, in output order.
+    static String ids(SQLParser parser, String sql) throws Exception {
+        List<Object> ids = new ArrayList<>();
+        try (ResultCursor rows = parser.prepare(sql).query()) {
+            while (rows.hasNext()) {
+                ids.add(rows.next().get("id"));
+            }
+        }
+        return ids.toString();
+    }
+
+    static Predicate compileWhere(String sql, Table table) throws Exception {
+        Statement.Select select = (Statement.Select) SQLParser.parse(sql);
+        return Predicate.compile(select.getWhere(), table.getName(), table.getColumns(), null);
+    }
+
+    static int count(SQLParser parser, String sql) {
+        String result = parser.execute(sql);
+        if (result.startsWith("Error")) {
+            return -1;
+        }
+        if (result.equals("0 rows")) {
+            return 0;
+        }
+        String last = result.substring(result.lastIndexOf('\n') + 1);
+        return Integer.parseInt(last.substring(0, last.indexOf(' ')));
+    }
+
     static void assertTrue(boolean condition, String message) {
         if (condition) {
             passed++;
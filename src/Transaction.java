@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.util.*;
+
+// A unit of work across statements and tables that commits or rolls back as a whole. It is current on the
+// thread that began it until it ends: the table writes made on that thread join it, and reads on that thread
+// see its changes. A table it has written stays reserved to it until then; other writers wait, while other
+// readers keep seeing the committed versions. Its changes are redo-logged into one COMMIT record, appended
+// at commit, and undone on rollback from each table's lists of versions it added and ended.
+public class Transaction {
+    private static final ThreadLocal<Transaction> CURRENT = new ThreadLocal<>();
+
+    private final VersionClock clock;
+    private final WriteAheadLog log;
+    private final WriteAheadLog.Record record;
+    // Undo information per table, in the order the tables were first written.
+    private final Map<Table, Changes> changes = new LinkedHashMap<>();
+    // The table this transaction is waiting to write, for deadlock detection.
+    volatile Table waitingFor;
+    private boolean ended;
+
+    private Transaction(VersionClock clock, WriteAheadLog log) {
+        this.clock = clock;
+        this.log = log;
+        this.record = log == null ? null : WriteAheadLog.commit();
+    }
+
+    static Transaction begin(VersionClock clock, WriteAheadLog log) throws Exception {
+        if (CURRENT.get() != null) {
+            throw new Exception("A transaction is already in progress");
+        }
+        Transaction transaction = new Transaction(clock, log);
+        CURRENT.set(transaction);
+        return transaction;
+    }
+
+    // The transaction running on this thread, or null.
+    public static Transaction current() {
+        return CURRENT.get();
+    }
+
+    // Takes the transaction off this thread, for a session whose next statement may run on another one.
+    static Transaction detach() {
+        Transaction transaction = CURRENT.get();
+        CURRENT.remove();
+        return transaction;
+    }
+
+    // Makes this the transaction running on this thread again.
+    void attach() {
+        CURRENT.set(this);
+    }
+
+    // The record row changes are logged to, or null without a log.
+    WriteAheadLog.Record getRecord() {
+        return record;
+    }
+
+    // Called by table under its write lock once a statement's changes are in place.
+    void changed(Table table, int[] added, int[] ended, int liveRowChange) {
+        Changes tableChanges = changes.computeIfAbsent(table, t -> new Changes());
+        tableChanges.added.add(added);
+        tableChanges.ended.add(ended);
+        tableChanges.liveRows += liveRowChange;
+    }
+
+    // Whether waiting for owner would close a cycle of transactions waiting for tables the next one holds.
+    boolean wouldDeadlock(Transaction owner) {
+        Set<Transaction> seen = new HashSet<>();
+        for (Transaction next = owner; next != null && seen.add(next); ) {
+            Table waiting = next.waitingFor;
+            next = waiting == null ? null : waiting.getOwner();
+            if (next == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Makes every change visible at one commit stamp, after logging them as one record, and waits for the
+    // record to be durable. If the log cannot be written, the transaction is rolled back instead.
+    public void commit() throws Exception {
+        end();
+        long lsn = 0;
+        try {
+            synchronized (clock) {
+                if (record != null && !record.isEmpty()) {
+                    lsn = log.append(record);
+                }
+                clock.commit(stamp -> changes.forEach((table, tableChanges) ->
+                        table.stampTransaction(tableChanges.added, tableChanges.ended, stamp)));
+            }
+        } catch (IOException e) {
+            release(false);
+            throw e;
+        }
+        release(true);
+        if (log != null) {
+            log.awaitDurable(lsn);
+        }
+    }
+
+    public void rollback() throws Exception {
+        end();
+        release(false);
+    }
+
+    private void end() throws Exception {
+        if (ended) {
+            throw new Exception("Transaction has already ended");
+        }
+        ended = true;
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    private void release(boolean committed) {
+        changes.forEach((table, tableChanges) ->
+                table.endTransaction(this, tableChanges.added, tableChanges.ended, tableChanges.liveRows, committed));
+    }
+
+    // Row ids are kept one array per statement, so a statement's changes are recorded without copying.
+    static final class Changes {
+        final List<int[]> added = new ArrayList<>();
+        final List<int[]> ended = new ArrayList<>();
+        int liveRows;
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+public class VersionClock {
+    private final AtomicLong lastCommitted;
+    private final AtomicLong nextToken;
+    private final ConcurrentHashMap<Long, Long> activeSnapshots;
+    // Highest stamp a vacuum may have started reclaiming up to; readers holding an older stamp must retry.
+    private volatile long reclaimHorizon;
+
+    public VersionClock() {
+        this.lastCommitted = new AtomicLong();
+        this.nextToken = new AtomicLong();
+        this.activeSnapshots = new ConcurrentHashMap<>();
+    }
+
+    public Snapshot openSnapshot() {
+        long token = nextToken.incrementAndGet();
+        while (true) {
+            long stamp = lastCommitted.get();
+            activeSnapshots.put(token, stamp);
+            // Registering before checking the horizon means any vacuum that missed us has not reclaimed past stamp.
+            if (reclaimHorizon <= stamp) {
+                return new Snapshot(activeSnapshots, token, stamp);
+            }
+        }
+    }
+
+    // Assigns the next commit stamp, lets the caller stamp its versions with it, then publishes it to readers.
+    public synchronized long commit(LongConsumer stampVersions) {
+        long stamp = lastCommitted.get() + 1;
+        stampVersions.accept(stamp);
+        lastCommitted.set(stamp);
+        return stamp;
+    }
+
+    // Returns the newest stamp no open snapshot can see behind: versions that ended at or before it are garbage.
+    public synchronized long beginReclaim() {
+        long oldest = lastCommitted.get();
+        reclaimHorizon = oldest;
+        for (long stamp : activeSnapshots.values()) {
+            oldest = Math.min(oldest, stamp);
+        }
+        return oldest;
+    }
+
+    public long getLastCommitted() {
+        return lastCommitted.get();
+    }
+
+    public int getActiveSnapshotCount() {
+        return activeSnapshots.size();
+    }
+
+    public static final class Snapshot implements AutoCloseable {
+        private final Release release;
+        private final long stamp;
+
+        private Snapshot(ConcurrentHashMap<Long, Long> activeSnapshots, long token, long stamp) {
+            this.release = new Release(activeSnapshots, token);
+            this.stamp = stamp;
+        }
+
+        public long getStamp() {
+            return stamp;
+        }
+
+        @Override
+        public void close() {
+            release.run();
+        }
+    }
+
+    private static final class Release implements Runnable {
+        private final ConcurrentHashMap<Long, Long> activeSnapshots;
+        private final long token;
+
+        Release(ConcurrentHashMap<Long, Long> activeSnapshots, long token) {
+            this.activeSnapshots = activeSnapshots;
+            this.token = token;
+        }
+
+        @Override
+        public void run() {
+            activeSnapshots.remove(token);
+        }
+    }
+}
@@ -3,41 +3,145 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 public class WebServer {
+    // Bytes buffered before a chunk is sent when streaming a result.
+    private static final int STREAM_BUFFER = 16 * 1024;
+    // Seconds a client turned away under overload is told to wait before retrying.
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final byte[] OVERLOADED = "Error: Server is overloaded; retry later".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] METHOD_NOT_ALLOWED = "Error: Method not allowed".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_ACCEPTABLE = ("Error: /api/sql answers in text/plain, application/json, "
+            + "application/vnd.rdbms.columns+json or application/vnd.rdbms.columnar").getBytes(StandardCharsets.UTF_8);
+
+    // The JDK server leaves Nagle's algorithm on, so a response sent in pieces waits out the client's delayed
+    // ACK, about 40 ms per request. It reads the setting once, when its first server is created.
+    static {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
     private final Database database;
     private final SQLParser parser;
+    private final ExecutorMode requestedMode;
+    private final int threads;
+    private final AdmissionControl admission;
     private HttpServer server;
+    private ExecutorService executor;
+    private ExecutorMode mode;
 
+    // Runs requests on virtual threads, at most four per core at a time, with up to 64 more waiting a second.
     public WebServer(Database database, int port) throws IOException {
+        this(database, port, ExecutorMode.VIRTUAL, 4 * Runtime.getRuntime().availableProcessors() + 64,
+                new AdmissionControl(4 * Runtime.getRuntime().availableProcessors(), 64, 1000));
+    }
+
+    // threads sizes the POOL mode's pool. Requests waiting for admission hold a thread, so a pool smaller
+    // than admission's in-flight plus queued limits queues the excess unseen, where no timeout applies.
+    public WebServer(Database database, int port, ExecutorMode mode, int threads, AdmissionControl admission) throws IOException {
         this.database = database;
         this.parser = new SQLParser(database);
+        parser.setFileAccess(false);
+        parser.setTransactionControl(false);
+        // Every request shares this parser, so SQL PREPARE names would be shared by all clients.
+        parser.setNamedStatements(false);
+        this.requestedMode = mode;
+        this.threads = threads;
+        this.admission = admission;
         this.server = HttpServer.create(new InetSocketAddress(port), 0);
         setupRoutes();
     }
 
     private void setupRoutes() {
         server.createContext("/", this::handleRoot);
-        server.createContext("/api/users", this::handleUsers);
-        server.createContext("/api/sql", this::handleSQL);
+        server.createContext("/api/users", admitted(this::handleUsers));
+        server.createContext("/api/sql", admitted(this::handleSQL));
+        // Outside admission control, so an overloaded server can still be watched.
+        server.createContext("/metrics", this::handleMetrics);
     }
 
     public void start() {
-        server.setExecutor(null);
+        mode = requestedMode.available();
+        if (mode != requestedMode) {
+            System.out.println("Virtual threads need Java 21; using a pool of " + threads + " threads");
+        }
+        executor = mode.newExecutor(threads, "web");
+        server.setExecutor(executor);
         server.start();
-        System.out.println("Web server started on port " + server.getAddress().getPort());
+        System.out.println("Web server started on port " + getPort() + " (" + mode + " threads)");
+    }
+
+    public void stop() {
+        server.stop(0);
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // The mode requests actually run in, once started.
+    public ExecutorMode getMode() {
+        return mode;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    // Lets a request through once admission has a slot for it, or answers 503 when it has none in time.
+    private HttpHandler admitted(HttpHandler handler) {
+        return exchange -> {
+            boolean entered;
+            try {
+                entered = admission.tryEnter();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                entered = false;
+            }
+            if (!entered) {
+                exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                sendResponse(exchange, 503, OVERLOADED, "text/plain");
+                return;
+            }
+            try {
+                handler.handle(exchange);
+            } finally {
+                admission.exit();
+            }
+        };
     }
 
     private void sendResponse(HttpExchange exchange, int code, String response, String contentType) throws IOException {
+        sendResponse(exchange, code, response.getBytes(StandardCharsets.UTF_8), contentType);
+    }
+
+    // Ends the exchange with a complete body, so a keep-alive connection can carry the client's next request.
+    private void sendResponse(HttpExchange exchange, int code, byte[] body, String contentType) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", contentType);
-        exchange.sendResponseHeaders(code, response.getBytes().length);
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
-        os.close();
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // Starts a chunked response (length 0 means unknown) for a body written as it is produced.
+    private OutputStream startStreaming(HttpExchange exchange, String contentType) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, 0);
+        return exchange.getResponseBody();
     }
 
     private void handleRoot(HttpExchange exchange) throws IOException {
-        String html = "<!DOCTYPE html><html><head><title>Simple RDBMS Demo</title><style>" +
+        sendResponse(exchange, 200, PAGE, "text/html");
+    }
+
+    // The page never changes, so it is encoded once.
+    private static final byte[] PAGE = ("<!DOCTYPE html><html><head><title>Simple RDBMS Demo</title><style>" +
             "body{font-family:Arial;max-width:800px;margin:50px auto;padding:20px;}" +
             "input,button{padding:8px;margin:5px;}" +
             "table{border-collapse:collapse;width:100%;margin:20px 0;}" +
@@ -75,38 +179,85 @@ public class WebServer {
             "function executeSQL(){const query=document.getElementById('sqlQuery').value;" +
             "fetch('/api/sql',{method:'POST',headers:{'Content-Type':'text/plain'},body:query})" +
             ".then(r=>r.text()).then(result=>{document.getElementById('sqlResult').textContent=result;});}" +
-            "loadUsers();</script></body></html>";
-        sendResponse(exchange, 200, html, "text/html");
+            "loadUsers();</script></body></html>").getBytes(StandardCharsets.UTF_8);
+
+    // Statement, table and admission metrics in the Prometheus text format.
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            sendResponse(exchange, 405, METHOD_NOT_ALLOWED, "text/plain");
+            return;
+        }
+        StringBuilder out = new StringBuilder(4096);
+        database.getMetrics().writePrometheus(out, database);
+        Metrics.header(out, "rdbms_web_requests_in_flight", "gauge", "Requests admitted and running.");
+        Metrics.sample(out, "rdbms_web_requests_in_flight", null, null, null, admission.getInFlight());
+        Metrics.header(out, "rdbms_web_requests_queued", "gauge", "Requests waiting for admission.");
+        Metrics.sample(out, "rdbms_web_requests_queued", null, null, null, admission.getQueued());
+        Metrics.header(out, "rdbms_web_requests_rejected_total", "counter", "Requests answered 503 by admission control.");
+        Metrics.sample(out, "rdbms_web_requests_rejected_total", null, null, null, admission.getRejected());
+        sendResponse(exchange, 200, out.toString(), "text/plain; version=0.0.4; charset=utf-8");
+    }
+
+    // Optional ?limit=N&offset=M pages through users in id order. The query is opened before the 200 goes out,
+    // so its errors still get a status; once rows are streaming, an error ends the array instead.
+    private void listUsers(HttpExchange exchange) throws IOException {
+        ResultCursor cursor;
+        try {
+            String limitParameter = queryParameter(exchange, "limit");
+            String offsetParameter = queryParameter(exchange, "offset");
+            Integer limit = limitParameter == null ? null : Integer.valueOf(limitParameter);
+            int offset = offsetParameter == null ? 0 : Integer.parseInt(offsetParameter);
+            if ((limit != null && limit < 0) || offset < 0) {
+                throw new NumberFormatException("negative limit or offset");
+            }
+            cursor = limit == null
+                ? parser.prepare("SELECT id, name, email FROM users").query()
+                : parser.prepare("SELECT id, name, email FROM users ORDER BY id LIMIT ? OFFSET ?").query(limit, offset);
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "Error: Invalid limit or offset", "text/plain");
+            return;
+        } catch (Exception e) {
+            sendResponse(exchange, 500, "Error: " + e.getMessage(), "text/plain");
+            return;
+        }
+        try (ResultCursor rows = cursor;
+             OutputStream json = startStreaming(exchange, "application/json")) {
+            new ResultEncoder(json, ResultFormat.JSON_ROWS).writeObjects(rows);
+        }
     }
 
     private void handleSQL(HttpExchange exchange) throws IOException {
         if (exchange.getRequestMethod().equals("POST")) {
             String sql = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-            String result = parser.execute(sql);
-            sendResponse(exchange, 200, result, "text/plain");
+            // The Accept header picks text, row or column JSON, or binary column batches.
+            exchange.getResponseHeaders().set("Vary", "Accept");
+            ResultFormat format = ResultFormat.negotiate(exchange.getRequestHeaders().get("Accept"));
+            if (format == null) {
+                sendResponse(exchange, 406, NOT_ACCEPTABLE, "text/plain");
+            } else if (format == ResultFormat.TEXT) {
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                        startStreaming(exchange, format.getContentType()), StandardCharsets.UTF_8), STREAM_BUFFER)) {
+                    parser.execute(sql, out);
+                }
+            } else {
+                try (OutputStream out = startStreaming(exchange, format.getContentType())) {
+                    new ResultEncoder(out, format).execute(parser, sql);
+                }
+            }
+        } else {
+            sendResponse(exchange, 405, METHOD_NOT_ALLOWED, "text/plain");
         }
     }
 
     private void handleUsers(HttpExchange exchange) throws IOException {
         String method = exchange.getRequestMethod();
+        if (method.equals("GET")) {
+            listUsers(exchange);
+            return;
+        }
         
         try {
-            if (method.equals("GET")) {
-                Table table = database.getTable("users");
-                List<Row> rows = table.select(null);
-                
-                StringBuilder json = new StringBuilder("[");
-                for (int i = 0; i < rows.size(); i++) {
-                    Row row = rows.get(i);
-                    json.append(String.format("{\"id\":%s,\"name\":\"%s\",\"email\":\"%s\"}",
-                        row.get("id"), row.get("name"), row.get("email")));
-                    if (i < rows.size() - 1) json.append(",");
-                }
-                json.append("]");
-                
-                sendResponse(exchange, 200, json.toString(), "application/json");
-                
-            } else if (method.equals("POST")) {
+            if (method.equals("POST")) {
                 String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
                 String[] parts = body.replaceAll("[{}\"]", "").split(",");
                 
@@ -116,23 +267,52 @@ public class WebServer {
                     data.put(kv[0].trim(), kv[1].trim());
                 }
                 
-                String sql = String.format("INSERT INTO users (id, name, email) VALUES (%s, '%s', '%s')",
-                    data.get("id"), data.get("name"), data.get("email"));
-                String result = parser.execute(sql);
+                // Values are bound as parameters, so quotes in a name cannot change the statement.
+                PreparedStatement insert = parser.prepare("INSERT INTO users (id, name, email) VALUES (?, ?, ?)");
+                String result = run(insert, parseId(data.get("id")), data.get("name"), data.get("email"));
                 
                 sendResponse(exchange, 200, result, "text/plain");
                 
             } else if (method.equals("DELETE")) {
-                String query = exchange.getRequestURI().getQuery();
-                String id = query.split("=")[1];
+                String id = queryParameter(exchange, "id");
                 
-                String sql = "DELETE FROM users WHERE id=" + id;
-                String result = parser.execute(sql);
+                PreparedStatement delete = parser.prepare("DELETE FROM users WHERE id = ?");
+                String result = run(delete, parseId(id));
                 
                 sendResponse(exchange, 200, result, "text/plain");
+            } else {
+                sendResponse(exchange, 405, METHOD_NOT_ALLOWED, "text/plain");
             }
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "Error: Invalid id", "text/plain");
         } catch (Exception e) {
             sendResponse(exchange, 500, "Error: " + e.getMessage(), "text/plain");
         }
     }
+
+    private String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                    return pair.substring(equals + 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Integer parseId(String id) {
+        return id == null ? null : Integer.valueOf(id.trim());
+    }
+
+    // Reports statement errors the way SQLParser.execute does, as an "Error: ..." result.
+    private String run(PreparedStatement statement, Object... parameters) {
+        try {
+            return statement.execute(parameters);
+        } catch (Exception e) {
+            return "Error: " + e.getMessage();
+        }
+    }
 }
@@ -0,0 +1,175 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// A blocking client for WireServer. Each call sends its request and reads the response; pipeline sends
+// several statements before reading any of the responses, so they cost one round trip between them.
+// Not thread-safe: use one client per thread, as each is one server session.
+public class WireClient implements AutoCloseable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    public WireClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+    }
+
+    public Result query(String sql) throws IOException {
+        write(WireProtocol.QUERY, sql);
+        out.flush();
+        return read();
+    }
+
+    // Runs the statements in order; a statement that fails does not stop the ones after it.
+    public List<Result> pipeline(String... sqls) throws IOException {
+        for (String sql : sqls) {
+            write(WireProtocol.QUERY, sql);
+        }
+        out.flush();
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < sqls.length; i++) {
+            results.add(read());
+        }
+        return results;
+    }
+
+    public Prepared prepare(String sql) throws Exception {
+        write(WireProtocol.PREPARE, sql);
+        out.flush();
+        ByteBuffer frame = readFrame();
+        byte type = frame.get();
+        if (type == WireProtocol.ERROR) {
+            throw new Exception(WireProtocol.readString(frame));
+        }
+        if (type != WireProtocol.PREPARED) {
+            throw new IOException("Unexpected response type: " + type);
+        }
+        return new Prepared(frame.getInt(), frame.getShort());
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void write(byte type, String sql) throws IOException {
+        RowCodec frame = WireProtocol.frame(type, 64 + sql.length());
+        frame.putString(sql);
+        send(frame);
+    }
+
+    private void send(RowCodec frame) throws IOException {
+        ByteBuffer buffer = WireProtocol.finish(frame);
+        out.write(buffer.array(), 0, buffer.limit());
+    }
+
+    private ByteBuffer readFrame() throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > WireProtocol.MAX_FRAME) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    // Reads one response: a message, or a result's columns, row batches and end.
+    private Result read() throws IOException {
+        ByteBuffer frame = readFrame();
+        byte type = frame.get();
+        try {
+            if (type == WireProtocol.OK || type == WireProtocol.ERROR) {
+                return new Result(null, null, WireProtocol.readString(frame), type == WireProtocol.ERROR);
+            }
+            if (type != WireProtocol.COLUMNS) {
+                throw new IOException("Unexpected response type: " + type);
+            }
+            List<String> columns = new ArrayList<>();
+            for (int i = frame.getShort(); i > 0; i--) {
+                columns.add(WireProtocol.readString(frame));
+            }
+            List<Object[]> rows = new ArrayList<>();
+            while (true) {
+                frame = readFrame();
+                type = frame.get();
+                if (type == WireProtocol.END) {
+                    return new Result(columns, rows, rows.size() + " row(s)", false);
+                }
+                if (type == WireProtocol.ERROR) {
+                    return new Result(columns, rows, WireProtocol.readString(frame), true);
+                }
+                if (type != WireProtocol.ROWS) {
+                    throw new IOException("Unexpected response type: " + type);
+                }
+                for (int count = frame.getInt(); count > 0; count--) {
+                    Object[] row = new Object[columns.size()];
+                    for (int c = 0; c < row.length; c++) {
+                        row[c] = WireProtocol.readValue(frame);
+                    }
+                    rows.add(row);
+                }
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Malformed response: " + e.getMessage());
+        }
+    }
+
+    // A statement parsed once on the server, run with new values each time.
+    public final class Prepared {
+        private final int handle;
+        private final int parameterCount;
+
+        private Prepared(int handle, int parameterCount) {
+            this.handle = handle;
+            this.parameterCount = parameterCount;
+        }
+
+        public Result execute(Object... parameters) throws IOException {
+            RowCodec frame = WireProtocol.frame(WireProtocol.EXECUTE, 64);
+            frame.putInt(handle);
+            frame.putShort(parameters.length);
+            for (Object parameter : parameters) {
+                WireProtocol.putValue(frame, parameter);
+            }
+            send(frame);
+            out.flush();
+            return read();
+        }
+
+        public Result close() throws IOException {
+            RowCodec frame = WireProtocol.frame(WireProtocol.CLOSE, 16);
+            frame.putInt(handle);
+            send(frame);
+            out.flush();
+            return read();
+        }
+
+        public int getParameterCount() { return parameterCount; }
+    }
+
+    // A SELECT's columns and rows, or the message of any other statement. An error may come after rows.
+    public static final class Result {
+        private final List<String> columns;
+        private final List<Object[]> rows;
+        private final String message;
+        private final boolean error;
+
+        Result(List<String> columns, List<Object[]> rows, String message, boolean error) {
+            this.columns = columns;
+            this.rows = rows;
+            this.message = message;
+            this.error = error;
+        }
+
+        public List<String> getColumns() { return columns; }
+        public List<Object[]> getRows() { return rows; }
+        public String getMessage() { return message; }
+        public boolean isError() { return error; }
+    }
+}
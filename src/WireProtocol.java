@@ -0,0 +1,105 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The binary protocol WireServer speaks and WireClient uses. Every message is a frame: [int length][byte
+// type][body], big-endian, where length counts the type and body. A client may send any number of requests
+// without waiting; the responses come back in request order.
+//
+// Requests:  QUERY [string sql]                  run a statement without parameters
+//            PREPARE [string sql]                parse a statement with ? parameters once
+//            EXECUTE [int handle][short n][n values]
+//            CLOSE [int handle]                  forget a prepared statement
+// Responses: OK [string message]                 a statement that returns no rows, or CLOSE
+//            ERROR [string message]              ends any response, including one that sent rows
+//            PREPARED [int handle][short parameters]
+//            COLUMNS [short n][n strings], then ROWS [int count][count x n values] frames, then
+//            END [long rows]                     the result of a SELECT
+//
+// Strings are [int length][UTF-8 bytes]. Values are a tag byte followed by the value for INT, STRING,
+// LONG and DOUBLE; NULL, TRUE and FALSE are the tag alone.
+final class WireProtocol {
+    static final int MAX_FRAME = 16 << 20;
+    // A result's rows are sent in frames of about this many bytes.
+    static final int BATCH_BYTES = 32 * 1024;
+
+    static final byte QUERY = 1;
+    static final byte PREPARE = 2;
+    static final byte EXECUTE = 3;
+    static final byte CLOSE = 4;
+
+    static final byte OK = 16;
+    static final byte ERROR = 17;
+    static final byte PREPARED = 18;
+    static final byte COLUMNS = 19;
+    static final byte ROWS = 20;
+    static final byte END = 21;
+
+    private static final byte NULL_VALUE = 0;
+    private static final byte INT_VALUE = 1;
+    private static final byte STRING_VALUE = 2;
+    private static final byte TRUE_VALUE = 3;
+    private static final byte FALSE_VALUE = 4;
+    private static final byte LONG_VALUE = 5;
+    private static final byte DOUBLE_VALUE = 6;
+
+    private WireProtocol() {
+    }
+
+    // Starts a frame; the length is filled in by finish.
+    static RowCodec frame(byte type, int capacity) {
+        RowCodec out = new RowCodec(capacity);
+        out.putInt(0);
+        out.putByte(type);
+        return out;
+    }
+
+    static ByteBuffer finish(RowCodec frame) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame.array(), 0, frame.size());
+        buffer.putInt(0, frame.size() - 4);
+        return buffer;
+    }
+
+    static void putValue(RowCodec out, Object value) {
+        if (value == null) {
+            out.putByte(NULL_VALUE);
+        } else if (value instanceof Integer) {
+            out.putByte(INT_VALUE);
+            out.putInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.putByte((Boolean) value ? TRUE_VALUE : FALSE_VALUE);
+        } else if (value instanceof Long) {
+            out.putByte(LONG_VALUE);
+            out.putLong((Long) value);
+        } else if (value instanceof Double) {
+            out.putByte(DOUBLE_VALUE);
+            out.putLong(Double.doubleToRawLongBits((Double) value));
+        } else {
+            out.putByte(STRING_VALUE);
+            out.putString(value.toString());
+        }
+    }
+
+    static Object readValue(ByteBuffer in) throws Exception {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL_VALUE: return null;
+            case INT_VALUE: return in.getInt();
+            case STRING_VALUE: return readString(in);
+            case TRUE_VALUE: return Boolean.TRUE;
+            case FALSE_VALUE: return Boolean.FALSE;
+            case LONG_VALUE: return in.getLong();
+            case DOUBLE_VALUE: return Double.longBitsToDouble(in.getLong());
+            default: throw new Exception("Unknown value tag: " + tag);
+        }
+    }
+
+    static String readString(ByteBuffer in) throws Exception {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new Exception("String length out of range: " + length);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
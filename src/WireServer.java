@@ -0,0 +1,409 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+// Serves WireProtocol over TCP. One selector thread accepts connections, reads request frames and writes
+// responses that could not be written at once; statements run on the worker executor. Each connection is a
+// session: its requests run one at a time in arrival order, however many are pipelined, and it has its own
+// prepared statement handles and transaction. Closing the connection rolls back an open transaction.
+public class WireServer implements AutoCloseable {
+    // Pipelined requests a connection may have waiting before the server stops reading from it.
+    static final int MAX_QUEUED_REQUESTS = 1024;
+    // Response bytes a connection may have waiting to be sent before the statement producing them pauses.
+    static final int MAX_PENDING_BYTES = 1 << 20;
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final SQLParser parser;
+    private final ExecutorService workers;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public WireServer(Database database, int port, ExecutorService workers) throws IOException {
+        this.parser = new SQLParser(database);
+        parser.setFileAccess(false);
+        // Every connection shares this parser, so SQL PREPARE names would be shared too; sessions use
+        // protocol PREPARE handles instead.
+        parser.setNamedStatements(false);
+        this.workers = workers;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::run, "wire-selector");
+    }
+
+    public void start() {
+        thread.start();
+        System.out.println("Wire protocol server started on port " + getPort());
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        server.close();
+        selector.close();
+        workers.shutdown();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Wire protocol server: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // Bytes read but not yet cut into frames. Only the selector thread touches it.
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        // Everything below is guarded by this connection's lock.
+        private final ArrayDeque<ByteBuffer> requests = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private int pendingBytes;
+        private boolean draining;
+        private boolean readPaused;
+        private boolean closed;
+        // Session state, used only by the worker draining the requests.
+        private final Map<Integer, PreparedStatement> statements = new HashMap<>();
+        private int nextHandle = 1;
+        private Transaction transaction;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Cuts complete frames out of what has arrived and queues them; a worker is started if none is running.
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            boolean start = false;
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > WireProtocol.MAX_FRAME) {
+                    throw new IOException("Bad frame length: " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {
+                        in = ByteBuffer.allocate(4 + length).put(in);
+                        in.flip();
+                    }
+                    break;
+                }
+                byte[] frame = new byte[length];
+                in.position(in.position() + 4);
+                in.get(frame);
+                synchronized (this) {
+                    requests.add(ByteBuffer.wrap(frame));
+                    if (!draining) {
+                        draining = true;
+                        start = true;
+                    }
+                    if (requests.size() >= MAX_QUEUED_REQUESTS && !readPaused) {
+                        readPaused = true;
+                        key.interestOpsAnd(~SelectionKey.OP_READ);
+                    }
+                }
+            }
+            in.compact();
+            if (start) {
+                workers.execute(this::drain);
+            }
+        }
+
+        // Runs queued requests in order until there are none left, with the session's transaction on this thread.
+        // Once the connection is closed, rolls back whatever transaction the session left open instead.
+        private void drain() {
+            while (true) {
+                ByteBuffer request;
+                // Set when the connection has closed: this worker is then the one to roll back.
+                boolean closedMeanwhile = false;
+                synchronized (this) {
+                    request = closed ? null : requests.poll();
+                    if (request == null) {
+                        draining = false;
+                        closedMeanwhile = closed;
+                    } else if (readPaused && requests.size() < MAX_QUEUED_REQUESTS / 2) {
+                        readPaused = false;
+                        key.interestOpsOr(SelectionKey.OP_READ);
+                        selector.wakeup();
+                    }
+                }
+                if (request == null) {
+                    if (closedMeanwhile) {
+                        rollback();
+                    }
+                    return;
+                }
+                if (transaction != null) {
+                    transaction.attach();
+                }
+                try {
+                    handle(request);
+                } catch (IOException e) {
+                    close();
+                } finally {
+                    transaction = Transaction.detach();
+                }
+            }
+        }
+
+        private void handle(ByteBuffer request) throws IOException {
+            byte type = request.get();
+            try {
+                switch (type) {
+                    case WireProtocol.QUERY: {
+                        PreparedStatement statement = parser.prepare(WireProtocol.readString(request));
+                        if (statement.getParameterCount() > 0) {
+                            throw new Exception("Statement has ? parameters; use PREPARE");
+                        }
+                        run(statement, NO_PARAMETERS);
+                        break;
+                    }
+                    case WireProtocol.PREPARE: {
+                        PreparedStatement statement = parser.prepare(WireProtocol.readString(request));
+                        int handle = nextHandle++;
+                        statements.put(handle, statement);
+                        RowCodec frame = WireProtocol.frame(WireProtocol.PREPARED, 16);
+                        frame.putInt(handle);
+                        frame.putShort(statement.getParameterCount());
+                        send(WireProtocol.finish(frame));
+                        break;
+                    }
+                    case WireProtocol.EXECUTE: {
+                        PreparedStatement statement = statement(request.getInt());
+                        Object[] parameters = new Object[request.getShort()];
+                        for (int i = 0; i < parameters.length; i++) {
+                            parameters[i] = WireProtocol.readValue(request);
+                        }
+                        run(statement, parameters);
+                        break;
+                    }
+                    case WireProtocol.CLOSE:
+                        statements.remove(request.getInt());
+                        sendMessage(WireProtocol.OK, "Statement closed");
+                        break;
+                    default:
+                        throw new Exception("Unknown request type: " + type);
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                sendMessage(WireProtocol.ERROR, String.valueOf(e.getMessage()));
+            }
+        }
+
+        private PreparedStatement statement(int handle) throws Exception {
+            PreparedStatement statement = statements.get(handle);
+            if (statement == null) {
+                throw new Exception("Unknown statement handle: " + handle);
+            }
+            return statement;
+        }
+
+        // A SELECT streams typed values read straight from its rows; anything else answers with its message.
+        private void run(PreparedStatement statement, Object[] parameters) throws Exception {
+            if (!(statement.getStatement() instanceof Statement.Select)) {
+                sendMessage(WireProtocol.OK, statement.execute(parameters));
+                return;
+            }
+            try (ResultCursor rows = statement.query(parameters)) {
+                List<String> columns = rows.getColumns();
+                RowCodec header = WireProtocol.frame(WireProtocol.COLUMNS, 256);
+                header.putShort(columns.size());
+                for (String column : columns) {
+                    header.putString(column);
+                }
+                send(WireProtocol.finish(header));
+                long total = 0;
+                RowCodec batch = null;
+                int count = 0;
+                while (rows.hasNext()) {
+                    if (batch == null) {
+                        batch = WireProtocol.frame(WireProtocol.ROWS, WireProtocol.BATCH_BYTES + 1024);
+                        batch.putInt(0);
+                        count = 0;
+                    }
+                    Row row = rows.next();
+                    for (String column : columns) {
+                        WireProtocol.putValue(batch, row.get(column));
+                    }
+                    count++;
+                    total++;
+                    if (batch.size() >= WireProtocol.BATCH_BYTES) {
+                        sendBatch(batch, count);
+                        batch = null;
+                    }
+                }
+                if (batch != null) {
+                    sendBatch(batch, count);
+                }
+                RowCodec end = WireProtocol.frame(WireProtocol.END, 16);
+                end.putLong(total);
+                send(WireProtocol.finish(end));
+            }
+        }
+
+        private void sendBatch(RowCodec batch, int count) throws IOException {
+            ByteBuffer frame = WireProtocol.finish(batch);
+            frame.putInt(5, count);
+            send(frame);
+        }
+
+        private void sendMessage(byte type, String message) throws IOException {
+            RowCodec frame = WireProtocol.frame(type, 64 + message.length());
+            frame.putString(message);
+            send(WireProtocol.finish(frame));
+        }
+
+        // Writes straight to the socket when nothing is queued ahead; the selector sends whatever is left.
+        // Waits while too much is queued, so a client reading slowly holds back the statement, not memory.
+        private void send(ByteBuffer frame) throws IOException {
+            synchronized (this) {
+                while (pendingBytes > MAX_PENDING_BYTES && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while sending");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                if (out.isEmpty()) {
+                    channel.write(frame);
+                }
+                if (frame.hasRemaining()) {
+                    if (out.isEmpty()) {
+                        key.interestOpsOr(SelectionKey.OP_WRITE);
+                        selector.wakeup();
+                    }
+                    out.add(frame);
+                    pendingBytes += frame.remaining();
+                }
+            }
+        }
+
+        // Called by the selector when the socket can take more.
+        synchronized void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer frame = out.peek();
+                int before = frame.remaining();
+                channel.write(frame);
+                pendingBytes -= before - frame.remaining();
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                out.poll();
+            }
+            if (out.isEmpty()) {
+                key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            }
+            notifyAll();
+        }
+
+        // Rolling back takes table write locks, which may wait behind long statements, so it runs on a worker
+        // rather than on the selector thread: the draining worker does it when it finishes, or a new task.
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                notifyAll();
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Already gone.
+                }
+                if (draining || transaction == null) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                workers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                rollback();
+            }
+        }
+
+        private void rollback() {
+            if (transaction != null) {
+                try {
+                    transaction.rollback();
+                } catch (Exception e) {
+                    // Already ended.
+                }
+                transaction = null;
+            }
+        }
+    }
+}
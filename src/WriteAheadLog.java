@@ -0,0 +1,444 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only redo log split into numbered segment files (wal-000001.log, ...). Each record is framed as
+// [int length][int crc32][payload] and starts with a type byte. A checkpoint starts a new segment and the
+// segments before it are deleted once the checkpoint is on disk. Writers make a change visible before
+// waiting for its fsync (see Table.commit), so a failed write or fsync fails the log for good: every later
+// append, flush and wait throws, and the database has to be reopened to recover from the log on disk.
+public class WriteAheadLog implements AutoCloseable {
+    static final byte CREATE_TABLE = 1;
+    static final byte DROP_TABLE = 2;
+    static final byte CREATE_INDEX = 3;
+    static final byte DROP_INDEX = 4;
+    static final byte COMMIT = 5;
+
+    static final byte INSERT = 1;
+    static final byte UPDATE = 2;
+    static final byte DELETE = 3;
+
+    private static final long FLUSH_INTERVAL_MS = 10;
+
+    private final Path dir;
+    private final SyncMode syncMode;
+    private final ScheduledExecutorService flusher;
+    private FileChannel channel;
+    private long segment;
+    private long segmentBytes;
+    // Records appended since the last flush; swapped with spare so appends continue while a flush writes.
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    // Log sequence numbers count bytes appended since the log was opened.
+    private long appendedLsn;
+    private long writtenLsn;
+    private long durableLsn;
+    private boolean flushing;
+    private boolean closed;
+    // Set when a write or fsync fails. How much reached the file is then unknown, so the log accepts no more
+    // records and every commit still waiting, or arriving later, fails with this error.
+    private IOException failure;
+
+    public WriteAheadLog(Path dir, SyncMode syncMode) throws IOException {
+        this.dir = dir;
+        this.syncMode = syncMode;
+        this.pending = ByteBuffer.allocate(64 * 1024);
+        this.spare = ByteBuffer.allocate(64 * 1024);
+        List<Long> segments = listSegments();
+        this.segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        this.channel = openSegment(segment);
+        this.segmentBytes = channel.size();
+        channel.position(segmentBytes);
+
+        if (syncMode == SyncMode.COMMIT) {
+            this.flusher = null;
+        } else {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::backgroundFlush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Replays every intact record in segments from firstSegment on, truncating a torn tail left by a crash
+    // in the last segment. Segments older than firstSegment are already covered by a checkpoint.
+    public void replay(long firstSegment, Handler handler) throws Exception {
+        deleteSegmentsBefore(firstSegment);
+        List<Long> segments = listSegments();
+        for (long number : segments) {
+            long validEnd = replaySegment(number, handler);
+            boolean last = number == segments.get(segments.size() - 1);
+            if (validEnd < Files.size(segmentPath(number))) {
+                if (!last) {
+                    throw new IOException("Corrupt log segment: " + segmentPath(number).getFileName());
+                }
+                synchronized (this) {
+                    channel.truncate(validEnd);
+                    channel.position(validEnd);
+                    segmentBytes = validEnd;
+                }
+            }
+        }
+    }
+
+    private long replaySegment(long number, Handler handler) throws Exception {
+        long validEnd = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(FileChannel.open(segmentPath(number), StandardOpenOption.READ)), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > (1 << 30)) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(ByteBuffer.wrap(payload), handler);
+                validEnd += 8 + payload.length;
+            }
+        }
+        return validEnd;
+    }
+
+    private void apply(ByteBuffer in, Handler handler) throws Exception {
+        byte type = in.get();
+        switch (type) {
+            case CREATE_TABLE: {
+                String name = RowCodec.readString(in);
+                StorageType storageType = StorageType.values()[in.get()];
+                handler.createTable(name, RowCodec.readColumns(in), storageType);
+                break;
+            }
+            case DROP_TABLE:
+                handler.dropTable(RowCodec.readString(in));
+                break;
+            case CREATE_INDEX:
+                handler.createIndex(RowCodec.readString(in), RowCodec.readString(in), RowCodec.readString(in),
+                        IndexType.values()[in.get()]);
+                break;
+            case DROP_INDEX:
+                handler.dropIndex(RowCodec.readString(in));
+                break;
+            case COMMIT:
+                while (in.hasRemaining()) {
+                    byte op = in.get();
+                    String table = RowCodec.readString(in);
+                    if (op == INSERT) {
+                        handler.insert(table, RowCodec.readRow(in));
+                    } else if (op == UPDATE) {
+                        handler.update(table, RowCodec.readRow(in), RowCodec.readRow(in));
+                    } else if (op == DELETE) {
+                        handler.delete(table, RowCodec.readRow(in));
+                    } else {
+                        throw new IOException("Corrupt log: unknown change type " + op);
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Corrupt log: unknown record type " + type);
+        }
+    }
+
+    // Adds a record to the log buffer and returns its log sequence number (the log offset just past it).
+    public long append(Record record) throws IOException {
+        byte[] payload = record.out.array();
+        int length = record.out.size();
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Write-ahead log is closed");
+            }
+            checkFailure();
+            if (pending.remaining() < length + 8) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + length + 8));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.putInt(length).putInt((int) crc.getValue()).put(payload, 0, length);
+            appendedLsn += length + 8;
+            segmentBytes += length + 8;
+            return appendedLsn;
+        }
+    }
+
+    // Blocks until the record at lsn is durable under the configured sync mode. With several writers waiting,
+    // whichever flushes first writes and fsyncs everything appended so far, committing the others as a group.
+    public void awaitDurable(long lsn) throws IOException {
+        if (syncMode != SyncMode.COMMIT) {
+            return;
+        }
+        while (true) {
+            synchronized (this) {
+                if (durableLsn >= lsn) {
+                    return;
+                }
+                checkFailure();
+                if (flushing) {
+                    waitForFlush();
+                    continue;
+                }
+            }
+            flush(true);
+        }
+    }
+
+    public void flush(boolean force) throws IOException {
+        ByteBuffer toWrite;
+        FileChannel target;
+        long upTo;
+        synchronized (this) {
+            while (flushing) {
+                waitForFlush();
+            }
+            checkFailure();
+            if (writtenLsn == appendedLsn && (!force || durableLsn == writtenLsn)) {
+                return;
+            }
+            flushing = true;
+            toWrite = pending;
+            pending = spare;
+            spare = null;
+            target = channel;
+            upTo = appendedLsn;
+        }
+        IOException error = null;
+        boolean done = false;
+        try {
+            toWrite.flip();
+            while (toWrite.hasRemaining()) {
+                target.write(toWrite);
+            }
+            if (force) {
+                target.force(false);
+            }
+            done = true;
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            synchronized (this) {
+                // Positions only move past records that reached the file; the buffer is recycled either way,
+                // since after a failure the log takes no more records.
+                if (done) {
+                    writtenLsn = upTo;
+                    if (force) {
+                        durableLsn = upTo;
+                    }
+                } else if (failure == null) {
+                    failure = error != null ? error : new IOException("Log write did not complete");
+                }
+                toWrite.clear();
+                spare = toWrite;
+                flushing = false;
+                notifyAll();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    private void waitForFlush() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the log");
+        }
+    }
+
+    private void backgroundFlush() {
+        try {
+            flush(syncMode == SyncMode.INTERVAL);
+        } catch (IOException e) {
+            System.err.println("Write-ahead log flush failed: " + e.getMessage());
+        }
+    }
+
+    // Makes everything logged so far durable and starts a new segment, returning its number. The caller must
+    // keep new records from being appended meanwhile, so the segment boundary is an exact cut.
+    public long rotate() throws IOException {
+        while (true) {
+            flush(true);
+            synchronized (this) {
+                if (flushing || durableLsn != appendedLsn) {
+                    continue;
+                }
+                FileChannel next = openSegment(segment + 1);
+                channel.close();
+                channel = next;
+                segment++;
+                segmentBytes = 0;
+                return segment;
+            }
+        }
+    }
+
+    public void deleteSegmentsBefore(long firstSegment) throws IOException {
+        for (long number : listSegments()) {
+            if (number < firstSegment) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+
+    public synchronized long getSegment() {
+        return segment;
+    }
+
+    // Bytes logged since the current segment started, i.e. roughly what a restart would replay after a checkpoint.
+    public synchronized long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        try {
+            flush(true);
+        } finally {
+            synchronized (this) {
+                closed = true;
+                channel.close();
+            }
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve(String.format("wal-%06d.log", number));
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(file -> file.getFileName().toString())
+                 .filter(name -> name.matches("wal-\\d+\\.log"))
+                 .forEach(name -> segments.add(Long.parseLong(name.substring(4, name.length() - 4))));
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    public static Record createTable(String name, List<Column> columns, StorageType storageType) {
+        Record record = new Record(CREATE_TABLE);
+        record.out.putString(name);
+        record.out.putByte(storageType.ordinal());
+        RowCodec.putColumns(record.out, columns);
+        return record;
+    }
+
+    public static Record dropTable(String name) {
+        Record record = new Record(DROP_TABLE);
+        record.out.putString(name);
+        return record;
+    }
+
+    public static Record createIndex(String indexName, String tableName, String columnName, IndexType type) {
+        Record record = new Record(CREATE_INDEX);
+        record.out.putString(indexName);
+        record.out.putString(tableName);
+        record.out.putString(columnName);
+        record.out.putByte(type.ordinal());
+        return record;
+    }
+
+    public static Record dropIndex(String indexName) {
+        Record record = new Record(DROP_INDEX);
+        record.out.putString(indexName);
+        return record;
+    }
+
+    public static Record commit() {
+        return new Record(COMMIT);
+    }
+
+    // A log record under construction. A COMMIT record groups all row changes of one statement or
+    // transaction, so they are replayed all or nothing.
+    public static class Record {
+        private final RowCodec out;
+
+        private Record(byte type) {
+            this.out = new RowCodec(128);
+            out.putByte(type);
+        }
+
+        public Record insert(String table, Object[] row) {
+            out.putByte(INSERT);
+            out.putString(table);
+            out.putRow(row);
+            return this;
+        }
+
+        public Record update(String table, Object[] oldRow, Object[] newRow) {
+            out.putByte(UPDATE);
+            out.putString(table);
+            out.putRow(oldRow);
+            out.putRow(newRow);
+            return this;
+        }
+
+        public Record delete(String table, Object[] oldRow) {
+            out.putByte(DELETE);
+            out.putString(table);
+            out.putRow(oldRow);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return out.size() == 1;
+        }
+    }
+
+    // Receives replayed records. Rows are column values in table column order.
+    public interface Handler {
+        void createTable(String name, List<Column> columns, StorageType storageType) throws Exception;
+
+        void dropTable(String name) throws Exception;
+
+        void createIndex(String indexName, String tableName, String columnName, IndexType type) throws Exception;
+
+        void dropIndex(String indexName) throws Exception;
+
+        void insert(String table, Object[] row) throws Exception;
+
+        void update(String table, Object[] oldRow, Object[] newRow) throws Exception;
+
+        void delete(String table, Object[] oldRow) throws Exception;
+    }
+}